@@ -3,15 +3,50 @@
 #include "file_engine_dllInterface_PathMatcher.h"
 #include <string>
 #include <vector>
-#include <concurrent_unordered_map.h>
+#include <unordered_map>
+#include <unordered_set>
+#include <algorithm>
 #include "sqlite3.h"
 #include <mutex>
+#include <condition_variable>
 #include "path_util.h"
 #include "str_convert.h"
 #pragma comment(lib, "sqlite3")
 
-concurrency::concurrent_unordered_map<std::string, sqlite3*> connection_map;
+/**
+ * 每个数据库的连接池，每个线程使用不同的连接，同一个数据库的多个范围可以同时扫描
+ * 连接在需要时创建，数量不超过MAX_CONNECTION_NUM，已达到上限时等待其他线程放回
+ */
+struct connection_pool
+{
+    std::vector<sqlite3*> idle_connections;
+    std::vector<sqlite3*> all_connections;
+    // 每个连接已设置的内存限制版本
+    std::unordered_map<sqlite3*, unsigned> memory_limit_versions;
+};
+
+/**
+ * 由Java端按照内存预算设置的cache_size和mmap_size，连接在取出时设置，版本不同时重新设置
+ * cache_size_kib为所有连接的页面缓存之和，由连接池中的连接平分
+ */
+struct memory_limit
+{
+    long long cache_size_kib = 65536;
+    long long mmap_size = 0;
+    unsigned version = 0;
+};
+
+std::unordered_map<std::string, connection_pool> connection_map;
+std::unordered_map<std::string, memory_limit> memory_limit_map;
+// 连接池关闭时仍在使用的连接，不能立即关闭，由release_connection放回时关闭
+std::unordered_set<sqlite3*> detached_connections;
 std::mutex lock;
+// 连接被放回或连接池被关闭时通知等待连接的线程
+std::condition_variable connection_released;
+constexpr size_t MAX_CONNECTION_NUM = 8;
+// 每个连接已编译的sql，key为sql，同一条sql同时只能被一个线程使用，使用完成后放回
+std::unordered_map<sqlite3*, std::unordered_map<std::string, std::vector<sqlite3_stmt*>>> stmt_cache_map;
+std::mutex stmt_cache_lock;
 
 BOOL APIENTRY DllMain(HMODULE hModule,
                       DWORD ul_reason_for_call,
@@ -46,6 +81,233 @@ void generate_search_case(JNIEnv* env, std::vector<std::string>& search_case_vec
     }
 }
 
+int get_search_case_num(JNIEnv* env, const jobjectArray search_case)
+{
+    int search_case_num = 0;
+    std::vector<std::string> search_case_vec;
+    if (search_case != nullptr)
+    {
+        generate_search_case(env, search_case_vec, search_case);
+    }
+    for (auto& each_case : search_case_vec)
+    {
+        if (each_case == "f")
+        {
+            search_case_num |= 1;
+        }
+        else if (each_case == "d")
+        {
+            search_case_num |= 1 << 1;
+        }
+        else if (each_case == "full")
+        {
+            search_case_num |= 1 << 2;
+        }
+        else if (each_case == "p")
+        {
+            search_case_num |= 1 << 3;
+        }
+    }
+    return search_case_num;
+}
+
+/**
+ * 读取keywords，keywords数量超过MAX_KEYWORDS_NUMBER时返回false
+ */
+bool generate_keywords(JNIEnv* env, const jobjectArray keywords, const jobjectArray keywords_lower,
+                       const jbooleanArray is_keyword_path, std::vector<std::string>& keywords_vec,
+                       std::vector<std::string>& keywords_lower_vec, bool* is_keyword_path_ptr)
+{
+    const auto keywords_length = env->GetArrayLength(keywords);
+    if (keywords_length > MAX_KEYWORDS_NUMBER)
+    {
+        return false;
+    }
+    const auto is_keyword_path_ptr_bool_array = env->GetBooleanArrayElements(is_keyword_path, nullptr);
+    for (jsize i = 0; i < keywords_length; ++i)
+    {
+        auto tmp_keywords_str = reinterpret_cast<jstring>(env->GetObjectArrayElement(keywords, i));
+        auto keywords_chars = env->GetStringUTFChars(tmp_keywords_str, nullptr);
+        keywords_vec.emplace_back(keywords_chars);
+        env->ReleaseStringUTFChars(tmp_keywords_str, keywords_chars);
+        env->DeleteLocalRef(tmp_keywords_str);
+
+        tmp_keywords_str = reinterpret_cast<jstring>(env->GetObjectArrayElement(keywords_lower, i));
+        keywords_chars = env->GetStringUTFChars(tmp_keywords_str, nullptr);
+        keywords_lower_vec.emplace_back(keywords_chars);
+        env->ReleaseStringUTFChars(tmp_keywords_str, keywords_chars);
+        env->DeleteLocalRef(tmp_keywords_str);
+        is_keyword_path_ptr[i] = is_keyword_path_ptr_bool_array[i];
+    }
+    env->ReleaseBooleanArrayElements(is_keyword_path, is_keyword_path_ptr_bool_array, JNI_ABORT);
+    return true;
+}
+
+sqlite3* open_connection(const char* db_path)
+{
+    sqlite3* db = nullptr;
+    sqlite3_open(db_path, &db);
+    sqlite3_exec(db, "PRAGMA TEMP_STORE=MEMORY;", nullptr, nullptr, nullptr);
+    sqlite3_exec(db, "PRAGMA page_size=65535;", nullptr, nullptr, nullptr);
+    return db;
+}
+
+/**
+ * 连接的内存限制版本与当前版本不同时重新设置cache_size和mmap_size，调用时需要持有lock
+ * 连接数量变化后清空memory_limit_versions，所有连接在下次取出时按照新的连接数量重新设置
+ */
+void apply_memory_limit(const std::string& db_path, connection_pool& pool, sqlite3* db)
+{
+    const auto& limit = memory_limit_map[db_path];
+    if (const auto iter = pool.memory_limit_versions.find(db);
+        iter != pool.memory_limit_versions.end() && iter->second == limit.version)
+    {
+        return;
+    }
+    const auto connection_num = static_cast<long long>(pool.all_connections.size());
+    const auto cache_size_kib = (std::max)(1LL, limit.cache_size_kib / (std::max)(1LL, connection_num));
+    // 负数表示单位为KiB
+    const auto cache_size_sql = "PRAGMA cache_size=-" + std::to_string(cache_size_kib) + ";";
+    const auto mmap_size_sql = "PRAGMA mmap_size=" + std::to_string(limit.mmap_size) + ";";
+    sqlite3_exec(db, cache_size_sql.c_str(), nullptr, nullptr, nullptr);
+    sqlite3_exec(db, mmap_size_sql.c_str(), nullptr, nullptr, nullptr);
+    pool.memory_limit_versions[db] = limit.version;
+}
+
+/**
+ * 从连接池中取出空闲的连接，没有空闲的连接时创建新的连接，连接数量已达到上限时等待，使用完成后调用release_connection放回
+ */
+sqlite3* acquire_connection(const std::string& db_path)
+{
+    std::unique_lock unique_lock(lock);
+    while (true)
+    {
+        const auto iter = connection_map.find(db_path);
+        if (iter == connection_map.end())
+        {
+            fprintf(stderr, "Error: connection not opened %s\n", db_path.c_str());
+            fflush(stderr);
+            return nullptr;
+        }
+        auto& pool = iter->second;
+        if (!pool.idle_connections.empty())
+        {
+            const auto db = pool.idle_connections.back();
+            pool.idle_connections.pop_back();
+            apply_memory_limit(db_path, pool, db);
+            return db;
+        }
+        if (pool.all_connections.size() < MAX_CONNECTION_NUM)
+        {
+            const auto db = open_connection(db_path.c_str());
+            pool.all_connections.emplace_back(db);
+            pool.memory_limit_versions.clear();
+            apply_memory_limit(db_path, pool, db);
+            return db;
+        }
+        connection_released.wait(unique_lock);
+    }
+}
+
+std::string get_db_path(JNIEnv* env, const jstring db_path)
+{
+    const auto db_path_chars = env->GetStringUTFChars(db_path, nullptr);
+    std::string db_path_str(db_path_chars);
+    env->ReleaseStringUTFChars(db_path, db_path_chars);
+    return db_path_str;
+}
+
+/**
+ * 关闭连接以及该连接已编译的sql，连接和sql都必须已经放回，调用时需要持有lock
+ */
+void close_connection(sqlite3* db)
+{
+    {
+        std::lock_guard lock_guard(stmt_cache_lock);
+        if (const auto stmt_iter = stmt_cache_map.find(db); stmt_iter != stmt_cache_map.end())
+        {
+            for (const auto& [sql, stmt_vec] : stmt_iter->second)
+            {
+                for (const auto stmt : stmt_vec)
+                {
+                    sqlite3_finalize(stmt);
+                }
+            }
+            stmt_cache_map.erase(stmt_iter);
+        }
+    }
+    sqlite3_close(db);
+}
+
+/**
+ * 关闭连接池中的空闲连接，正在使用的连接在放回时关闭，调用时需要持有lock
+ */
+void close_connection_pool(const connection_pool& pool)
+{
+    for (const auto db : pool.all_connections)
+    {
+        if (std::find(pool.idle_connections.begin(), pool.idle_connections.end(), db) != pool.idle_connections.end())
+        {
+            close_connection(db);
+        }
+        else
+        {
+            detached_connections.insert(db);
+        }
+    }
+}
+
+/**
+ * 将连接放回连接池，连接池已经关闭时关闭该连接
+ */
+void release_connection(const std::string& db_path, sqlite3* db)
+{
+    std::lock_guard lock_guard(lock);
+    if (detached_connections.erase(db) != 0)
+    {
+        close_connection(db);
+        return;
+    }
+    if (const auto iter = connection_map.find(db_path); iter != connection_map.end())
+    {
+        iter->second.idle_connections.emplace_back(db);
+        connection_released.notify_all();
+    }
+}
+
+/**
+ * 从缓存中取出已编译的sql，没有空闲的sql时重新编译
+ */
+sqlite3_stmt* acquire_stmt(sqlite3* db, const std::string& sql)
+{
+    {
+        std::lock_guard lock_guard(stmt_cache_lock);
+        auto& stmt_vec = stmt_cache_map[db][sql];
+        if (!stmt_vec.empty())
+        {
+            const auto stmt = stmt_vec.back();
+            stmt_vec.pop_back();
+            return stmt;
+        }
+    }
+    sqlite3_stmt* stmt = nullptr;
+    if (sqlite3_prepare_v3(db, sql.c_str(), -1, SQLITE_PREPARE_PERSISTENT, &stmt, nullptr) != SQLITE_OK)
+    {
+        fprintf(stderr, "Prepare sql failed, sql: %s error: %s\n", sql.c_str(), sqlite3_errmsg(db));
+        fflush(stderr);
+        sqlite3_finalize(stmt);
+        return nullptr;
+    }
+    return stmt;
+}
+
+void release_stmt(sqlite3* db, const std::string& sql, sqlite3_stmt* stmt)
+{
+    sqlite3_reset(stmt);
+    std::lock_guard lock_guard(stmt_cache_lock);
+    stmt_cache_map[db][sql].emplace_back(stmt);
+}
+
 int callback(void* data, int col_count, char** res_value, char** res_col_name)
 {
     search_task* task = static_cast<search_task*>(data);
@@ -78,58 +340,15 @@ JNIEXPORT jobjectArray JNICALL Java_file_engine_dllInterface_PathMatcher_match
  jstring search_text, jobjectArray keywords, jobjectArray keywords_lower, jbooleanArray is_keyword_path,
  jint max_results)
 {
-    int search_case_num = 0;
-    {
-        std::vector<std::string> search_case_vec;
-        if (search_case != nullptr)
-        {
-            generate_search_case(env, search_case_vec, search_case);
-        }
-        for (auto& each_case : search_case_vec)
-        {
-            if (each_case == "f")
-            {
-                search_case_num |= 1;
-            }
-            else if (each_case == "d")
-            {
-                search_case_num |= 1 << 1;
-            }
-            else if (each_case == "full")
-            {
-                search_case_num |= 1 << 2;
-            }
-            else if (each_case == "p")
-            {
-                search_case_num |= 1 << 3;
-            }
-        }
-    }
+    const int search_case_num = get_search_case_num(env, search_case);
     std::vector<std::string> keywords_vec;
     std::vector<std::string> keywords_lower_vec;
-    const auto keywords_length = env->GetArrayLength(keywords);
-    if (keywords_length > MAX_KEYWORDS_NUMBER)
-    {
-        return nullptr;
-    }
     bool is_keyword_path_ptr[MAX_KEYWORDS_NUMBER]{false};
-    const auto is_keyword_path_ptr_bool_array = env->GetBooleanArrayElements(is_keyword_path, nullptr);
-    for (jsize i = 0; i < keywords_length; ++i)
+    if (!generate_keywords(env, keywords, keywords_lower, is_keyword_path, keywords_vec, keywords_lower_vec,
+                           is_keyword_path_ptr))
     {
-        auto tmp_keywords_str = reinterpret_cast<jstring>(env->GetObjectArrayElement(keywords, i));
-        auto keywords_chars = env->GetStringUTFChars(tmp_keywords_str, nullptr);
-        keywords_vec.emplace_back(keywords_chars);
-        env->ReleaseStringUTFChars(tmp_keywords_str, keywords_chars);
-        env->DeleteLocalRef(tmp_keywords_str);
-
-        tmp_keywords_str = reinterpret_cast<jstring>(env->GetObjectArrayElement(keywords_lower, i));
-        keywords_chars = env->GetStringUTFChars(tmp_keywords_str, nullptr);
-        keywords_lower_vec.emplace_back(keywords_chars);
-        env->ReleaseStringUTFChars(tmp_keywords_str, keywords_chars);
-        env->DeleteLocalRef(tmp_keywords_str);
-        is_keyword_path_ptr[i] = is_keyword_path_ptr_bool_array[i];
+        return nullptr;
     }
-    env->ReleaseBooleanArrayElements(is_keyword_path, is_keyword_path_ptr_bool_array, JNI_ABORT);
     const auto search_text_chars = env->GetStringUTFChars(search_text, nullptr);
     search_info info_obj(search_case_num, is_ignore_case, search_text_chars, &keywords_vec, &keywords_lower_vec,
                          is_keyword_path_ptr);
@@ -139,18 +358,8 @@ JNIEXPORT jobjectArray JNICALL Java_file_engine_dllInterface_PathMatcher_match
     task.search_info = info;
     task.max_result = max_results;
 
-    sqlite3* db = nullptr;
-    try
-    {
-        const auto db_path_str = env->GetStringUTFChars(db_path, nullptr);
-        db = connection_map.at(db_path_str);
-        env->ReleaseStringUTFChars(db_path, db_path_str);
-    }
-    catch (std::out_of_range& e)
-    {
-        fprintf(stderr, "Error: %s\n", e.what());
-        fflush(stderr);
-    }
+    const auto db_path_str = get_db_path(env, db_path);
+    sqlite3* db = acquire_connection(db_path_str);
     if (db == nullptr)
     {
         return nullptr;
@@ -158,6 +367,7 @@ JNIEXPORT jobjectArray JNICALL Java_file_engine_dllInterface_PathMatcher_match
     const auto sql_str = env->GetStringUTFChars(sql, nullptr);
     char* error_str;
     const auto rc = sqlite3_exec(db, sql_str, callback, &task, &error_str);
+    release_connection(db_path_str, db);
     if (rc != SQLITE_OK)
     {
         fprintf(stderr, "Query sql failed, sql: %s\n", sql_str);
@@ -177,6 +387,101 @@ JNIEXPORT jobjectArray JNICALL Java_file_engine_dllInterface_PathMatcher_match
     return object_arr;
 }
 
+/*
+ * Class:     file_engine_dllInterface_PathMatcher
+ * Method:    matchByPriority
+ * Signature: (Ljava/lang/String;Ljava/lang/String;[Ljava/lang/String;ZLjava/lang/String;[Ljava/lang/String;[Ljava/lang/String;[ZI[I[I)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_file_engine_dllInterface_PathMatcher_matchByPriority
+(JNIEnv* env, jobject, jstring sql, jstring db_path, jobjectArray search_case, jboolean is_ignore_case,
+ jstring search_text, jobjectArray keywords, jobjectArray keywords_lower, jbooleanArray is_keyword_path,
+ jint max_results, jintArray priorities, jintArray matched_counts)
+{
+    const int search_case_num = get_search_case_num(env, search_case);
+    std::vector<std::string> keywords_vec;
+    std::vector<std::string> keywords_lower_vec;
+    bool is_keyword_path_ptr[MAX_KEYWORDS_NUMBER]{false};
+    if (!generate_keywords(env, keywords, keywords_lower, is_keyword_path, keywords_vec, keywords_lower_vec,
+                           is_keyword_path_ptr))
+    {
+        return nullptr;
+    }
+    const auto search_text_chars = env->GetStringUTFChars(search_text, nullptr);
+    search_info info_obj(search_case_num, is_ignore_case, search_text_chars, &keywords_vec, &keywords_lower_vec,
+                         is_keyword_path_ptr);
+    env->ReleaseStringUTFChars(search_text, search_text_chars);
+
+    const auto db_path_str = get_db_path(env, db_path);
+    sqlite3* db = acquire_connection(db_path_str);
+    if (db == nullptr)
+    {
+        return nullptr;
+    }
+    const auto sql_chars = env->GetStringUTFChars(sql, nullptr);
+    const std::string sql_str(sql_chars);
+    env->ReleaseStringUTFChars(sql, sql_chars);
+    const auto stmt = acquire_stmt(db, sql_str);
+    if (stmt == nullptr)
+    {
+        release_connection(db_path_str, db);
+        return nullptr;
+    }
+    const auto priorities_length = env->GetArrayLength(priorities);
+    const auto priorities_ptr = env->GetIntArrayElements(priorities, nullptr);
+    const auto matched_counts_ptr = env->GetIntArrayElements(matched_counts, nullptr);
+    std::vector<std::string> result_vec;
+    // sql按照PRIORITY降序排列，priority_index只会增加
+    jsize priority_index = 0;
+    int rc;
+    while ((rc = sqlite3_step(stmt)) == SQLITE_ROW)
+    {
+        if (static_cast<long>(result_vec.size()) > max_results)
+        {
+            break;
+        }
+        const auto path = reinterpret_cast<const char*>(sqlite3_column_text(stmt, 0));
+        const int priority = sqlite3_column_int(stmt, 1);
+        if (path == nullptr)
+        {
+            continue;
+        }
+        while (priority_index < priorities_length && priorities_ptr[priority_index] != priority)
+        {
+            ++priority_index;
+        }
+        if (priority_index >= priorities_length)
+        {
+            break;
+        }
+        if (match_func(path, &info_obj))
+        {
+            ++matched_counts_ptr[priority_index];
+            result_vec.emplace_back(path);
+        }
+    }
+    if (rc != SQLITE_ROW && rc != SQLITE_DONE)
+    {
+        fprintf(stderr, "Query sql failed, sql: %s error: %s\n", sql_str.c_str(), sqlite3_errmsg(db));
+        fflush(stderr);
+    }
+    release_stmt(db, sql_str, stmt);
+    release_connection(db_path_str, db);
+    env->ReleaseIntArrayElements(priorities, priorities_ptr, JNI_ABORT);
+    env->ReleaseIntArrayElements(matched_counts, matched_counts_ptr, 0);
+    const auto string_class = env->FindClass("java/lang/String");
+    const auto object_arr = env->NewObjectArray(static_cast<jsize>(result_vec.size()), string_class, nullptr);
+    jsize count = 0;
+    for (const auto& each_result : result_vec)
+    {
+        const auto each_result_str = env->NewStringUTF(each_result.c_str());
+        env->SetObjectArrayElement(object_arr, count, each_result_str);
+        env->DeleteLocalRef(each_result_str);
+        ++count;
+    }
+    env->DeleteLocalRef(string_class);
+    return object_arr;
+}
+
 /*
  * Class:     file_engine_dllInterface_PathMatcher
  * Method:    openConnection
@@ -185,27 +490,36 @@ JNIEXPORT jobjectArray JNICALL Java_file_engine_dllInterface_PathMatcher_match
 JNIEXPORT void JNICALL Java_file_engine_dllInterface_PathMatcher_openConnection
 (JNIEnv* env, jobject, jstring db_path)
 {
-    const auto db_path_str = env->GetStringUTFChars(db_path, nullptr);
+    const auto db_path_str = get_db_path(env, db_path);
+    std::lock_guard lock_guard(lock);
     if (connection_map.find(db_path_str) != connection_map.end())
     {
         return;
     }
-    lock.lock();
-    if (connection_map.find(db_path_str) != connection_map.end())
+    connection_pool pool;
+    const auto db = open_connection(db_path_str.c_str());
+    pool.all_connections.emplace_back(db);
+    pool.idle_connections.emplace_back(db);
+    connection_map.emplace(db_path_str, std::move(pool));
+}
+
+/*
+ * Class:     file_engine_dllInterface_PathMatcher
+ * Method:    closeConnection
+ * Signature: (Ljava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_file_engine_dllInterface_PathMatcher_closeConnection
+(JNIEnv* env, jobject, jstring db_path)
+{
+    const auto db_path_str = get_db_path(env, db_path);
+    std::lock_guard lock_guard(lock);
+    if (const auto iter = connection_map.find(db_path_str); iter != connection_map.end())
     {
-        lock.unlock();
-        return;
+        close_connection_pool(iter->second);
+        connection_map.erase(iter);
+        connection_released.notify_all();
     }
-    sqlite3* db = nullptr;
-    sqlite3_open(db_path_str, &db);
-    sqlite3_exec(db, "PRAGMA TEMP_STORE=MEMORY;", nullptr, nullptr, nullptr);
-    sqlite3_exec(db, "PRAGMA cache_size=262144;", nullptr, nullptr, nullptr);
-    sqlite3_exec(db, "PRAGMA page_size=65535;", nullptr, nullptr, nullptr);
-    sqlite3_exec(db, "PRAGMA auto_vacuum=0;", nullptr, nullptr, nullptr);
-    sqlite3_exec(db, "PRAGMA mmap_size=4096;", nullptr, nullptr, nullptr);
-    connection_map.insert(std::make_pair(db_path_str, db));
-    env->ReleaseStringUTFChars(db_path, db_path_str);
-    lock.unlock();
+    memory_limit_map.erase(db_path_str);
 }
 
 /*
@@ -216,11 +530,67 @@ JNIEXPORT void JNICALL Java_file_engine_dllInterface_PathMatcher_openConnection
 JNIEXPORT void JNICALL Java_file_engine_dllInterface_PathMatcher_closeConnections
 (JNIEnv*, jobject)
 {
-    lock.lock();
-    for (const auto& each_connection : connection_map)
+    std::lock_guard lock_guard(lock);
+    for (const auto& [db_path, pool] : connection_map)
     {
-        sqlite3_close(each_connection.second);
+        close_connection_pool(pool);
     }
     connection_map.clear();
-    lock.unlock();
+    memory_limit_map.clear();
+    connection_released.notify_all();
+}
+
+/*
+ * Class:     file_engine_dllInterface_PathMatcher
+ * Method:    setMemoryLimit
+ * Signature: (Ljava/lang/String;JJ)V
+ */
+JNIEXPORT void JNICALL Java_file_engine_dllInterface_PathMatcher_setMemoryLimit
+(JNIEnv* env, jobject, jstring db_path, jlong cache_size_kib, jlong mmap_size)
+{
+    const auto db_path_str = get_db_path(env, db_path);
+    std::lock_guard lock_guard(lock);
+    auto& limit = memory_limit_map[db_path_str];
+    if (limit.version != 0 && limit.cache_size_kib == cache_size_kib && limit.mmap_size == mmap_size)
+    {
+        return;
+    }
+    limit.cache_size_kib = cache_size_kib;
+    limit.mmap_size = mmap_size;
+    ++limit.version;
+}
+
+/*
+ * Class:     file_engine_dllInterface_PathMatcher
+ * Method:    getCacheStatus
+ * Signature: (Ljava/lang/String;)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_file_engine_dllInterface_PathMatcher_getCacheStatus
+(JNIEnv* env, jobject, jstring db_path)
+{
+    const auto db_path_str = get_db_path(env, db_path);
+    // 命中次数，未命中次数，使用的页面缓存大小
+    jlong status[3]{};
+    {
+        std::lock_guard lock_guard(lock);
+        const auto iter = connection_map.find(db_path_str);
+        if (iter == connection_map.end())
+        {
+            return nullptr;
+        }
+        for (const auto db : iter->second.all_connections)
+        {
+            int current = 0;
+            int high_water = 0;
+            sqlite3_db_status(db, SQLITE_DBSTATUS_CACHE_HIT, &current, &high_water, 0);
+            status[0] += current;
+            sqlite3_db_status(db, SQLITE_DBSTATUS_CACHE_MISS, &current, &high_water, 0);
+            status[1] += current;
+            sqlite3_db_status(db, SQLITE_DBSTATUS_CACHE_USED, &current, &high_water, 0);
+            status[2] += current;
+        }
+    }
+    const auto status_arr = env->NewLongArray(3);
+    env->SetLongArrayRegion(status_arr, 0, 3, status);
+    return status_arr;
 }
@@ -15,6 +15,14 @@ extern "C" {
 JNIEXPORT jobjectArray JNICALL Java_file_engine_dllInterface_PathMatcher_match
   (JNIEnv *, jobject, jstring, jstring, jobjectArray, jboolean, jstring, jobjectArray, jobjectArray, jbooleanArray, jint);
 
+/*
+ * Class:     file_engine_dllInterface_PathMatcher
+ * Method:    matchByPriority
+ * Signature: (Ljava/lang/String;Ljava/lang/String;[Ljava/lang/String;ZLjava/lang/String;[Ljava/lang/String;[Ljava/lang/String;[ZI[I[I)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_file_engine_dllInterface_PathMatcher_matchByPriority
+  (JNIEnv *, jobject, jstring, jstring, jobjectArray, jboolean, jstring, jobjectArray, jobjectArray, jbooleanArray, jint, jintArray, jintArray);
+
 /*
  * Class:     file_engine_dllInterface_PathMatcher
  * Method:    openConnection
@@ -23,6 +31,14 @@ JNIEXPORT jobjectArray JNICALL Java_file_engine_dllInterface_PathMatcher_match
 JNIEXPORT void JNICALL Java_file_engine_dllInterface_PathMatcher_openConnection
   (JNIEnv *, jobject, jstring);
 
+/*
+ * Class:     file_engine_dllInterface_PathMatcher
+ * Method:    closeConnection
+ * Signature: (Ljava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_file_engine_dllInterface_PathMatcher_closeConnection
+  (JNIEnv *, jobject, jstring);
+
 /*
  * Class:     file_engine_dllInterface_PathMatcher
  * Method:    closeConnections
@@ -31,6 +47,22 @@ JNIEXPORT void JNICALL Java_file_engine_dllInterface_PathMatcher_openConnection
 JNIEXPORT void JNICALL Java_file_engine_dllInterface_PathMatcher_closeConnections
   (JNIEnv *, jobject);
 
+/*
+ * Class:     file_engine_dllInterface_PathMatcher
+ * Method:    setMemoryLimit
+ * Signature: (Ljava/lang/String;JJ)V
+ */
+JNIEXPORT void JNICALL Java_file_engine_dllInterface_PathMatcher_setMemoryLimit
+  (JNIEnv *, jobject, jstring, jlong, jlong);
+
+/*
+ * Class:     file_engine_dllInterface_PathMatcher
+ * Method:    getCacheStatus
+ * Signature: (Ljava/lang/String;)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_file_engine_dllInterface_PathMatcher_getCacheStatus
+  (JNIEnv *, jobject, jstring);
+
 #ifdef __cplusplus
 }
 #endif
@@ -1,4 +1,4 @@
 #pragma once
 // #define TEST
 // #define RECORD_MAX_PATH 384
-#define SAVE_TO_DATABASE_RECORD_CHECKPOINT 1000000
\ No newline at end of file
+#define SAVE_TO_DATABASE_RECORD_CHECKPOINT 500000
\ No newline at end of file
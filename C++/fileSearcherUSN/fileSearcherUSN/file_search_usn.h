@@ -8,6 +8,9 @@ using parameter = struct parameter
     char disk{'\0'};
     std::vector<std::string> ignorePath;
     sqlite3* db{nullptr};
+    // 分区方式，与Java中TablePartitioner一致
+    bool is_hash_partition{false};
+    int partition_num{41};
 };
 
 void init_usn(parameter p);
@@ -12,6 +12,7 @@ static PriorityMap suffix_priority_map;
 
 /**
  * 创建数据库表 list0-list40
+ * 表结构版本2，与Java中SQLiteUtil的LIST_SCHEMA_VERSION一致，已存在的旧版本表由Java在后台逐个迁移
  */
 void init_tables(sqlite3* db)
 {
@@ -20,7 +21,7 @@ void init_tables(sqlite3* db)
     for (int i = 0; i < 41; i++)
     {
         string sql = "CREATE TABLE IF NOT EXISTS list" + to_string(i) +
-            R"((ASCII INT, PATH TEXT, PRIORITY INT, PRIMARY KEY("ASCII","PATH","PRIORITY"));)";
+            R"((ASCII INT, PATH TEXT, PRIORITY INT, PRIMARY KEY("PRIORITY","ASCII","PATH")) WITHOUT ROWID;)";
         sqlite3_exec(db, sql.c_str(), nullptr, nullptr, nullptr);
     }
     sqlite3_exec(db, "COMMIT;", nullptr, nullptr, nullptr);
@@ -32,8 +33,11 @@ void init_tables(sqlite3* db)
 void init_usn(parameter p)
 {
     init_tables(p.db);
-    volume volume_instance(p.disk, p.db, &p.ignorePath, &suffix_priority_map);
+    volume volume_instance(p.disk, p.db, &p.ignorePath, &suffix_priority_map, p.is_hash_partition, p.partition_num);
     volume_instance.init_volume();
+    // 写入完成后统计一次索引信息，只采样每个索引的一部分
+    sqlite3_exec(p.db, "PRAGMA analysis_limit=1000;", nullptr, nullptr, nullptr);
+    sqlite3_exec(p.db, "ANALYZE;", nullptr, nullptr, nullptr);
     sqlite3_close(p.db);
 #ifdef TEST
 	std::cout << "path : " << p.disk << std::endl;
@@ -110,7 +114,33 @@ bool is_file_exist(const char* file_path)
     return false;
 }
 
-bool get_search_info(char disk_path[500], char output[500], char ignore_path[500])
+/**
+ * 解析分区方式，格式为[分区方式:分区数量]，例如 hash:41，旧版本没有该行时使用utf8Sum:41
+ */
+void parse_partition_layout(const char* layout, bool& is_hash_partition, int& partition_num)
+{
+    const std::string layout_str(layout);
+    const auto pos = layout_str.find(':');
+    if (pos == std::string::npos)
+    {
+        return;
+    }
+    is_hash_partition = layout_str.substr(0, pos) == "hash";
+    try
+    {
+        partition_num = std::stoi(layout_str.substr(pos + 1));
+    }
+    catch (const std::exception&)
+    {
+        partition_num = 41;
+    }
+    if (partition_num < 1 || partition_num > 41)
+    {
+        partition_num = 41;
+    }
+}
+
+bool get_search_info(char disk_path[500], char output[500], char ignore_path[500], char partition_layout[100])
 {
     std::ifstream input("MFTSearchInfo.dat", std::ios::in);
     if (!input)
@@ -121,6 +151,7 @@ bool get_search_info(char disk_path[500], char output[500], char ignore_path[500
     input.getline(disk_path, 500);
     input.getline(output, 500);
     input.getline(ignore_path, 500);
+    input.getline(partition_layout, 100);
     input.close();
     return true;
 }
@@ -131,11 +162,15 @@ int main()
     char disk_path[500]{0};
     char output[500]{0};
     char ignore_path[500]{0};
+    char partition_layout[100]{0};
 
-    if (!get_search_info(disk_path, output, ignore_path))
+    if (!get_search_info(disk_path, output, ignore_path, partition_layout))
     {
         return 1;
     }
+    bool is_hash_partition = false;
+    int partition_num = 41;
+    parse_partition_layout(partition_layout, is_hash_partition, partition_num);
 
 #ifdef TEST
 	cout << "disk path: " << disk_path << endl;
@@ -163,6 +198,8 @@ int main()
             parameter p;
             p.disk = disk;
             p.ignorePath = ignore_paths_vector;
+            p.is_hash_partition = is_hash_partition;
+            p.partition_num = partition_num;
             char tmp_db_path[1000];
             strcpy_s(tmp_db_path, output);
             strcat_s(tmp_db_path, "\\");
@@ -190,8 +227,10 @@ int main()
             sqlite3_exec(p.db, "PRAGMA TEMP_STORE=MEMORY;", nullptr, nullptr, nullptr);
             sqlite3_exec(p.db, "PRAGMA cache_size=262144;", nullptr, nullptr, nullptr);
             sqlite3_exec(p.db, "PRAGMA page_size=65535;", nullptr, nullptr, nullptr);
-            sqlite3_exec(p.db, "PRAGMA auto_vacuum=0;", nullptr, nullptr, nullptr);
+            sqlite3_exec(p.db, "PRAGMA auto_vacuum=2;", nullptr, nullptr, nullptr);
             sqlite3_exec(p.db, "PRAGMA mmap_size=4096;", nullptr, nullptr, nullptr);
+            // 写入的是影子数据库，切换前不会被读取，不需要等待写入磁盘
+            sqlite3_exec(p.db, "PRAGMA synchronous=OFF;", nullptr, nullptr, nullptr);
             threads.emplace_back(init_usn, p);
         }
     }
@@ -11,12 +11,16 @@
 #include <concurrent_unordered_set.h>
 #include <concurrent_unordered_map.h>
 #include <mutex>
+#include <chrono>
 
 
-volume::volume(const char vol, sqlite3* database, std::vector<std::string>* ignore_paths, PriorityMap* priority_map)
+volume::volume(const char vol, sqlite3* database, std::vector<std::string>* ignore_paths, PriorityMap* priority_map,
+               const bool is_hash_partition, const int partition_num)
 {
     this->vol = vol;
     this->priority_map_ = priority_map;
+    this->is_hash_partition_ = is_hash_partition;
+    this->partition_num_ = partition_num;
     hVol = nullptr;
     path = "";
     db = database;
@@ -37,13 +41,15 @@ void volume::init_volume()
         {
             unsigned count = 0;
             const auto& name = map_iterator->second.filename;
-            const int ascii = get_asc_ii_sum(to_utf8(wstring(name)));
+            const auto utf8_name = to_utf8(wstring(name));
+            const int ascii = get_asc_ii_sum(utf8_name);
+            const int table_index = get_table_index(utf8_name, ascii);
             CString result_path = _T("\0");
             get_path(map_iterator->first, result_path);
             const CString record = vol + result_path;
             if (const auto full_path = to_utf8(wstring(record)); !is_ignore(full_path))
             {
-                collect_result_to_result_map(ascii, full_path);
+                collect_result_to_result_map(ascii, table_index, full_path);
                 ++count;
                 // string tmp_path(full_path);
                 // size_t pos = tmp_path.find_last_of('\\');
@@ -69,25 +75,26 @@ void volume::init_volume()
         {
             auto&& start_iter = frnPfrnNameMap.begin();
             auto&& end_iter = frnPfrnNameMap.end();
-            unsigned count = 0;
-            init_all_prepare_statement();
             while (start_iter != end_iter)
             {
-                count += collect_internal(start_iter);
+                collect_internal(start_iter);
                 ++start_iter;
-                if (count > SAVE_TO_DATABASE_RECORD_CHECKPOINT)
+                if (pending_record_num_ >= SAVE_TO_DATABASE_RECORD_CHECKPOINT)
                 {
-                    count = 0;
-                    finalize_all_statement();
-                    init_all_prepare_statement();
+                    flush_pending_records();
                 }
             }
-            finalize_all_statement();
+            flush_pending_records();
         };
         try
         {
+            const auto start_time = chrono::steady_clock::now();
             search_internal();
-            printf("collect disk %c complete.\n", this->getDiskPath());
+            const auto cost_mills = chrono::duration_cast<chrono::milliseconds>(
+                chrono::steady_clock::now() - start_time).count();
+            printf("collect disk %c complete. records: %zu, cost: %lldms, %.0f rows/s\n", this->getDiskPath(),
+                   saved_record_num_, static_cast<long long>(cost_mills),
+                   static_cast<double>(saved_record_num_) * 1000 / (std::max)(cost_mills, 1LL));
         }
         catch (exception& e)
         {
@@ -102,16 +109,74 @@ void volume::init_volume()
     printf("%s\n", info.c_str());
 }
 
-void volume::collect_result_to_result_map(const int ascii, const std::string& full_path) const
+void volume::collect_result_to_result_map(const int ascii, const int table_index, const std::string& full_path)
+{
+    const int priority = get_priority_by_path(full_path);
+
+    pending_records_[table_index].push_back({priority, ascii, full_path});
+    ++pending_record_num_;
+}
+
+/**
+ * 将缓存的记录按照主键(PRIORITY, ASCII, PATH)排序后在一个事务中写入数据库
+ * 按照主键顺序插入时B树只在末尾追加，不需要分裂中间的页面
+ */
+void volume::flush_pending_records()
 {
-    int ascii_group = ascii / 100;
-    if (ascii_group > 40)
+    if (pending_record_num_ == 0)
     {
-        ascii_group = 40;
+        return;
     }
-    const int priority = get_priority_by_path(full_path);
+    init_all_prepare_statement();
+    for (int i = 0; i < 41; ++i)
+    {
+        auto& records = pending_records_[i];
+        std::sort(records.begin(), records.end(), [](const pending_record& left, const pending_record& right)
+        {
+            if (left.priority != right.priority)
+            {
+                return left.priority < right.priority;
+            }
+            if (left.ascii != right.ascii)
+            {
+                return left.ascii < right.ascii;
+            }
+            return left.path < right.path;
+        });
+        for (const auto& each : records)
+        {
+            save_result(each.path, each.ascii, i, each.priority);
+        }
+        saved_record_num_ += records.size();
+        records.clear();
+    }
+    pending_record_num_ = 0;
+    finalize_all_statement();
+}
 
-    save_result(full_path, ascii, ascii_group, priority);
+/**
+ * 获取文件名所在的表，与Java中TablePartitioner.getTableIndex一致
+ * hash：UTF-8字节（只将A-Z转为小写）的FNV-1a哈希值对分区数量取余
+ * utf8Sum：UTF-8字节中正数的和除以100
+ */
+int volume::get_table_index(const std::string& name, const int ascii) const
+{
+    if (!is_hash_partition_)
+    {
+        return (std::min)(ascii / 100, partition_num_ - 1);
+    }
+    uint32_t hash = 0x811c9dc5;
+    for (const char each : name)
+    {
+        auto byte = static_cast<uint8_t>(each);
+        if (byte >= 'A' && byte <= 'Z')
+        {
+            byte += 'a' - 'A';
+        }
+        hash ^= byte;
+        hash *= 0x01000193;
+    }
+    return static_cast<int>(hash % static_cast<uint32_t>(partition_num_));
 }
 
 int volume::get_priority_by_suffix(const std::string& suffix) const
@@ -3,6 +3,7 @@
 #include <string>
 #include "stdafx.h"
 #include <unordered_map>
+#include <vector>
 #include "sqlite3.h"
 #include <winioctl.h>
 #include <concurrent_unordered_map.h>
@@ -17,13 +18,24 @@ typedef struct pfrn_name
     CString filename;
 } pfrn_name;
 
+/**
+ * 等待写入数据库的记录，写入前按照主键(PRIORITY, ASCII, PATH)排序
+ */
+typedef struct pending_record
+{
+    int priority = 0;
+    int ascii = 0;
+    std::string path;
+} pending_record;
+
 typedef std::unordered_map<std::string, int> PriorityMap;
 typedef std::unordered_map<DWORDLONG, pfrn_name> Frn_Pfrn_Name_Map;
 
 class volume
 {
 public:
-    volume(char vol, sqlite3* database, std::vector<std::string>* ignore_paths, PriorityMap* priority_map);
+    volume(char vol, sqlite3* database, std::vector<std::string>* ignore_paths, PriorityMap* priority_map,
+           bool is_hash_partition, int partition_num);
 
     volume(volume&) = delete;
 
@@ -36,7 +48,7 @@ public:
         return vol;
     }
 
-    void collect_result_to_result_map(int ascii, const std::string& full_path) const;
+    void collect_result_to_result_map(int ascii, int table_index, const std::string& full_path);
 
     void init_volume();
 
@@ -92,6 +104,12 @@ private:
 
     std::vector<std::string>* ignore_path_vector_ = nullptr;
     PriorityMap* priority_map_ = nullptr;
+    bool is_hash_partition_ = false;
+    int partition_num_ = 41;
+    // 每个表等待写入的记录，下标为表的编号
+    std::vector<pending_record> pending_records_[41];
+    size_t pending_record_num_ = 0;
+    size_t saved_record_num_ = 0;
 
     bool get_handle();
     bool create_usn() const;
@@ -101,8 +119,10 @@ private:
     void save_result(const std::string& _path, int ascii, int ascii_group, int priority) const;
     void get_path(DWORDLONG frn, CString& output_path);
     static int get_asc_ii_sum(const std::string& name);
+    int get_table_index(const std::string& name, int ascii) const;
     bool is_ignore(const std::string& path) const;
     void finalize_all_statement() const;
+    void flush_pending_records();
     static void save_single_record_to_db(sqlite3_stmt* stmt, const std::string& record, int ascii, int priority);
     int get_priority_by_suffix(const std::string& suffix) const;
     int get_priority_by_path(const std::string& _path) const;
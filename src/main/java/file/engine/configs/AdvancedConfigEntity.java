@@ -12,4 +12,24 @@ public class AdvancedConfigEntity {
     private boolean isDeleteUsnOnExit;
 
     private long restartMonitorDiskThreadTimeoutInMills;
+
+    /**
+     * 文件记录的分区方式，hash或utf8Sum，修改后在下次启动时迁移
+     */
+    private String tablePartitionScheme;
+
+    /**
+     * 分区数量，1-41
+     */
+    private int tablePartitionNum;
+
+    /**
+     * 是否将内存缓存放不下的大分区保存为mmap索引段，搜索时代替数据库扫描
+     */
+    private boolean isEnableIndexSegment;
+
+    /**
+     * SQLite页面缓存和mmap的总内存预算，单位MB，按照数据库大小和查询次数分配给每个数据库
+     */
+    private long sqliteMemoryBudgetInMB;
 }
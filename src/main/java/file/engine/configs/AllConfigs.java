@@ -11,6 +11,7 @@ import file.engine.event.handler.impl.BootSystemEvent;
 import file.engine.event.handler.impl.configs.CheckConfigsEvent;
 import file.engine.event.handler.impl.configs.SetConfigsEvent;
 import file.engine.event.handler.impl.stop.CloseEvent;
+import file.engine.services.utils.TablePartitioner;
 import file.engine.utils.RegexUtil;
 import file.engine.utils.file.FileUtil;
 import file.engine.utils.gson.GsonUtil;
@@ -193,10 +194,27 @@ public class AllConfigs {
         long waitForSearchTasksTimeoutInMills = Long.parseLong(getFromJson(advancedConfigs, "waitForSearchTasksTimeoutInMills", (long) 5 * 60 * 1000).toString());
         boolean isDeleteUsnOnExit = Boolean.parseBoolean(getFromJson(advancedConfigs, "isDeleteUsnOnExit", false).toString());
         long restartMonitorDiskThreadTimeoutInMills = Long.parseLong(getFromJson(advancedConfigs, "restartMonitorDiskThreadTimeoutInMills", (long) 10 * 60 * 1000).toString());
+        String tablePartitionScheme = getFromJson(advancedConfigs, "tablePartitionScheme", TablePartitioner.SCHEME_HASH).toString();
+        if (!TablePartitioner.SCHEME_HASH.equals(tablePartitionScheme) && !TablePartitioner.SCHEME_UTF8_SUM.equals(tablePartitionScheme)) {
+            tablePartitionScheme = TablePartitioner.SCHEME_HASH;
+        }
+        int tablePartitionNum = Integer.parseInt(getFromJson(advancedConfigs, "tablePartitionNum", TablePartitioner.MAX_PARTITION_NUM).toString());
+        if (tablePartitionNum < 1 || tablePartitionNum > TablePartitioner.MAX_PARTITION_NUM) {
+            tablePartitionNum = TablePartitioner.MAX_PARTITION_NUM;
+        }
+        boolean isEnableIndexSegment = Boolean.parseBoolean(getFromJson(advancedConfigs, "isEnableIndexSegment", false).toString());
+        long sqliteMemoryBudgetInMB = Long.parseLong(getFromJson(advancedConfigs, "sqliteMemoryBudgetInMB", 256L).toString());
+        if (sqliteMemoryBudgetInMB < 16) {
+            sqliteMemoryBudgetInMB = 16;
+        }
         configEntity.setAdvancedConfigEntity(new AdvancedConfigEntity(
                 waitForSearchTasksTimeoutInMills,
                 isDeleteUsnOnExit,
-                restartMonitorDiskThreadTimeoutInMills)
+                restartMonitorDiskThreadTimeoutInMills,
+                tablePartitionScheme,
+                tablePartitionNum,
+                isEnableIndexSegment,
+                sqliteMemoryBudgetInMB)
         );
     }
 
@@ -21,6 +21,16 @@ public class Constants {
 
     public static final String CONFIG_FILE = "user/settings.json";
 
+    public static final String CHANGE_JOURNAL_DIR = "user/journal";
+
+    public static final String DATABASE_GENERATION_FILE = "user/databaseGeneration.dat";
+
+    public static final String DATABASE_SHADOW_DIR = "data/shadow";
+
+    public static final String INDEX_SEGMENT_DIR = "data/segments";
+
+    public static final String INDEX_SNAPSHOT_FILE = "data/index.snapshot";
+
     public static final int MAX_TASK_EXIST_TIME = 5 * 60 * 1000;
 
     public static final int THREAD_POOL_AWAIT_TIMEOUT = 5;
@@ -34,7 +44,7 @@ public class Constants {
         /**
          * 数据库运行状态
          * NORMAL：正常
-         * _TEMP：正在搜索中，已经切换到临时数据库
+         * _TEMP：正在重建索引，新的索引写入影子数据库，搜索仍然使用当前版本的数据库
          * VACUUM：正在整理数据库
          * MANUAL_UPDATE：正在搜索中，未切换到临时数据库
          */
@@ -14,6 +14,8 @@ import file.engine.event.handler.impl.configs.SetConfigsEvent;
 import file.engine.event.handler.impl.database.*;
 import file.engine.event.handler.impl.stop.CloseEvent;
 import file.engine.services.DatabaseService;
+import file.engine.services.utils.AppendOnlyResultList;
+import file.engine.services.utils.connection.SQLiteUtil;
 import file.engine.utils.RegexUtil;
 import file.engine.utils.ThreadPoolUtil;
 import file.engine.utils.gson.GsonUtil;
@@ -23,16 +25,60 @@ import io.javalin.json.JavalinGson;
 import io.javalin.util.JavalinLogger;
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class Core {
 
-    private static final ConcurrentLinkedQueue<DatabaseService.SearchTask> searchTaskQueue = new ConcurrentLinkedQueue<>();
+    // 每个客户端的每次搜索对应一个会话，相同的搜索会共享同一个SearchTask，但拥有独立的uuid和读取下标
+    private static final ConcurrentLinkedQueue<SearchSession> searchSessionQueue = new ConcurrentLinkedQueue<>();
     private static Javalin server;
 
+    /**
+     * 解析搜索的时间预算，超过MAX_TASK_EXIST_TIME时按照MAX_TASK_EXIST_TIME等待
+     *
+     * @param budgetMs 请求中的budgetMs
+     * @return 等待时间，不是正整数时返回-1
+     */
+    private static long parseBudgetMs(String budgetMs) {
+        try {
+            final long budget = Long.parseLong(budgetMs.trim());
+            if (budget <= 0) {
+                return -1;
+            }
+            return Math.min(budget, Constants.MAX_TASK_EXIST_TIME);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 解析索引快照的路径，只允许data目录中的文件，相对路径相对于data目录
+     *
+     * @param path 请求中的path，为空时使用默认的快照文件
+     * @return 绝对路径，不在data目录中时返回null
+     */
+    private static String resolveSnapshotPath(String path) {
+        final Path dataDir = Path.of(Constants.INDEX_SNAPSHOT_FILE).toAbsolutePath().normalize().getParent();
+        if (path == null || path.isEmpty()) {
+            return dataDir.resolve(Path.of(Constants.INDEX_SNAPSHOT_FILE).getFileName()).toString();
+        }
+        try {
+            final Path snapshot = dataDir.resolve(path).toAbsolutePath().normalize();
+            if (!snapshot.startsWith(dataDir) || snapshot.equals(dataDir)) {
+                return null;
+            }
+            return snapshot.toString();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
     @EventListener(listenClass = BootSystemEvent.class)
     private static void startServer(Event event) {
         JavalinLogger.enabled = false;
@@ -43,16 +89,44 @@ public class Core {
                 .error(HttpStatus.NOT_FOUND, ctx -> ctx.json("not found"))
                 .get("/config", ctx -> ctx.json(AllConfigs.getInstance().getConfigEntity()))
                 .get("/gpu", ctx -> ctx.json(GPUAccelerator.INSTANCE.getDevices()))
-                .post("/config", ctx -> eventManager.putEvent(new SetConfigsEvent(ctx.bodyAsClass(ConfigEntity.class))))
-                .post("/close", ctx -> eventManager.putEvent(new CloseEvent()))
+                .post("/config", ctx -> eventManager.putHttpEvent(new SetConfigsEvent(ctx.bodyAsClass(ConfigEntity.class))))
+                .post("/close", ctx -> eventManager.putHttpEvent(new CloseEvent()))
                 .delete("/closeConnections", ctx -> PathMatcher.INSTANCE.closeConnections())
                 .get("/status", ctx -> ctx.result(databaseService.getStatus().toString()))
+                .get("/threadPoolStatus", ctx -> ctx.json(ThreadPoolUtil.getInstance().getBulkheadStats()))
+                .get("/flushStatus", ctx -> ctx.json(databaseService.getFlushStats()))
+                .get("/partitionStatus", ctx -> ctx.json(databaseService.getPartitionStatus()))
+                .get("/sqliteMemoryStatus", ctx -> ctx.json(SQLiteUtil.getMemoryStatus()))
                 // db control
-                .post("/flushFileChanges", ctx -> eventManager.putEvent(new FlushFileChangesEvent()))
-                .post("/optimize", ctx -> eventManager.putEvent(new OptimizeDatabaseEvent()))
+                .post("/flushFileChanges", ctx -> eventManager.putHttpEvent(new FlushFileChangesEvent()))
+                .post("/optimize", ctx -> eventManager.putHttpEvent(new OptimizeDatabaseEvent()))
+                .post("/exportIndex", ctx -> {
+                    final String path = resolveSnapshotPath(ctx.queryParam("path"));
+                    if (path == null) {
+                        ctx.status(HttpStatus.BAD_REQUEST).json("invalid path: " + ctx.queryParam("path"));
+                        return;
+                    }
+                    eventManager.putHttpEvent(new ExportIndexSnapshotEvent(path));
+                })
+                .post("/importIndex", ctx -> {
+                    final String path = resolveSnapshotPath(ctx.queryParam("path"));
+                    if (path == null) {
+                        ctx.status(HttpStatus.BAD_REQUEST).json("invalid path: " + ctx.queryParam("path"));
+                        return;
+                    }
+                    eventManager.putHttpEvent(new ImportIndexSnapshotEvent(path));
+                })
                 // search
                 .get("/frequentResult", ctx -> ctx.json(databaseService.getFrequentlyUsedCaches(Integer.parseInt(Objects.requireNonNull(ctx.queryParam("num"))))))
                 .post("/search", ctx -> {
+                    final long startTime = System.currentTimeMillis();
+                    // 设置budgetMs后，超过时间预算将返回已有的结果，搜索会在后台继续进行，剩下的结果通过/result获取
+                    final String budgetMs = ctx.queryParam("budgetMs");
+                    final long waitTimeout = budgetMs == null ? Constants.MAX_TASK_EXIST_TIME : parseBudgetMs(budgetMs);
+                    if (waitTimeout < 0) {
+                        ctx.status(HttpStatus.BAD_REQUEST).json("invalid budgetMs: " + budgetMs);
+                        return;
+                    }
                     StartSearchEvent startSearchEvent = new StartSearchEvent(
                             generateSearchKeywordsAndSearchCase(Objects.requireNonNull(ctx.queryParam("searchText")),
                                     Integer.parseInt(Objects.requireNonNull(ctx.queryParam("maxResultNum"))))
@@ -60,21 +134,25 @@ public class Core {
                     var ref = new Object() {
                         Object retVal;
                     };
-                    eventManager.putEvent(startSearchEvent, successEvent -> successEvent.getReturnValue().ifPresent(o -> {
+                    eventManager.putHttpEvent(startSearchEvent, successEvent -> successEvent.getReturnValue().ifPresent(o -> {
                         var searchTask = (DatabaseService.SearchTask) o;
-                        final long startTime = System.currentTimeMillis();
-                        while (!searchTask.isSearchDone() && System.currentTimeMillis() - startTime < Constants.MAX_TASK_EXIST_TIME) {
+                        long waitTime;
+                        while (!searchTask.isSearchDone() && (waitTime = waitTimeout - (System.currentTimeMillis() - startTime)) > 0) {
                             try {
-                                TimeUnit.MILLISECONDS.sleep(50);
+                                TimeUnit.MILLISECONDS.sleep(Math.min(50, waitTime));
                             } catch (InterruptedException e) {
                                 throw new RuntimeException(e);
                             }
                         }
-                        LinkedHashSet<String> ret = new LinkedHashSet<>();
-                        ret.addAll(searchTask.getCacheAndPriorityResults());
-                        ret.addAll(searchTask.getTempResults());
-                        ref.retVal = ret;
-                    }), errorEvent -> ref.retVal = Collections.emptySet());
+                        if (budgetMs == null) {
+                            LinkedHashSet<String> ret = new LinkedHashSet<>();
+                            ret.addAll(searchTask.getCacheAndPriorityResults());
+                            ret.addAll(searchTask.getTempResults());
+                            ref.retVal = ret;
+                        } else {
+                            ref.retVal = getBudgetSearchResults(searchTask);
+                        }
+                    }), errorEvent -> ref.retVal = budgetMs == null ? Collections.emptySet() : Collections.emptyMap());
                     eventManager.waitForEvent(startSearchEvent);
                     ctx.json(ref.retVal);
                 })
@@ -86,10 +164,9 @@ public class Core {
                     var ref = new Object() {
                         String ret;
                     };
-                    eventManager.putEvent(prepareSearchEvent, successEvent -> successEvent.getReturnValue().ifPresent(o -> {
+                    eventManager.putHttpEvent(prepareSearchEvent, successEvent -> successEvent.getReturnValue().ifPresent(o -> {
                         DatabaseService.SearchTask searchTask = (DatabaseService.SearchTask) o;
-                        searchTaskQueue.offer(searchTask);
-                        ref.ret = searchTask.getUuid().toString();
+                        ref.ret = createSearchSession(searchTask).uuid();
                     }), errorEvent -> {
                         StringBuilder stringBuilder = new StringBuilder();
                         stringBuilder.append("failed: ");
@@ -107,10 +184,9 @@ public class Core {
                     var ref = new Object() {
                         String ret;
                     };
-                    eventManager.putEvent(startSearchEvent, successEvent -> successEvent.getReturnValue().ifPresent(o -> {
+                    eventManager.putHttpEvent(startSearchEvent, successEvent -> successEvent.getReturnValue().ifPresent(o -> {
                         DatabaseService.SearchTask searchTask = (DatabaseService.SearchTask) o;
-                        searchTaskQueue.offer(searchTask);
-                        ref.ret = searchTask.getUuid().toString();
+                        ref.ret = createSearchSession(searchTask).uuid();
                     }), error -> {
                         StringBuilder stringBuilder = new StringBuilder();
                         stringBuilder.append("failed: ");
@@ -120,32 +196,32 @@ public class Core {
                     eventManager.waitForEvent(startSearchEvent);
                     ctx.json(ref.ret);
                 })
-                .delete("/search", ctx -> eventManager.putEvent(new StopSearchEvent()))
+                .delete("/search", ctx -> eventManager.putHttpEvent(new StopSearchEvent()))
                 .get("/cacheResult", ctx -> ctx.json(
-                        getSearchCacheResults(Integer.parseInt(Objects.requireNonNull(ctx.queryParam("startIndex"))), ctx.queryParam("uuid"))
+                        getSearchCacheResults(ctx.queryParam("startIndex"), ctx.queryParam("uuid"))
                 ))
                 .get("/result", ctx -> ctx.json(
-                        getSearchResults(Integer.parseInt(Objects.requireNonNull(ctx.queryParam("startIndex"))), ctx.queryParam("uuid"))
+                        getSearchResults(ctx.queryParam("startIndex"), ctx.queryParam("uuid"))
                 ))
                 .delete("/result", ctx -> ctx.result(
-                        String.valueOf(searchTaskQueue.removeIf(searchTask -> Objects.equals(searchTask.getUuid().toString(), ctx.queryParam("uuid"))))
+                        String.valueOf(searchSessionQueue.removeIf(searchSession -> Objects.equals(searchSession.uuid(), ctx.queryParam("uuid"))))
                 ))
                 // cache
-                .post("/cache", ctx -> eventManager.putEvent(new AddToCacheEvent(ctx.queryParam("path"))))
+                .post("/cache", ctx -> eventManager.putHttpEvent(new AddToCacheEvent(ctx.queryParam("path"))))
                 .get("/cache", ctx -> ctx.json(databaseService.getCache()))
-                .delete("/cache", ctx -> eventManager.putEvent(new DeleteFromCacheEvent(ctx.queryParam("path"))))
+                .delete("/cache", ctx -> eventManager.putHttpEvent(new DeleteFromCacheEvent(ctx.queryParam("path"))))
                 // index
-                .post("/update", ctx -> eventManager.putEvent(new UpdateDatabaseEvent(Boolean.parseBoolean(ctx.queryParam("isDropPrevious")))))
+                .post("/update", ctx -> eventManager.putHttpEvent(new UpdateDatabaseEvent(Boolean.parseBoolean(ctx.queryParam("isDropPrevious")))))
                 // suffix priority
-                .post("/suffixPriority", ctx -> eventManager.putEvent(new AddToSuffixPriorityMapEvent(
+                .post("/suffixPriority", ctx -> eventManager.putHttpEvent(new AddToSuffixPriorityMapEvent(
                         ctx.queryParam("suffix"), Integer.parseInt(Objects.requireNonNull(ctx.queryParam("priority")))
                 )))
-                .delete("/suffixPriority", ctx -> eventManager.putEvent(new DeleteFromSuffixPriorityMapEvent(ctx.queryParam("suffix"))))
+                .delete("/suffixPriority", ctx -> eventManager.putHttpEvent(new DeleteFromSuffixPriorityMapEvent(ctx.queryParam("suffix"))))
                 .get("/suffixPriority", ctx -> ctx.json(databaseService.getPriorityMap()))
-                .put("/suffixPriority", ctx -> eventManager.putEvent(new UpdateSuffixPriorityEvent(
+                .put("/suffixPriority", ctx -> eventManager.putHttpEvent(new UpdateSuffixPriorityEvent(
                         ctx.queryParam("oldSuffix"), ctx.queryParam("newSuffix"), Integer.parseInt(Objects.requireNonNull(ctx.queryParam("priority")))
                 )))
-                .delete("/clearSuffixPriority", ctx -> eventManager.putEvent(new ClearSuffixPriorityMapEvent()))
+                .delete("/clearSuffixPriority", ctx -> eventManager.putHttpEvent(new ClearSuffixPriorityMapEvent()))
                 .get("/version", ctx -> ctx.result(AllConfigs.getVersion()))
                 .get("/buildVersion", ctx -> ctx.result(AllConfigs.getBuildVersion()));
         server = app;
@@ -167,13 +243,13 @@ public class Core {
             while (eventManagement.notMainExit()) {
                 if (System.currentTimeMillis() - startCheckTime > Constants.MAX_TASK_EXIST_TIME) {
                     startCheckTime = System.currentTimeMillis();
-                    ArrayList<DatabaseService.SearchTask> taskToRemove = new ArrayList<>();
-                    searchTaskQueue.forEach(searchTask -> {
-                        if (System.currentTimeMillis() - searchTask.getTaskCreateTimeMills() > Constants.MAX_TASK_EXIST_TIME) {
-                            taskToRemove.add(searchTask);
+                    ArrayList<SearchSession> sessionToRemove = new ArrayList<>();
+                    searchSessionQueue.forEach(searchSession -> {
+                        if (System.currentTimeMillis() - searchSession.createTimeMills() > Constants.MAX_TASK_EXIST_TIME) {
+                            sessionToRemove.add(searchSession);
                         }
                     });
-                    searchTaskQueue.removeAll(taskToRemove);
+                    searchSessionQueue.removeAll(sessionToRemove);
                 }
                 try {
                     TimeUnit.MILLISECONDS.sleep(100);
@@ -184,61 +260,89 @@ public class Core {
         });
     }
 
-    private static HashMap<String, Object> getSearchResults(int startIndex, String uuid) {
+    private static SearchSession createSearchSession(DatabaseService.SearchTask searchTask) {
+        var searchSession = new SearchSession(UUID.randomUUID().toString(),
+                searchTask,
+                System.currentTimeMillis(),
+                new AtomicInteger(),
+                new AtomicInteger());
+        searchSessionQueue.offer(searchSession);
+        return searchSession;
+    }
+
+    /**
+     * 生成有时间预算的搜索结果，搜索未完成时partial为true，客户端可以使用uuid通过/result继续获取剩下的结果
+     *
+     * @param searchTask 搜索任务
+     * @return uuid，data，nextIndex以及partial
+     */
+    private static HashMap<String, Object> getBudgetSearchResults(DatabaseService.SearchTask searchTask) {
+        HashMap<String, Object> ret = new HashMap<>();
+        var searchSession = createSearchSession(searchTask);
+        final boolean isDone = searchTask.isSearchDone();
+        var cacheAndPriorityResults = searchTask.getCacheAndPriorityResults().getFrom(0);
+        var tempResults = searchTask.getTempResults().getFrom(0);
+        searchSession.cacheResultCursor().set(cacheAndPriorityResults.size());
+        searchSession.resultCursor().set(tempResults.size());
+        LinkedHashSet<String> data = new LinkedHashSet<>(cacheAndPriorityResults);
+        data.addAll(tempResults);
+        ret.put("uuid", searchSession.uuid());
+        ret.put("data", data);
+        ret.put("nextIndex", tempResults.size());
+        ret.put("partial", !isDone);
+        return ret;
+    }
+
+    /**
+     * 读取搜索结果
+     *
+     * @param startIndex 开始下标，为null时从该会话上一次读取的位置继续读取
+     * @param uuid       会话uuid
+     */
+    private static HashMap<String, Object> getSearchResults(String startIndex, String uuid) {
         HashMap<String, Object> retWrapper = new HashMap<>();
-        getSearchTaskByUUID(uuid).ifPresent(currentSearchTask -> {
-            var tempResults = currentSearchTask.getTempResults();
-            genSearchResultMap(startIndex, currentSearchTask, retWrapper, tempResults);
-        });
+        getSearchSessionByUUID(uuid).ifPresent(searchSession -> genSearchResultMap(startIndex,
+                searchSession,
+                retWrapper,
+                searchSession.searchTask().getTempResults(),
+                searchSession.resultCursor()));
         return retWrapper;
     }
 
-    private static HashMap<String, Object> getSearchCacheResults(int startIndex, String uuid) {
+    private static HashMap<String, Object> getSearchCacheResults(String startIndex, String uuid) {
         HashMap<String, Object> ret = new HashMap<>();
-        getSearchTaskByUUID(uuid).ifPresent(currentSearchTask -> {
-            var cacheAndPriorityResults = currentSearchTask.getCacheAndPriorityResults();
-            genSearchResultMap(startIndex, currentSearchTask, ret, cacheAndPriorityResults);
-        });
+        getSearchSessionByUUID(uuid).ifPresent(searchSession -> genSearchResultMap(startIndex,
+                searchSession,
+                ret,
+                searchSession.searchTask().getCacheAndPriorityResults(),
+                searchSession.cacheResultCursor()));
         return ret;
     }
 
-    private static Optional<DatabaseService.SearchTask> getSearchTaskByUUID(String uuid) {
-        DatabaseService.SearchTask currentSearchTask;
+    private static Optional<SearchSession> getSearchSessionByUUID(String uuid) {
         if (uuid == null) {
-            currentSearchTask = searchTaskQueue.peek();
-        } else {
-            var tmpList = searchTaskQueue.stream()
-                    .filter(searchTask -> uuid.equals(searchTask.getUuid().toString()))
-                    .toList();
-            if (tmpList.isEmpty()) {
-                currentSearchTask = null;
-            } else {
-                currentSearchTask = tmpList.get(0);
-            }
+            return Optional.ofNullable(searchSessionQueue.peek());
         }
-        return Optional.ofNullable(currentSearchTask);
+        return searchSessionQueue.stream()
+                .filter(searchSession -> uuid.equals(searchSession.uuid()))
+                .findFirst();
     }
 
-    private static void genSearchResultMap(int startIndex,
-                                           DatabaseService.SearchTask searchTask,
+    private static void genSearchResultMap(String startIndexStr,
+                                           SearchSession searchSession,
                                            HashMap<String, Object> retWrapper,
-                                           ConcurrentLinkedQueue<String> resultsContainer) {
-        retWrapper.put("uuid", searchTask.getUuid().toString());
-        ConcurrentLinkedQueue<String> list = new ConcurrentLinkedQueue<>();
-        if (startIndex != 0) {
-            int i = 0;
-            for (String e : resultsContainer) {
-                if (i >= startIndex) {
-                    list.add(e);
-                }
-                ++i;
-            }
-        } else {
-            list.addAll(resultsContainer);
-        }
+                                           AppendOnlyResultList resultsContainer,
+                                           AtomicInteger cursor) {
+        retWrapper.put("uuid", searchSession.uuid());
+        // 先读取搜索状态，保证isDone为true时返回的结果是完整的
+        final boolean isDone = searchSession.searchTask().isSearchDone();
+        final int startIndex = startIndexStr == null ? cursor.get() : Integer.parseInt(startIndexStr);
+        List<String> list = resultsContainer.getFrom(startIndex);
+        final int nextIndex = list.size() + startIndex;
+        cursor.set(nextIndex);
         retWrapper.put("data", list);
-        retWrapper.put("nextIndex", list.size() + startIndex);
-        retWrapper.put("isDone", searchTask.isSearchDone());
+        retWrapper.put("nextIndex", nextIndex);
+        retWrapper.put("isDone", isDone);
     }
 
     /**
@@ -274,4 +378,20 @@ public class Core {
         }
         return new SearchInfoEntity(() -> searchText, () -> searchCase, () -> keywords, maxResultNum);
     }
+
+    /**
+     * 客户端的搜索会话
+     *
+     * @param uuid              会话uuid，返回给客户端
+     * @param searchTask        共享的搜索任务
+     * @param createTimeMills   创建时间
+     * @param resultCursor      tempResults的读取下标
+     * @param cacheResultCursor cacheAndPriorityResults的读取下标
+     */
+    private record SearchSession(String uuid,
+                                 DatabaseService.SearchTask searchTask,
+                                 long createTimeMills,
+                                 AtomicInteger resultCursor,
+                                 AtomicInteger cacheResultCursor) {
+    }
 }
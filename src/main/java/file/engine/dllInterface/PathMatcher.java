@@ -19,7 +19,50 @@ public enum PathMatcher {
                                  boolean[] isKeywordPath,
                                  int maxResultNumber);
 
+    /**
+     * 执行按照PRIORITY降序排列的sql，返回匹配的结果，结果按照优先级从高到低排列
+     *
+     * @param priorities    sql中的优先级，从高到低排序
+     * @param matchedCounts 与priorities长度相同，返回每个优先级匹配的数量
+     */
+    public native String[] matchByPriority(String sql,
+                                           String dbPath,
+                                           String[] searchCase,
+                                           boolean isIgnoreCase,
+                                           String searchText,
+                                           String[] keywords,
+                                           String[] keywordsLowerCase,
+                                           boolean[] isKeywordPath,
+                                           int maxResultNumber,
+                                           int[] priorities,
+                                           int[] matchedCounts);
+
     public native void openConnection(String dbPath);
 
+    /**
+     * 关闭一个数据库的连接，调用时不能有正在使用该数据库的搜索
+     *
+     * @param dbPath 数据库文件路径
+     */
+    public native void closeConnection(String dbPath);
+
     public native void closeConnections();
+
+    /**
+     * 设置数据库连接的cache_size和mmap_size，已打开的连接在下次使用时设置
+     * 连接池的连接数量有上限，每个连接的页面缓存为cacheSizeKiB除以当前的连接数量
+     *
+     * @param dbPath       数据库文件路径
+     * @param cacheSizeKiB 该数据库所有连接的页面缓存大小之和，单位KiB
+     * @param mmapSize     mmap_size，单位字节
+     */
+    public native void setMemoryLimit(String dbPath, long cacheSizeKiB, long mmapSize);
+
+    /**
+     * 获取数据库所有连接的页面缓存状态
+     *
+     * @param dbPath 数据库文件路径
+     * @return [命中次数, 未命中次数, 使用的页面缓存大小]，连接未打开时为null
+     */
+    public native long[] getCacheStatus(String dbPath);
 }
@@ -30,6 +30,16 @@ public class Event {
         return executeTimes.get() > maxRetryTimes;
     }
 
+    /**
+     * 任务未被执行就被拒绝，标记为所有重试均已失败
+     *
+     * @param exception 拒绝原因
+     */
+    protected void setRejected(Throwable exception) {
+        this.exception = exception;
+        executeTimes.set(maxRetryTimes + 1);
+    }
+
     public boolean isFinished() {
         return isFinished.get();
     }
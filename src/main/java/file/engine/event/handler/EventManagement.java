@@ -23,6 +23,7 @@ import java.util.HashSet;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -147,13 +148,19 @@ public class EventManagement {
 
     /**
      * 用于在debug时查看在哪个位置发出的任务
-     * 由于执行任务的调用栈长度超过3，所以不会出现数组越界
+     * 跳过EventManagement自身的putEvent重载，返回第一个外部调用者
      *
      * @return stackTraceElement
      */
     private StackTraceElement getStackTraceElement() {
         StackTraceElement[] stacktrace = Thread.currentThread().getStackTrace();
-        return stacktrace[3];
+        final String className = EventManagement.class.getName();
+        for (int i = 2; i < stacktrace.length; i++) {
+            if (!className.equals(stacktrace[i].getClassName())) {
+                return stacktrace[i];
+            }
+        }
+        return stacktrace[stacktrace.length - 1];
     }
 
     /**
@@ -176,27 +183,13 @@ public class EventManagement {
     }
 
     /**
-     * 发送任务
+     * 发送任务，非阻塞任务使用虚拟线程执行
      * 不要在构造函数中执行，单例模式下可能会导致死锁
      *
      * @param event 任务
      */
     public void putEvent(Event event) {
-        final boolean isDebug = IsDebug.isDebug();
-        if (isDebug) {
-            log.info("尝试放入任务" + event.toString() + "---来自" + getStackTraceElement().toString());
-        }
-        if (notMainExit()) {
-            if (event.isBlock()) {
-                blockEventQueue.add(event);
-            } else {
-                ThreadPoolUtil.getInstance().executeTask(() -> eventHandle(event));
-            }
-        } else {
-            if (isDebug) {
-                log.warn("任务已被拒绝---" + event);
-            }
-        }
+        putEvent(event, (ThreadPoolUtil.Bulkhead) null);
     }
 
     /**
@@ -213,6 +206,61 @@ public class EventManagement {
         putEvent(event);
     }
 
+    /**
+     * 发送由http请求发出的任务，非阻塞任务使用HTTP_CALLBACK线程池执行，已满时拒绝
+     *
+     * @param event 任务
+     */
+    public void putHttpEvent(Event event) {
+        putEvent(event, ThreadPoolUtil.Bulkhead.HTTP_CALLBACK);
+    }
+
+    /**
+     * 异步回调方法发送由http请求发出的任务
+     *
+     * @param event        任务
+     * @param callback     回调函数
+     * @param errorHandler 错误处理
+     */
+    public void putHttpEvent(Event event, Consumer<Event> callback, Consumer<Event> errorHandler) {
+        event.setCallback(callback);
+        event.setErrorHandler(errorHandler);
+        putHttpEvent(event);
+    }
+
+    /**
+     * 发送任务
+     *
+     * @param event    任务
+     * @param bulkhead 执行非阻塞任务的线程池，为null时使用虚拟线程
+     */
+    private void putEvent(Event event, ThreadPoolUtil.Bulkhead bulkhead) {
+        final boolean isDebug = IsDebug.isDebug();
+        if (isDebug) {
+            log.info("尝试放入任务" + event.toString() + "---来自" + getStackTraceElement().toString());
+        }
+        if (notMainExit()) {
+            if (event.isBlock()) {
+                blockEventQueue.add(event);
+            } else if (bulkhead == null) {
+                ThreadPoolUtil.getInstance().executeTask(() -> eventHandle(event));
+            } else {
+                try {
+                    ThreadPoolUtil.getInstance().executeTask(() -> eventHandle(event), bulkhead);
+                } catch (RejectedExecutionException e) {
+                    log.warn("任务已被拒绝，线程池已满---" + event);
+                    event.setRejected(e);
+                    event.execErrorHandler();
+                    event.setFinished();
+                }
+            }
+        } else {
+            if (isDebug) {
+                log.warn("任务已被拒绝---" + event);
+            }
+        }
+    }
+
     /**
      * 全局系统退出标志，用于常驻循环判断标志
      *
@@ -0,0 +1,14 @@
+package file.engine.event.handler.impl.database;
+
+import file.engine.event.handler.Event;
+
+public class ImportIndexSnapshotEvent extends Event {
+
+    public final String path;
+
+    public ImportIndexSnapshotEvent(String path) {
+        this.path = path;
+        // 导入导出失败时重试只会重复耗时的全量读写，不重试
+        setMaxRetryTimes(0);
+    }
+}
@@ -18,8 +18,19 @@ import file.engine.event.handler.impl.database.gpu.GPURemoveRecordEvent;
 import file.engine.event.handler.impl.monitor.disk.StartMonitorDiskEvent;
 import file.engine.event.handler.impl.stop.CloseEvent;
 import file.engine.services.utils.AdminUtil;
+import file.engine.services.utils.AppendOnlyResultList;
+import file.engine.services.utils.ChangeJournal;
+import file.engine.services.utils.IndexSegmentStore;
+import file.engine.services.utils.IndexSnapshot;
+import file.engine.services.utils.PartitionRanges;
+import file.engine.services.utils.PartitionStats;
 import file.engine.services.utils.PathMatchUtil;
+import file.engine.services.utils.SearchParallelismController;
 import file.engine.services.utils.StringUtf8SumUtil;
+import file.engine.services.utils.TablePartitioner;
+import file.engine.services.utils.Utf8KeywordFilter;
+import file.engine.services.utils.connection.DatabaseIntegrityChecker;
+import file.engine.services.utils.connection.SQLiteMemoryBudget;
 import file.engine.services.utils.connection.SQLiteUtil;
 import file.engine.utils.ProcessUtil;
 import file.engine.utils.RegexUtil;
@@ -34,6 +45,8 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -45,9 +58,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Slf4j
 public class DatabaseService {
@@ -56,9 +73,14 @@ public class DatabaseService {
     // 预搜索任务map，当发送PrepareSearchEvent后，将会创建预搜索任务，并放入该map中。
     // 发送StartSearchEvent后将会先寻找预搜索任务，成功找到则直接添加进入searchTasksQueue中，不重新创建搜索任务。
     private static final ConcurrentHashMap<SearchInfo, SearchTask> prepareTasksMap = new ConcurrentHashMap<>();
-    private final ConcurrentLinkedQueue<SQLWithTaskId> sqlCommandQueue = new ConcurrentLinkedQueue<>();
-    //保存每个key所对应的结果数量，数量为0的则直接跳过搜索，不执行SQL查找数据库
-    private final ConcurrentHashMap<String, AtomicInteger> databaseResultsCount = new ConcurrentHashMap<>();
+    // 每个数据库的写入线程，key为数据库名（盘符，cache，weight）
+    private final ConcurrentHashMap<String, FlushWorker> flushWorkers = new ConcurrentHashMap<>();
+    // 正在执行分区迁移的磁盘，每个磁盘同时只有一个迁移线程
+    private final Set<String> partitionMigrationRunners = ConcurrentHashMap.newKeySet();
+    // 文件变化日志，防止未写入数据库的变化在程序异常退出时丢失，打开失败时为null
+    private volatile ChangeJournal changeJournal;
+    // 重建索引期间的文件变化，切换前写入影子数据库
+    private final RebuildChangeLog rebuildChangeLog = new RebuildChangeLog();
     private final AtomicReference<Constants.Enums.DatabaseStatus> status = new AtomicReference<>(Constants.Enums.DatabaseStatus.NORMAL);
     // 保存从0-40数据库的表，使用频率和名字对应，使经常使用的表最快被搜索到
     private final Set<TableNameWeightInfo> tableSet = ConcurrentHashMap.newKeySet();
@@ -72,7 +94,15 @@ public class DatabaseService {
     private final ConcurrentSkipListMap<String, Integer> databaseCacheMap = new ConcurrentSkipListMap<>();
     private final AtomicInteger searchThreadCount = new AtomicInteger(0);
     private static final int MAX_CACHED_RECORD_NUM = 10240 * 5;
+    private static final long INDEX_SNAPSHOT_INTERVAL_MILLS = 24 * 60 * 60 * 1000L;
+    // 所有索引段中路径的总字节数上限
+    private static final long MAX_INDEX_SEGMENT_BYTES = 1024L * 1024 * 1024;
     private static final int MAX_SQL_NUM = 5000;
+    private static final long CHANGE_JOURNAL_FORCE_INTERVAL_MILLS = 1000;
+    // 每个数据库待执行的sql超过该数量时由该数据库的写入线程立即执行
+    private static final int FLUSH_THRESHOLD = 100;
+    // 每次完整性检查最多执行的时间，超过时剩下的表在下一次维护时检查
+    private static final long INTEGRITY_CHECK_STEP_MILLS = 500;
 
     private static volatile DatabaseService INSTANCE = null;
 
@@ -91,11 +121,8 @@ public class DatabaseService {
     }
 
     private void prepareSearchTasks(SearchTask searchTask) {
-        //每个priority用一个线程，每一个后缀名对应一个优先级
-        //按照优先级排列，key是sql和表名的对应，value是容器
-        var nonFormattedSql = getNonFormattedSqlFromTableQueue(searchTask.searchInfo);
-        //添加搜索任务到队列
-        addSearchTasks(nonFormattedSql, searchTask);
+        //添加搜索任务到队列，每个表一个任务
+        addSearchTasks(searchTask);
     }
 
     private void invalidateAllCache() {
@@ -108,6 +135,7 @@ public class DatabaseService {
             each.data = null;
         });
         tableCacheCount.set(0);
+        IndexSegmentStore.INSTANCE.clear();
     }
 
     /**
@@ -168,7 +196,7 @@ public class DatabaseService {
                 threadPoolUtil.executeTask(() -> {
                     FileMonitor.INSTANCE.monitor(root);
                     log.info("停止监听 " + root + " 的文件变化");
-                }, false);
+                }, ThreadPoolUtil.Bulkhead.MONITOR);
             }
             var isCheckUnavailableDiskThreadNotExist = databaseService.isCheckUnavailableDiskThreadNotExist;
             if (isCheckUnavailableDiskThreadNotExist.compareAndSet(false, true)) {
@@ -191,7 +219,7 @@ public class DatabaseService {
                                     threadPoolUtil.executeTask(() -> {
                                         FileMonitor.INSTANCE.monitor(unAvailableDisk);
                                         log.info("停止监听 " + unAvailableDisk + " 的文件变化");
-                                    }, false);
+                                    }, ThreadPoolUtil.Bulkhead.MONITOR);
                                     unAvailableDiskSet.remove(unAvailableDisk);
                                 }
                             }
@@ -256,7 +284,8 @@ public class DatabaseService {
     }
 
     /**
-     * 返回满足数据在minRecordNum-maxRecordNum之间的表可以被缓存的表
+     * 根据分区统计信息返回满足数据在minRecordNum-maxRecordNum之间的表可以被缓存的表，不需要扫描数据库
+     * 命中次数多的分区排在前面，优先被缓存
      *
      * @param disks                硬盘盘符
      * @param tableQueueByPriority 后缀优先级表，从高到低优先级逐渐降低
@@ -265,51 +294,42 @@ public class DatabaseService {
      * @param maxRecordNum         最大数据量
      * @return key为[盘符, 表名, 优先级]，例如 [C,list10,9]，value为实际数据量所占的字节数
      */
-    private LinkedHashMap<String, Integer> scanDatabaseAndSelectCacheTable(String[] disks,
-                                                                           ConcurrentLinkedQueue<String> tableQueueByPriority,
-                                                                           Supplier<Boolean> isStopCreateCache,
-                                                                           @SuppressWarnings("SameParameterValue") int minRecordNum,
-                                                                           int maxRecordNum) {
+    private LinkedHashMap<String, Integer> selectCacheTable(String[] disks,
+                                                            ConcurrentLinkedQueue<String> tableQueueByPriority,
+                                                            Supplier<Boolean> isStopCreateCache,
+                                                            @SuppressWarnings("SameParameterValue") int minRecordNum,
+                                                            int maxRecordNum) {
         if (minRecordNum > maxRecordNum) {
             throw new RuntimeException("minRecordNum > maxRecordNum");
         }
+        var partitionStats = PartitionStats.INSTANCE;
         //检查哪些表符合缓存条件，通过表权重依次向下排序
-        LinkedHashMap<String, Integer> tableNeedCache = new LinkedHashMap<>();
+        ArrayList<String> candidates = new ArrayList<>();
         for (String diskPath : disks) {
             String disk = String.valueOf(diskPath.charAt(0));
-            try (Statement stmt = SQLiteUtil.getStatement(disk)) {
-                for (String tableName : tableQueueByPriority) {
-                    for (SuffixPriorityPair suffixPriorityPair : priorityMap) {
-                        if (isStopCreateCache.get()) {
-                            return tableNeedCache;
-                        }
-                        boolean canBeCached;
-                        try (ResultSet resultCount = stmt.executeQuery(
-                                "SELECT COUNT(*) as total_num FROM " + tableName + " WHERE PRIORITY=" + suffixPriorityPair.priority)) {
-                            if (resultCount.next()) {
-                                final int num = resultCount.getInt("total_num");
-                                canBeCached = num >= minRecordNum && num <= maxRecordNum;
-                                databaseResultsCount.put(disk + "," + tableName + "," + suffixPriorityPair.priority, new AtomicInteger(num));
-                            } else {
-                                canBeCached = false;
-                            }
-                        }
-                        if (!canBeCached) {
-                            continue;
-                        }
-                        try (ResultSet resultsLength = stmt.executeQuery(
-                                "SELECT SUM(LENGTH(PATH)) as total_bytes FROM " + tableName + " WHERE PRIORITY=" + suffixPriorityPair.priority)) {
-                            if (resultsLength.next()) {
-                                final int resultsBytes = resultsLength.getInt("total_bytes");
-                                tableNeedCache.put(disk + "," + tableName + "," + suffixPriorityPair.priority, resultsBytes);
-                            }
-                        }
+            if (TablePartitioner.INSTANCE.isMigrating(disk)) {
+                // 迁移期间记录在表之间移动，缓存会缺少移动到该分区的记录
+                continue;
+            }
+            for (String tableName : tableQueueByPriority) {
+                for (SuffixPriorityPair suffixPriorityPair : priorityMap) {
+                    if (isStopCreateCache.get()) {
+                        return new LinkedHashMap<>();
+                    }
+                    String key = disk + "," + tableName + "," + suffixPriorityPair.priority;
+                    final int num = partitionStats.getRecordNum(key);
+                    if (num >= minRecordNum && num <= maxRecordNum) {
+                        candidates.add(key);
                     }
                 }
-            } catch (SQLException e) {
-                log.error("error: {}", e.getMessage(), e);
             }
         }
+        // 稳定排序，命中次数相同时保持表权重的顺序
+        candidates.sort(Comparator.comparingLong(partitionStats::getHitCount).reversed());
+        LinkedHashMap<String, Integer> tableNeedCache = new LinkedHashMap<>();
+        for (String key : candidates) {
+            tableNeedCache.put(key, (int) Math.min(Integer.MAX_VALUE, partitionStats.getTotalBytes(key)));
+        }
         return tableNeedCache;
     }
 
@@ -344,10 +364,15 @@ public class DatabaseService {
                     if (isEnableGPUAccelerate) {
                         final int gpuMemUsage = GPUAccelerator.INSTANCE.getGPUMemUsage();
                         if (gpuMemUsage < createGPUCacheThreshold) {
-                            createGpuCache(isStopCreateCache, createGPUCacheThreshold);
+                            runCacheBuildTask(() -> createGpuCache(isStopCreateCache, createGPUCacheThreshold));
                         }
                     }
-                    createMemoryCache(isStopCreateCache);
+                    runCacheBuildTask(() -> createMemoryCache(isStopCreateCache));
+                    if (isEnableIndexSegment()) {
+                        runCacheBuildTask(() -> createIndexSegments(isStopCreateCache));
+                    } else {
+                        IndexSegmentStore.INSTANCE.clear();
+                    }
                 } else {
                     if (isEnableGPUAccelerate) {
                         final int gpuMemUsage = GPUAccelerator.INSTANCE.getGPUMemUsage();
@@ -372,12 +397,37 @@ public class DatabaseService {
         });
     }
 
+    /**
+     * 在CACHE_BUILD线程池中执行一次缓存创建并等待完成，常驻的检查循环不占用CACHE_BUILD的并发数
+     * 线程池已满时任务会被丢弃，等待下一次检查时重新创建
+     *
+     * @param task 缓存创建任务
+     */
+    private static void runCacheBuildTask(Runnable task) {
+        Future<Object> future = ThreadPoolUtil.getInstance().executeTask(() -> {
+            task.run();
+            return null;
+        }, ThreadPoolUtil.Bulkhead.CACHE_BUILD);
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (CancellationException e) {
+            log.warn("缓存创建任务已被丢弃，CACHE_BUILD线程池已满");
+        } catch (ExecutionException e) {
+            log.error("error: {}", e.getMessage(), e);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void createMemoryCache(Supplier<Boolean> isStopCreateCache) {
         log.info("添加缓存");
         String availableDisks = AllConfigs.getInstance().getAvailableDisks();
         ConcurrentLinkedQueue<String> tableQueueByPriority = initTableQueueByPriority();
         String[] disks = RegexUtil.comma.split(availableDisks);
-        LinkedHashMap<String, Integer> tableNeedCache = scanDatabaseAndSelectCacheTable(disks,
+        LinkedHashMap<String, Integer> tableNeedCache = selectCacheTable(disks,
                 tableQueueByPriority,
                 isStopCreateCache,
                 100,
@@ -386,13 +436,105 @@ public class DatabaseService {
         log.info("添加完成");
     }
 
+    private static boolean isEnableIndexSegment() {
+        return AllConfigs.getInstance().getConfigEntity().getAdvancedConfigEntity().isEnableIndexSegment();
+    }
+
+    /**
+     * 将内存缓存放不下的大分区保存为索引段，命中次数多的分区优先，所有索引段的总大小不超过MAX_INDEX_SEGMENT_BYTES
+     *
+     * @param isStopCreateCache 是否停止
+     */
+    private void createIndexSegments(Supplier<Boolean> isStopCreateCache) {
+        log.info("添加索引段");
+        String[] disks = RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks());
+        LinkedHashMap<String, Integer> tableNeedCache = selectCacheTable(disks,
+                initTableQueueByPriority(),
+                isStopCreateCache,
+                5000,
+                Integer.MAX_VALUE);
+        LinkedHashSet<String> segmentKeys = new LinkedHashSet<>();
+        long totalBytes = 0;
+        for (var entry : tableNeedCache.entrySet()) {
+            if (totalBytes + entry.getValue() <= MAX_INDEX_SEGMENT_BYTES) {
+                totalBytes += entry.getValue();
+                segmentKeys.add(entry.getKey());
+            }
+        }
+        var indexSegmentStore = IndexSegmentStore.INSTANCE;
+        for (String key : new ArrayList<>(indexSegmentStore.getKeys())) {
+            if (!segmentKeys.contains(key)) {
+                indexSegmentStore.drop(key);
+            }
+        }
+        for (String key : segmentKeys) {
+            if (isStopCreateCache.get()) {
+                break;
+            }
+            if (indexSegmentStore.getKeys().contains(key)) {
+                continue;
+            }
+            String[] info = RegexUtil.comma.split(key);
+            try (Statement stmt = SQLiteUtil.getReadOnlyStatement(info[0]);
+                 ResultSet resultSet = stmt.executeQuery("SELECT PATH FROM " + info[1] + " WHERE PRIORITY=" + info[2] + " ORDER BY PATH;")) {
+                // 直接读取PATH的UTF-8字节写入索引段，不需要解码为String再重新编码
+                indexSegmentStore.build(key, new Iterator<>() {
+                    private Boolean hasNext = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (hasNext == null) {
+                            try {
+                                hasNext = resultSet.next();
+                            } catch (SQLException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                        return hasNext;
+                    }
+
+                    @Override
+                    public byte[] next() {
+                        hasNext();
+                        hasNext = null;
+                        try {
+                            return resultSet.getBytes("PATH");
+                        } catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }, isStopCreateCache::get);
+            } catch (SQLException e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+        }
+        log.info("添加完成");
+    }
+
+    /**
+     * 合并索引段之后的文件变化
+     */
+    private void indexSegmentCompactThread() {
+        ThreadPoolUtil.getInstance().executeTask(() -> {
+            EventManagement eventManagement = EventManagement.getInstance();
+            try {
+                while (eventManagement.notMainExit()) {
+                    IndexSegmentStore.INSTANCE.compact(() -> !eventManagement.notMainExit());
+                    TimeUnit.SECONDS.sleep(1);
+                }
+            } catch (InterruptedException e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+        });
+    }
+
     @SuppressWarnings("SameParameterValue")
     private void createGpuCache(Supplier<Boolean> isStopCreateCache, int createGpuCacheThreshold) {
         log.info("添加gpu缓存");
         String availableDisks = AllConfigs.getInstance().getAvailableDisks();
         ConcurrentLinkedQueue<String> tableQueueByPriority = initTableQueueByPriority();
         String[] disks = RegexUtil.comma.split(availableDisks);
-        LinkedHashMap<String, Integer> tableNeedCache = scanDatabaseAndSelectCacheTable(disks,
+        LinkedHashMap<String, Integer> tableNeedCache = selectCacheTable(disks,
                 tableQueueByPriority,
                 isStopCreateCache,
                 5000,
@@ -418,17 +560,15 @@ public class DatabaseService {
                     continue;
                 }
                 String[] info = RegexUtil.comma.split(key);
-                try (Statement stmt = SQLiteUtil.getStatement(info[0]);
+                try (Statement stmt = SQLiteUtil.getReadOnlyStatement(info[0]);
                      ResultSet resultSet = stmt.executeQuery("SELECT PATH FROM " + info[1] + " " + "WHERE PRIORITY=" + info[2])) {
                     EventManagement eventManagement = EventManagement.getInstance();
-                    String[] caches = new String[databaseResultsCount.get(key).get()];
-                    int count = 0;
+                    // 统计信息可能在读取期间被修改，只作为初始容量
+                    ArrayList<String> caches = new ArrayList<>(Math.max(0, PartitionStats.INSTANCE.getRecordNum(key)));
                     while (resultSet.next() && eventManagement.notMainExit()) {
-                        String path = resultSet.getString("PATH");
-                        caches[count] = path;
-                        ++count;
+                        caches.add(resultSet.getString("PATH"));
                     }
-                    GPUAccelerator.INSTANCE.initCache(key, caches);
+                    GPUAccelerator.INSTANCE.initCache(key, caches.toArray(new String[0]));
                     if (isStopCreateCache.get()) {
                         break;
                     }
@@ -450,43 +590,47 @@ public class DatabaseService {
      * @param tableNeedCache    需要缓存的表
      */
     private void saveTableCache(Supplier<Boolean> isStopCreateCache, LinkedHashMap<String, Integer> tableNeedCache) {
-        //开始缓存数据库表
-        out:
+        //先释放不再需要的缓存
         for (Map.Entry<String, Cache> entry : tableCache.entrySet()) {
-            String key = entry.getKey();
             Cache cache = entry.getValue();
-            if (tableNeedCache.containsKey(key)) {
-                final int vacancy = 1000;
-                //当前表可以被缓存
-                if (tableCacheCount.get() + tableNeedCache.get(key) < MAX_CACHED_RECORD_NUM - vacancy && !cache.isCacheValid()) {
-                    cache.data = ConcurrentHashMap.newKeySet();
-                    String[] info = RegexUtil.comma.split(key);
-                    try (Statement stmt = SQLiteUtil.getStatement(info[0]);
-                         ResultSet resultSet = stmt.executeQuery("SELECT PATH FROM " + info[1] + " " + "WHERE PRIORITY=" + info[2])) {
-                        while (resultSet.next()) {
-                            if (isStopCreateCache.get()) {
-                                break out;
-                            }
-                            cache.data.add(resultSet.getString("PATH"));
-                            tableCacheCount.incrementAndGet();
-                        }
-                    } catch (SQLException e) {
-                        log.error("error: {}", e.getMessage(), e);
-                    }
-                    cache.isCached.set(true);
-                    cache.isFileLost.set(false);
+            if (!tableNeedCache.containsKey(entry.getKey()) && cache.isCached.get()) {
+                cache.isCached.set(false);
+                int num = cache.data.size();
+                int tableCacheCountVal = tableCacheCount.get();
+                while (!tableCacheCount.compareAndSet(tableCacheCountVal, tableCacheCountVal - num)) {
+                    tableCacheCountVal = tableCacheCount.get();
+                    Thread.onSpinWait();
                 }
-            } else {
-                if (cache.isCached.get()) {
-                    cache.isCached.set(false);
-                    int num = cache.data.size();
-                    int tableCacheCountVal = tableCacheCount.get();
-                    while (!tableCacheCount.compareAndSet(tableCacheCountVal, tableCacheCountVal - num)) {
-                        tableCacheCountVal = tableCacheCount.get();
-                        Thread.onSpinWait();
+                cache.data = null;
+            }
+        }
+        //按照命中次数从高到低缓存数据库表
+        out:
+        for (Map.Entry<String, Integer> entry : tableNeedCache.entrySet()) {
+            String key = entry.getKey();
+            Cache cache = tableCache.get(key);
+            if (cache == null) {
+                continue;
+            }
+            final int vacancy = 1000;
+            //当前表可以被缓存
+            if (tableCacheCount.get() + entry.getValue() < MAX_CACHED_RECORD_NUM - vacancy && !cache.isCacheValid()) {
+                cache.data = ConcurrentHashMap.newKeySet();
+                String[] info = RegexUtil.comma.split(key);
+                try (Statement stmt = SQLiteUtil.getReadOnlyStatement(info[0]);
+                     ResultSet resultSet = stmt.executeQuery("SELECT PATH FROM " + info[1] + " " + "WHERE PRIORITY=" + info[2])) {
+                    while (resultSet.next()) {
+                        if (isStopCreateCache.get()) {
+                            break out;
+                        }
+                        cache.data.add(resultSet.getString("PATH"));
+                        tableCacheCount.incrementAndGet();
                     }
-                    cache.data = null;
+                } catch (SQLException e) {
+                    log.error("error: {}", e.getMessage(), e);
                 }
+                cache.isCached.set(true);
+                cache.isFileLost.set(false);
             }
         }
     }
@@ -539,19 +683,9 @@ public class DatabaseService {
                         addFileToDatabase(addFile.getAbsolutePath());
                     }
                 } while ((addFile = addFile.getParentFile()) != null);
-                File remain;
-                while ((remain = dirQueue.poll()) != null) {
-                    addFileToDatabase(remain.getAbsolutePath());
-                    File[] subFiles = remain.listFiles();
-                    if (subFiles == null) {
-                        continue;
-                    }
-                    Arrays.stream(subFiles).forEach(eachFile -> {
-                        addFileToDatabase(eachFile.getAbsolutePath());
-                        if (eachFile.isDirectory()) {
-                            dirQueue.add(eachFile);
-                        }
-                    });
+                if (!dirQueue.isEmpty()) {
+                    // 新增文件夹可能包含大量文件，在INGESTION线程池中遍历，防止阻塞删除文件的处理
+                    ThreadPoolUtil.getInstance().executeTask(() -> addDirToDatabase(dirQueue), ThreadPoolUtil.Bulkhead.INGESTION);
                 }
             }
             if (deleteFilePath != null && !deleteFilePath.contains(tempPath)) {
@@ -565,6 +699,28 @@ public class DatabaseService {
         }
     }
 
+    /**
+     * 遍历文件夹并将所有子文件添加到数据库
+     *
+     * @param dirQueue 待遍历的文件夹
+     */
+    private void addDirToDatabase(ArrayDeque<File> dirQueue) {
+        File remain;
+        while ((remain = dirQueue.poll()) != null) {
+            addFileToDatabase(remain.getAbsolutePath());
+            File[] subFiles = remain.listFiles();
+            if (subFiles == null) {
+                continue;
+            }
+            Arrays.stream(subFiles).forEach(eachFile -> {
+                addFileToDatabase(eachFile.getAbsolutePath());
+                if (eachFile.isDirectory()) {
+                    dirQueue.add(eachFile);
+                }
+            });
+        }
+    }
+
     public List<String> getFrequentlyUsedCaches(int num) {
         return databaseCacheMap.entrySet()
                 .stream()
@@ -583,7 +739,7 @@ public class DatabaseService {
      * 将缓存中的文件保存到cacheSet中
      */
     private void prepareDatabaseCache() {
-        try (Statement statement = SQLiteUtil.getStatement("cache");
+        try (Statement statement = SQLiteUtil.getReadOnlyStatement("cache");
              ResultSet resultSet = statement.executeQuery("select cache.PATH, COUNT from cache left join statistics s on cache.PATH = s.PATH;")) {
             while (resultSet.next()) {
                 String eachLine = resultSet.getString("PATH");
@@ -649,6 +805,38 @@ public class DatabaseService {
      */
     private boolean checkIsMatchedAndAddToList(String path,
                                                SearchTask searchTask) {
+        if (checkIsMatchedAndNotRepeat(path, searchTask)) {
+            searchTask.tempResults.add(path);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 检查文件路径是否匹配然后暂存到对应优先级的priorityContainer中
+     *
+     * @param path     文件路径
+     * @param priority 文件所在分区的后缀优先级
+     * @return true如果匹配成功
+     */
+    private boolean checkIsMatchedAndAddToList(String path,
+                                               SearchTask searchTask,
+                                               int priority) {
+        if (checkIsMatchedAndNotRepeat(path, searchTask)) {
+            searchTask.addResult(path, priority);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 检查文件路径是否匹配并且没有重复
+     *
+     * @param path 文件路径
+     * @return true如果匹配成功并且之前没有出现过
+     */
+    private boolean checkIsMatchedAndNotRepeat(String path,
+                                               SearchTask searchTask) {
         boolean ret = false;
         if (PathMatchUtil.check(path,
                 searchTask.searchInfo.searchCase,
@@ -663,7 +851,6 @@ public class DatabaseService {
             } else if (searchTask.tempResultsSet.add(path)) {
                 searchTask.resultCounter.getAndIncrement();
                 ret = true;
-                searchTask.tempResults.add(path);
             }
         }
         return ret;
@@ -719,22 +906,30 @@ public class DatabaseService {
      */
     private void waitForTasks(SearchTask searchTask, CountDownLatch countDownLatch) {
         try {
-            if (!countDownLatch.await(60, TimeUnit.SECONDS)) {
-                var eventManagement = EventManagement.getInstance();
-                final long startWaiting = System.currentTimeMillis();
-                var allConfigs = AllConfigs.getInstance();
-                while (searchThreadCount.get() != 0 &&
-                        eventManagement.notMainExit() &&
-                        System.currentTimeMillis() - startWaiting < allConfigs
-                                .getConfigEntity()
-                                .getAdvancedConfigEntity()
-                                .getWaitForSearchTasksTimeoutInMills()) {
-                    TimeUnit.MILLISECONDS.sleep(1);
+            final long startSearchTime = System.currentTimeMillis();
+            // 等待时不断将priorityContainer中的结果按照优先级转存到tempResults中
+            while (!countDownLatch.await(5, TimeUnit.MILLISECONDS)) {
+                searchTask.emitResults(false);
+                if (System.currentTimeMillis() - startSearchTime > 60_000) {
+                    var eventManagement = EventManagement.getInstance();
+                    final long startWaiting = System.currentTimeMillis();
+                    var allConfigs = AllConfigs.getInstance();
+                    while (searchThreadCount.get() != 0 &&
+                            eventManagement.notMainExit() &&
+                            System.currentTimeMillis() - startWaiting < allConfigs
+                                    .getConfigEntity()
+                                    .getAdvancedConfigEntity()
+                                    .getWaitForSearchTasksTimeoutInMills()) {
+                        searchTask.emitResults(false);
+                        TimeUnit.MILLISECONDS.sleep(1);
+                    }
+                    break;
                 }
             }
         } catch (Exception e) {
             log.error("error: {}", e.getMessage(), e);
         } finally {
+            searchTask.emitResults(true);
             searchDone(searchTask);
         }
     }
@@ -748,182 +943,367 @@ public class DatabaseService {
     }
 
     /**
-     * 解析出sql中的priority
-     * SELECT PATH FROM list[num] where priority=[priority];
+     * 获取本次搜索需要扫描的优先级，从高到低排序
+     * 有d代表只需要搜索文件夹，文件夹的priority为-1
+     *
+     * @param searchInfo 搜索信息
+     * @return 优先级
+     */
+    private int[] getSearchPriorities(SearchInfo searchInfo) {
+        if (searchInfo.searchCase != null && Arrays.asList(searchInfo.searchCase).contains(PathMatchUtil.SearchCase.D)) {
+            return new int[]{-1};
+        }
+        return priorityMap.stream()
+                .mapToInt(each -> each.priority)
+                .distinct()
+                .boxed()
+                .sorted(Comparator.reverseOrder())
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * 获取需要扫描的表，首先是根据输入的keywords找到对应的list，然后是按照权重排序的其他表
      *
-     * @param sql sql
+     * @param searchInfo 搜索信息
+     * @return 表名
      */
-    private String getPriorityFromSelectSql(String sql) {
-        final int pos = sql.indexOf('=');
-        if (pos == -1) {
-            throw new RuntimeException("error sql no priority");
+    private ArrayList<String> getSearchTables(SearchInfo searchInfo) {
+        // 所有关键字组成完整文件名时，该文件所在的表
+        StringBuilder fileName = new StringBuilder();
+        if (searchInfo.keywords != null) {
+            for (String keyword : searchInfo.keywords) {
+                fileName.append(keyword);
+            }
         }
-        return sql.substring(pos + 1, sql.length() - 1);
+        String firstTableName = TablePartitioner.INSTANCE.getTableName(fileName.toString());
+        ArrayList<String> tables = new ArrayList<>();
+        tables.add(firstTableName);
+        initTableQueueByPriority().stream().filter(each -> !each.equals(firstTableName)).forEach(tables::add);
+        return tables;
     }
 
     /**
      * 创建搜索任务
-     * nonFormattedSql将会生成从list0-40，根据priority从高到低排序的SQL语句，第一个map中key保存未格式化的sql，value保存表名称
-     * 生成任务顺序会根据list的权重和priority来生成
+     * 每个任务负责一个磁盘中的一个表，使用一条按照PRIORITY降序的sql扫描该表中所有优先级，结果按照优先级放入对应的缓冲区
+     * 记录数很多的分区拆分为多个范围扫描任务，放在该表的任务之后，在这里创建使搜索线程数量和等待的任务包含这些范围
+     * 任务顺序与表的权重顺序相同
      *
-     * @param nonFormattedSql 未格式化搜索字段的SQL
+     * @param searchTask 搜索任务
      */
-    private void addSearchTasks(ArrayList<LinkedHashMap<String, String>> nonFormattedSql, SearchTask searchTask) {
+    private void addSearchTasks(SearchTask searchTask) {
+        if (priorityMap.isEmpty()) {
+            return;
+        }
+        final int[] priorities = getSearchPriorities(searchTask.searchInfo);
+        final ArrayList<String> tables = getSearchTables(searchTask.searchInfo);
         AllConfigs allConfigs = AllConfigs.getInstance();
         String availableDisks = allConfigs.getAvailableDisks();
+        var parallelismController = SearchParallelismController.INSTANCE;
+        double estimatedScanCostMills = 0;
         for (String eachDisk : RegexUtil.comma.split(availableDisks)) {
             ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
             searchTask.taskMap.put(eachDisk, tasks);
-            //向任务队列tasks添加任务
-            for (var commandsMap : nonFormattedSql) {
-                //每一个任务负责查询一个priority和list0-list40生成的41个SQL
-                addTaskForDatabase0(eachDisk, tasks, commandsMap, searchTask);
-            }
-        }
-    }
-
-    private void addTaskForDatabase0(String diskChar,
-                                     ConcurrentLinkedQueue<Runnable> tasks,
-                                     LinkedHashMap<String, String> sqlToExecute,
-                                     SearchTask searchTask) {
-        tasks.add(() -> {
-            String diskStr = String.valueOf(diskChar.charAt(0));
-            for (var sqlAndTableName : sqlToExecute.entrySet()) {
-                String eachSql = sqlAndTableName.getKey();
-                String tableName = sqlAndTableName.getValue();
-                String priority = getPriorityFromSelectSql(eachSql);
-                String key = diskStr + "," + tableName + "," + priority;
-                long matchedNum = 0;
-                boolean isPatternMatch = searchTask.searchInfo.searchCase != null && List.of(searchTask.searchInfo.searchCase).contains(PathMatchUtil.SearchCase.P);
-                boolean fallbackFlag = !isEnableGPUAccelerate || isPatternMatch;
-                if (isEnableGPUAccelerate && !isPatternMatch) {
-                    if (GPUAccelerator.INSTANCE.isMatchDone(key)) {
-                        matchedNum = GPUAccelerator.INSTANCE.matchedNumber(key);
-                    } else {
-                        fallbackFlag = true;
+            for (String tableName : tables) {
+                boolean[] isRangeScan = new boolean[priorities.length];
+                ArrayList<Runnable> rangeScanTasks = new ArrayList<>();
+                for (int i = 0; i < priorities.length; i++) {
+                    String key = eachDisk.charAt(0) + "," + tableName + "," + priorities[i];
+                    final int recordNum = PartitionStats.INSTANCE.getRecordNum(key);
+                    if (recordNum == 0) {
+                        continue;
                     }
-                }
-                if (fallbackFlag) {
-                    int recordsNum = 1;
-                    if (databaseResultsCount.containsKey(key)) {
-                        recordsNum = databaseResultsCount.get(key).get();
+                    estimatedScanCostMills += parallelismController.getPartitionCostMills(key, recordNum);
+                    if (isScanDatabase(key, searchTask)) {
+                        int[] boundaries = PartitionRanges.INSTANCE.getBoundaries(key, recordNum);
+                        if (boundaries != null) {
+                            isRangeScan[i] = true;
+                            addRangeScanTasks(eachDisk, tableName, priorities[i], boundaries, searchTask, rangeScanTasks);
+                        }
                     }
-                    if (recordsNum != 0) {
-                        PathMatcher.INSTANCE.openConnection(SQLiteUtil.getDbAbsolutePath(diskStr));
-                        matchedNum = fallbackToSearchDatabase(searchTask, diskStr, eachSql, key);
+                }
+                tasks.add(createTaskForTable(eachDisk, tableName, priorities, isRangeScan, searchTask));
+                tasks.addAll(rangeScanTasks);
+            }
+        }
+        searchTask.estimatedScanCostMills = estimatedScanCostMills;
+    }
+
+    /**
+     * @return true如果该分区不能从GPU、内存缓存或索引段读取，需要扫描数据库
+     */
+    private boolean isScanDatabase(String key, SearchTask searchTask) {
+        boolean isPatternMatch = searchTask.searchInfo.searchCase != null && List.of(searchTask.searchInfo.searchCase).contains(PathMatchUtil.SearchCase.P);
+        if (isEnableGPUAccelerate && !isPatternMatch && GPUAccelerator.INSTANCE.isCacheExist(key)) {
+            return false;
+        }
+        Cache cache = tableCache.get(key);
+        if (cache != null && cache.isCacheValid()) {
+            return false;
+        }
+        return !IndexSegmentStore.INSTANCE.isAvailable(key);
+    }
+
+    /**
+     * @param isRangeScan 该下标的优先级已经拆分为范围扫描任务，表任务中跳过
+     */
+    private Runnable createTaskForTable(String diskChar,
+                                        String tableName,
+                                        int[] priorities,
+                                        boolean[] isRangeScan,
+                                        SearchTask searchTask) {
+        SearchTask.PriorityResultBuffer[] resultBuffers = new SearchTask.PriorityResultBuffer[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            resultBuffers[i] = searchTask.getPriorityResultBuffer(priorities[i]);
+            resultBuffers[i].pendingTaskNum.incrementAndGet();
+        }
+        return () -> {
+            // 每个优先级扫描完成后立即减少等待数量，使该优先级的结果可以尽早返回
+            boolean[] isPriorityDone = new boolean[priorities.length];
+            IntConsumer priorityDone = index -> {
+                if (!isPriorityDone[index]) {
+                    isPriorityDone[index] = true;
+                    resultBuffers[index].pendingTaskNum.decrementAndGet();
+                }
+            };
+            try {
+                for (int i = 0; i < priorities.length; i++) {
+                    if (isRangeScan[i]) {
+                        priorityDone.accept(i);
                     }
                 }
-                final long weight = Math.min(matchedNum, 5);
-                if (weight != 0L) {
-                    //更新表的权重，每次搜索将会按照各个表的权重排序
-                    updateTableWeight(tableName, weight);
+                searchTable(diskChar, tableName, priorities, isRangeScan, searchTask, priorityDone);
+            } finally {
+                for (int i = 0; i < priorities.length; i++) {
+                    priorityDone.accept(i);
                 }
             }
-        });
+        };
     }
 
-    private long fallbackToSearchDatabase(SearchTask searchTask, String diskStr, String eachSql, String key) {
-        if (searchTask.shouldStopSearch()) {
+    /**
+     * 搜索一个磁盘中的一个表
+     * 已被缓存或GPU已匹配完成的优先级直接读取缓存，记录数为0或已经拆分为范围扫描的优先级跳过，剩下的优先级使用一条sql扫描
+     * 搜索固定的数据库版本已经被替换时不使用这些优化
+     *
+     * @param diskChar     磁盘盘符
+     * @param tableName    表名
+     * @param priorities   优先级，从高到低排序
+     * @param isRangeScan  该下标的优先级由范围扫描任务负责
+     * @param searchTask   搜索任务
+     * @param priorityDone 参数为优先级的下标，该优先级扫描完成时调用
+     */
+    private void searchTable(String diskChar,
+                             String tableName,
+                             int[] priorities,
+                             boolean[] isRangeScan,
+                             SearchTask searchTask,
+                             IntConsumer priorityDone) {
+        String diskStr = String.valueOf(diskChar.charAt(0));
+        boolean isPatternMatch = searchTask.searchInfo.searchCase != null && List.of(searchTask.searchInfo.searchCase).contains(PathMatchUtil.SearchCase.P);
+        final boolean isUseGPU = isEnableGPUAccelerate && !isPatternMatch;
+        long matchedNum = 0;
+        ArrayList<Integer> scanPriorityIndexes = new ArrayList<>();
+        var searchInfo = searchTask.searchInfo;
+        // 索引段中的记录先在UTF-8字节上检查关键字，一定不匹配的记录不创建String
+        Utf8KeywordFilter keywordFilter = Utf8KeywordFilter.create(searchInfo.searchCase,
+                searchInfo.isIgnoreCase,
+                searchInfo.keywords,
+                searchInfo.keywordsLowerCase,
+                searchInfo.isKeywordPath);
+        // 搜索固定的版本已经被替换时，分区统计信息、缓存、GPU缓存和索引段都属于新版本，所有优先级直接扫描固定版本的数据库
+        final boolean isPinnedGenerationCurrent = searchTask.getDbPath(diskStr).equals(SQLiteUtil.getDbAbsolutePath(diskStr));
+        for (int i = 0; i < priorities.length; i++) {
+            if (searchTask.shouldStopSearch()) {
+                return;
+            }
+            if (isRangeScan[i]) {
+                continue;
+            }
+            if (!isPinnedGenerationCurrent) {
+                scanPriorityIndexes.add(i);
+                continue;
+            }
+            final int priority = priorities[i];
+            String key = diskStr + "," + tableName + "," + priority;
+            if (isUseGPU && GPUAccelerator.INSTANCE.isMatchDone(key)) {
+                final long gpuMatchedNum = GPUAccelerator.INSTANCE.matchedNumber(key);
+                matchedNum += gpuMatchedNum;
+                PartitionStats.INSTANCE.recordHits(key, gpuMatchedNum);
+                priorityDone.accept(i);
+                continue;
+            }
+            final int recordNum = PartitionStats.INSTANCE.getRecordNum(key);
+            if (recordNum == 0) {
+                priorityDone.accept(i);
+                continue;
+            }
+            Cache cache = tableCache.get(key);
+            if (cache != null && cache.isCacheValid()) {
+                if (IsDebug.isDebug()) {
+                    log.info("从缓存中读取 {}", key);
+                }
+                final long cacheMatchedNum = cache.data.parallelStream().filter(s -> checkIsMatchedAndAddToList(s, searchTask, priority)).count();
+                matchedNum += cacheMatchedNum;
+                PartitionStats.INSTANCE.recordHits(key, cacheMatchedNum);
+                priorityDone.accept(i);
+                continue;
+            }
+            final long segmentMatchedNum = IndexSegmentStore.INSTANCE.scan(key,
+                    keywordFilter,
+                    path -> checkIsMatchedAndAddToList(path, searchTask, priority),
+                    searchTask::shouldStopSearch);
+            if (segmentMatchedNum >= 0) {
+                if (IsDebug.isDebug()) {
+                    log.info("从索引段中读取 {}", key);
+                }
+                matchedNum += segmentMatchedNum;
+                PartitionStats.INSTANCE.recordHits(key, segmentMatchedNum);
+                priorityDone.accept(i);
+                continue;
+            }
+            scanPriorityIndexes.add(i);
+        }
+        if (!scanPriorityIndexes.isEmpty() && !searchTask.shouldStopSearch()) {
+            matchedNum += scanTableByPriority(diskStr, tableName, priorities, scanPriorityIndexes, searchTask, priorityDone);
+        }
+        final long weight = Math.min(matchedNum, 5);
+        if (weight != 0L) {
+            //更新表的权重，每次搜索将会按照各个表的权重排序
+            updateTableWeight(tableName, weight);
+        }
+    }
+
+    /**
+     * 使用一条sql扫描表中的多个优先级，表按照PRIORITY聚集存储，每个优先级为一段连续的主键范围，匹配在C++中进行
+     * 返回的结果按照优先级从高到低排列，matchedCounts为每个优先级匹配的数量
+     *
+     * @return 匹配的数量
+     */
+    private long scanTableByPriority(String diskStr,
+                                     String tableName,
+                                     int[] priorities,
+                                     ArrayList<Integer> scanPriorityIndexes,
+                                     SearchTask searchTask,
+                                     IntConsumer priorityDone) {
+        final int scanNum = scanPriorityIndexes.size();
+        int[] scanPriorities = new int[scanNum];
+        StringJoiner priorityJoiner = new StringJoiner(",");
+        for (int i = 0; i < scanNum; i++) {
+            scanPriorities[i] = priorities[scanPriorityIndexes.get(i)];
+            priorityJoiner.add(String.valueOf(scanPriorities[i]));
+        }
+        // 优先级相同时sql相同，C++中会复用已编译的sql
+        String sql = "SELECT PATH, PRIORITY FROM " + tableName + " WHERE PRIORITY IN (" + priorityJoiner + ") ORDER BY PRIORITY DESC;";
+        final long scanStartTime = System.nanoTime();
+        int[] matchedCounts = new int[scanNum];
+        final int matchedNum = matchByPriority(diskStr, sql, scanPriorities, matchedCounts, searchTask);
+        if (matchedNum < 0) {
             return 0;
         }
-        if (isEnableGPUAccelerate && GPUAccelerator.INSTANCE.isMatchDone(key)) {
-            return GPUAccelerator.INSTANCE.matchedNumber(key);
+        for (int i = 0; i < scanNum; i++) {
+            PartitionStats.INSTANCE.recordHits(diskStr + "," + tableName + "," + scanPriorities[i], matchedCounts[i]);
+            priorityDone.accept(scanPriorityIndexes.get(i));
         }
-        long matchedNum;
-        Cache cache = tableCache.get(key);
-        if (cache != null && cache.isCacheValid()) {
-            if (IsDebug.isDebug()) {
-                log.info("从缓存中读取 {}", key);
-            }
-            matchedNum = cache.data.parallelStream().filter(s -> checkIsMatchedAndAddToList(s, searchTask)).count();
-        } else {
-            //格式化是为了以后的拓展性
-            String formattedSql = String.format(eachSql, "PATH");
-            // C++实现
-            var searchInfo = searchTask.searchInfo;
-            String[] match = PathMatcher.INSTANCE.match(formattedSql,
-                    SQLiteUtil.getDbAbsolutePath(diskStr),
-                    searchInfo.searchCase,
-                    searchInfo.isIgnoreCase,
-                    searchInfo.searchText,
-                    searchInfo.keywords,
-                    searchInfo.keywordsLowerCase,
-                    searchInfo.isKeywordPath,
-                    searchTask.maxResultNum
-            );
-            if (match != null) {
-                matchedNum = match.length;
-                for (String path : match) {
-                    //字符串匹配通过
-                    if (searchTask.tempResultsSet.add(path)) {
-                        searchTask.resultCounter.getAndIncrement();
-                        searchTask.tempResults.add(path);
-                    }
-                    if (searchTask.shouldStopSearch()) {
-                        break;
-                    }
+        if (!searchTask.shouldStopSearch()) {
+            // 提前退出的扫描耗时不能代表分区大小，不记录，一次扫描的耗时按照每个分区的记录数分配，记录数未知时平均分配
+            final long scanCost = System.nanoTime() - scanStartTime;
+            long[] recordNums = new long[scanNum];
+            long totalRecordNum = 0;
+            for (int i = 0; i < scanNum; i++) {
+                recordNums[i] = PartitionStats.INSTANCE.getRecordNum(diskStr + "," + tableName + "," + scanPriorities[i]);
+                if (recordNums[i] < 0 || totalRecordNum < 0) {
+                    totalRecordNum = -1;
+                } else {
+                    totalRecordNum += recordNums[i];
                 }
-            } else {
-                matchedNum = 0;
+            }
+            for (int i = 0; i < scanNum; i++) {
+                final long cost = totalRecordNum > 0 ? scanCost * recordNums[i] / totalRecordNum : scanCost / scanNum;
+                SearchParallelismController.INSTANCE.recordPartitionScan(diskStr + "," + tableName + "," + scanPriorities[i], cost);
             }
         }
         return matchedNum;
     }
 
     /**
-     * 生成未格式化的sql
-     * 每一个priority加上list0-list40会生成41条SQL作为key，value是搜索的表，即SELECT* FROM [list?]中的[list?];
+     * 执行按照PRIORITY降序排列的sql，匹配在C++中进行，匹配的结果按照优先级放入对应的缓冲区
      *
-     * @return set
+     * @param matchedCounts 返回每个优先级匹配的数量
+     * @return 匹配的数量，失败时为-1
      */
-    private ArrayList<LinkedHashMap<String, String>> getNonFormattedSqlFromTableQueue(SearchInfo searchInfo) {
-        ArrayList<LinkedHashMap<String, String>> sqlColumnMap = new ArrayList<>();
-        if (priorityMap.isEmpty()) {
-            return sqlColumnMap;
+    private int matchByPriority(String diskStr, String sql, int[] scanPriorities, int[] matchedCounts, SearchTask searchTask) {
+        final String dbPath = searchTask.getDbPath(diskStr);
+        PathMatcher.INSTANCE.openConnection(dbPath);
+        SQLiteMemoryBudget.INSTANCE.recordQuery(diskStr);
+        var searchInfo = searchTask.searchInfo;
+        // C++实现
+        String[] match = PathMatcher.INSTANCE.matchByPriority(sql,
+                dbPath,
+                searchInfo.searchCase,
+                searchInfo.isIgnoreCase,
+                searchInfo.searchText,
+                searchInfo.keywords,
+                searchInfo.keywordsLowerCase,
+                searchInfo.isKeywordPath,
+                searchTask.maxResultNum,
+                scanPriorities,
+                matchedCounts
+        );
+        if (match == null) {
+            return -1;
         }
-        ConcurrentLinkedQueue<String> tableQueue = initTableQueueByPriority();
-        int asciiSum = 0;
-        if (searchInfo.keywords != null) {
-            for (String keyword : searchInfo.keywords) {
-                int ascII = StringUtf8SumUtil.getStringSum(keyword); //其实是utf8编码的值
-                asciiSum += Math.max(ascII, 0);
-            }
-        }
-        int asciiGroup = asciiSum / 100;
-        if (asciiGroup > Constants.MAX_TABLE_NUM) {
-            asciiGroup = Constants.MAX_TABLE_NUM;
-        }
-        String firstTableName = "list" + asciiGroup;
-        // 有d代表只需要搜索文件夹，文件夹的priority为-1
-        if (searchInfo.searchCase != null && Arrays.asList(searchInfo.searchCase).contains("d")) {
-            //首先根据输入的keywords找到对应的list
-            LinkedHashMap<String, String> tmpPriorityMap = new LinkedHashMap<>();
-            String eachSql = "SELECT %s FROM " + firstTableName + " WHERE PRIORITY=" + "-1;";
-            tmpPriorityMap.put(eachSql, firstTableName);
-            tableQueue.stream().filter(each -> !each.equals(firstTableName)).forEach(each -> {
-                // where后面=不能有空格，否则解析priority会出错
-                String sql = "SELECT %s FROM " + each + " WHERE PRIORITY=" + "-1;";
-                tmpPriorityMap.put(sql, each);
-            });
-            sqlColumnMap.add(tmpPriorityMap);
-        } else {
-            for (SuffixPriorityPair i : priorityMap) {
-                LinkedHashMap<String, String> eachPriorityMap = new LinkedHashMap<>();
-                String eachSql = "SELECT %s FROM " + firstTableName + " WHERE PRIORITY=" + i.priority + ";";
-                eachPriorityMap.put(eachSql, firstTableName);
-                tableQueue.stream().filter(each -> !each.equals(firstTableName)).forEach(each -> {
-                    // where后面=不能有空格，否则解析priority会出错
-                    String sql = "SELECT %s FROM " + each + " WHERE PRIORITY=" + i.priority + ";";
-                    eachPriorityMap.put(sql, each);
-                });
-                sqlColumnMap.add(eachPriorityMap);
+        int index = 0;
+        for (int i = 0; i < scanPriorities.length; i++) {
+            final int end = Math.min(match.length, index + matchedCounts[i]);
+            for (; index < end; index++) {
+                String path = match[index];
+                //字符串匹配通过
+                if (searchTask.tempResultsSet.add(path)) {
+                    searchTask.resultCounter.getAndIncrement();
+                    searchTask.addResult(path, scanPriorities[i]);
+                }
             }
         }
-        return sqlColumnMap;
+        return match.length;
+    }
+
+    /**
+     * 将记录数很多的分区按照主键范围拆分，每个范围作为一个任务，由空闲的搜索线程同时扫描
+     * C++中每个线程使用不同的只读连接，所有范围的结果放入同一个缓冲区，全部范围扫描完成前该优先级的结果不会返回
+     *
+     * @param boundaries 范围的边界，覆盖所有ASCII，边界过期时只影响每个范围的大小
+     * @param taskQueue  范围扫描任务放入该队列
+     */
+    private void addRangeScanTasks(String diskChar, String tableName, int priority, int[] boundaries, SearchTask searchTask, Collection<Runnable> taskQueue) {
+        final String diskStr = String.valueOf(diskChar.charAt(0));
+        final String key = diskStr + "," + tableName + "," + priority;
+        var resultBuffer = searchTask.getPriorityResultBuffer(priority);
+        for (int rangeIndex = 0; rangeIndex <= boundaries.length; rangeIndex++) {
+            String sql = "SELECT PATH, PRIORITY FROM " + tableName + " WHERE PRIORITY=" + priority +
+                    PartitionRanges.getRangeCondition(boundaries, rangeIndex) + " ORDER BY PRIORITY DESC;";
+            resultBuffer.pendingTaskNum.incrementAndGet();
+            taskQueue.add(() -> {
+                try {
+                    if (searchTask.shouldStopSearch()) {
+                        return;
+                    }
+                    int[] matchedCounts = new int[1];
+                    if (matchByPriority(diskStr, sql, new int[]{priority}, matchedCounts, searchTask) > 0) {
+                        PartitionStats.INSTANCE.recordHits(key, matchedCounts[0]);
+                    }
+                } finally {
+                    resultBuffer.pendingTaskNum.decrementAndGet();
+                }
+            });
+        }
+        if (IsDebug.isDebug()) {
+            log.info("分区{}拆分为{}个范围扫描", key, boundaries.length + 1);
+        }
     }
 
     private void startSearchInThreadPool(SearchTask searchTask) {
-        ThreadPoolUtil.getInstance().executeTask(() -> startSearch(searchTask));
+        ThreadPoolUtil.getInstance().executeTask(() -> startSearch(searchTask), ThreadPoolUtil.Bulkhead.SEARCH);
     }
 
     /**
@@ -932,30 +1312,41 @@ public class DatabaseService {
     private void startSearch(SearchTask searchTask) {
         var eventManagement = EventManagement.getInstance();
         var threadPoolUtil = ThreadPoolUtil.getInstance();
+        // 每个工作线程依次执行队列中的任务，并发数由工作线程数量决定
         Consumer<ConcurrentLinkedQueue<Runnable>> taskHandler = (taskQueue) -> {
-            ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
             while (!taskQueue.isEmpty() && eventManagement.notMainExit()) {
                 var runnable = taskQueue.poll();
                 if (runnable == null) {
                     continue;
                 }
-                CompletableFuture<Void> future = CompletableFuture.runAsync(runnable, threadPoolUtil.getVirtualThreadPool());
-                futures.add(future);
-            }
-            try {
-                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
-            } catch (InterruptedException | ExecutionException e) {
-                log.error(e.getMessage(), e);
-                throw new RuntimeException(e);
+                try {
+                    runnable.run();
+                } catch (Exception e) {
+                    log.error("error: {}", e.getMessage(), e);
+                }
             }
         };
         var taskQueues = searchTask.taskMap.values();
-        int searchThreadNumber = AllConfigs.getInstance().getConfigEntity().getSearchThreadNumber();
+        var parallelismController = SearchParallelismController.INSTANCE;
+        parallelismController.searchStarted();
+        int taskCountPerDisk = taskQueues.stream().mapToInt(ConcurrentLinkedQueue::size).max().orElse(1);
+        int searchThreadNumber = parallelismController.getThreadNumberPerDisk(taskQueues.size(),
+                taskCountPerDisk,
+                searchTask.estimatedScanCostMills,
+                AllConfigs.getInstance().getConfigEntity().getSearchThreadNumber());
         CountDownLatch countDownLatch = new CountDownLatch(taskQueues.size() * searchThreadNumber);
+        // 搜索期间重建索引或整理数据库切换了版本时，该搜索仍然读取开始时的版本，所有搜索线程结束后释放
+        searchTask.pinDatabaseGenerations();
+        if (taskQueues.isEmpty()) {
+            searchTask.releaseDatabaseGenerations();
+        }
+        AtomicInteger runningThreadNum = new AtomicInteger(taskQueues.size() * searchThreadNumber);
         for (var taskQueue : taskQueues) {
             for (int i = 0; i < searchThreadNumber; i++) {
                 searchThreadCount.getAndIncrement();
+                final long submitTime = System.nanoTime();
                 threadPoolUtil.executeTask(() -> {
+                    parallelismController.recordQueueDelay(System.nanoTime() - submitTime);
                     try {
                         taskHandler.accept(taskQueue);
                         //自身任务已经完成，开始扫描其他线程的任务
@@ -965,69 +1356,100 @@ public class DatabaseService {
                     } finally {
                         countDownLatch.countDown();
                         searchThreadCount.getAndDecrement();
+                        if (runningThreadNum.decrementAndGet() == 0) {
+                            searchTask.releaseDatabaseGenerations();
+                        }
                     }
-                });
+                }, ThreadPoolUtil.Bulkhead.SEARCH_WORKER);
             }
         }
-        waitForTasks(searchTask, countDownLatch);
+        try {
+            waitForTasks(searchTask, countDownLatch);
+        } finally {
+            parallelismController.searchFinished();
+        }
     }
 
     /**
      * 生成删除记录sql
      *
-     * @param asciiSum ascii
-     * @param path     文件路径
+     * @param tableName 表名
+     * @param asciiSum  ascii
+     * @param path      文件路径
      */
-    private void addDeleteSqlCommandByAscii(int asciiSum, String path) {
-        String command;
-        int asciiGroup = asciiSum / 100;
-        asciiGroup = Math.min(asciiGroup, Constants.MAX_TABLE_NUM);
-        String sql = "DELETE FROM %s where PATH=\"%s\";";
-        command = String.format(sql, "list" + asciiGroup, path);
-        if (command != null && isCommandNotRepeat(command)) {
-            String disk = String.valueOf(path.charAt(0));
-            SQLWithTaskId sqlWithTaskId = new SQLWithTaskId(command, SqlTaskIds.DELETE_FROM_LIST, disk);
-            sqlWithTaskId.key = disk + "," + "list" + asciiGroup + "," + getPriorityBySuffix(getSuffixByPath(path));
-            addToCommandQueue(sqlWithTaskId);
-        }
+    private void addDeleteSqlCommandByAscii(String tableName, int asciiSum, String path) {
+        int priority = getPriorityBySuffix(getSuffixByPath(path));
+        String disk = String.valueOf(path.charAt(0));
+        SQLWithTaskId sqlWithTaskId = new SQLWithTaskId(null, SqlTaskIds.DELETE_FROM_LIST, disk);
+        sqlWithTaskId.setListRecord(tableName, asciiSum, path, priority);
+        addToPendingListMutations(sqlWithTaskId);
     }
 
     /**
      * 生成添加记录sql
      *
-     * @param asciiSum ascii
-     * @param path     文件路径
-     * @param priority 优先级
+     * @param tableName 表名
+     * @param asciiSum  ascii
+     * @param path      文件路径
+     * @param priority  优先级
      */
-    private void addInsertSqlCommandByAscii(int asciiSum, String path, int priority) {
-        String commandTemplate = "INSERT OR IGNORE INTO %s VALUES(%d, \"%s\", %d)";
-        int asciiGroup = asciiSum / 100;
-        asciiGroup = Math.min(asciiGroup, Constants.MAX_TABLE_NUM);
-        String columnName = "list" + asciiGroup;
-        String command = String.format(commandTemplate, columnName, asciiSum, path, priority);
-        if (command != null && isCommandNotRepeat(command)) {
-            String disk = String.valueOf(path.charAt(0));
-            SQLWithTaskId sqlWithTaskId = new SQLWithTaskId(command, SqlTaskIds.INSERT_TO_LIST, String.valueOf(path.charAt(0)));
-            sqlWithTaskId.key = disk + "," + "list" + asciiGroup + "," + getPriorityBySuffix(getSuffixByPath(path));
-            addToCommandQueue(sqlWithTaskId);
-        }
+    private void addInsertSqlCommandByAscii(String tableName, int asciiSum, String path, int priority) {
+        String disk = String.valueOf(path.charAt(0));
+        SQLWithTaskId sqlWithTaskId = new SQLWithTaskId(null, SqlTaskIds.INSERT_TO_LIST, disk);
+        sqlWithTaskId.setListRecord(tableName, asciiSum, path, priority);
+        addToPendingListMutations(sqlWithTaskId);
     }
 
     /**
-     * 检查要删除的文件是否还未添加
-     * 防止文件刚添加就被删除
+     * 添加文件的添加或删除操作，同一个文件只保留最后一次操作
+     * 文件刚添加还未写入数据库就被删除时，直接取消添加
+     * 操作会先记录到changeJournal中，必须先修改pendingListMutations再写日志，保证日志切换前的记录都在写入数据库的快照中
+     * 重建索引期间的操作同时记录到rebuildChangeLog中，必须在修改pendingListMutations之前记录，见swapShadowDatabases
      *
-     * @param path 待删除文件路径
-     * @return true如果待删除文件已经在任务队列中
+     * @param mutation 文件的添加或删除
      */
-    private boolean isRemoveFileInCommandQueue(String path, SQLWithTaskId[] sqlWithTaskId) {
-        for (SQLWithTaskId each : sqlCommandQueue) {
-            if (each.taskId == SqlTaskIds.INSERT_TO_LIST && each.sql.contains(path)) {
-                sqlWithTaskId[0] = each;
-                return true;
+    private void addToPendingListMutations(SQLWithTaskId mutation) {
+        rebuildChangeLog.append(mutation);
+        var flushWorker = getFlushWorker(mutation.diskStr);
+        var pendingListMutations = flushWorker.pendingListMutations;
+        String pendingKey = mutation.tableName + "," + mutation.path;
+        final byte journalOp = mutation.taskId == SqlTaskIds.INSERT_TO_LIST ? ChangeJournal.OP_ADD : ChangeJournal.OP_DELETE;
+        if (mutation.taskId == SqlTaskIds.DELETE_FROM_LIST) {
+            var previous = pendingListMutations.get(pendingKey);
+            if (previous != null && previous.taskId == SqlTaskIds.INSERT_TO_LIST && pendingListMutations.remove(pendingKey, previous)) {
+                appendToChangeJournal(journalOp, mutation.path);
+                return;
             }
         }
-        return false;
+        if (!pendingListMutations.containsKey(pendingKey)) {
+            flushWorker.waitForPendingSqlBelowLimit();
+        }
+        pendingListMutations.put(pendingKey, mutation);
+        appendToChangeJournal(journalOp, mutation.path);
+    }
+
+    private void appendToChangeJournal(byte op, String path) {
+        var journal = changeJournal;
+        if (journal != null) {
+            journal.append(op, path);
+        }
+    }
+
+    private FlushWorker getFlushWorker(String diskStr) {
+        return flushWorkers.computeIfAbsent(diskStr, k -> {
+            var flushWorker = new FlushWorker(k);
+            flushWorker.startFlushThread();
+            return flushWorker;
+        });
+    }
+
+    /**
+     * 获取每个数据库的写入状态
+     *
+     * @return 待执行的sql数量，事务大小以及提交耗时
+     */
+    public List<FlushStats> getFlushStats() {
+        return flushWorkers.values().stream().map(FlushWorker::getStats).toList();
     }
 
     /**
@@ -1039,27 +1461,21 @@ public class DatabaseService {
         if (path == null || path.isEmpty()) {
             return;
         }
-        int asciiSum = StringUtf8SumUtil.getStringSum(FileUtil.getFileName(path));
-        SQLWithTaskId[] sqlWithTaskId = new SQLWithTaskId[1];
-        if (isRemoveFileInCommandQueue(path, sqlWithTaskId)) {
-            sqlCommandQueue.remove(sqlWithTaskId[0]);
-        } else {
-            addDeleteSqlCommandByAscii(asciiSum, path);
-            int priorityBySuffix = getPriorityBySuffix(getSuffixByPath(path));
-            int asciiGroup = asciiSum / 100;
-            asciiGroup = Math.min(asciiGroup, Constants.MAX_TABLE_NUM);
-            String tableName = "list" + asciiGroup;
-            String key = path.charAt(0) + "," + tableName + "," + priorityBySuffix;
-            if (isEnableGPUAccelerate) {
-                EventManagement.getInstance().putEvent(new GPURemoveRecordEvent(key, path));
-            }
-            Cache cache = tableCache.get(key);
-            if (cache != null && cache.isCached.get()) {
-                if (cache.data.remove(path)) {
-                    tableCacheCount.decrementAndGet();
-                }
+        String fileName = FileUtil.getFileName(path);
+        String tableName = TablePartitioner.INSTANCE.getTableName(fileName);
+        addDeleteSqlCommandByAscii(tableName, StringUtf8SumUtil.getStringSum(fileName), path);
+        int priorityBySuffix = getPriorityBySuffix(getSuffixByPath(path));
+        String key = path.charAt(0) + "," + tableName + "," + priorityBySuffix;
+        if (isEnableGPUAccelerate) {
+            EventManagement.getInstance().putEvent(new GPURemoveRecordEvent(key, path));
+        }
+        Cache cache = tableCache.get(key);
+        if (cache != null && cache.isCached.get()) {
+            if (cache.data.remove(path)) {
+                tableCacheCount.decrementAndGet();
             }
         }
+        IndexSegmentStore.INSTANCE.removeRecord(key, path);
     }
 
     public HashMap<String, Integer> getPriorityMap() {
@@ -1073,7 +1489,7 @@ public class DatabaseService {
      */
     private ConcurrentLinkedQueue<SuffixPriorityPair> getPriority() {
         ConcurrentLinkedQueue<SuffixPriorityPair> priorityQueue = new ConcurrentLinkedQueue<>();
-        try (Statement stmt = SQLiteUtil.getStatement("cache");
+        try (Statement stmt = SQLiteUtil.getReadOnlyStatement("cache");
              ResultSet resultSet = stmt.executeQuery("SELECT * FROM priority order by PRIORITY desc;")) {
             while (resultSet.next()) {
                 String suffix = resultSet.getString("SUFFIX");
@@ -1126,12 +1542,10 @@ public class DatabaseService {
         if (path == null || path.isEmpty()) {
             return;
         }
-        int asciiSum = StringUtf8SumUtil.getStringSum(FileUtil.getFileName(path));
+        String fileName = FileUtil.getFileName(path);
+        String tableName = TablePartitioner.INSTANCE.getTableName(fileName);
         int priorityBySuffix = getPriorityBySuffix(getSuffixByPath(path));
-        addInsertSqlCommandByAscii(asciiSum, path, priorityBySuffix);
-        int asciiGroup = asciiSum / 100;
-        asciiGroup = Math.min(asciiGroup, Constants.MAX_TABLE_NUM);
-        String tableName = "list" + asciiGroup;
+        addInsertSqlCommandByAscii(tableName, StringUtf8SumUtil.getStringSum(fileName), path, priorityBySuffix);
         String key = path.charAt(0) + "," + tableName + "," + priorityBySuffix;
         if (isEnableGPUAccelerate) {
             EventManagement.getInstance().putEvent(new GPUAddRecordEvent(key, path));
@@ -1145,12 +1559,13 @@ public class DatabaseService {
                 cache.isFileLost.set(true);
             }
         }
+        IndexSegmentStore.INSTANCE.addRecord(key, path);
     }
 
     private void addFileToCache(String path) {
         String command = "INSERT OR IGNORE INTO cache(PATH) VALUES('" + path + "');";
         String statisticsCommand = "INSERT INTO statistics(PATH) VALUES('" + path + "') ON CONFLICT DO UPDATE SET COUNT = COUNT + 1;";
-        if (isCommandNotRepeat(command)) {
+        if (isCommandNotRepeat(command, "cache")) {
             addToCommandQueue(new SQLWithTaskId(command, SqlTaskIds.INSERT_TO_CACHE, "cache"));
             addToCommandQueue(new SQLWithTaskId(statisticsCommand, SqlTaskIds.INSERT_TO_STATISTICS, "cache"));
             if (IsDebug.isDebug()) {
@@ -1162,7 +1577,7 @@ public class DatabaseService {
     private void removeFileFromCache(String path) {
         String command = "DELETE from cache where PATH=" + "'" + path + "';";
         String statisticsCommand = "DELETE from statistics where PATH=" + "'" + path + "';";
-        if (isCommandNotRepeat(command)) {
+        if (isCommandNotRepeat(command, "cache")) {
             addToCommandQueue(new SQLWithTaskId(command, SqlTaskIds.DELETE_FROM_CACHE, "cache"));
             addToCommandQueue(new SQLWithTaskId(statisticsCommand, SqlTaskIds.DELETE_FROM_STATISTICS, "cache"));
             if (IsDebug.isDebug()) {
@@ -1172,82 +1587,287 @@ public class DatabaseService {
     }
 
     /**
-     * 执行sql
+     * 执行所有数据库的sql，每个数据库由自己的写入线程并行执行
+     * 先切换日志再执行，旧日志中还未写入的记录都在执行的快照中（写入失败的文件变化会重新加入队列），全部写入成功后删除旧日志
+     */
+    private void executeAllCommands() {
+        if (!hasPendingSql()) {
+            return;
+        }
+        var journal = changeJournal;
+        final long journalSeq = journal == null ? 0 : journal.rotate();
+        var threadPoolUtil = ThreadPoolUtil.getInstance();
+        ArrayList<Future<Boolean>> flushResults = new ArrayList<>();
+        ArrayList<FlushWorker> inlineFlushWorkers = new ArrayList<>();
+        for (var flushWorker : flushWorkers.values()) {
+            // 数据库的数量由配置决定，不会无限增长
+            Future<Boolean> future = threadPoolUtil.executeTask(flushWorker::flush);
+            if (future == null) {
+                inlineFlushWorkers.add(flushWorker);
+            } else {
+                flushResults.add(future);
+            }
+        }
+        boolean isAllSuccess = true;
+        for (var flushWorker : inlineFlushWorkers) {
+            isAllSuccess &= flushWorker.flush();
+        }
+        for (var flushResult : flushResults) {
+            try {
+                isAllSuccess &= flushResult.get();
+            } catch (InterruptedException | ExecutionException e) {
+                log.error("error: {}", e.getMessage(), e);
+                isAllSuccess = false;
+            }
+        }
+        if (journal != null && isAllSuccess) {
+            // 写入失败时保留日志，下次启动时重放
+            journal.deleteJournalsBefore(journalSeq);
+        }
+    }
+
+    /**
+     * 标记数据库需要检查完整性，由数据库维护线程在空闲时逐个表检查
+     *
+     * @param diskStr 数据库名
+     */
+    private void markDatabaseNeedIntegrityCheck(String diskStr) {
+        DatabaseIntegrityChecker.INSTANCE.markSuspect(diskStr);
+    }
+
+    /**
+     * 在空闲时检查可能损坏的数据库，每次最多执行INTEGRITY_CHECK_STEP_MILLS，每个表一次quick_check
+     * 检查失败的表单独重建，无法重建或无法读取表结构时标记整个数据库在下次启动时重新创建
+     */
+    private void checkDatabaseIntegrity() {
+        final var integrityChecker = DatabaseIntegrityChecker.INSTANCE;
+        final long deadlineMills = System.currentTimeMillis() + INTEGRITY_CHECK_STEP_MILLS;
+        while (integrityChecker.hasPendingCheck() && System.currentTimeMillis() < deadlineMills &&
+                status.get() == Constants.Enums.DatabaseStatus.NORMAL && searchThreadCount.get() == 0) {
+            var checkResult = integrityChecker.checkNextTable();
+            if (checkResult == null || checkResult.isOk()) {
+                continue;
+            }
+            if (checkResult.tableName() == null || !getFlushWorker(checkResult.key()).rebuildTable(checkResult.tableName())) {
+                log.error("数据库" + checkResult.key() + "已损坏并且无法修复，将在下次启动时重新创建");
+                SQLiteUtil.markDatabaseMalformed(checkResult.key());
+                continue;
+            }
+            // 缓存中可能有重建前读取的数据
+            invalidateAllCache();
+        }
+    }
+
+    /**
+     * 在一个事务中执行同一个数据库的所有sql
+     * 文件的添加和删除通过PreparedStatement按照表分组批量执行，其他sql按照顺序执行
+     * 文件的添加和删除在一个SAVEPOINT中执行，任意一个失败时全部回滚，分区统计信息在事务提交后才更新到内存中
+     *
+     * @param diskStr             数据库名
+     * @param commands            待执行的sql
+     * @param failedListMutations 没有写入数据库的文件添加和删除，由调用者重新加入队列
+     * @return false如果有sql执行失败
      */
     @SuppressWarnings("SqlNoDataSourceInspection")
-    private synchronized void executeAllCommands() {
-        if (!sqlCommandQueue.isEmpty()) {
-            LinkedHashSet<SQLWithTaskId> tempCommandSet = new LinkedHashSet<>(sqlCommandQueue);
-            HashMap<String, Statement> statementHashMap = new HashMap<>();
-            HashMap<String, Boolean> dbIntegrityMap = new HashMap<>();
-            for (var sqlWithTaskId : tempCommandSet) {
-                Statement stmt;
-                try {
-                    if (statementHashMap.containsKey(sqlWithTaskId.diskStr)) {
-                        stmt = statementHashMap.get(sqlWithTaskId.diskStr);
-                    } else {
-                        try {
-                            stmt = SQLiteUtil.getStatement(sqlWithTaskId.diskStr);
-                        } catch (RuntimeException e) {
-                            continue;
-                        }
-                        statementHashMap.put(sqlWithTaskId.diskStr, stmt);
-                        stmt.execute("BEGIN;");
+    private boolean executeCommandsInTransaction(String diskStr, List<SQLWithTaskId> commands, List<SQLWithTaskId> failedListMutations) {
+        // 每个文件只有一个操作，已在pendingListMutations中合并
+        ArrayList<SQLWithTaskId> listMutations = new ArrayList<>();
+        for (var sqlWithTaskId : commands) {
+            if (sqlWithTaskId.isListMutation()) {
+                listMutations.add(sqlWithTaskId);
+            }
+        }
+        Statement stmt;
+        try {
+            stmt = SQLiteUtil.getStatement(diskStr);
+        } catch (RuntimeException e) {
+            // 磁盘不可用，保留文件变化和日志
+            log.warn("数据库" + diskStr + "不可用 " + e.getMessage());
+            failedListMutations.addAll(listMutations);
+            return false;
+        } catch (SQLException e) {
+            log.error("error: {}", e.getMessage(), e);
+            failedListMutations.addAll(listMutations);
+            return false;
+        }
+        boolean isSuccess = true;
+        boolean isListMutationsCommitted = listMutations.isEmpty();
+        PartitionStats.Delta partitionStatsDelta = null;
+        try (stmt) {
+            try {
+                stmt.execute("BEGIN;");
+                for (var sqlWithTaskId : commands) {
+                    if (sqlWithTaskId.isListMutation()) {
+                        continue;
                     }
                     if (IsDebug.isDebug()) {
                         log.info("----------------------------------------------");
                         log.info("执行SQL命令--" + sqlWithTaskId.sql);
                         log.info("----------------------------------------------");
                     }
-                    if (!stmt.execute(sqlWithTaskId.sql)) {
-                        int updateCount = stmt.getUpdateCount();
-                        if (sqlWithTaskId.key != null && updateCount != -1 && updateCount != 0) {
-                            if (databaseResultsCount.containsKey(sqlWithTaskId.key)) {
-                                var recordsNumber = databaseResultsCount.get(sqlWithTaskId.key);
-                                updateCount = sqlWithTaskId.taskId == SqlTaskIds.INSERT_TO_LIST ?
-                                        updateCount : -updateCount;
-                                recordsNumber.addAndGet(updateCount);
-                            }
-                        }
+                    try {
+                        stmt.execute(sqlWithTaskId.sql);
+                    } catch (SQLException e) {
+                        log.error("error: {}", e.getMessage(), e);
+                        isSuccess = false;
                     }
-                } catch (Exception e) {
-                    log.error("error: {}", e.getMessage(), e);
-                    // 标记下次启动时检查损坏数据库
-                    dbIntegrityMap.put(sqlWithTaskId.diskStr, false);
                 }
-            }
-            for (var entry : statementHashMap.entrySet()) {
-                Statement v = entry.getValue();
-                try {
-                    v.execute("COMMIT;");
-                } catch (SQLException e) {
-                    log.error("error: {}", e.getMessage(), e);
-                } finally {
+                if (!listMutations.isEmpty()) {
+                    stmt.execute("SAVEPOINT list_mutations;");
                     try {
-                        v.close();
+                        partitionStatsDelta = executeListMutations(diskStr, listMutations);
+                        stmt.execute("RELEASE list_mutations;");
                     } catch (SQLException e) {
-                        log.error("error {}", e.getMessage(), e);
+                        log.error("error: {}", e.getMessage(), e);
+                        isSuccess = false;
+                        partitionStatsDelta = null;
+                        stmt.execute("ROLLBACK TO list_mutations;");
+                        stmt.execute("RELEASE list_mutations;");
+                    }
+                }
+                stmt.execute("COMMIT;");
+                if (partitionStatsDelta != null) {
+                    isListMutationsCommitted = true;
+                    PartitionStats.INSTANCE.apply(partitionStatsDelta);
+                }
+            } catch (SQLException e) {
+                log.error("error: {}", e.getMessage(), e);
+                isSuccess = false;
+                // 事务没有提交，全部回滚
+                try {
+                    stmt.execute("ROLLBACK;");
+                } catch (SQLException ex) {
+                    log.error("error: {}", ex.getMessage(), ex);
+                }
+            }
+        } catch (SQLException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
+        if (!isListMutationsCommitted) {
+            failedListMutations.addAll(listMutations);
+        }
+        return isSuccess;
+    }
+
+    /**
+     * 按照表和操作类型分组，每组使用一个PreparedStatement批量执行，删除时使用完整的主键(ASCII, PATH, PRIORITY)
+     * 每个分区的记录数变化在同一个事务中写入partition_stats
+     *
+     * @param diskStr   数据库名
+     * @param mutations 文件的添加和删除
+     * @return 分区统计信息的变化，事务提交后更新到内存中
+     */
+    @SuppressWarnings("SqlNoDataSourceInspection")
+    private PartitionStats.Delta executeListMutations(String diskStr, Collection<SQLWithTaskId> mutations) throws SQLException {
+        PartitionStats.Delta partitionStatsDelta = PartitionStats.INSTANCE.newDelta(diskStr);
+        // key为[表名,操作类型]
+        LinkedHashMap<String, ArrayList<SQLWithTaskId>> mutationGroups = new LinkedHashMap<>();
+        for (var each : mutations) {
+            mutationGroups.computeIfAbsent(each.tableName + "," + each.taskId, k -> new ArrayList<>()).add(each);
+        }
+        HashMap<String, ArrayList<SQLWithTaskId>> deleteMissedGroups = new HashMap<>();
+        for (var group : mutationGroups.values()) {
+            var first = group.get(0);
+            final boolean isInsert = first.taskId == SqlTaskIds.INSERT_TO_LIST;
+            String sql = isInsert ?
+                    "INSERT OR IGNORE INTO " + first.tableName + " VALUES(?, ?, ?);" :
+                    "DELETE FROM " + first.tableName + " WHERE ASCII=? AND PATH=? AND PRIORITY=?;";
+            try (PreparedStatement pStmt = SQLiteUtil.getPreparedStatement(sql, diskStr)) {
+                for (var each : group) {
+                    pStmt.setInt(1, each.asciiSum);
+                    pStmt.setString(2, each.path);
+                    pStmt.setInt(3, each.priority);
+                    pStmt.addBatch();
+                }
+                int[] updateCounts = pStmt.executeBatch();
+                for (int i = 0; i < updateCounts.length && i < group.size(); i++) {
+                    var each = group.get(i);
+                    if (!isInsert && updateCounts[i] == 0) {
+                        deleteMissedGroups.computeIfAbsent(each.tableName, k -> new ArrayList<>()).add(each);
+                    } else if (updateCounts[i] > 0) {
+                        partitionStatsDelta.add(each.tableName, each.priority, each.path, isInsert);
                     }
                 }
             }
-            sqlCommandQueue.removeAll(tempCommandSet);
-            if (!dbIntegrityMap.isEmpty()) {
-                Gson gson = GsonUtil.INSTANCE.getGson();
-                if (FileUtil.isFileExist(Constants.DATABASE_INTEGRITY_CHECK_FILE)) {
-                    try (var reader = new BufferedReader(new InputStreamReader(new FileInputStream(Constants.DATABASE_INTEGRITY_CHECK_FILE), StandardCharsets.UTF_8))) {
-                        Map<String, Boolean> map = gson.fromJson(reader, Map.class);
-                        map.forEach(dbIntegrityMap::putIfAbsent);
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
+        }
+        if (!deleteMissedGroups.isEmpty() && TablePartitioner.INSTANCE.isMigrating(diskStr)) {
+            deleteFromOtherTables(diskStr, deleteMissedGroups, partitionStatsDelta);
+        }
+        // 后缀优先级被修改后，数据库中的PRIORITY可能与当前的优先级不同，PATH没有单独的索引，使用表中存在的其他优先级通过完整的主键删除
+        for (var entry : deleteMissedGroups.entrySet()) {
+            String tableName = entry.getKey();
+            var priorities = getExistingPriorities(diskStr, tableName);
+            try (PreparedStatement deleteStmt = SQLiteUtil.getPreparedStatement("DELETE FROM " + tableName + " WHERE ASCII=? AND PATH=? AND PRIORITY=?;", diskStr)) {
+                for (var each : entry.getValue()) {
+                    for (int priority : priorities) {
+                        if (priority == each.priority) {
+                            continue;
+                        }
+                        deleteStmt.setInt(1, each.asciiSum);
+                        deleteStmt.setString(2, each.path);
+                        deleteStmt.setInt(3, priority);
+                        if (deleteStmt.executeUpdate() > 0) {
+                            partitionStatsDelta.add(tableName, priority, each.path, false);
+                            break;
+                        }
                     }
                 }
-                try (var writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(Constants.DATABASE_INTEGRITY_CHECK_FILE), StandardCharsets.UTF_8))) {
-                    writer.write(gson.toJson(dbIntegrityMap));
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
+            }
+        }
+        PartitionStats.INSTANCE.save(partitionStatsDelta);
+        return partitionStatsDelta;
+    }
+
+    /**
+     * 获取表中可能存在的优先级，分区统计信息还未读取时使用当前的所有后缀优先级
+     *
+     * @param diskStr   数据库名
+     * @param tableName 表名
+     * @return 优先级
+     */
+    private Collection<Integer> getExistingPriorities(String diskStr, String tableName) {
+        ArrayList<Integer> priorities = PartitionStats.INSTANCE.getPriorities(diskStr, tableName);
+        if (priorities != null) {
+            return priorities;
+        }
+        LinkedHashSet<Integer> currentPriorities = new LinkedHashSet<>();
+        priorityMap.forEach(each -> currentPriorities.add(each.priority));
+        return currentPriorities;
+    }
+
+    /**
+     * 分区迁移期间记录可能还在旧的表中，通过主键在其他表中删除，删除成功的记录从deleteMissedGroups中移除
+     *
+     * @param diskStr             数据库名
+     * @param deleteMissedGroups  key为表名，value为在该表中没有找到的删除操作
+     * @param partitionStatsDelta 分区统计信息的变化
+     */
+    @SuppressWarnings("SqlNoDataSourceInspection")
+    private void deleteFromOtherTables(String diskStr,
+                                       HashMap<String, ArrayList<SQLWithTaskId>> deleteMissedGroups,
+                                       PartitionStats.Delta partitionStatsDelta) throws SQLException {
+        for (int i = 0; i <= Constants.MAX_TABLE_NUM; i++) {
+            String tableName = "list" + i;
+            try (PreparedStatement pStmt = SQLiteUtil.getPreparedStatement("DELETE FROM " + tableName + " WHERE ASCII=? AND PATH=? AND PRIORITY=?;", diskStr)) {
+                for (var group : deleteMissedGroups.entrySet()) {
+                    if (group.getKey().equals(tableName)) {
+                        continue;
+                    }
+                    var iterator = group.getValue().iterator();
+                    while (iterator.hasNext()) {
+                        var each = iterator.next();
+                        pStmt.setInt(1, each.asciiSum);
+                        pStmt.setString(2, each.path);
+                        pStmt.setInt(3, each.priority);
+                        if (pStmt.executeUpdate() > 0) {
+                            partitionStatsDelta.add(tableName, each.priority, each.path, false);
+                            iterator.remove();
+                        }
+                    }
                 }
             }
         }
+        deleteMissedGroups.values().removeIf(List::isEmpty);
     }
 
     /**
@@ -1256,31 +1876,30 @@ public class DatabaseService {
      * @param sql 任务
      */
     private void addToCommandQueue(SQLWithTaskId sql) {
-        if (sqlCommandQueue.size() < MAX_SQL_NUM) {
-            if (getStatus() == Constants.Enums.DatabaseStatus.MANUAL_UPDATE) {
-                return;
-            }
-            sqlCommandQueue.add(sql);
-        } else {
-            if (IsDebug.isDebug()) {
-                log.warn("添加sql语句" + sql + "失败，已达到最大上限");
-            }
-        }
+        var flushWorker = getFlushWorker(sql.diskStr);
+        flushWorker.waitForPendingSqlBelowLimit();
+        flushWorker.pendingSqlSet.add(sql.sql);
+        flushWorker.sqlCommandQueue.add(sql);
     }
 
     /**
      * 检查任务是否重复
      *
-     * @param sql 任务
+     * @param sql     任务
+     * @param diskStr 数据库名
      * @return boolean
      */
-    private boolean isCommandNotRepeat(String sql) {
-        for (SQLWithTaskId each : sqlCommandQueue) {
-            if (each.sql.equals(sql)) {
-                return false;
+    private boolean isCommandNotRepeat(String sql, String diskStr) {
+        return !getFlushWorker(diskStr).pendingSqlSet.contains(sql);
+    }
+
+    private boolean hasPendingSql() {
+        for (var flushWorker : flushWorkers.values()) {
+            if (flushWorker.hasPendingSql()) {
+                return true;
             }
         }
-        return true;
+        return false;
     }
 
     /**
@@ -1311,15 +1930,10 @@ public class DatabaseService {
 
     /**
      * 创建索引
+     * list0-list40按照主键(PRIORITY, ASCII, PATH)聚集存储，不需要额外的PRIORITY索引
      */
     private void createAllIndex() {
-        sqlCommandQueue.add(new SQLWithTaskId("CREATE INDEX IF NOT EXISTS cache_index ON cache(PATH);", SqlTaskIds.CREATE_INDEX, "cache"));
-        for (String each : RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks())) {
-            for (int i = 0; i <= Constants.MAX_TABLE_NUM; ++i) {
-                String createIndex = "CREATE INDEX IF NOT EXISTS list" + i + "_index ON list" + i + "(PRIORITY);";
-                sqlCommandQueue.add(new SQLWithTaskId(createIndex, SqlTaskIds.CREATE_INDEX, String.valueOf(each.charAt(0))));
-            }
-        }
+        getFlushWorker("cache").sqlCommandQueue.add(new SQLWithTaskId("CREATE INDEX IF NOT EXISTS cache_index ON cache(PATH);", SqlTaskIds.CREATE_INDEX, "cache"));
     }
 
     /**
@@ -1327,20 +1941,22 @@ public class DatabaseService {
      *
      * @param paths      磁盘信息
      * @param ignorePath 忽略文件夹
+     * @param database   数据库输出文件夹
      * @throws IOException exception
      */
-    private Process searchByUSN(String paths, String ignorePath) throws IOException {
+    private Process searchByUSN(String paths, String ignorePath, File database) throws IOException {
         File usnSearcher = new File("fileSearcherUSN.exe");
         String absPath = usnSearcher.getAbsolutePath();
         String start = absPath.substring(0, 2);
         String end = "\"" + absPath.substring(2) + "\"";
-        File database = new File("data");
         try (BufferedWriter buffW = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("MFTSearchInfo.dat"), StandardCharsets.UTF_8))) {
             buffW.write(paths);
             buffW.newLine();
             buffW.write(database.getAbsolutePath());
             buffW.newLine();
             buffW.write(ignorePath);
+            buffW.newLine();
+            buffW.write(TablePartitioner.INSTANCE.getLayout());
         }
         return Runtime.getRuntime().exec(new String[]{"cmd.exe", "/c", start + end});
     }
@@ -1355,10 +1971,13 @@ public class DatabaseService {
     }
 
     /**
-     * 检查索引数据库大小
+     * 检查索引数据库大小，过大或创建时间过长的数据库将会从空数据库开始重建
+     *
+     * @return 需要删除之前记录的磁盘
      */
     @SuppressWarnings({"unchecked", "rawtypes"})
-    private void checkDbFileSize(boolean isDropPrevious) {
+    private HashSet<String> checkDbFileSize(boolean isDropPrevious) {
+        HashSet<String> dropDisks = new HashSet<>();
         HashMap<String, String> databaseCreateTimeMap = new HashMap<>();
         String[] disks = RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks());
         LocalDate now = LocalDate.now();
@@ -1381,19 +2000,19 @@ public class DatabaseService {
 
         final long maxDatabaseSize = 8L * 1024 * 1024 * 100;
         for (String eachDisk : disks) {
-            String name = eachDisk.charAt(0) + ".db";
+            String diskStr = String.valueOf(eachDisk.charAt(0));
             try {
-                Path diskDatabaseFile = Path.of("data/" + name);
-                long length = Files.size(diskDatabaseFile);
+                Path diskDatabaseFile = Path.of(SQLiteUtil.getDbAbsolutePath(diskStr));
+                long length = Files.exists(diskDatabaseFile) ? Files.size(diskDatabaseFile) : 0;
                 if (length > maxDatabaseSize ||
                         Period.between(LocalDate.parse(databaseCreateTimeMap.get(eachDisk)), now).getDays() > 5 ||
                         isDropPrevious) {
                     if (IsDebug.isDebug()) {
-                        log.info("当前文件" + name + "已删除");
+                        log.info("数据库" + diskStr + "将从空数据库开始重建");
                     }
                     //更新创建时间
                     databaseCreateTimeMap.put(eachDisk, now.toString());
-                    Files.delete(diskDatabaseFile);
+                    dropDisks.add(diskStr);
                 }
             } catch (IOException e) {
                 log.error("error: {}", e.getMessage(), e);
@@ -1405,21 +2024,60 @@ public class DatabaseService {
         } catch (IOException e) {
             log.error("error: {}", e.getMessage(), e);
         }
+        return dropDisks;
     }
 
-    @SneakyThrows
-    private void executeAllSQLAndWait(@SuppressWarnings("SameParameterValue") int timeoutMills) {// 等待剩余的sql全部执行完成
-        final long time = System.currentTimeMillis();
-        // 将在队列中的sql全部执行并等待搜索线程全部完成
-        log.info("等待所有sql执行完成，并且退出搜索");
-        while (searchThreadCount.get() != 0 || !sqlCommandQueue.isEmpty()) {
-            executeAllCommands();
-            TimeUnit.MILLISECONDS.sleep(10);
-            if (System.currentTimeMillis() - time > timeoutMills) {
-                log.info("等待超时");
-                break;
+    /**
+     * 准备影子数据库，fileSearcherUSN将新的索引写入影子数据库，不影响正在使用的数据库
+     * 不需要删除之前记录的磁盘通过VACUUM INTO复制当前数据库，复制的同时整理数据库，每个数据库文件使用一个线程同时复制
+     * fileSearcherUSN从影子数据库文件夹中的cache.db读取后缀优先级
+     *
+     * @param dropDisks 需要删除之前记录的磁盘
+     * @return 影子数据库文件夹
+     */
+    private File prepareShadowDatabases(HashSet<String> dropDisks) throws IOException {
+        File shadowDir = new File(Constants.DATABASE_SHADOW_DIR);
+        if (shadowDir.exists()) {
+            FileUtil.deleteDir(shadowDir);
+        }
+        Files.createDirectories(shadowDir.toPath());
+        var threadPoolUtil = ThreadPoolUtil.getInstance();
+        ArrayList<Future<Boolean>> vacuumResults = new ArrayList<>();
+        ArrayList<String> vacuumKeys = new ArrayList<>();
+        vacuumKeys.add("cache");
+        for (String eachDisk : RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks())) {
+            String diskStr = String.valueOf(eachDisk.charAt(0));
+            if (!dropDisks.contains(diskStr)) {
+                vacuumKeys.add(diskStr);
+            }
+        }
+        for (String key : vacuumKeys) {
+            File target = new File(shadowDir, key + ".db");
+            Future<Boolean> future = threadPoolUtil.executeTask(() -> vacuumInto(key, target), ThreadPoolUtil.Bulkhead.MAINTENANCE);
+            if (future == null) {
+                vacuumInto(key, target);
+            } else {
+                vacuumResults.add(future);
+            }
+        }
+        for (var vacuumResult : vacuumResults) {
+            try {
+                vacuumResult.get();
+            } catch (InterruptedException | ExecutionException e) {
+                log.error("error: {}", e.getMessage(), e);
             }
         }
+        return shadowDir;
+    }
+
+    private boolean vacuumInto(String key, File target) {
+        try (Statement stmt = SQLiteUtil.getReadOnlyStatement(key)) {
+            stmt.execute("VACUUM INTO '" + target.getAbsolutePath().replace("'", "''") + "';");
+            return true;
+        } catch (SQLException e) {
+            log.error("error: {}", e.getMessage(), e);
+            return false;
+        }
     }
 
     private void stopAllSearch() {
@@ -1427,128 +2085,568 @@ public class DatabaseService {
     }
 
     /**
-     * 等待fileSearcherUSN进程并切换回数据库
+     * 等待fileSearcherUSN进程，并将重建完成的影子数据库切换为当前版本
+     * 搜索在重建期间以及切换时一直使用当前版本，旧版本在所有搜索完成后删除
      *
-     * @param searchByUsn fileSearcherUSN进程
+     * @param searchByUsn     fileSearcherUSN进程，为null时不切换
+     * @param shadowDir       影子数据库文件夹
+     * @param overflowedDisks 重建期间文件变化过多，没有切换的磁盘
      */
-    private void waitForSearchAndSwitchDatabase(Process searchByUsn) {
-        // 搜索完成并写入数据库后，重新建立数据库连接
-        try {
-            ProcessUtil.waitForProcess("fileSearcherUSN.exe", 1000);
-            readSearchUsnOutput(searchByUsn);
-        } catch (Exception e) {
-            log.error("error: {}", e.getMessage(), e);
-        }
-        stopAllSearch();
-        casSetStatus(this.status.get(), Constants.Enums.DatabaseStatus.MANUAL_UPDATE);
-        try {
-            final long startWaitingTime = System.currentTimeMillis();
-            //等待所有搜索线程结束，最多等待1分钟
-            while (searchThreadCount.get() != 0 && System.currentTimeMillis() - startWaitingTime < 60 * 1000) {
-                TimeUnit.MILLISECONDS.sleep(20);
+    private void waitForSearchAndSwitchDatabase(Process searchByUsn, File shadowDir, ArrayList<String> overflowedDisks) {
+        ArrayList<String> oldDbPaths = new ArrayList<>();
+        ArrayList<String> swappedDisks = new ArrayList<>();
+        if (searchByUsn != null) {
+            try {
+                ProcessUtil.waitForProcess("fileSearcherUSN.exe", 1000);
+                readSearchUsnOutput(searchByUsn);
+            } catch (Exception e) {
+                log.error("error: {}", e.getMessage(), e);
             }
-        } catch (InterruptedException ignored) {
-            // ignore interrupt exception
+            swapShadowDatabases(shadowDir, oldDbPaths, swappedDisks, overflowedDisks);
         }
-        SQLiteUtil.closeAll();
-        invalidateAllCache();
-        SQLiteUtil.initAllConnections();
-        createAllIndex();
-        ThreadPoolUtil.getInstance().executeTask(this::executeAllCommands);
-        waitForCommandSet(SqlTaskIds.CREATE_INDEX);
-        // 搜索完成，更新isDatabaseUpdated标志
-        isDatabaseUpdated.set(true);
-        //重新初始化priority
-        priorityMap = getPriority();
-        casSetStatus(this.status.get(), Constants.Enums.DatabaseStatus.NORMAL);
-        startMonitorDisks();
+        finishSwitchDatabase(shadowDir, oldDbPaths, swappedDisks);
     }
 
-    private static void readSearchUsnOutput(Process searchByUsn) {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(searchByUsn.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                log.info("fileSearcherUSN: " + line);
+    /**
+     * 将影子数据库切换为当前版本
+     * 影子数据库中的记录都按照当前的分区方式保存时直接切换，否则切换后检查所有记录
+     *
+     * @param shadowDir       影子数据库文件夹
+     * @param oldDbPaths      旧版本数据库文件
+     * @param swappedDisks    已切换的磁盘
+     * @param overflowedDisks 重建期间文件变化过多，没有切换的磁盘
+     */
+    private void swapShadowDatabases(File shadowDir, ArrayList<String> oldDbPaths, ArrayList<String> swappedDisks, ArrayList<String> overflowedDisks) {
+        for (String eachDisk : RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks())) {
+            String diskStr = String.valueOf(eachDisk.charAt(0));
+            File shadowDatabase = new File(shadowDir, diskStr + ".db");
+            if (!shadowDatabase.exists() || shadowDatabase.length() == 0) {
+                continue;
             }
-        } catch (IOException e) {
-            log.error("error: {}", e.getMessage(), e);
-        }
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(searchByUsn.getErrorStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                log.info("fileSearcherUSN: " + line);
+            if (rebuildChangeLog.isOverflowed(diskStr)) {
+                // 新版本缺少部分文件变化，保留已经写入所有变化的当前版本
+                log.warn("重建期间磁盘" + diskStr + "的文件变化过多，放弃切换到新版本");
+                overflowedDisks.add(diskStr);
+                continue;
             }
-        } catch (IOException e) {
-            log.error("error: {}", e.getMessage(), e);
-        }
-    }
-
-    private static synchronized void stopMonitorDisks(boolean isDeleteUsn) {
-        String availableDisks = AllConfigs.getInstance().getAvailableDisks();
-        String[] disks = RegexUtil.comma.split(availableDisks);
-        for (String disk : disks) {
-            if (isDeleteUsn) {
-                FileMonitor.INSTANCE.delete_usn_on_exit(disk);
+            var flushWorker = getFlushWorker(diskStr);
+            try {
+                final boolean isLayoutKnown = SQLiteUtil.resolveShadowLayout(shadowDatabase, TablePartitioner.INSTANCE.getLayout());
+                // 先写入重建期间的大部分变化，此时不阻塞写入线程
+                replayRebuildChanges(diskStr, shadowDatabase, isLayoutKnown);
+                if (!isLayoutKnown) {
+                    // 切换前标记为正在迁移，删除时检查其他表
+                    TablePartitioner.INSTANCE.markMigrating(diskStr);
+                }
+                /*
+                 * 持有flushLock时写入剩余的变化并切换，之后记录的变化一定在切换后才被写入数据库，即写入新版本
+                 * 之前记录的变化都已经写入影子数据库，同一个变化可能同时写入两个版本，添加和删除重复执行结果不变
+                 */
+                flushWorker.flushLock.lock();
+                try {
+                    replayRebuildChanges(diskStr, shadowDatabase, isLayoutKnown);
+                    oldDbPaths.add(SQLiteUtil.swapDatabaseGeneration(diskStr, shadowDatabase));
+                } finally {
+                    flushWorker.flushLock.unlock();
+                }
+                TablePartitioner.INSTANCE.increaseLayoutEpoch(diskStr);
+                PartitionRanges.INSTANCE.invalidate(diskStr);
+                swappedDisks.add(diskStr);
+                if (!isLayoutKnown) {
+                    flushWorker.writePartitionLayout(TablePartitioner.UNKNOWN_LAYOUT);
+                }
+                // 新版本的数据没有更新分区统计信息
+                flushWorker.loadPartitionStats(true);
+            } catch (IOException | SQLException e) {
+                log.error("error: {}", e.getMessage(), e);
             }
-            FileMonitor.INSTANCE.stop_monitor(disk);
         }
     }
 
     /**
-     * 关闭数据库连接并更新数据库
+     * 将重建期间记录的文件变化写入还未切换的影子数据库
+     * 添加写入当前分区方式对应的表，删除见ShadowRecordReplayer
      *
-     * @param ignorePath     忽略文件夹
-     * @param isDropPrevious 是否删除之前的记录
+     * @param diskStr        磁盘
+     * @param shadowDatabase 影子数据库
+     * @param isLayoutKnown  影子数据库是否按照当前的分区方式保存
      */
-    private boolean updateLists(String ignorePath, boolean isDropPrevious) throws IOException, InterruptedException {
-        if (getStatus() == Constants.Enums.DatabaseStatus.MANUAL_UPDATE || ProcessUtil.isProcessExist("fileSearcherUSN.exe")) {
-            throw new RuntimeException("already searching");
-        }
-        stopMonitorDisks(false);
-        // 复制数据库到tmp
-        SQLiteUtil.copyDatabases("data", "tmp");
-        if (!casSetStatus(status.get(), Constants.Enums.DatabaseStatus.MANUAL_UPDATE)) {
-            throw new RuntimeException("databaseService status设置MANUAL UPDATE状态失败");
+    private void replayRebuildChanges(String diskStr, File shadowDatabase, boolean isLayoutKnown) throws SQLException {
+        var changes = rebuildChangeLog.drain(diskStr);
+        if (changes.isEmpty()) {
+            return;
         }
-        // 停止搜索
-        stopAllSearch();
-        executeAllSQLAndWait(3000);
-
-        if (!isDropPrevious) {
-            //执行VACUUM命令
-            for (String eachDisk : RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks())) {
-                try (Statement stmt = SQLiteUtil.getStatement(String.valueOf(eachDisk.charAt(0)))) {
-                    stmt.execute("VACUUM;");
-                } catch (Exception ex) {
-                    log.error("error: {}", ex.getMessage(), ex);
+        final long startTime = System.currentTimeMillis();
+        try (Connection connection = SQLiteUtil.openShadowDatabase(shadowDatabase, diskStr);
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("BEGIN;");
+            try (var replayer = new ShadowRecordReplayer(connection, isLayoutKnown)) {
+                for (SQLWithTaskId each : changes) {
+                    if (each.taskId == SqlTaskIds.INSERT_TO_LIST) {
+                        replayer.insert(each);
+                    } else {
+                        replayer.delete(each);
+                    }
                 }
             }
+            stmt.execute("COMMIT;");
         }
-
-        SQLiteUtil.closeAll();
-        SQLiteUtil.initAllConnections("tmp");
         if (IsDebug.isDebug()) {
-            log.info("成功切换到临时数据库");
+            log.info("已将重建期间的" + changes.size() + "个文件变化写入" + diskStr + "的影子数据库，耗时：" + (System.currentTimeMillis() - startTime) + "ms");
         }
-        if (!casSetStatus(status.get(), Constants.Enums.DatabaseStatus._TEMP)) {
-            //恢复data目录的数据库
-            SQLiteUtil.closeAll();
-            SQLiteUtil.initAllConnections();
-            casSetStatus(status.get(), Constants.Enums.DatabaseStatus.NORMAL);
-            throw new RuntimeException("databaseService status设置TEMP状态失败");
+    }
+
+    /**
+     * 将文件变化写入影子数据库，所有操作都按照完整的主键(PRIORITY, ASCII, PATH)执行
+     * <p>
+     * 变化记录的优先级来自当前的后缀优先级，导入快照时影子数据库中的记录使用快照中的优先级，两者可能不同，
+     * 删除时先使用记录的优先级，没有找到时再尝试该表中实际存在的其他优先级，每个表的优先级在第一次需要时读取
+     * 影子数据库不是按照当前的分区方式保存时，记录可能在其他表中，对应的表中没有找到时再检查其他表
+     */
+    private static class ShadowRecordReplayer implements AutoCloseable {
+        private final Connection connection;
+        private final boolean isLayoutKnown;
+        private final HashMap<String, PreparedStatement> insertStatements = new HashMap<>();
+        private final HashMap<String, PreparedStatement> deleteStatements = new HashMap<>();
+        // key为表名，value为该表中存在的优先级
+        private final HashMap<String, TreeSet<Integer>> tablePriorities = new HashMap<>();
+
+        private ShadowRecordReplayer(Connection connection, boolean isLayoutKnown) {
+            this.connection = connection;
+            this.isLayoutKnown = isLayoutKnown;
         }
-        // 检查数据库文件大小，过大则删除
-        checkDbFileSize(isDropPrevious);
-        resetStartTimeCount();
+
+        @SuppressWarnings("SqlNoDataSourceInspection")
+        private void insert(SQLWithTaskId record) throws SQLException {
+            PreparedStatement pStmt = insertStatements.get(record.tableName);
+            if (pStmt == null) {
+                pStmt = connection.prepareStatement("INSERT OR IGNORE INTO " + record.tableName + " VALUES(?, ?, ?);");
+                insertStatements.put(record.tableName, pStmt);
+            }
+            pStmt.setInt(1, record.asciiSum);
+            pStmt.setString(2, record.path);
+            pStmt.setInt(3, record.priority);
+            if (pStmt.executeUpdate() > 0) {
+                getPriorities(record.tableName).add(record.priority);
+            }
+        }
+
+        private void delete(SQLWithTaskId record) throws SQLException {
+            if (delete(record.tableName, record)) {
+                return;
+            }
+            if (isLayoutKnown) {
+                return;
+            }
+            for (int i = 0; i <= Constants.MAX_TABLE_NUM; i++) {
+                String tableName = "list" + i;
+                if (!tableName.equals(record.tableName) && delete(tableName, record)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return true如果在该表中找到并删除了记录
+         */
+        private boolean delete(String tableName, SQLWithTaskId record) throws SQLException {
+            if (deleteByPrimaryKey(tableName, record, record.priority)) {
+                return true;
+            }
+            for (int priority : getPriorities(tableName)) {
+                if (priority != record.priority && deleteByPrimaryKey(tableName, record, priority)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @SuppressWarnings("SqlNoDataSourceInspection")
+        private boolean deleteByPrimaryKey(String tableName, SQLWithTaskId record, int priority) throws SQLException {
+            PreparedStatement pStmt = deleteStatements.get(tableName);
+            if (pStmt == null) {
+                pStmt = connection.prepareStatement("DELETE FROM " + tableName + " WHERE PRIORITY=? AND ASCII=? AND PATH=?;");
+                deleteStatements.put(tableName, pStmt);
+            }
+            pStmt.setInt(1, priority);
+            pStmt.setInt(2, record.asciiSum);
+            pStmt.setString(3, record.path);
+            return pStmt.executeUpdate() > 0;
+        }
+
+        /**
+         * 读取表中存在的优先级，PRIORITY为主键的第一列，每次查找下一个更大的值，只需要在主键上查找优先级的数量次
+         */
+        @SuppressWarnings("SqlNoDataSourceInspection")
+        private TreeSet<Integer> getPriorities(String tableName) throws SQLException {
+            TreeSet<Integer> priorities = tablePriorities.get(tableName);
+            if (priorities != null) {
+                return priorities;
+            }
+            priorities = new TreeSet<>();
+            try (Statement stmt = connection.createStatement();
+                 ResultSet resultSet = stmt.executeQuery("WITH RECURSIVE p(v) AS (SELECT MIN(PRIORITY) FROM " + tableName +
+                         " UNION ALL SELECT (SELECT MIN(PRIORITY) FROM " + tableName + " WHERE PRIORITY > v) FROM p WHERE v IS NOT NULL)" +
+                         " SELECT v FROM p WHERE v IS NOT NULL;")) {
+                while (resultSet.next()) {
+                    priorities.add(resultSet.getInt(1));
+                }
+            }
+            tablePriorities.put(tableName, priorities);
+            return priorities;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            for (PreparedStatement each : insertStatements.values()) {
+                each.close();
+            }
+            for (PreparedStatement each : deleteStatements.values()) {
+                each.close();
+            }
+        }
+    }
+
+    /**
+     * 切换完成后恢复正常状态，旧版本在所有搜索完成后删除，切换的磁盘在后台检查分区方式
+     */
+    private void finishSwitchDatabase(File shadowDir, ArrayList<String> oldDbPaths, ArrayList<String> swappedDisks) {
+        rebuildChangeLog.stop();
+        FileUtil.deleteDir(shadowDir);
+        if (!oldDbPaths.isEmpty()) {
+            // 缓存中的数据来自旧版本
+            invalidateAllCache();
+        }
+        createAllIndex();
+        ThreadPoolUtil.getInstance().executeTask(this::executeAllCommands, ThreadPoolUtil.Bulkhead.SQL_FLUSH);
+        waitForCommandSet(SqlTaskIds.CREATE_INDEX);
+        // 搜索完成，更新isDatabaseUpdated标志
+        isDatabaseUpdated.set(true);
+        //重新初始化priority
+        priorityMap = getPriority();
+        casSetStatus(this.status.get(), Constants.Enums.DatabaseStatus.NORMAL);
+        ThreadPoolUtil.getInstance().executeTask(() -> dropOldDatabaseGenerations(oldDbPaths), ThreadPoolUtil.Bulkhead.MAINTENANCE);
+        ThreadPoolUtil.getInstance().executeTask(() -> swappedDisks.forEach(disk -> {
+            migrateListSchema(disk);
+            migrateTablePartitions(disk);
+        }), ThreadPoolUtil.Bulkhead.MAINTENANCE);
+    }
+
+    /**
+     * 等待固定旧版本的搜索全部释放后，删除旧版本的数据库
+     * 切换之后开始的搜索只会使用新版本，不需要等待
+     *
+     * @param oldDbPaths 旧版本数据库文件路径
+     */
+    private void dropOldDatabaseGenerations(ArrayList<String> oldDbPaths) {
+        if (oldDbPaths.isEmpty()) {
+            return;
+        }
+        EventManagement eventManagement = EventManagement.getInstance();
+        try {
+            while (oldDbPaths.stream().anyMatch(SQLiteUtil::isDatabaseGenerationPinned) && eventManagement.notMainExit()) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            log.error("error: {}", e.getMessage(), e);
+            return;
+        }
+        for (String oldDbPath : oldDbPaths) {
+            PathMatcher.INSTANCE.closeConnection(oldDbPath);
+            SQLiteUtil.deleteDatabaseFiles(oldDbPath);
+            if (IsDebug.isDebug()) {
+                log.info("已删除旧版本数据库 " + oldDbPath);
+            }
+        }
+    }
+
+    /**
+     * 将所有磁盘的文件记录，后缀优先级和常用文件缓存写入索引快照
+     * 每个磁盘在一个读事务中读取，快照中的记录来自同一个时间点
+     *
+     * @param target 快照文件
+     */
+    @SuppressWarnings("SqlNoDataSourceInspection")
+    private void exportIndexSnapshot(Path target) throws IOException, SQLException {
+        final long startTime = System.currentTimeMillis();
+        try (var writer = new IndexSnapshot.Writer(target)) {
+            try (Statement stmt = SQLiteUtil.getReadOnlyStatement("cache")) {
+                try (ResultSet resultSet = stmt.executeQuery("SELECT SUFFIX, PRIORITY FROM priority;")) {
+                    while (resultSet.next()) {
+                        writer.writePriority(resultSet.getString("SUFFIX"), resultSet.getInt("PRIORITY"));
+                    }
+                }
+                try (ResultSet resultSet = stmt.executeQuery("SELECT cache.PATH, COUNT FROM cache LEFT JOIN statistics s ON cache.PATH = s.PATH;")) {
+                    while (resultSet.next()) {
+                        writer.writeCache(resultSet.getString("PATH"), Math.max(1, resultSet.getInt("COUNT")));
+                    }
+                }
+            }
+            for (String eachDisk : RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks())) {
+                final char disk = eachDisk.charAt(0);
+                try (Statement stmt = SQLiteUtil.getReadOnlyStatement(String.valueOf(disk))) {
+                    stmt.execute("BEGIN;");
+                    try {
+                        for (int i = 0; i <= Constants.MAX_TABLE_NUM; i++) {
+                            try (ResultSet resultSet = stmt.executeQuery("SELECT PRIORITY, PATH FROM list" + i + " ORDER BY PATH;")) {
+                                while (resultSet.next()) {
+                                    writer.writeList(disk, resultSet.getInt("PRIORITY"), resultSet.getBytes("PATH"));
+                                }
+                            }
+                        }
+                    } finally {
+                        stmt.execute("COMMIT;");
+                    }
+                }
+            }
+            writer.commit();
+        }
+        log.info("索引快照已保存到 " + target.toAbsolutePath() + " 耗时：" + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /**
+     * 导入索引快照，所有磁盘的记录写入影子数据库后切换为当前版本，之后通过文件变化更新
+     * 快照中不在当前可用磁盘中的记录被忽略，后缀优先级被快照中的优先级替换，常用文件缓存与当前的缓存合并
+     *
+     * @param source 快照文件
+     */
+    private void importIndexSnapshot(Path source) throws IOException, InterruptedException {
+        final long recordNum = IndexSnapshot.verify(source);
+        if (ProcessUtil.isProcessExist("fileSearcherUSN.exe")) {
+            throw new RuntimeException("already searching");
+        }
+        if (!casSetStatus(Constants.Enums.DatabaseStatus.NORMAL, Constants.Enums.DatabaseStatus._TEMP)) {
+            throw new RuntimeException("databaseService status设置TEMP状态失败");
+        }
+        final long startTime = System.currentTimeMillis();
+        log.info("开始导入索引快照 " + source.toAbsolutePath() + " 记录数：" + recordNum);
+        rebuildChangeLog.start();
+        executeAllCommands();
+        File shadowDir = new File(Constants.DATABASE_SHADOW_DIR);
+        if (shadowDir.exists()) {
+            FileUtil.deleteDir(shadowDir);
+        }
+        ArrayList<String> oldDbPaths = new ArrayList<>();
+        ArrayList<String> swappedDisks = new ArrayList<>();
+        try {
+            Files.createDirectories(shadowDir.toPath());
+            final String availableDisks = AllConfigs.getInstance().getAvailableDisks();
+            HashMap<Character, ShadowDatabaseWriter> shadowWriters = new HashMap<>();
+            LinkedHashMap<String, Integer> priorities = new LinkedHashMap<>();
+            LinkedHashMap<String, Integer> caches = new LinkedHashMap<>();
+            try {
+                IndexSnapshot.read(source, new IndexSnapshot.Visitor() {
+                    @Override
+                    public void onPriority(String suffix, int priority) {
+                        priorities.put(suffix, priority);
+                    }
+
+                    @Override
+                    public void onCache(String path, int count) {
+                        caches.put(path, count);
+                    }
+
+                    @Override
+                    public void onList(char disk, int priority, String path) throws IOException {
+                        if (availableDisks.indexOf(disk) == -1) {
+                            return;
+                        }
+                        try {
+                            ShadowDatabaseWriter shadowWriter = shadowWriters.get(disk);
+                            if (shadowWriter == null) {
+                                shadowWriter = new ShadowDatabaseWriter(String.valueOf(disk), new File(shadowDir, disk + ".db"));
+                                shadowWriters.put(disk, shadowWriter);
+                            }
+                            shadowWriter.insert(path, priority);
+                        } catch (SQLException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                });
+                for (ShadowDatabaseWriter each : shadowWriters.values()) {
+                    each.commit();
+                }
+            } finally {
+                for (ShadowDatabaseWriter each : shadowWriters.values()) {
+                    each.close();
+                }
+            }
+            importPrioritiesAndCaches(priorities, caches);
+            // 快照中的记录按照当前的分区方式写入
+            ArrayList<String> overflowedDisks = new ArrayList<>();
+            swapShadowDatabases(shadowDir, oldDbPaths, swappedDisks, overflowedDisks);
+            if (!overflowedDisks.isEmpty()) {
+                throw new IOException("导入期间文件变化过多，磁盘" + overflowedDisks + "没有切换到快照中的索引");
+            }
+            databaseCacheMap.clear();
+            prepareDatabaseCache();
+            final long costMills = System.currentTimeMillis() - startTime;
+            log.info("索引快照导入完成，耗时：" + costMills + "ms，" + recordNum * 1000 / Math.max(1, costMills) + " rows/s");
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            finishSwitchDatabase(shadowDir, oldDbPaths, swappedDisks);
+        }
+    }
+
+    @SuppressWarnings("SqlNoDataSourceInspection")
+    private void importPrioritiesAndCaches(LinkedHashMap<String, Integer> priorities, LinkedHashMap<String, Integer> caches) throws SQLException {
+        if (priorities.isEmpty() && caches.isEmpty()) {
+            return;
+        }
+        var flushWorker = getFlushWorker("cache");
+        flushWorker.flushLock.lock();
+        try (Statement stmt = SQLiteUtil.getStatement("cache")) {
+            stmt.execute("BEGIN;");
+            try {
+                if (!priorities.isEmpty()) {
+                    stmt.executeUpdate("DELETE FROM priority;");
+                    try (PreparedStatement pStmt = SQLiteUtil.getPreparedStatement("INSERT OR REPLACE INTO priority VALUES(?, ?);", "cache")) {
+                        for (var entry : priorities.entrySet()) {
+                            pStmt.setString(1, entry.getKey());
+                            pStmt.setInt(2, entry.getValue());
+                            pStmt.executeUpdate();
+                        }
+                    }
+                }
+                try (PreparedStatement cacheStmt = SQLiteUtil.getPreparedStatement("INSERT OR IGNORE INTO cache(PATH) VALUES(?);", "cache");
+                     PreparedStatement statisticsStmt = SQLiteUtil.getPreparedStatement(
+                             "INSERT INTO statistics(PATH, COUNT) VALUES(?, ?) ON CONFLICT(PATH) DO UPDATE SET COUNT = max(COUNT, excluded.COUNT);", "cache")) {
+                    for (var entry : caches.entrySet()) {
+                        cacheStmt.setString(1, entry.getKey());
+                        cacheStmt.executeUpdate();
+                        statisticsStmt.setString(1, entry.getKey());
+                        statisticsStmt.setInt(2, entry.getValue());
+                        statisticsStmt.executeUpdate();
+                    }
+                }
+                stmt.execute("COMMIT;");
+            } catch (SQLException e) {
+                stmt.execute("ROLLBACK;");
+                throw e;
+            }
+        } finally {
+            flushWorker.flushLock.unlock();
+        }
+    }
+
+    /**
+     * 定期在空闲时保存索引快照，数据库损坏或为空时可以从快照恢复而不需要重建索引
+     */
+    private void indexSnapshotThread() {
+        ThreadPoolUtil.getInstance().executeTask(() -> {
+            EventManagement eventManagement = EventManagement.getInstance();
+            final File snapshot = new File(Constants.INDEX_SNAPSHOT_FILE);
+            try {
+                while (eventManagement.notMainExit()) {
+                    TimeUnit.MINUTES.sleep(10);
+                    if (status.get() != Constants.Enums.DatabaseStatus.NORMAL ||
+                            searchThreadCount.get() != 0 ||
+                            System.currentTimeMillis() - snapshot.lastModified() < INDEX_SNAPSHOT_INTERVAL_MILLS ||
+                            !isIndexReadyForSnapshot()) {
+                        continue;
+                    }
+                    try {
+                        exportIndexSnapshot(snapshot.toPath());
+                    } catch (IOException | SQLException e) {
+                        log.error("error: {}", e.getMessage(), e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * 所有磁盘的统计信息已读取，没有正在迁移的磁盘，并且数据库不为空，防止用空的数据库覆盖已有的快照
+     */
+    private boolean isIndexReadyForSnapshot() {
+        long totalRecordNum = 0;
+        for (String eachDisk : RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks())) {
+            String disk = String.valueOf(eachDisk.charAt(0));
+            long[] tableRecordNums = PartitionStats.INSTANCE.getTableRecordNums(disk);
+            if (tableRecordNums == null || TablePartitioner.INSTANCE.isMigrating(disk)) {
+                return false;
+            }
+            for (long each : tableRecordNums) {
+                totalRecordNum += each;
+            }
+        }
+        return totalRecordNum > 0;
+    }
+
+    private static void readSearchUsnOutput(Process searchByUsn) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(searchByUsn.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                log.info("fileSearcherUSN: " + line);
+            }
+        } catch (IOException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(searchByUsn.getErrorStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                log.info("fileSearcherUSN: " + line);
+            }
+        } catch (IOException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
+    }
+
+    private static synchronized void stopMonitorDisks(boolean isDeleteUsn) {
+        String availableDisks = AllConfigs.getInstance().getAvailableDisks();
+        String[] disks = RegexUtil.comma.split(availableDisks);
+        for (String disk : disks) {
+            if (isDeleteUsn) {
+                FileMonitor.INSTANCE.delete_usn_on_exit(disk);
+            }
+            FileMonitor.INSTANCE.stop_monitor(disk);
+        }
+    }
+
+    /**
+     * 在影子数据库中重建索引，完成后切换为当前版本，重建期间搜索不受影响
+     *
+     * @param ignorePath      忽略文件夹
+     * @param isDropPrevious  是否删除之前的记录
+     * @param overflowedDisks 重建期间文件变化过多，保留当前版本没有切换的磁盘
+     * @return false如果启动fileSearcherUSN失败
+     */
+    private boolean updateLists(String ignorePath, boolean isDropPrevious, ArrayList<String> overflowedDisks) throws IOException, InterruptedException {
+        if (ProcessUtil.isProcessExist("fileSearcherUSN.exe")) {
+            throw new RuntimeException("already searching");
+        }
+        if (!casSetStatus(Constants.Enums.DatabaseStatus.NORMAL, Constants.Enums.DatabaseStatus._TEMP)) {
+            throw new RuntimeException("databaseService status设置TEMP状态失败");
+        }
+        // 重建期间继续监控文件变化，变化写入当前数据库的同时记录下来，切换前写入影子数据库
+        rebuildChangeLog.start();
+        // 将还未写入的文件变化写入当前数据库，之后复制到影子数据库
+        executeAllCommands();
+        File shadowDir;
+        try {
+            // 检查数据库文件大小，过大则从空数据库开始重建
+            shadowDir = prepareShadowDatabases(checkDbFileSize(isDropPrevious));
+        } catch (IOException e) {
+            rebuildChangeLog.stop();
+            casSetStatus(status.get(), Constants.Enums.DatabaseStatus.NORMAL);
+            throw e;
+        }
+        if (IsDebug.isDebug()) {
+            log.info("开始重建索引到影子数据库 " + shadowDir.getAbsolutePath());
+        }
+        resetStartTimeCount();
         Process searchByUSN = null;
         try {
             // 创建搜索进程并等待
-            searchByUSN = searchByUSN(AllConfigs.getInstance().getAvailableDisks(), ignorePath.toLowerCase());
+            searchByUSN = searchByUSN(AllConfigs.getInstance().getAvailableDisks(), ignorePath.toLowerCase(), shadowDir.getAbsoluteFile());
         } catch (IOException e) {
             log.error("error: {}", e.getMessage(), e);
             return false;
         } finally {
-            waitForSearchAndSwitchDatabase(searchByUSN);
+            waitForSearchAndSwitchDatabase(searchByUSN, shadowDir, overflowedDisks);
         }
         return true;
     }
@@ -1577,9 +2675,16 @@ public class DatabaseService {
     }
 
     private boolean isTaskExistInCommandSet(SqlTaskIds taskId) {
-        for (SQLWithTaskId tasks : sqlCommandQueue) {
-            if (tasks.taskId == taskId) {
-                return true;
+        for (var flushWorker : flushWorkers.values()) {
+            for (SQLWithTaskId tasks : flushWorker.sqlCommandQueue) {
+                if (tasks.taskId == taskId) {
+                    return true;
+                }
+            }
+            for (SQLWithTaskId tasks : flushWorker.pendingListMutations.values()) {
+                if (tasks.taskId == taskId) {
+                    return true;
+                }
             }
         }
         return false;
@@ -1592,7 +2697,7 @@ public class DatabaseService {
      */
     private HashMap<String, Integer> queryAllWeights() {
         HashMap<String, Integer> stringIntegerHashMap = new HashMap<>();
-        try (Statement pStmt = SQLiteUtil.getStatement("weight");
+        try (Statement pStmt = SQLiteUtil.getReadOnlyStatement("weight");
              ResultSet resultSet = pStmt.executeQuery("SELECT TABLE_NAME, TABLE_WEIGHT FROM weight;")) {
             while (resultSet.next()) {
                 String tableName = resultSet.getString("TABLE_NAME");
@@ -1605,22 +2710,47 @@ public class DatabaseService {
         return stringIntegerHashMap;
     }
 
-    private void checkTimeAndSendExecuteSqlSignalThread() {
+    /**
+     * 打开文件变化日志，并重放上次未写入数据库的文件变化
+     */
+    private void initChangeJournal() {
+        try {
+            changeJournal = new ChangeJournal(Path.of(Constants.CHANGE_JOURNAL_DIR));
+        } catch (IOException e) {
+            log.error("error: {}", e.getMessage(), e);
+            return;
+        }
+        final long replayCount = changeJournal.replay((op, path) -> {
+            if (op == ChangeJournal.OP_ADD) {
+                addFileToDatabase(path);
+            } else {
+                removeFileFromDatabase(path);
+            }
+        });
+        if (replayCount > 0) {
+            log.info("已重放文件变化日志，共" + replayCount + "条");
+        }
+    }
+
+    /**
+     * 文件变化日志写入线程，将缓冲区中的记录批量写入文件，并定期fsync
+     */
+    private void writeChangeJournalThread() {
         ThreadPoolUtil.getInstance().executeTask(() -> {
-            // 时间检测线程
-            AllConfigs allConfigs = AllConfigs.getInstance();
             EventManagement eventManagement = EventManagement.getInstance();
-            long checkTime = System.currentTimeMillis();
+            long forceTime = System.currentTimeMillis();
             while (eventManagement.notMainExit()) {
-                final long updateTimeLimit = allConfigs.getConfigEntity().getUpdateTimeLimit() * 1000L;
-                boolean isTooManySQLsToExecute =
-                        getStatus() == Constants.Enums.DatabaseStatus.NORMAL && sqlCommandQueue.size() > 100;
-                if (isTooManySQLsToExecute || System.currentTimeMillis() - checkTime >= updateTimeLimit) {
-                    checkTime = System.currentTimeMillis();
-                    executeAllCommands();
+                var journal = changeJournal;
+                if (journal != null) {
+                    if (System.currentTimeMillis() - forceTime > CHANGE_JOURNAL_FORCE_INTERVAL_MILLS) {
+                        forceTime = System.currentTimeMillis();
+                        journal.force();
+                    } else {
+                        journal.writeBuffered();
+                    }
                 }
                 try {
-                    TimeUnit.SECONDS.sleep(1);
+                    TimeUnit.MILLISECONDS.sleep(10);
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 }
@@ -1629,33 +2759,244 @@ public class DatabaseService {
     }
 
     /**
-     * 根据输入生成SearchInfo
-     *
-     * @param searchTextSupplier 全字匹配关键字
-     * @param searchCaseSupplier 搜索过滤类型
-     * @param keywordsSupplier   搜索关键字
-     * @return SearchInfo
+     * 数据库维护线程，定期对每个数据库执行WAL checkpoint和incremental_vacuum，并检查可能损坏的数据库
+     * 数据库正在更新或整理时不执行，有搜索正在进行时不释放空闲页面，也不检查完整性
      */
-    private static SearchInfo prepareSearchKeywords(Supplier<String> searchTextSupplier,
-                                                    Supplier<String[]> searchCaseSupplier,
-                                                    Supplier<String[]> keywordsSupplier) {
-        var searchText = searchTextSupplier.get();
-        var searchCase = searchCaseSupplier.get();
-        var isIgnoreCase = searchCase == null ||
-                Arrays.stream(searchCase).noneMatch(s -> s.equals(PathMatchUtil.SearchCase.CASE));
-        String[] _keywords = keywordsSupplier.get();
-        var keywords = new String[_keywords.length];
-        var keywordsLowerCase = new String[_keywords.length];
-        var isKeywordPath = new boolean[_keywords.length];
-        // 对keywords进行处理
-        for (int i = 0; i < _keywords.length; ++i) {
-            String eachKeyword = _keywords[i];
-            // 当keywords为空，初始化为默认值
-            if (eachKeyword == null || eachKeyword.isEmpty()) {
-                isKeywordPath[i] = false;
-                keywords[i] = "";
-                keywordsLowerCase[i] = "";
-                continue;
+    private void databaseMaintenanceThread() {
+        ThreadPoolUtil.getInstance().executeTask(() -> {
+            EventManagement eventManagement = EventManagement.getInstance();
+            while (eventManagement.notMainExit()) {
+                for (FlushWorker flushWorker : flushWorkers.values()) {
+                    if (status.get() != Constants.Enums.DatabaseStatus.NORMAL) {
+                        break;
+                    }
+                    flushWorker.maintain(searchThreadCount.get() == 0);
+                }
+                checkDatabaseIntegrity();
+                try {
+                    TimeUnit.SECONDS.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在后台读取所有磁盘的分区统计信息，读取完成前记录数未知的分区都会被扫描
+     * 之后检查每个磁盘数据库的分区方式，与配置不一致时迁移，检查完成前所有磁盘都按照正在迁移处理
+     */
+    private void initPartitions() {
+        var advancedConfigs = AllConfigs.getInstance().getConfigEntity().getAdvancedConfigEntity();
+        TablePartitioner.INSTANCE.configure(advancedConfigs.getTablePartitionScheme(), advancedConfigs.getTablePartitionNum());
+        String[] disks = RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks());
+        for (String eachDisk : disks) {
+            TablePartitioner.INSTANCE.markMigrating(String.valueOf(eachDisk.charAt(0)));
+        }
+        ThreadPoolUtil.getInstance().executeTask(() -> {
+            for (String eachDisk : disks) {
+                getFlushWorker(String.valueOf(eachDisk.charAt(0))).loadPartitionStats(false);
+            }
+            for (String eachDisk : disks) {
+                migrateListSchema(String.valueOf(eachDisk.charAt(0)));
+                migrateTablePartitions(String.valueOf(eachDisk.charAt(0)));
+            }
+        }, ThreadPoolUtil.Bulkhead.MAINTENANCE);
+    }
+
+    /**
+     * 将旧版本表结构的表逐个迁移到当前的表结构，迁移前表仍然可以正常搜索和写入
+     * 每个表迁移时持有该数据库的写入锁，数据库更新期间暂停，程序退出时下次启动继续迁移剩下的表
+     *
+     * @param disk 盘符
+     */
+    private void migrateListSchema(String disk) {
+        final EventManagement eventManagement = EventManagement.getInstance();
+        try {
+            var tables = SQLiteUtil.getOutdatedListTables(disk);
+            if (tables.isEmpty()) {
+                return;
+            }
+            log.info("正在迁移数据库 " + disk + " 的表结构，需要迁移的表：" + tables.size());
+            final long startTime = System.currentTimeMillis();
+            final var flushWorker = getFlushWorker(disk);
+            for (String tableName : tables) {
+                while (status.get() != Constants.Enums.DatabaseStatus.NORMAL) {
+                    if (!eventManagement.notMainExit()) {
+                        return;
+                    }
+                    TimeUnit.MILLISECONDS.sleep(100);
+                }
+                if (!eventManagement.notMainExit()) {
+                    return;
+                }
+                flushWorker.flushLock.lock();
+                try {
+                    SQLiteUtil.migrateListTable(disk, tableName);
+                } finally {
+                    flushWorker.flushLock.unlock();
+                }
+            }
+            SQLiteUtil.getOutdatedListTables(disk);
+            log.info("数据库 " + disk + " 表结构迁移完成，耗时 " + (System.currentTimeMillis() - startTime) + "ms");
+        } catch (SQLException | InterruptedException e) {
+            log.error("error: {}", e.getMessage(), e);
+        } catch (RuntimeException e) {
+            if (IsDebug.isDebug()) {
+                log.warn("数据库" + disk + "表结构迁移失败 " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 将数据库中的记录迁移到当前配置的分区方式，调用前必须先通过markMigrating标记该磁盘
+     * 迁移期间所有表仍然被搜索，文件变化正常写入，删除时会检查其他表
+     * 数据库更新期间暂停，有搜索时降低速度，数据库被替换后重新检查所有表
+     * 程序退出或失败时partition_layout不变，下次启动时重新检查
+     *
+     * @param disk 盘符
+     */
+    private void migrateTablePartitions(String disk) {
+        if (!partitionMigrationRunners.add(disk)) {
+            // 正在迁移，数据库被替换时会重新检查所有表
+            return;
+        }
+        final var partitioner = TablePartitioner.INSTANCE;
+        final var flushWorker = getFlushWorker(disk);
+        final EventManagement eventManagement = EventManagement.getInstance();
+        try {
+            String layout = flushWorker.readPartitionLayout();
+            if (layout == null) {
+                return;
+            }
+            if (layout.equals(partitioner.getLayout())) {
+                partitioner.finishMigration(disk);
+                return;
+            }
+            log.info("开始迁移数据库" + disk + "的分区 " + layout + " -> " + partitioner.getLayout());
+            final long startTime = System.currentTimeMillis();
+            invalidateAllCache();
+            int layoutEpoch;
+            do {
+                layoutEpoch = partitioner.getLayoutEpoch(disk);
+                for (int i = 0; i <= Constants.MAX_TABLE_NUM; i++) {
+                    String tableName = "list" + i;
+                    Object[] cursor = null;
+                    boolean isTableDone = false;
+                    while (!isTableDone) {
+                        if (!eventManagement.notMainExit()) {
+                            return;
+                        }
+                        if (status.get() != Constants.Enums.DatabaseStatus.NORMAL) {
+                            TimeUnit.MILLISECONDS.sleep(100);
+                            continue;
+                        }
+                        cursor = flushWorker.migratePartitionBatch(tableName, cursor);
+                        isTableDone = cursor == null;
+                        if (searchThreadCount.get() > 0) {
+                            TimeUnit.MILLISECONDS.sleep(10);
+                        }
+                    }
+                }
+            } while (layoutEpoch != partitioner.getLayoutEpoch(disk));
+            flushWorker.writePartitionLayout(partitioner.getLayout());
+            partitioner.finishMigration(disk);
+            invalidateAllCache();
+            isDatabaseUpdated.set(true);
+            log.info("数据库" + disk + "分区迁移完成，耗时：" + (System.currentTimeMillis() - startTime) + "ms");
+        } catch (SQLException | InterruptedException e) {
+            log.error("error: {}", e.getMessage(), e);
+        } catch (RuntimeException e) {
+            if (IsDebug.isDebug()) {
+                log.warn("数据库" + disk + "分区迁移失败 " + e.getMessage());
+            }
+        } finally {
+            partitionMigrationRunners.remove(disk);
+        }
+    }
+
+    /**
+     * 获取每个数据库的分区大小，用于检查数据是否集中在少数表中
+     *
+     * @return 每个表的记录数以及最大的表与平均值之比
+     */
+    public List<PartitionStatus> getPartitionStatus() {
+        var partitioner = TablePartitioner.INSTANCE;
+        ArrayList<PartitionStatus> ret = new ArrayList<>();
+        for (String eachDisk : RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks())) {
+            String disk = String.valueOf(eachDisk.charAt(0));
+            long[] tableRecordNums = PartitionStats.INSTANCE.getTableRecordNums(disk);
+            if (tableRecordNums == null) {
+                continue;
+            }
+            long maxRecordNum = 0;
+            long totalRecordNum = 0;
+            for (long each : tableRecordNums) {
+                maxRecordNum = Math.max(maxRecordNum, each);
+                totalRecordNum += each;
+            }
+            final double avgRecordNum = (double) totalRecordNum / partitioner.getPartitionNum();
+            ret.add(new PartitionStatus(disk,
+                    partitioner.getLayout(),
+                    partitioner.isMigrating(disk),
+                    tableRecordNums,
+                    maxRecordNum,
+                    avgRecordNum,
+                    avgRecordNum == 0 ? 0 : maxRecordNum / avgRecordNum));
+        }
+        return ret;
+    }
+
+    private void checkTimeAndSendExecuteSqlSignalThread() {
+        ThreadPoolUtil.getInstance().executeTask(() -> {
+            // 时间检测线程
+            AllConfigs allConfigs = AllConfigs.getInstance();
+            EventManagement eventManagement = EventManagement.getInstance();
+            long checkTime = System.currentTimeMillis();
+            while (eventManagement.notMainExit()) {
+                final long updateTimeLimit = allConfigs.getConfigEntity().getUpdateTimeLimit() * 1000L;
+                // sql过多时由每个数据库的写入线程自己执行，这里只负责定时执行
+                if (System.currentTimeMillis() - checkTime >= updateTimeLimit) {
+                    checkTime = System.currentTimeMillis();
+                    executeAllCommands();
+                }
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 根据输入生成SearchInfo
+     *
+     * @param searchTextSupplier 全字匹配关键字
+     * @param searchCaseSupplier 搜索过滤类型
+     * @param keywordsSupplier   搜索关键字
+     * @return SearchInfo
+     */
+    private static SearchInfo prepareSearchKeywords(Supplier<String> searchTextSupplier,
+                                                    Supplier<String[]> searchCaseSupplier,
+                                                    Supplier<String[]> keywordsSupplier) {
+        var searchText = searchTextSupplier.get();
+        var searchCase = searchCaseSupplier.get();
+        var isIgnoreCase = searchCase == null ||
+                Arrays.stream(searchCase).noneMatch(s -> s.equals(PathMatchUtil.SearchCase.CASE));
+        String[] _keywords = keywordsSupplier.get();
+        var keywords = new String[_keywords.length];
+        var keywordsLowerCase = new String[_keywords.length];
+        var isKeywordPath = new boolean[_keywords.length];
+        // 对keywords进行处理
+        for (int i = 0; i < _keywords.length; ++i) {
+            String eachKeyword = _keywords[i];
+            // 当keywords为空，初始化为默认值
+            if (eachKeyword == null || eachKeyword.isEmpty()) {
+                isKeywordPath[i] = false;
+                keywords[i] = "";
+                keywordsLowerCase[i] = "";
+                continue;
             }
             final boolean isPath = eachKeyword.startsWith("/") || eachKeyword.startsWith(File.separator);
             if (isPath) {
@@ -1681,6 +3022,19 @@ public class DatabaseService {
     @EventRegister(registerClass = CheckDatabaseEmptyEvent.class)
     private static void checkDatabaseEmpty(Event event) {
         boolean databaseDamaged = SQLiteUtil.isDatabaseDamaged();
+        if (databaseDamaged && FileUtil.isFileExist(Constants.INDEX_SNAPSHOT_FILE)) {
+            // 从索引快照恢复，使搜索立即可用
+            // 快照中没有保存USN位置，无法补上快照之后的文件变化，恢复后仍然在后台重建索引，失败时直接重建索引
+            databaseDamaged = false;
+            ThreadPoolUtil.getInstance().executeTask(() -> {
+                try {
+                    getInstance().importIndexSnapshot(Path.of(Constants.INDEX_SNAPSHOT_FILE));
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    log.error("error: {}", e.getMessage(), e);
+                }
+                EventManagement.getInstance().putEvent(new UpdateDatabaseEvent(false));
+            }, ThreadPoolUtil.Bulkhead.MAINTENANCE);
+        }
         event.setReturnValue(databaseDamaged);
     }
 
@@ -1723,25 +3077,9 @@ public class DatabaseService {
                 throw new RuntimeException("正则表达式输入错误");
             }
         }
-        var startWaiting = System.currentTimeMillis();
-        final long timeout = 3000;
-        var databaseService = getInstance();
-        while (databaseService.getStatus() != Constants.Enums.DatabaseStatus.NORMAL) {
-            if (System.currentTimeMillis() - startWaiting > timeout) {
-                log.warn("prepareSearch，等待数据库状态超时");
-                break;
-            }
-            Thread.onSpinWait();
-        }
+        // 重建索引和整理数据库期间搜索使用当前版本，不需要等待数据库状态
         var searchInfo = prepareSearchKeywords(prepareSearchEvent.searchText, prepareSearchEvent.searchCase, prepareSearchEvent.keywords);
-        var searchTask = prepareTasksMap.get(searchInfo);
-        if (searchTask == null) {
-            searchTask = prepareSearch(searchInfo, prepareSearchEvent.maxResultNum);
-            prepareTasksMap.put(searchInfo, searchTask);
-        } else {
-            searchTask.updateTaskUsedTimeMills();
-        }
-        event.setReturnValue(searchTask);
+        event.setReturnValue(getOrPrepareSearchTask(searchInfo, prepareSearchEvent.maxResultNum));
     }
 
     @EventRegister(registerClass = StartSearchEvent.class)
@@ -1761,41 +3099,73 @@ public class DatabaseService {
             }
         }
         DatabaseService databaseService = getInstance();
-        final long startWaiting = System.currentTimeMillis();
-        final long timeout = 3000;
-        while (databaseService.getStatus() != Constants.Enums.DatabaseStatus.NORMAL) {
-            if (System.currentTimeMillis() - startWaiting > timeout) {
-                log.info("等待数据库状态为NORMAL超时");
-                return;
-            }
-            Thread.onSpinWait();
-        }
         // 检查prepareTaskMap中是否有过期任务
         for (var eachTask : prepareTasksMap.entrySet()) {
-            if (System.currentTimeMillis() - eachTask.getValue().taskUsedTimeMills > SearchTask.maxTaskValidThreshold) {
-                prepareTasksMap.remove(eachTask.getKey());
+            var task = eachTask.getValue();
+            if (System.currentTimeMillis() - task.taskUsedTimeMills > SearchTask.maxTaskValidThreshold && !task.isSearchInFlight()) {
+                prepareTasksMap.remove(eachTask.getKey(), task);
             }
         }
         var searchInfo = prepareSearchKeywords(startSearchEvent.searchText, startSearchEvent.searchCase, startSearchEvent.keywords);
-        var searchTask = prepareTasksMap.get(searchInfo);
-        if (searchTask == null) {
-            searchTask = prepareSearch(searchInfo, startSearchEvent.maxResultNum);
-            prepareTasksMap.put(searchInfo, searchTask);
-        }
-        if (!searchTask.searchDoneFlag) {
-            databaseService.startSearchInThreadPool(searchTask);
+        var searchTask = getOrPrepareSearchTask(searchInfo, startSearchEvent.maxResultNum);
+        // 相同的搜索已经在进行中时直接共享结果，不再重复开始搜索
+        if (!searchTask.searchDoneFlag && searchTask.isSearchStarted.compareAndSet(false, true)) {
+            try {
+                databaseService.startSearchInThreadPool(searchTask);
+            } catch (RejectedExecutionException e) {
+                searchTask.isSearchStarted.set(false);
+                throw e;
+            }
         }
         event.setReturnValue(searchTask);
     }
 
+    /**
+     * 获取相同搜索的任务，若没有可以共享的任务则创建新任务并进行预搜索
+     * 同一时间相同的搜索只会有一个线程进行预搜索，其他线程等待预搜索完成后共享该任务
+     *
+     * @param searchInfo   searchInfo
+     * @param maxResultNum 最大结果数量
+     * @return 搜索任务
+     */
+    private static SearchTask getOrPrepareSearchTask(SearchInfo searchInfo, Integer maxResultNum) {
+        while (true) {
+            var existTask = prepareTasksMap.get(searchInfo);
+            if (existTask != null && existTask.isShareable(maxResultNum)) {
+                existTask.updateTaskUsedTimeMills();
+                try {
+                    if (!existTask.prepareLatch.await(10, TimeUnit.SECONDS)) {
+                        log.warn("等待相同搜索的预搜索完成超时");
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return existTask;
+            }
+            var newTask = new SearchTask(searchInfo, maxResultNum);
+            boolean isAdded = existTask == null ?
+                    prepareTasksMap.putIfAbsent(searchInfo, newTask) == null :
+                    prepareTasksMap.replace(searchInfo, existTask, newTask);
+            if (isAdded) {
+                try {
+                    prepareSearch(newTask);
+                } finally {
+                    newTask.prepareLatch.countDown();
+                }
+                return newTask;
+            }
+        }
+    }
+
     /**
      * 预搜索任务
      *
-     * @param searchInfo searchInfo
+     * @param searchTask 搜索任务
      */
-    private static SearchTask prepareSearch(SearchInfo searchInfo, Integer maxResultNum) {
+    private static void prepareSearch(SearchTask searchTask) {
         var databaseService = getInstance();
-        var searchTask = new SearchTask(searchInfo, maxResultNum);
+        var searchInfo = searchTask.searchInfo;
+        var maxResultNum = searchTask.maxResultNum;
 
         var threadPoolUtil = ThreadPoolUtil.getInstance();
         databaseService.searchCache(searchTask);
@@ -1803,7 +3173,7 @@ public class DatabaseService {
         threadPoolUtil.executeTask(() -> {
             databaseService.searchFolder(AllConfigs.getInstance().getConfigEntity().getPriorityFolder(), searchTask);
             countDownLatch.countDown();
-        });
+        }, ThreadPoolUtil.Bulkhead.SEARCH_WORKER);
         threadPoolUtil.executeTask(() -> {
             // start menu
             String startMenu = GetWindowsKnownFolder.INSTANCE.getKnownFolder("{A4115719-D62E-491D-AA7C-E74B8BE3B067}");
@@ -1811,7 +3181,7 @@ public class DatabaseService {
             startMenu = GetWindowsKnownFolder.INSTANCE.getKnownFolder("{625B53C3-AB48-4EC1-BA1F-A1EF4146FC19}");
             databaseService.searchFolder(startMenu, searchTask);
             countDownLatch.countDown();
-        });
+        }, ThreadPoolUtil.Bulkhead.SEARCH_WORKER);
         threadPoolUtil.executeTask(() -> {
             // desktop
             String desktop = GetWindowsKnownFolder.INSTANCE.getKnownFolder("{B4BFCC3A-DB2C-424C-B029-7FE99A87C641}");
@@ -1819,48 +3189,52 @@ public class DatabaseService {
             desktop = GetWindowsKnownFolder.INSTANCE.getKnownFolder("{C4AA340D-F20F-4863-AFEF-F87EF2E6BA25}");
             databaseService.searchFolder(desktop, searchTask);
             countDownLatch.countDown();
-        });
+        }, ThreadPoolUtil.Bulkhead.SEARCH_WORKER);
         databaseService.prepareSearchTasks(searchTask);
         boolean isPatternMatch = searchTask.searchInfo.searchCase != null && List.of(searchTask.searchInfo.searchCase).contains(PathMatchUtil.SearchCase.P);
         if (isEnableGPUAccelerate && !searchTask.shouldStopSearch() && !isPatternMatch) {
-            threadPoolUtil.executeTask(() -> {
-                // 退出上一次搜索
-                final var timeout = 3000;
-                GPUAccelerator.INSTANCE.stopCollectResults();
-                final long start = System.currentTimeMillis();
-                while (!SearchTask.isGpuThreadRunning.compareAndSet(false, true)) {
-                    if (System.currentTimeMillis() - start > timeout) {
-                        log.warn("等待上一次gpu加速完成超时");
-                        return;
-                    }
-                    if (searchTask.shouldStopSearch()) {
-                        return;
+            try {
+                threadPoolUtil.executeTask(() -> {
+                    // 退出上一次搜索
+                    final var timeout = 3000;
+                    GPUAccelerator.INSTANCE.stopCollectResults();
+                    final long start = System.currentTimeMillis();
+                    while (!SearchTask.isGpuThreadRunning.compareAndSet(false, true)) {
+                        if (System.currentTimeMillis() - start > timeout) {
+                            log.warn("等待上一次gpu加速完成超时");
+                            return;
+                        }
+                        if (searchTask.shouldStopSearch()) {
+                            return;
+                        }
+                        Thread.onSpinWait();
                     }
-                    Thread.onSpinWait();
-                }
-                // 开始进行搜索
-                GPUAccelerator.INSTANCE.resetAllResultStatus();
-                String[] matchedResults = GPUAccelerator.INSTANCE.match(
-                        searchInfo.searchCase,
-                        searchInfo.isIgnoreCase,
-                        searchInfo.searchText,
-                        searchInfo.keywords,
-                        searchInfo.keywordsLowerCase,
-                        searchInfo.isKeywordPath,
-                        maxResultNum,
-                        Math.max(2, AllConfigs.getInstance().getConfigEntity().getSearchThreadNumber() / 4));
-                if (matchedResults != null) {
-                    for (String path : matchedResults) {
-                        if (FileUtil.isFileNotExist(path)) {
-                            databaseService.removeFileFromDatabase(path);
-                        } else if (searchTask.tempResultsSet.add(path)) {
-                            searchTask.resultCounter.getAndIncrement();
-                            searchTask.tempResults.add(path);
+                    // 开始进行搜索
+                    GPUAccelerator.INSTANCE.resetAllResultStatus();
+                    String[] matchedResults = GPUAccelerator.INSTANCE.match(
+                            searchInfo.searchCase,
+                            searchInfo.isIgnoreCase,
+                            searchInfo.searchText,
+                            searchInfo.keywords,
+                            searchInfo.keywordsLowerCase,
+                            searchInfo.isKeywordPath,
+                            maxResultNum,
+                            SearchParallelismController.INSTANCE.getGpuCollectThreadNumber(AllConfigs.getInstance().getConfigEntity().getSearchThreadNumber()));
+                    if (matchedResults != null) {
+                        for (String path : matchedResults) {
+                            if (FileUtil.isFileNotExist(path)) {
+                                databaseService.removeFileFromDatabase(path);
+                            } else if (searchTask.tempResultsSet.add(path)) {
+                                searchTask.resultCounter.getAndIncrement();
+                                searchTask.addResult(path, databaseService.getPriorityBySuffix(databaseService.getSuffixByPath(path)));
+                            }
                         }
                     }
-                }
-                SearchTask.isGpuThreadRunning.set(false);
-            }, false);
+                    SearchTask.isGpuThreadRunning.set(false);
+                }, ThreadPoolUtil.Bulkhead.GPU);
+            } catch (RejectedExecutionException e) {
+                log.warn("GPU线程池已满，使用CPU搜索 {}", e.getMessage());
+            }
         }
         try {
             if (!countDownLatch.await(5, TimeUnit.SECONDS)) {
@@ -1869,7 +3243,6 @@ public class DatabaseService {
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        return searchTask;
     }
 
     @EventRegister(registerClass = StopSearchEvent.class)
@@ -1892,8 +3265,15 @@ public class DatabaseService {
                 }
             }
         }
+        IndexSegmentStore.INSTANCE.init();
+        databaseService.indexSegmentCompactThread();
+        databaseService.initPartitions();
+        databaseService.initChangeJournal();
+        databaseService.writeChangeJournalThread();
         databaseService.syncFileChangesThread();
         databaseService.checkTimeAndSendExecuteSqlSignalThread();
+        databaseService.databaseMaintenanceThread();
+        databaseService.indexSnapshotThread();
         databaseService.executeAllCommands();
         databaseService.saveTableCacheThread();
         databaseService.addRestartMonitorThread();
@@ -1912,142 +3292,980 @@ public class DatabaseService {
         if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
             return;
         }
-        if (databaseService.databaseCacheMap.size() < AllConfigs.getInstance().getConfigEntity().getCacheNumLimit()) {
-            databaseService.addFileToCache(path);
-        } else {
-            try (Statement statement = SQLiteUtil.getStatement("cache");
-                 ResultSet resultSet = statement.executeQuery("select cache.PATH, COUNT from cache left join statistics s on cache.PATH = s.PATH order by COUNT limit 1;")) {
-                if (resultSet.next()) {
-                    String eachLine = resultSet.getString("PATH");
-                    databaseService.removeFileFromCache(eachLine);
+        if (databaseService.databaseCacheMap.size() < AllConfigs.getInstance().getConfigEntity().getCacheNumLimit()) {
+            databaseService.addFileToCache(path);
+        } else {
+            try (Statement statement = SQLiteUtil.getStatement("cache");
+                 ResultSet resultSet = statement.executeQuery("select cache.PATH, COUNT from cache left join statistics s on cache.PATH = s.PATH order by COUNT limit 1;")) {
+                if (resultSet.next()) {
+                    String eachLine = resultSet.getString("PATH");
+                    databaseService.removeFileFromCache(eachLine);
+                }
+            } catch (SQLException e) {
+                log.error(e.getMessage(), e);
+            }
+            databaseService.addFileToCache(path);
+        }
+    }
+
+    @EventRegister(registerClass = DeleteFromCacheEvent.class)
+    private static void deleteFromCacheEvent(Event event) {
+        DatabaseService databaseService = getInstance();
+        String path = ((DeleteFromCacheEvent) event).path;
+        databaseService.databaseCacheMap.remove(path);
+        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
+            return;
+        }
+        databaseService.removeFileFromCache(path);
+    }
+
+    @EventRegister(registerClass = UpdateDatabaseEvent.class)
+    private static void updateDatabaseEvent(Event event) {
+        DatabaseService databaseService = getInstance();
+        UpdateDatabaseEvent updateDatabaseEvent = (UpdateDatabaseEvent) event;
+        ArrayList<String> overflowedDisks = new ArrayList<>();
+        try {
+            if (!databaseService.updateLists(AllConfigs.getInstance().getConfigEntity().getIgnorePath(), updateDatabaseEvent.isDropPrevious, overflowedDisks)) {
+                throw new RuntimeException("search failed");
+            }
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        if (!overflowedDisks.isEmpty()) {
+            // 其他磁盘已经切换，立即重试同样会因为文件变化过多而失败
+            event.setMaxRetryTimes(0);
+            throw new RuntimeException("重建期间文件变化过多，磁盘" + overflowedDisks + "保留了重建前的索引");
+        }
+    }
+
+    @EventRegister(registerClass = OptimizeDatabaseEvent.class)
+    private static void optimizeDatabaseEvent(Event event) {
+        DatabaseService databaseService = getInstance();
+        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
+            return;
+        }
+        if (!databaseService.casSetStatus(Constants.Enums.DatabaseStatus.NORMAL, Constants.Enums.DatabaseStatus.VACUUM)) {
+            throw new RuntimeException("databaseService status设置VACUUM状态失败");
+        }
+        //整理数据库，由每个数据库的写入线程执行，不会和写入同时进行
+        String[] splitDisks = RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks());
+        for (String eachDisk : splitDisks) {
+            try {
+                databaseService.getFlushWorker(String.valueOf(eachDisk.charAt(0))).optimize();
+            } catch (Exception ex) {
+                log.error("error: {}", ex.getMessage(), ex);
+            } finally {
+                if (IsDebug.isDebug()) {
+                    log.info("结束优化");
+                }
+            }
+        }
+        if (!databaseService.casSetStatus(Constants.Enums.DatabaseStatus.VACUUM, Constants.Enums.DatabaseStatus.NORMAL)) {
+            throw new RuntimeException("databaseService status从VACUUM修改为NORMAL失败");
+        }
+    }
+
+    @EventRegister(registerClass = ExportIndexSnapshotEvent.class)
+    private static void exportIndexSnapshotEvent(Event event) {
+        String path = ((ExportIndexSnapshotEvent) event).path;
+        try {
+            getInstance().exportIndexSnapshot(Path.of(path == null || path.isEmpty() ? Constants.INDEX_SNAPSHOT_FILE : path));
+        } catch (IOException | SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @EventRegister(registerClass = ImportIndexSnapshotEvent.class)
+    private static void importIndexSnapshotEvent(Event event) {
+        String path = ((ImportIndexSnapshotEvent) event).path;
+        try {
+            getInstance().importIndexSnapshot(Path.of(path == null || path.isEmpty() ? Constants.INDEX_SNAPSHOT_FILE : path));
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @EventRegister(registerClass = AddToSuffixPriorityMapEvent.class)
+    private static void addToSuffixPriorityMapEvent(Event event) {
+        DatabaseService databaseService = getInstance();
+        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
+            return;
+        }
+        AddToSuffixPriorityMapEvent event1 = (AddToSuffixPriorityMapEvent) event;
+        String suffix = event1.suffix.toLowerCase();
+        int priority = event1.priority;
+        databaseService.addToCommandQueue(
+                new SQLWithTaskId(String.format("INSERT INTO priority VALUES(\"%s\", %d);", suffix, priority), SqlTaskIds.UPDATE_SUFFIX, "cache"));
+    }
+
+    @EventRegister(registerClass = ClearSuffixPriorityMapEvent.class)
+    private static void clearSuffixPriorityMapEvent(Event event) {
+        DatabaseService databaseService = getInstance();
+        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
+            return;
+        }
+        databaseService.addToCommandQueue(new SQLWithTaskId("DELETE FROM priority;", SqlTaskIds.UPDATE_SUFFIX, "cache"));
+        databaseService.addToCommandQueue(
+                new SQLWithTaskId("INSERT INTO priority VALUES(\"defaultPriority\", 0);", SqlTaskIds.UPDATE_SUFFIX, "cache"));
+        databaseService.addToCommandQueue(
+                new SQLWithTaskId("INSERT INTO priority VALUES(\"dirPriority\", -1);", SqlTaskIds.UPDATE_SUFFIX, "cache"));
+    }
+
+    @EventRegister(registerClass = DeleteFromSuffixPriorityMapEvent.class)
+    private static void deleteFromSuffixPriorityMapEvent(Event event) {
+        DeleteFromSuffixPriorityMapEvent delete = (DeleteFromSuffixPriorityMapEvent) event;
+        DatabaseService databaseService = getInstance();
+        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
+            return;
+        }
+        if ("dirPriority".equals(delete.suffix) || "defaultPriority".equals(delete.suffix)) {
+            return;
+        }
+        databaseService.addToCommandQueue(new SQLWithTaskId(String.format("DELETE FROM priority where SUFFIX=\"%s\"", delete.suffix), SqlTaskIds.UPDATE_SUFFIX, "cache"));
+    }
+
+    @EventRegister(registerClass = UpdateSuffixPriorityEvent.class)
+    private static void updateSuffixPriorityEvent(Event event) {
+        DatabaseService databaseService = DatabaseService.getInstance();
+        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
+            return;
+        }
+        EventManagement eventManagement = EventManagement.getInstance();
+        UpdateSuffixPriorityEvent update = (UpdateSuffixPriorityEvent) event;
+        String origin = update.originSuffix;
+        String newSuffix = update.newSuffix;
+        int newNum = update.newPriority;
+        eventManagement.putEvent(new DeleteFromSuffixPriorityMapEvent(origin));
+        eventManagement.putEvent(new AddToSuffixPriorityMapEvent(newSuffix, newNum));
+    }
+
+    @EventListener(listenClass = CloseEvent.class)
+    private static void closeEvent(Event event) {
+        stopMonitorDisks(AllConfigs.getInstance().
+                getConfigEntity().
+                getAdvancedConfigEntity().
+                isDeleteUsnOnExit());
+        var databaseService = getInstance();
+        databaseService.executeAllCommands();
+        if (databaseService.changeJournal != null) {
+            databaseService.changeJournal.close();
+        }
+        databaseService.stopAllSearch();
+        SQLiteUtil.closeAll();
+        if (isEnableGPUAccelerate) {
+            GPUAccelerator.INSTANCE.stopCollectResults();
+            GPUAccelerator.INSTANCE.release();
+        }
+    }
+
+    /**
+     * 数据库写入状态
+     *
+     * @param diskStr                数据库名
+     * @param pendingSqlNum          待执行的sql数量
+     * @param transactionSize        每个事务最多执行的sql数量
+     * @param transactionCount       已提交的事务数量
+     * @param committedSqlCount      已执行的sql数量
+     * @param avgCommitLatencyMills  事务耗时的移动平均值
+     * @param maxCommitLatencyMills  最长事务耗时
+     * @param lastCommitLatencyMills 最近一次事务耗时
+     */
+    public record FlushStats(String diskStr,
+                             int pendingSqlNum,
+                             int transactionSize,
+                             long transactionCount,
+                             long committedSqlCount,
+                             double avgCommitLatencyMills,
+                             long maxCommitLatencyMills,
+                             long lastCommitLatencyMills) {
+    }
+
+    /**
+     * 重建索引或导入快照期间的文件变化记录
+     * <p>
+     * 重建期间文件变化照常写入当前数据库，同时按照磁盘记录在内存中，影子数据库切换为当前版本之前重放到影子数据库中，
+     * 使新版本包含重建期间的所有变化。记录总数超过MAX_CHANGE_NUM时，变化最多的磁盘的记录被丢弃并标记为溢出，
+     * 溢出的磁盘不切换到新版本
+     */
+    private static class RebuildChangeLog {
+        private static final int MAX_CHANGE_NUM = 1_000_000;
+        // key为磁盘，value为按照发生顺序保存的文件变化
+        private final HashMap<String, ArrayList<SQLWithTaskId>> changes = new HashMap<>();
+        private final Set<String> overflowedDisks = new HashSet<>();
+        private volatile boolean isRecording = false;
+        private int changeNum = 0;
+
+        private synchronized void start() {
+            changes.clear();
+            overflowedDisks.clear();
+            changeNum = 0;
+            isRecording = true;
+        }
+
+        private synchronized void stop() {
+            isRecording = false;
+            changes.clear();
+            overflowedDisks.clear();
+            changeNum = 0;
+        }
+
+        private void append(SQLWithTaskId mutation) {
+            if (!isRecording) {
+                return;
+            }
+            synchronized (this) {
+                if (!isRecording || overflowedDisks.contains(mutation.diskStr)) {
+                    return;
+                }
+                changes.computeIfAbsent(mutation.diskStr, k -> new ArrayList<>()).add(mutation);
+                if (++changeNum > MAX_CHANGE_NUM) {
+                    dropLargestDisk();
+                }
+            }
+        }
+
+        private void dropLargestDisk() {
+            String largestDisk = null;
+            int largestSize = -1;
+            for (var entry : changes.entrySet()) {
+                if (entry.getValue().size() > largestSize) {
+                    largestDisk = entry.getKey();
+                    largestSize = entry.getValue().size();
+                }
+            }
+            if (largestDisk == null) {
+                return;
+            }
+            changes.remove(largestDisk);
+            changeNum -= largestSize;
+            overflowedDisks.add(largestDisk);
+            log.warn("重建期间磁盘" + largestDisk + "的文件变化超过" + MAX_CHANGE_NUM + "条，停止记录");
+        }
+
+        /**
+         * 取出磁盘当前记录的所有变化，之后的变化继续记录
+         *
+         * @param diskStr 磁盘
+         * @return 按照发生顺序保存的文件变化
+         */
+        private synchronized ArrayList<SQLWithTaskId> drain(String diskStr) {
+            var diskChanges = changes.remove(diskStr);
+            if (diskChanges == null) {
+                return new ArrayList<>();
+            }
+            changeNum -= diskChanges.size();
+            return diskChanges;
+        }
+
+        private synchronized boolean isOverflowed(String diskStr) {
+            return overflowedDisks.contains(diskStr);
+        }
+    }
+
+    /**
+     * 将记录批量写入影子数据库，表名和ASCII按照当前的分区方式计算
+     * <p>
+     * 记录先缓存在内存中，每TRANSACTION_SIZE条按照主键(PRIORITY, ASCII, PATH)排序后在一个事务中写入，
+     * 写入在每个数据库自己的线程中执行，调用者可以同时准备下一批记录，不同数据库的写入互不等待
+     * 影子数据库没有二级索引，全部写入后执行一次ANALYZE
+     */
+    private static class ShadowDatabaseWriter implements AutoCloseable {
+        private static final int BATCH_SIZE = 10_000;
+        private static final int TRANSACTION_SIZE = 200_000;
+        private static final Comparator<ShadowRecord> PRIMARY_KEY_ORDER = Comparator.comparingInt(ShadowRecord::priority)
+                .thenComparingInt(ShadowRecord::ascii)
+                .thenComparing(ShadowRecord::path, ShadowDatabaseWriter::compareUtf8);
+        private final String diskStr;
+        private final Connection connection;
+        private final PreparedStatement[] insertStatements = new PreparedStatement[Constants.MAX_TABLE_NUM + 1];
+        @SuppressWarnings("unchecked")
+        private ArrayList<ShadowRecord>[] pendingRecords = new ArrayList[Constants.MAX_TABLE_NUM + 1];
+        private int pendingRecordNum = 0;
+        private long savedRecordNum = 0;
+        private long writeTimeMills = 0;
+        // 正在写入的上一批记录
+        private Future<Boolean> writeResult;
+
+        private record ShadowRecord(int priority, int ascii, String path) {
+        }
+
+        /**
+         * 按照UTF-8字节的顺序比较，与SQLite的BINARY排序一致
+         * <p>
+         * UTF-8字节的顺序就是码点顺序，String.compareTo按照UTF-16比较，代理对（U+10000以上）会排在U+E000~U+FFFF之前，
+         * 在第一个不同的字符处将代理对移到最后即可，不需要编码为byte[]
+         */
+        private static int compareUtf8(String s1, String s2) {
+            final int len = Math.min(s1.length(), s2.length());
+            for (int i = 0; i < len; i++) {
+                int c1 = s1.charAt(i);
+                int c2 = s2.charAt(i);
+                if (c1 != c2) {
+                    if (c1 >= Character.MIN_SURROGATE && c2 >= Character.MIN_SURROGATE) {
+                        c1 = c1 > Character.MAX_SURROGATE ? c1 - 0x800 : c1 + 0x2000;
+                        c2 = c2 > Character.MAX_SURROGATE ? c2 - 0x800 : c2 + 0x2000;
+                    }
+                    return c1 - c2;
+                }
+            }
+            return s1.length() - s2.length();
+        }
+
+        private ShadowDatabaseWriter(String diskStr, File dbFile) throws SQLException {
+            this.diskStr = diskStr;
+            this.connection = SQLiteUtil.createShadowDatabase(dbFile, TablePartitioner.INSTANCE.getLayout());
+        }
+
+        private void insert(String path, int priority) throws SQLException {
+            String fileName = FileUtil.getFileName(path);
+            final int tableIndex = TablePartitioner.INSTANCE.getTableIndex(fileName);
+            var records = pendingRecords[tableIndex];
+            if (records == null) {
+                records = new ArrayList<>();
+                pendingRecords[tableIndex] = records;
+            }
+            records.add(new ShadowRecord(priority, StringUtf8SumUtil.getStringSum(fileName), path));
+            if (++pendingRecordNum >= TRANSACTION_SIZE) {
+                submitPendingRecords();
+            }
+        }
+
+        /**
+         * 等待上一批记录写入完成后，将缓存的记录交给写入线程
+         */
+        @SuppressWarnings("unchecked")
+        private void submitPendingRecords() throws SQLException {
+            waitForWrite();
+            if (pendingRecordNum == 0) {
+                return;
+            }
+            var records = pendingRecords;
+            pendingRecords = new ArrayList[records.length];
+            pendingRecordNum = 0;
+            writeResult = ThreadPoolUtil.getInstance().executeTask(() -> writeRecords(records), ThreadPoolUtil.Bulkhead.MAINTENANCE);
+            if (writeResult == null) {
+                writeRecords(records);
+            }
+        }
+
+        private void waitForWrite() throws SQLException {
+            if (writeResult == null) {
+                return;
+            }
+            try {
+                writeResult.get();
+            } catch (InterruptedException e) {
+                throw new SQLException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SQLException sqlException) {
+                    throw sqlException;
+                }
+                throw new SQLException(e.getCause());
+            } finally {
+                writeResult = null;
+            }
+        }
+
+        @SuppressWarnings("SqlNoDataSourceInspection")
+        private boolean writeRecords(ArrayList<ShadowRecord>[] records) throws SQLException {
+            final long startTime = System.currentTimeMillis();
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("BEGIN;");
+                for (int tableIndex = 0; tableIndex < records.length; tableIndex++) {
+                    var tableRecords = records[tableIndex];
+                    if (tableRecords == null) {
+                        continue;
+                    }
+                    // 按照主键顺序插入，B树只在末尾追加
+                    tableRecords.sort(PRIMARY_KEY_ORDER);
+                    PreparedStatement pStmt = insertStatements[tableIndex];
+                    if (pStmt == null) {
+                        pStmt = connection.prepareStatement("INSERT OR IGNORE INTO list" + tableIndex + " VALUES(?, ?, ?);");
+                        insertStatements[tableIndex] = pStmt;
+                    }
+                    int batchNum = 0;
+                    for (ShadowRecord each : tableRecords) {
+                        pStmt.setInt(1, each.ascii);
+                        pStmt.setString(2, each.path);
+                        pStmt.setInt(3, each.priority);
+                        pStmt.addBatch();
+                        if (++batchNum >= BATCH_SIZE) {
+                            pStmt.executeBatch();
+                            batchNum = 0;
+                        }
+                    }
+                    if (batchNum > 0) {
+                        pStmt.executeBatch();
+                    }
+                    savedRecordNum += tableRecords.size();
+                }
+                stmt.execute("COMMIT;");
+            }
+            writeTimeMills += System.currentTimeMillis() - startTime;
+            return true;
+        }
+
+        /**
+         * 写入所有缓存的记录并统计索引信息
+         */
+        private void commit() throws SQLException {
+            submitPendingRecords();
+            waitForWrite();
+            final long startTime = System.currentTimeMillis();
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("PRAGMA analysis_limit=1000;");
+                stmt.execute("ANALYZE;");
+            }
+            log.info("影子数据库" + diskStr + "写入完成，记录数：" + savedRecordNum + "，写入耗时：" + writeTimeMills +
+                    "ms，" + savedRecordNum * 1000 / Math.max(1, writeTimeMills) + " rows/s，ANALYZE耗时：" +
+                    (System.currentTimeMillis() - startTime) + "ms");
+        }
+
+        @Override
+        public void close() {
+            try {
+                waitForWrite();
+            } catch (SQLException e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+            try {
+                for (PreparedStatement each : insertStatements) {
+                    if (each != null) {
+                        each.close();
+                    }
+                }
+                connection.close();
+            } catch (SQLException e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 每个数据库的分区大小
+     *
+     * @param tableRecordNums 每个表的记录数，下标为表的编号
+     * @param skew            最大的表的记录数与平均记录数之比，越接近1分布越均匀
+     */
+    public record PartitionStatus(String disk,
+                                  String layout,
+                                  boolean isMigrating,
+                                  long[] tableRecordNums,
+                                  long maxRecordNum,
+                                  double avgRecordNum,
+                                  double skew) {
+    }
+
+    /**
+     * 每个数据库一个写入线程，拥有独立的sql队列，不同数据库的写入互不等待
+     * 每个事务的大小根据提交耗时动态调整，耗时过长时减小，耗时很短时增大
+     */
+    private class FlushWorker {
+        private static final int MIN_TRANSACTION_SIZE = 500;
+        private static final int MAX_TRANSACTION_SIZE = 50_000;
+        private static final long TARGET_COMMIT_LATENCY_MILLS = 200;
+        // 每次维护最多执行的时间
+        private static final long MAINTAIN_STEP_MILLS = 50;
+        private static final int VACUUM_PAGES_PER_STEP = 256;
+        // 空闲页面少于该数量时不执行incremental_vacuum
+        private static final int MIN_VACUUM_FREE_PAGE_NUM = 1024;
+        private static final long WAL_PASSIVE_CHECKPOINT_SIZE = 16L * 1024 * 1024;
+        private static final long WAL_TRUNCATE_CHECKPOINT_SIZE = 64L * 1024 * 1024;
+        // 每秒写入的sql数量低于该值时才执行PASSIVE checkpoint
+        private static final double LOW_WRITE_RATE = 1000;
+        private static final int PARTITION_MIGRATE_BATCH_SIZE = 2000;
+        private final String diskStr;
+        // 按照添加顺序执行的sql
+        private final ConcurrentLinkedQueue<SQLWithTaskId> sqlCommandQueue = new ConcurrentLinkedQueue<>();
+        // sqlCommandQueue中所有的sql，用于O(1)检查sql是否重复
+        private final Set<String> pendingSqlSet = ConcurrentHashMap.newKeySet();
+        // 还未写入数据库的文件添加和删除，key为[表名,文件路径]，同一个文件只保留最后一次操作
+        private final ConcurrentHashMap<String, SQLWithTaskId> pendingListMutations = new ConcurrentHashMap<>();
+        private final ReentrantLock flushLock = new ReentrantLock();
+        private volatile int transactionSize = MAX_SQL_NUM;
+        private final LongAdder transactionCount = new LongAdder();
+        private final LongAdder committedSqlCount = new LongAdder();
+        private volatile double avgCommitLatencyMills = 0;
+        private volatile long maxCommitLatencyMills = 0;
+        private volatile long lastCommitLatencyMills = 0;
+        // 后台维护使用，只由数据库维护线程访问
+        private long lastMaintainTimeMills = System.currentTimeMillis();
+        private long lastMaintainCommittedCount = 0;
+        private boolean isMaintainFinished = false;
+
+        private FlushWorker(String diskStr) {
+            this.diskStr = diskStr;
+        }
+
+        private int getPendingSqlNum() {
+            return sqlCommandQueue.size() + pendingListMutations.size();
+        }
+
+        private boolean hasPendingSql() {
+            return !sqlCommandQueue.isEmpty() || !pendingListMutations.isEmpty();
+        }
+
+        /**
+         * 待执行的sql超过MAX_SQL_NUM时由添加者执行，使文件变化的读取速度降低，而不是丢弃
+         * 只会等待该数据库的写入，不会等待其他数据库
+         */
+        private void waitForPendingSqlBelowLimit() {
+            if (getPendingSqlNum() >= MAX_SQL_NUM) {
+                if (IsDebug.isDebug()) {
+                    log.warn("数据库" + diskStr + "待执行的sql已达到最大上限，等待写入数据库");
+                }
+                flush();
+            }
+        }
+
+        /**
+         * 待执行的sql超过FLUSH_THRESHOLD时立即执行，不等待定时执行
+         */
+        private void startFlushThread() {
+            ThreadPoolUtil.getInstance().executeTask(() -> {
+                EventManagement eventManagement = EventManagement.getInstance();
+                while (eventManagement.notMainExit()) {
+                    if (getStatus() == Constants.Enums.DatabaseStatus.NORMAL && getPendingSqlNum() > FLUSH_THRESHOLD) {
+                        flush();
+                    }
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(100);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * 执行该数据库所有待执行的sql
+         * 执行前获取快照，执行完成后只移除快照中的sql，执行期间添加的sql将在下一次执行
+         *
+         * @return false如果有sql执行失败
+         */
+        private boolean flush() {
+            flushLock.lock();
+            try {
+                if (!hasPendingSql()) {
+                    return true;
                 }
-            } catch (SQLException e) {
-                log.error(e.getMessage(), e);
+                ArrayList<SQLWithTaskId> commands = new ArrayList<>(sqlCommandQueue);
+                final int queuedNum = commands.size();
+                HashMap<String, SQLWithTaskId> listMutationsSnapshot = new HashMap<>(pendingListMutations);
+                commands.addAll(listMutationsSnapshot.values());
+                boolean isSuccess = true;
+                ArrayList<SQLWithTaskId> failedListMutations = new ArrayList<>();
+                for (int start = 0; start < commands.size(); ) {
+                    final int end = Math.min(commands.size(), start + transactionSize);
+                    final long startTime = System.currentTimeMillis();
+                    isSuccess &= executeCommandsInTransaction(diskStr, commands.subList(start, end), failedListMutations);
+                    recordCommit(end - start, System.currentTimeMillis() - startTime);
+                    start = end;
+                }
+                // 只有flush会从队列中移除，快照一定是队列的开头部分
+                for (int i = 0; i < queuedNum; i++) {
+                    var each = sqlCommandQueue.poll();
+                    if (each != null) {
+                        pendingSqlSet.remove(each.sql);
+                    }
+                }
+                listMutationsSnapshot.forEach(pendingListMutations::remove);
+                // 没有写入的文件变化重新加入队列，之后已经有新的操作时以新的操作为准，日志在重新写入成功后才被删除
+                for (var each : failedListMutations) {
+                    pendingListMutations.putIfAbsent(each.tableName + "," + each.path, each);
+                }
+                if (!isSuccess) {
+                    markDatabaseNeedIntegrityCheck(diskStr);
+                }
+                return isSuccess;
+            } finally {
+                flushLock.unlock();
             }
-            databaseService.addFileToCache(path);
         }
-    }
 
-    @EventRegister(registerClass = DeleteFromCacheEvent.class)
-    private static void deleteFromCacheEvent(Event event) {
-        DatabaseService databaseService = getInstance();
-        String path = ((DeleteFromCacheEvent) event).path;
-        databaseService.databaseCacheMap.remove(path);
-        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
-            return;
+        private void recordCommit(int sqlNum, long latencyMills) {
+            transactionCount.increment();
+            committedSqlCount.add(sqlNum);
+            lastCommitLatencyMills = latencyMills;
+            maxCommitLatencyMills = Math.max(maxCommitLatencyMills, latencyMills);
+            avgCommitLatencyMills = avgCommitLatencyMills * 0.8 + latencyMills * 0.2;
+            if (latencyMills > TARGET_COMMIT_LATENCY_MILLS) {
+                transactionSize = Math.max(MIN_TRANSACTION_SIZE, transactionSize / 2);
+            } else if (latencyMills < TARGET_COMMIT_LATENCY_MILLS / 4 && sqlNum >= transactionSize) {
+                transactionSize = Math.min(MAX_TRANSACTION_SIZE, transactionSize * 2);
+            }
         }
-        databaseService.removeFileFromCache(path);
-    }
 
-    @EventRegister(registerClass = UpdateDatabaseEvent.class)
-    private static void updateDatabaseEvent(Event event) {
-        DatabaseService databaseService = getInstance();
-        UpdateDatabaseEvent updateDatabaseEvent = (UpdateDatabaseEvent) event;
-        // 在这里设置数据库状态为manual update
-        try {
-            if (!databaseService.updateLists(AllConfigs.getInstance().getConfigEntity().getIgnorePath(), updateDatabaseEvent.isDropPrevious)) {
-                throw new RuntimeException("search failed");
+        /**
+         * 后台维护，由数据库维护线程定期调用，正在写入时直接跳过，不等待写入锁
+         * WAL文件较大且写入速度较低时执行PASSIVE checkpoint，不等待读取连接；空闲时执行TRUNCATE checkpoint缩小WAL文件
+         * 空闲时执行incremental_vacuum释放删除记录后的空闲页面，每次最多执行MAINTAIN_STEP_MILLS，剩余的页面在下一次维护时释放
+         * 上一次维护已经完成并且之后没有新的写入时不会打开数据库连接
+         *
+         * @param isIdle 当前没有搜索和数据库更新
+         */
+        private void maintain(boolean isIdle) {
+            final long currentTimeMills = System.currentTimeMillis();
+            final long committedCount = committedSqlCount.sum();
+            final long writtenNum = committedCount - lastMaintainCommittedCount;
+            final double writeRate = writtenNum * 1000.0 / Math.max(1, currentTimeMills - lastMaintainTimeMills);
+            lastMaintainTimeMills = currentTimeMills;
+            lastMaintainCommittedCount = committedCount;
+            if (writtenNum == 0 && isMaintainFinished) {
+                return;
+            }
+            if (hasPendingSql() || !flushLock.tryLock()) {
+                isMaintainFinished = false;
+                return;
+            }
+            try (Statement stmt = SQLiteUtil.getStatement(diskStr)) {
+                final boolean isCheckpointFinished = checkpointWal(stmt, isIdle, writeRate);
+                final boolean isVacuumFinished = incrementalVacuum(stmt, isIdle, currentTimeMills + MAINTAIN_STEP_MILLS);
+                isMaintainFinished = isCheckpointFinished && isVacuumFinished;
+            } catch (SQLException e) {
+                isMaintainFinished = false;
+                log.error("error: {}", e.getMessage(), e);
+            } catch (RuntimeException e) {
+                // 磁盘已经不可用
+                isMaintainFinished = true;
+                if (IsDebug.isDebug()) {
+                    log.warn("数据库" + diskStr + "维护失败 " + e.getMessage());
+                }
+            } finally {
+                flushLock.unlock();
             }
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
         }
-    }
 
-    @EventRegister(registerClass = OptimizeDatabaseEvent.class)
-    private static void optimizeDatabaseEvent(Event event) {
-        DatabaseService databaseService = getInstance();
-        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
-            return;
+        /**
+         * @return true如果WAL文件已经不需要checkpoint
+         */
+        private boolean checkpointWal(Statement stmt, boolean isIdle, double writeRate) throws SQLException {
+            final long walSize = new File(SQLiteUtil.getDbAbsolutePath(diskStr) + "-wal").length();
+            if (walSize < WAL_PASSIVE_CHECKPOINT_SIZE) {
+                return true;
+            }
+            final String mode;
+            if (isIdle && walSize >= WAL_TRUNCATE_CHECKPOINT_SIZE) {
+                mode = "TRUNCATE";
+            } else if (writeRate < LOW_WRITE_RATE) {
+                mode = "PASSIVE";
+            } else {
+                return false;
+            }
+            try (ResultSet resultSet = stmt.executeQuery("PRAGMA wal_checkpoint(" + mode + ");")) {
+                if (IsDebug.isDebug() && resultSet.next()) {
+                    log.info("数据库" + diskStr + " wal_checkpoint(" + mode + ") WAL大小：" + walSize +
+                            " busy：" + resultSet.getInt(1) + " log：" + resultSet.getInt(2) + " checkpointed：" + resultSet.getInt(3));
+                }
+            }
+            // PASSIVE不会缩小WAL文件，需要在空闲时再执行TRUNCATE
+            return "TRUNCATE".equals(mode);
         }
-        if (!databaseService.casSetStatus(Constants.Enums.DatabaseStatus.NORMAL, Constants.Enums.DatabaseStatus.VACUUM)) {
-            throw new RuntimeException("databaseService status设置VACUUM状态失败");
+
+        /**
+         * @return true如果空闲页面已经释放完成
+         */
+        private boolean incrementalVacuum(Statement stmt, boolean isIdle, long deadlineMills) throws SQLException {
+            try (ResultSet resultSet = stmt.executeQuery("PRAGMA auto_vacuum;")) {
+                if (!resultSet.next() || resultSet.getInt(1) != SQLiteUtil.AUTO_VACUUM_INCREMENTAL) {
+                    return true;
+                }
+            }
+            int freePageNum = getFreePageNum(stmt);
+            if (freePageNum < MIN_VACUUM_FREE_PAGE_NUM) {
+                return true;
+            }
+            if (!isIdle) {
+                return false;
+            }
+            while (freePageNum > 0 && System.currentTimeMillis() < deadlineMills) {
+                stmt.executeUpdate("PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_STEP + ");");
+                freePageNum = getFreePageNum(stmt);
+            }
+            if (IsDebug.isDebug()) {
+                log.info("数据库" + diskStr + " incremental_vacuum完成，剩余空闲页面：" + freePageNum);
+            }
+            return freePageNum == 0;
         }
-        //执行VACUUM命令
-        String[] splitDisks = RegexUtil.comma.split(AllConfigs.getInstance().getAvailableDisks());
-        for (String eachDisk : splitDisks) {
-            try (Statement stmt = SQLiteUtil.getStatement(String.valueOf(eachDisk.charAt(0)))) {
-                stmt.execute("VACUUM;");
+
+        /**
+         * 完整整理数据库，在OptimizeDatabaseEvent中执行
+         * 还不是INCREMENTAL模式的数据库执行一次VACUUM进行转换，之后只需要释放空闲页面
+         */
+        private void optimize() {
+            flush();
+            flushLock.lock();
+            try (Statement stmt = SQLiteUtil.getStatement(diskStr)) {
+                final boolean isIncremental;
+                try (ResultSet resultSet = stmt.executeQuery("PRAGMA auto_vacuum;")) {
+                    isIncremental = resultSet.next() && resultSet.getInt(1) == SQLiteUtil.AUTO_VACUUM_INCREMENTAL;
+                }
+                if (isIncremental) {
+                    stmt.executeUpdate("PRAGMA incremental_vacuum;");
+                } else {
+                    stmt.executeUpdate("PRAGMA auto_vacuum=INCREMENTAL;");
+                    stmt.executeUpdate("VACUUM;");
+                }
+                try (ResultSet ignored = stmt.executeQuery("PRAGMA wal_checkpoint(TRUNCATE);")) {
+                    // 只需要执行checkpoint
+                }
                 stmt.execute("PRAGMA optimize;");
-            } catch (Exception ex) {
-                log.error("error: {}", ex.getMessage(), ex);
+            } catch (SQLException e) {
+                log.error("error: {}", e.getMessage(), e);
             } finally {
+                flushLock.unlock();
+            }
+        }
+
+        /**
+         * 读取分区统计信息，不存在时重新统计
+         *
+         * @param isRecompute 是否忽略已保存的统计信息，重新统计
+         */
+        private void loadPartitionStats(boolean isRecompute) {
+            flushLock.lock();
+            try (Statement stmt = SQLiteUtil.getStatement(diskStr)) {
+                if (isRecompute) {
+                    PartitionStats.INSTANCE.recompute(diskStr, stmt);
+                } else {
+                    PartitionStats.INSTANCE.load(diskStr, stmt);
+                }
+            } catch (SQLException e) {
+                log.error("error: {}", e.getMessage(), e);
+            } catch (RuntimeException e) {
                 if (IsDebug.isDebug()) {
-                    log.info("结束优化");
+                    log.warn("读取数据库" + diskStr + "分区统计信息失败 " + e.getMessage());
                 }
+            } finally {
+                flushLock.unlock();
             }
         }
-        if (!databaseService.casSetStatus(Constants.Enums.DatabaseStatus.VACUUM, Constants.Enums.DatabaseStatus.NORMAL)) {
-            throw new RuntimeException("databaseService status从VACUUM修改为NORMAL失败");
+
+        /**
+         * @return 数据库中记录使用的分区方式，读取失败时为null
+         */
+        private String readPartitionLayout() {
+            flushLock.lock();
+            try (Statement stmt = SQLiteUtil.getStatement(diskStr);
+                 ResultSet resultSet = stmt.executeQuery("SELECT LAYOUT FROM partition_layout;")) {
+                return resultSet.next() ? resultSet.getString("LAYOUT") : TablePartitioner.LEGACY_LAYOUT;
+            } catch (SQLException e) {
+                log.error("error: {}", e.getMessage(), e);
+            } catch (RuntimeException e) {
+                if (IsDebug.isDebug()) {
+                    log.warn("读取数据库" + diskStr + "分区方式失败 " + e.getMessage());
+                }
+            } finally {
+                flushLock.unlock();
+            }
+            return null;
         }
-    }
 
-    @EventRegister(registerClass = AddToSuffixPriorityMapEvent.class)
-    private static void addToSuffixPriorityMapEvent(Event event) {
-        DatabaseService databaseService = getInstance();
-        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
-            return;
+        /**
+         * 重建quick_check失败的表，将还能读取的记录按照主键顺序复制到新表后替换原表，读取到损坏的页面时停止复制
+         * 只影响该表，数据库中的其他表不需要重建，丢失的记录在下次更新索引时恢复
+         *
+         * @param tableName 表名
+         * @return false如果重建失败
+         */
+        private boolean rebuildTable(String tableName) {
+            final long startTime = System.currentTimeMillis();
+            final String newTableName = tableName + "_rebuild";
+            flushLock.lock();
+            try (Statement stmt = SQLiteUtil.getStatement(diskStr)) {
+                String createTableSql = null;
+                ArrayList<String> createIndexSqls = new ArrayList<>();
+                try (ResultSet resultSet = stmt.executeQuery("SELECT type, sql FROM sqlite_master WHERE tbl_name='" + tableName + "' AND sql IS NOT NULL;")) {
+                    while (resultSet.next()) {
+                        if ("table".equals(resultSet.getString("type"))) {
+                            createTableSql = resultSet.getString("sql");
+                        } else if ("index".equals(resultSet.getString("type"))) {
+                            createIndexSqls.add(resultSet.getString("sql"));
+                        }
+                    }
+                }
+                if (createTableSql == null) {
+                    return false;
+                }
+                createTableSql = createTableSql.replaceFirst("^CREATE TABLE\\s+(\"?)" + Pattern.quote(tableName) + "\\1", "CREATE TABLE " + newTableName);
+                long copiedNum = 0;
+                stmt.execute("BEGIN;");
+                try {
+                    stmt.executeUpdate("DROP TABLE IF EXISTS " + newTableName + ";");
+                    stmt.executeUpdate(createTableSql);
+                    copiedNum = copyReadableRecords(stmt, tableName, newTableName);
+                    stmt.executeUpdate("DROP TABLE \"" + tableName + "\";");
+                    stmt.executeUpdate("ALTER TABLE " + newTableName + " RENAME TO \"" + tableName + "\";");
+                    for (String createIndexSql : createIndexSqls) {
+                        stmt.executeUpdate(createIndexSql);
+                    }
+                    stmt.execute("COMMIT;");
+                } catch (SQLException e) {
+                    stmt.execute("ROLLBACK;");
+                    throw e;
+                }
+                if (tableName.startsWith("list")) {
+                    PartitionStats.INSTANCE.recompute(diskStr, stmt);
+                    PartitionRanges.INSTANCE.invalidate(diskStr);
+                }
+                log.info("数据库" + diskStr + "表" + tableName + "重建完成，保留记录数：" + copiedNum + " 耗时：" + (System.currentTimeMillis() - startTime) + "ms");
+                return true;
+            } catch (SQLException | RuntimeException e) {
+                log.error("error: {}", e.getMessage(), e);
+                return false;
+            } finally {
+                flushLock.unlock();
+            }
         }
-        AddToSuffixPriorityMapEvent event1 = (AddToSuffixPriorityMapEvent) event;
-        String suffix = event1.suffix.toLowerCase();
-        int priority = event1.priority;
-        databaseService.addToCommandQueue(
-                new SQLWithTaskId(String.format("INSERT INTO priority VALUES(\"%s\", %d);", suffix, priority), SqlTaskIds.UPDATE_SUFFIX, "cache"));
-    }
 
-    @EventRegister(registerClass = ClearSuffixPriorityMapEvent.class)
-    private static void clearSuffixPriorityMapEvent(Event event) {
-        DatabaseService databaseService = getInstance();
-        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
-            return;
+        /**
+         * 逐条复制记录，读取失败时保留已经复制的记录
+         *
+         * @return 复制的记录数
+         */
+        private long copyReadableRecords(Statement stmt, String tableName, String newTableName) throws SQLException {
+            long copiedNum = 0;
+            try (ResultSet resultSet = stmt.executeQuery("SELECT * FROM \"" + tableName + "\";")) {
+                final int columnCount = resultSet.getMetaData().getColumnCount();
+                String insertSql = "INSERT OR IGNORE INTO " + newTableName + " VALUES(" + "?,".repeat(columnCount - 1) + "?);";
+                try (PreparedStatement pStmt = SQLiteUtil.getPreparedStatement(insertSql, diskStr)) {
+                    try {
+                        while (resultSet.next()) {
+                            for (int i = 1; i <= columnCount; i++) {
+                                pStmt.setObject(i, resultSet.getObject(i));
+                            }
+                            pStmt.addBatch();
+                            if (++copiedNum % 10_000 == 0) {
+                                pStmt.executeBatch();
+                            }
+                        }
+                    } catch (SQLException e) {
+                        log.warn("读取数据库" + diskStr + "表" + tableName + "失败，已复制" + copiedNum + "条记录 " + e.getMessage());
+                    }
+                    pStmt.executeBatch();
+                }
+            }
+            return copiedNum;
         }
-        databaseService.addToCommandQueue(new SQLWithTaskId("DELETE FROM priority;", SqlTaskIds.UPDATE_SUFFIX, "cache"));
-        databaseService.addToCommandQueue(
-                new SQLWithTaskId("INSERT INTO priority VALUES(\"defaultPriority\", 0);", SqlTaskIds.UPDATE_SUFFIX, "cache"));
-        databaseService.addToCommandQueue(
-                new SQLWithTaskId("INSERT INTO priority VALUES(\"dirPriority\", -1);", SqlTaskIds.UPDATE_SUFFIX, "cache"));
-    }
 
-    @EventRegister(registerClass = DeleteFromSuffixPriorityMapEvent.class)
-    private static void deleteFromSuffixPriorityMapEvent(Event event) {
-        DeleteFromSuffixPriorityMapEvent delete = (DeleteFromSuffixPriorityMapEvent) event;
-        DatabaseService databaseService = getInstance();
-        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
-            return;
+        private void writePartitionLayout(String layout) {
+            flushLock.lock();
+            try (Statement stmt = SQLiteUtil.getStatement(diskStr)) {
+                stmt.execute("BEGIN;");
+                stmt.executeUpdate("DELETE FROM partition_layout;");
+                stmt.executeUpdate("INSERT INTO partition_layout VALUES('" + layout + "');");
+                stmt.execute("COMMIT;");
+            } catch (SQLException e) {
+                log.error("error: {}", e.getMessage(), e);
+            } catch (RuntimeException e) {
+                if (IsDebug.isDebug()) {
+                    log.warn("保存数据库" + diskStr + "分区方式失败 " + e.getMessage());
+                }
+            } finally {
+                flushLock.unlock();
+            }
         }
-        if ("dirPriority".equals(delete.suffix) || "defaultPriority".equals(delete.suffix)) {
-            return;
+
+        /**
+         * 按照主键顺序读取表中的一批记录，将不属于该表的记录移动到当前分区方式对应的表中
+         * 每批在一个事务中完成，分区统计信息在同一个事务中更新，批之间释放写入锁，不阻塞文件变化的写入
+         *
+         * @param tableName 表名
+         * @param cursor    上一批最后一条记录的主键[PRIORITY, ASCII, PATH]，从头开始时为null
+         * @return 最后一条记录的主键，表已经读取完成时返回null
+         */
+        @SuppressWarnings("SqlNoDataSourceInspection")
+        private Object[] migratePartitionBatch(String tableName, Object[] cursor) throws SQLException {
+            final var partitioner = TablePartitioner.INSTANCE;
+            String selectSql = "SELECT PRIORITY, ASCII, PATH FROM " + tableName +
+                    (cursor == null ? "" : " WHERE (PRIORITY, ASCII, PATH) > (?, ?, ?)") +
+                    " ORDER BY PRIORITY, ASCII, PATH LIMIT " + PARTITION_MIGRATE_BATCH_SIZE + ";";
+            flushLock.lock();
+            try {
+                ArrayList<Object[]> records = new ArrayList<>();
+                try (PreparedStatement pStmt = SQLiteUtil.getPreparedStatement(selectSql, diskStr)) {
+                    if (cursor != null) {
+                        pStmt.setInt(1, (int) cursor[0]);
+                        pStmt.setInt(2, (int) cursor[1]);
+                        pStmt.setString(3, (String) cursor[2]);
+                    }
+                    try (ResultSet resultSet = pStmt.executeQuery()) {
+                        while (resultSet.next()) {
+                            records.add(new Object[]{resultSet.getInt("PRIORITY"), resultSet.getInt("ASCII"), resultSet.getString("PATH")});
+                        }
+                    }
+                }
+                // key为目标表名
+                HashMap<String, ArrayList<Object[]>> moves = new HashMap<>();
+                for (Object[] record : records) {
+                    String targetTableName = partitioner.getTableName(FileUtil.getFileName((String) record[2]));
+                    if (!targetTableName.equals(tableName)) {
+                        moves.computeIfAbsent(targetTableName, k -> new ArrayList<>()).add(record);
+                    }
+                }
+                if (!moves.isEmpty()) {
+                    moveRecords(tableName, moves);
+                }
+                return records.size() < PARTITION_MIGRATE_BATCH_SIZE ? null : records.get(records.size() - 1);
+            } finally {
+                flushLock.unlock();
+            }
         }
-        databaseService.addToCommandQueue(new SQLWithTaskId(String.format("DELETE FROM priority where SUFFIX=\"%s\"", delete.suffix), SqlTaskIds.UPDATE_SUFFIX, "cache"));
-    }
 
-    @EventRegister(registerClass = UpdateSuffixPriorityEvent.class)
-    private static void updateSuffixPriorityEvent(Event event) {
-        DatabaseService databaseService = DatabaseService.getInstance();
-        if (databaseService.status.get() == Constants.Enums.DatabaseStatus._TEMP) {
-            return;
+        @SuppressWarnings("SqlNoDataSourceInspection")
+        private void moveRecords(String tableName, HashMap<String, ArrayList<Object[]>> moves) throws SQLException {
+            PartitionStats.Delta partitionStatsDelta = PartitionStats.INSTANCE.newDelta(diskStr);
+            try (Statement stmt = SQLiteUtil.getStatement(diskStr)) {
+                stmt.execute("BEGIN;");
+                try {
+                    try (PreparedStatement deleteStmt = SQLiteUtil.getPreparedStatement("DELETE FROM " + tableName + " WHERE PRIORITY=? AND ASCII=? AND PATH=?;", diskStr)) {
+                        for (var entry : moves.entrySet()) {
+                            try (PreparedStatement insertStmt = SQLiteUtil.getPreparedStatement("INSERT OR IGNORE INTO " + entry.getKey() + " VALUES(?, ?, ?);", diskStr)) {
+                                for (Object[] record : entry.getValue()) {
+                                    final int priority = (int) record[0];
+                                    final String path = (String) record[2];
+                                    insertStmt.setInt(1, (int) record[1]);
+                                    insertStmt.setString(2, path);
+                                    insertStmt.setInt(3, priority);
+                                    // 目标表中已经存在时（迁移期间新添加的文件）只删除旧的记录
+                                    if (insertStmt.executeUpdate() > 0) {
+                                        partitionStatsDelta.add(entry.getKey(), priority, path, true);
+                                    }
+                                    deleteStmt.setInt(1, priority);
+                                    deleteStmt.setInt(2, (int) record[1]);
+                                    deleteStmt.setString(3, path);
+                                    if (deleteStmt.executeUpdate() > 0) {
+                                        partitionStatsDelta.add(tableName, priority, path, false);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    PartitionStats.INSTANCE.save(partitionStatsDelta);
+                    stmt.execute("COMMIT;");
+                } catch (SQLException e) {
+                    stmt.execute("ROLLBACK;");
+                    throw e;
+                }
+            }
+            PartitionStats.INSTANCE.apply(partitionStatsDelta);
         }
-        EventManagement eventManagement = EventManagement.getInstance();
-        UpdateSuffixPriorityEvent update = (UpdateSuffixPriorityEvent) event;
-        String origin = update.originSuffix;
-        String newSuffix = update.newSuffix;
-        int newNum = update.newPriority;
-        eventManagement.putEvent(new DeleteFromSuffixPriorityMapEvent(origin));
-        eventManagement.putEvent(new AddToSuffixPriorityMapEvent(newSuffix, newNum));
-    }
 
-    @EventListener(listenClass = CloseEvent.class)
-    private static void closeEvent(Event event) {
-        stopMonitorDisks(AllConfigs.getInstance().
-                getConfigEntity().
-                getAdvancedConfigEntity().
-                isDeleteUsnOnExit());
-        var databaseService = getInstance();
-        databaseService.executeAllCommands();
-        databaseService.stopAllSearch();
-        SQLiteUtil.closeAll();
-        if (isEnableGPUAccelerate) {
-            GPUAccelerator.INSTANCE.stopCollectResults();
-            GPUAccelerator.INSTANCE.release();
+        private static int getFreePageNum(Statement stmt) throws SQLException {
+            try (ResultSet resultSet = stmt.executeQuery("PRAGMA freelist_count;")) {
+                return resultSet.next() ? resultSet.getInt(1) : 0;
+            }
+        }
+
+        private FlushStats getStats() {
+            return new FlushStats(diskStr,
+                    getPendingSqlNum(),
+                    transactionSize,
+                    transactionCount.sum(),
+                    committedSqlCount.sum(),
+                    avgCommitLatencyMills,
+                    maxCommitLatencyMills,
+                    lastCommitLatencyMills);
         }
     }
 
@@ -2057,7 +4275,22 @@ public class DatabaseService {
         private final String sql;
         private final SqlTaskIds taskId;
         private final String diskStr;
-        private volatile String key;
+        // 以下字段只有INSERT_TO_LIST和DELETE_FROM_LIST使用，这两种操作的sql为null，执行时绑定到PreparedStatement中
+        private String tableName;
+        private int asciiSum;
+        private String path;
+        private int priority;
+
+        private void setListRecord(String tableName, int asciiSum, String path, int priority) {
+            this.tableName = tableName;
+            this.asciiSum = asciiSum;
+            this.path = path;
+            this.priority = priority;
+        }
+
+        private boolean isListMutation() {
+            return path != null && (taskId == SqlTaskIds.INSERT_TO_LIST || taskId == SqlTaskIds.DELETE_FROM_LIST);
+        }
     }
 
     private enum SqlTaskIds {
@@ -2073,7 +4306,7 @@ public class DatabaseService {
 
         private static void clearInvalidCacheThread() {
             //检测缓存是否有效并删除缓存
-            ThreadPoolUtil.getInstance().executeTask(() -> {
+            ThreadPoolUtil.getInstance().executeDaemonTask("gpu-clear-invalid-cache", () -> {
                 EventManagement eventManagement = EventManagement.getInstance();
                 DatabaseService databaseService = DatabaseService.getInstance();
                 long startCheckInvalidCacheTime = System.currentTimeMillis();
@@ -2096,11 +4329,11 @@ public class DatabaseService {
                         throw new RuntimeException(e);
                     }
                 }
-            }, false);
+            });
         }
 
         private static void execWorkQueueThread() {
-            ThreadPoolUtil.getInstance().executeTask(() -> {
+            ThreadPoolUtil.getInstance().executeDaemonTask("gpu-exec-work-queue", () -> {
                 EventManagement eventManagement = EventManagement.getInstance();
                 DatabaseService databaseService = DatabaseService.getInstance();
                 final int removeRecordsThreshold = 100;
@@ -2145,7 +4378,7 @@ public class DatabaseService {
                         throw new RuntimeException(e);
                     }
                 }
-            }, false);
+            });
         }
 
         private static void addRecord(String key, String fileRecord) {
@@ -2202,8 +4435,7 @@ public class DatabaseService {
             if (!isEnableGPUAccelerate) {
                 return;
             }
-            ThreadPoolUtil.getInstance().executeTask(GPUAccelerator.INSTANCE::clearAllCache, false);
-
+            ThreadPoolUtil.getInstance().executeTask(GPUAccelerator.INSTANCE::clearAllCache, ThreadPoolUtil.Bulkhead.GPU);
         }
     }
 
@@ -2245,8 +4477,7 @@ public class DatabaseService {
      * 搜索结果将会被暂存到priorityContainer中，key为后缀优先级，value为该后缀的文件路径，同时也会存入tempResultsSet中用于去重
      * 在等待搜索完成时，priorityContainer中的数据会被不断转存到tempResults中，按照后缀优先级降序排列，优先级高的文件将会先转存
      * <p>
-     * taskStatus和allTaskStatus是每个任务的标志，每个任务分配一个位，当某一个任务完成，在taskStatus上该任务的位将会被设置为1
-     * 当taskstauts和allTaskStatus相等则表示任务全部完成
+     * 某一优先级还有任务未完成时，低优先级的结果最多等待PRIORITY_EMIT_LATENCY_BUDGET_MILLS，超时后不再等待该优先级
      * @see #waitForTasks(SearchTask, CountDownLatch)
      */
     @RequiredArgsConstructor
@@ -2254,10 +4485,11 @@ public class DatabaseService {
         //taskMap任务队列，key为磁盘盘符，value为任务
         private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Runnable>> taskMap = new ConcurrentHashMap<>();
         private final SearchInfo searchInfo;
+        // 相同的搜索会共享同一个任务，每个客户端通过自己的下标读取结果
         @Getter
-        private final ConcurrentLinkedQueue<String> tempResults = new ConcurrentLinkedQueue<>();
+        private final AppendOnlyResultList tempResults = new AppendOnlyResultList();
         @Getter
-        private final ConcurrentLinkedQueue<String> cacheAndPriorityResults = new ConcurrentLinkedQueue<>();
+        private final AppendOnlyResultList cacheAndPriorityResults = new AppendOnlyResultList();
         private final Set<String> tempResultsSet = ConcurrentHashMap.newKeySet();
         private final AtomicInteger resultCounter = new AtomicInteger();
         @Getter
@@ -2268,10 +4500,41 @@ public class DatabaseService {
         private final long taskCreateTimeMills = System.currentTimeMillis();
         private volatile boolean shouldStopSearchFlag = false;
         private final Integer maxResultNum;
-
+        // 所有分区的预估扫描耗时，用于决定搜索线程数
+        private volatile double estimatedScanCostMills = 0;
+        // 保证同一个任务只会开始搜索一次
+        private final AtomicBoolean isSearchStarted = new AtomicBoolean();
+        // 预搜索完成后countDown，其他相同的搜索需要等待预搜索完成后才能读取结果
+        private final CountDownLatch prepareLatch = new CountDownLatch(1);
+        // key为后缀优先级，按照优先级降序排列
+        private final ConcurrentSkipListMap<Integer, PriorityResultBuffer> priorityContainer = new ConcurrentSkipListMap<>(Comparator.reverseOrder());
+        // 高优先级任务未完成时，低优先级结果的最长等待时间
+        private static final long PRIORITY_EMIT_LATENCY_BUDGET_MILLS = 100;
 
         private static final AtomicBoolean isGpuThreadRunning = new AtomicBoolean();
         private static final long maxTaskValidThreshold = 10_000;
+        // 搜索开始时固定的数据库版本，key为盘符，value为该版本数据库文件的绝对路径
+        private final ConcurrentHashMap<String, String> pinnedDbPaths = new ConcurrentHashMap<>();
+
+        private void pinDatabaseGenerations() {
+            for (String diskStr : taskMap.keySet()) {
+                pinnedDbPaths.put(diskStr, SQLiteUtil.pinDatabaseGeneration(diskStr));
+            }
+        }
+
+        private void releaseDatabaseGenerations() {
+            pinnedDbPaths.values().forEach(SQLiteUtil::releaseDatabaseGeneration);
+            pinnedDbPaths.clear();
+        }
+
+        /**
+         * @param diskStr 盘符
+         * @return 搜索开始时固定的数据库文件路径，没有固定时为当前版本
+         */
+        private String getDbPath(String diskStr) {
+            String dbPath = pinnedDbPaths.get(diskStr);
+            return dbPath == null ? SQLiteUtil.getDbAbsolutePath(diskStr) : dbPath;
+        }
 
         public boolean isSearchDone() {
             return searchDoneFlag;
@@ -2288,6 +4551,78 @@ public class DatabaseService {
         private boolean shouldStopSearch() {
             return resultCounter.get() > maxResultNum || shouldStopSearchFlag;
         }
+
+        /**
+         * 任务是否正在搜索中，正在搜索中的任务不能从prepareTasksMap中移除，否则相同的搜索会重复扫描
+         */
+        private boolean isSearchInFlight() {
+            return isSearchStarted.get() && !searchDoneFlag;
+        }
+
+        /**
+         * 判断新的搜索是否可以共享该任务
+         *
+         * @param maxResultNum 新的搜索的最大结果数量
+         * @return true如果可以共享
+         */
+        private boolean isShareable(Integer maxResultNum) {
+            // 被停止的任务结果不完整，共享的任务直接返回给调用者，最大结果数量不同时结果数量无法满足新的搜索
+            return !shouldStopSearchFlag && this.maxResultNum.equals(maxResultNum);
+        }
+
+        private PriorityResultBuffer getPriorityResultBuffer(int priority) {
+            return priorityContainer.computeIfAbsent(priority, k -> new PriorityResultBuffer());
+        }
+
+        /**
+         * 将结果暂存到priorityContainer中，等待转存到tempResults
+         *
+         * @param path     文件路径
+         * @param priority 后缀优先级
+         */
+        private void addResult(String path, int priority) {
+            getPriorityResultBuffer(priority).results.add(path);
+        }
+
+        /**
+         * 按照后缀优先级降序将priorityContainer中的结果转存到tempResults中
+         * 某一优先级还有任务未完成并且等待时间未超过PRIORITY_EMIT_LATENCY_BUDGET_MILLS时，不转存更低优先级的结果
+         *
+         * @param isEmitAll 是否不再等待未完成的任务，转存所有结果
+         */
+        private void emitResults(boolean isEmitAll) {
+            synchronized (priorityContainer) {
+                for (var resultBuffer : priorityContainer.values()) {
+                    // 先读取任务状态再转存，保证任务完成前添加的结果都能被转存
+                    final boolean isPriorityDone = resultBuffer.pendingTaskNum.get() <= 0;
+                    String path;
+                    while ((path = resultBuffer.results.poll()) != null) {
+                        tempResults.add(path);
+                    }
+                    if (isEmitAll || isPriorityDone) {
+                        continue;
+                    }
+                    final long currentTimeMills = System.currentTimeMillis();
+                    if (resultBuffer.waitStartMills == 0) {
+                        resultBuffer.waitStartMills = currentTimeMills;
+                    }
+                    if (currentTimeMills - resultBuffer.waitStartMills < PRIORITY_EMIT_LATENCY_BUDGET_MILLS) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 某一后缀优先级的暂存结果
+         */
+        private static class PriorityResultBuffer {
+            private final ConcurrentLinkedQueue<String> results = new ConcurrentLinkedQueue<>();
+            // 该优先级还未完成的任务数量
+            private final AtomicInteger pendingTaskNum = new AtomicInteger();
+            // 开始等待该优先级任务完成的时间
+            private long waitStartMills = 0;
+        }
     }
 
     /**
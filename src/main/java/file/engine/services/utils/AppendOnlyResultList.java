@@ -0,0 +1,72 @@
+package file.engine.services.utils;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 只能追加的搜索结果列表，多个客户端共享同一个搜索任务时，每个客户端使用自己的下标读取
+ * 写入加锁，读取不加锁，根据下标读取的时间复杂度为O(1)，不需要像ConcurrentLinkedQueue一样从头遍历
+ */
+public class AppendOnlyResultList extends AbstractList<String> {
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private volatile String[][] chunks = new String[16][];
+    // 先写入数据再更新size，读取时只读取size以内的数据
+    private volatile int size = 0;
+
+    @Override
+    public synchronized boolean add(String result) {
+        Objects.requireNonNull(result);
+        final int currentSize = size;
+        final int chunkIndex = currentSize >>> CHUNK_SHIFT;
+        String[][] currentChunks = chunks;
+        if (chunkIndex >= currentChunks.length) {
+            currentChunks = Arrays.copyOf(currentChunks, currentChunks.length * 2);
+        }
+        if (currentChunks[chunkIndex] == null) {
+            currentChunks[chunkIndex] = new String[CHUNK_SIZE];
+        }
+        currentChunks[chunkIndex][currentSize & CHUNK_MASK] = result;
+        chunks = currentChunks;
+        size = currentSize + 1;
+        return true;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + " size: " + size);
+        }
+        return chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 获取从startIndex开始到当前已写入的所有结果
+     *
+     * @param startIndex 开始下标
+     * @return 结果快照
+     */
+    public List<String> getFrom(int startIndex) {
+        final int currentSize = size;
+        if (startIndex < 0) {
+            startIndex = 0;
+        }
+        if (startIndex >= currentSize) {
+            return new ArrayList<>();
+        }
+        ArrayList<String> ret = new ArrayList<>(currentSize - startIndex);
+        for (int i = startIndex; i < currentSize; i++) {
+            ret.add(get(i));
+        }
+        return ret;
+    }
+}
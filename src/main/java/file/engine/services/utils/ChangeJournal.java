@@ -0,0 +1,282 @@
+package file.engine.services.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 文件变化日志，文件的添加和删除在写入数据库之前先追加到日志中，程序异常退出后在下次启动时重放
+ * <p>
+ * 每条记录格式为 [记录长度 int][CRC32 int][操作类型 byte][UTF-8路径]，重放时遇到长度或校验错误的记录即停止读取该文件
+ * 记录先写入内存缓冲区，由写入线程批量写入FileChannel（组提交），并定期fsync
+ * 缓冲区超过上限时由添加者自己写入，使文件变化的读取速度降低
+ * <p>
+ * 每次将变化写入数据库前调用rotate切换到新的日志文件，写入成功后删除之前的日志文件
+ */
+@Slf4j
+public class ChangeJournal implements Closeable {
+    public static final byte OP_ADD = 1;
+    public static final byte OP_DELETE = 2;
+    private static final String JOURNAL_PREFIX = "changes-";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    // 缓冲区超过该大小时添加者需要等待写入完成
+    private static final int MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+    private final Path journalDir;
+    private final Object writeLock = new Object();
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private FileChannel channel;
+    private long currentSeq;
+    private volatile boolean isCurrentJournalEmpty = true;
+    private volatile boolean isClosed = false;
+    // 重放时不能删除正在重放的日志文件
+    private volatile long replayingSeq = 0;
+
+    public ChangeJournal(Path journalDir) throws IOException {
+        this.journalDir = journalDir;
+        Files.createDirectories(journalDir);
+        long maxSeq = 0;
+        for (Path each : listJournals()) {
+            maxSeq = Math.max(maxSeq, getSeq(each));
+        }
+        openJournal(maxSeq + 1);
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @param op   OP_ADD或OP_DELETE
+     * @param path 文件路径
+     */
+    public void append(byte op, String path) {
+        if (isClosed) {
+            return;
+        }
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        final int length = 1 + pathBytes.length;
+        if (length > MAX_RECORD_SIZE) {
+            return;
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(op);
+        crc32.update(pathBytes);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length);
+        record.putInt((int) crc32.getValue());
+        record.put(op);
+        record.put(pathBytes);
+        final boolean isBufferFull;
+        synchronized (this) {
+            buffer.write(record.array(), 0, record.capacity());
+            isBufferFull = buffer.size() > MAX_BUFFERED_BYTES;
+        }
+        if (isBufferFull) {
+            writeBuffered();
+        }
+    }
+
+    /**
+     * 将缓冲区中的记录一次性写入日志文件
+     */
+    public void writeBuffered() {
+        synchronized (writeLock) {
+            ByteArrayOutputStream toWrite;
+            synchronized (this) {
+                if (buffer.size() == 0) {
+                    return;
+                }
+                toWrite = buffer;
+                buffer = new ByteArrayOutputStream();
+            }
+            try {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(toWrite.toByteArray());
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer);
+                }
+                isCurrentJournalEmpty = false;
+            } catch (IOException e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 写入缓冲区并fsync
+     */
+    public void force() {
+        writeBuffered();
+        synchronized (writeLock) {
+            try {
+                if (channel.isOpen()) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 切换到新的日志文件，在此之前添加的记录都在旧的日志文件中
+     *
+     * @return 新日志文件的序号，旧日志文件的记录写入数据库后通过deleteJournalsBefore删除
+     */
+    public long rotate() {
+        writeBuffered();
+        synchronized (writeLock) {
+            if (isCurrentJournalEmpty) {
+                return currentSeq;
+            }
+            try {
+                channel.force(false);
+                channel.close();
+                openJournal(currentSeq + 1);
+            } catch (IOException e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+            return currentSeq;
+        }
+    }
+
+    /**
+     * 删除序号小于seq的日志文件
+     *
+     * @param seq 序号
+     */
+    public void deleteJournalsBefore(long seq) {
+        try {
+            for (Path each : listJournals()) {
+                final long eachSeq = getSeq(each);
+                if (eachSeq < seq && eachSeq >= replayingSeq) {
+                    Files.deleteIfExists(each);
+                }
+            }
+        } catch (IOException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 按照顺序重放当前日志文件之前的所有日志，重放的记录需要重新添加到当前日志中，重放完成后旧日志才能被删除
+     *
+     * @param consumer 参数为操作类型和文件路径
+     * @return 重放的记录数量
+     */
+    public long replay(BiConsumer<Byte, String> consumer) {
+        long count = 0;
+        replayingSeq = currentSeq;
+        try {
+            for (Path each : listJournals()) {
+                if (getSeq(each) < replayingSeq) {
+                    count += replayJournal(each, consumer);
+                }
+            }
+        } catch (IOException e) {
+            log.error("error: {}", e.getMessage(), e);
+        } finally {
+            replayingSeq = 0;
+        }
+        return count;
+    }
+
+    private long replayJournal(Path journal, BiConsumer<Byte, String> consumer) throws IOException {
+        long count = 0;
+        try (FileChannel readChannel = FileChannel.open(journal, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (true) {
+                header.clear();
+                if (readFully(readChannel, header) < RECORD_HEADER_SIZE) {
+                    break;
+                }
+                header.flip();
+                final int length = header.getInt();
+                final int checksum = header.getInt();
+                if (length <= 1 || length > MAX_RECORD_SIZE) {
+                    log.warn("日志记录长度错误，停止重放 {}", journal);
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                if (readFully(readChannel, body) < length) {
+                    break;
+                }
+                byte[] bytes = body.array();
+                CRC32 crc32 = new CRC32();
+                crc32.update(bytes, 0, length);
+                if ((int) crc32.getValue() != checksum) {
+                    log.warn("日志记录校验失败，停止重放 {}", journal);
+                    break;
+                }
+                consumer.accept(bytes[0], new String(bytes, 1, length - 1, StandardCharsets.UTF_8));
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static int readFully(FileChannel readChannel, ByteBuffer byteBuffer) throws IOException {
+        int total = 0;
+        while (byteBuffer.hasRemaining()) {
+            int read = readChannel.read(byteBuffer);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private void openJournal(long seq) throws IOException {
+        currentSeq = seq;
+        channel = FileChannel.open(journalDir.resolve(JOURNAL_PREFIX + seq + JOURNAL_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        isCurrentJournalEmpty = channel.size() == 0;
+    }
+
+    private ArrayList<Path> listJournals() throws IOException {
+        ArrayList<Path> journals = new ArrayList<>();
+        try (Stream<Path> files = Files.list(journalDir)) {
+            files.filter(each -> {
+                String fileName = each.getFileName().toString();
+                return fileName.startsWith(JOURNAL_PREFIX) && fileName.endsWith(JOURNAL_SUFFIX) && getSeq(each) > 0;
+            }).forEach(journals::add);
+        }
+        journals.sort(Comparator.comparingLong(ChangeJournal::getSeq));
+        return journals;
+    }
+
+    private static long getSeq(Path journal) {
+        String fileName = journal.getFileName().toString();
+        try {
+            return Long.parseLong(fileName.substring(JOURNAL_PREFIX.length(), fileName.length() - JOURNAL_SUFFIX.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+        synchronized (writeLock) {
+            isClosed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+        }
+    }
+}
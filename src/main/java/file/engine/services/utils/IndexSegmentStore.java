@@ -0,0 +1,624 @@
+package file.engine.services.utils;
+
+import file.engine.configs.Constants;
+import file.engine.utils.ThreadPoolUtil;
+import file.engine.utils.file.FileUtil;
+import file.engine.utils.system.properties.IsDebug;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * 大分区的只读索引段，数据量超过内存缓存上限的分区保存为按照PATH排序的不可变文件，通过mmap读取
+ * <p>
+ * 每个分区（key为[盘符,表名,优先级]）由三部分组成：
+ * segment：不可变的索引段文件，路径使用前缀压缩，每BLOCK_SIZE条记录为一个块，块的第一条记录保存完整路径，块之间可以并行扫描
+ * frozen：正在合并到新索引段中的文件变化，合并完成后丢弃
+ * active：最近的文件变化，添加的记录和删除标记
+ * <p>
+ * 索引段由数据库生成，与内存缓存一样只是数据库的副本，启动时删除所有索引段文件，数据库被替换或迁移时全部丢弃
+ */
+@Slf4j
+public enum IndexSegmentStore {
+    INSTANCE;
+    private static final int MAGIC = 0x46455347; // FESG
+    private static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 64;
+    private static final int FOOTER_SIZE = 4 + 4 + 4 + 8 + 4;
+    // 变化数量超过该值或分区记录数的1/8时合并
+    private static final int MIN_COMPACT_CHANGE_NUM = 1024;
+    // 每个扫描线程至少分到的块数量，块太少时由调用者自己扫描
+    private static final int MIN_BLOCKS_PER_TASK = 64;
+    private final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final AtomicLong segmentSeq = new AtomicLong();
+    // 映射释放后仍然删除失败的索引段文件，合并时重试
+    private static final Set<File> undeletedFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 删除上次运行留下的索引段文件，只在启动时调用
+     */
+    public void init() {
+        File segmentDir = new File(Constants.INDEX_SEGMENT_DIR);
+        if (segmentDir.exists()) {
+            FileUtil.deleteDir(segmentDir);
+        }
+    }
+
+    /**
+     * @param key 分区
+     * @return true如果该分区的索引段已经生成，可以代替数据库扫描
+     */
+    public boolean isAvailable(String key) {
+        Partition partition = partitions.get(key);
+        return partition != null && partition.state.segment != null;
+    }
+
+    public Set<String> getKeys() {
+        return partitions.keySet();
+    }
+
+    /**
+     * 为分区生成索引段，生成期间的文件变化保存在active中，生成完成后立即可以使用
+     *
+     * @param key          分区
+     * @param sortedPaths  按照PATH排序的所有记录的UTF-8字节，通常来自 ORDER BY PATH 的查询
+     * @param isStopCreate 是否停止
+     * @return true如果生成成功
+     */
+    public boolean build(String key, Iterator<byte[]> sortedPaths, BooleanSupplier isStopCreate) {
+        Partition partition = new Partition();
+        if (partitions.putIfAbsent(key, partition) != null) {
+            return false;
+        }
+        try {
+            Segment segment = writeSegment(key, new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return !isStopCreate.getAsBoolean() && sortedPaths.hasNext();
+                }
+
+                @Override
+                public byte[] next() {
+                    return sortedPaths.next();
+                }
+            });
+            synchronized (partition) {
+                if (!isStopCreate.getAsBoolean() && partitions.get(key) == partition) {
+                    partition.state = new State(segment, null, partition.state.active);
+                    return true;
+                }
+            }
+            segment.delete();
+            partitions.remove(key, partition);
+            return false;
+        } catch (IOException | RuntimeException e) {
+            log.error("error: {}", e.getMessage(), e);
+            partitions.remove(key, partition);
+            return false;
+        }
+    }
+
+    public void addRecord(String key, String path) {
+        Partition partition = partitions.get(key);
+        if (partition != null) {
+            synchronized (partition) {
+                partition.state.active.add(path);
+            }
+        }
+    }
+
+    public void removeRecord(String key, String path) {
+        Partition partition = partitions.get(key);
+        if (partition != null) {
+            synchronized (partition) {
+                partition.state.active.remove(path);
+            }
+        }
+    }
+
+    /**
+     * 扫描分区中的所有记录，索引段的块之间在SEARCH_WORKER线程池中并行扫描，调用者也参与扫描
+     *
+     * @param key          分区
+     * @param prefilter    在UTF-8字节上排除一定不匹配的记录，通过后才创建String，为null时不过滤
+     * @param matcher      返回true表示匹配
+     * @param isStopSearch 是否停止
+     * @return 匹配的数量，索引段不存在时返回-1
+     */
+    public long scan(String key, Utf8KeywordFilter prefilter, Predicate<String> matcher, BooleanSupplier isStopSearch) {
+        Partition partition = partitions.get(key);
+        if (partition == null) {
+            return -1;
+        }
+        final State state = partition.state;
+        final Segment segment = state.segment;
+        if (segment == null || !segment.retain()) {
+            // 索引段正在生成或已经被替换，由调用者扫描数据库
+            return -1;
+        }
+        try {
+            final Delta frozen = state.frozen;
+            final Delta active = state.active;
+            final AtomicInteger nextBlock = new AtomicInteger();
+            final CountDownLatch finishedBlocks = new CountDownLatch(segment.blockNum);
+            final LongAdder segmentMatchedNum = new LongAdder();
+            final Runnable scanBlocks = () -> {
+                int blockIndex;
+                while ((blockIndex = nextBlock.getAndIncrement()) < segment.blockNum) {
+                    try {
+                        if (isStopSearch.getAsBoolean()) {
+                            continue;
+                        }
+                        segment.readBlock(blockIndex, (buf, len) -> {
+                            if (prefilter != null && !prefilter.mayMatch(buf, len)) {
+                                return;
+                            }
+                            String path = new String(buf, 0, len, StandardCharsets.UTF_8);
+                            if (!active.tombstones.contains(path) && (frozen == null || !frozen.tombstones.contains(path)) && matcher.test(path)) {
+                                segmentMatchedNum.increment();
+                            }
+                        });
+                    } finally {
+                        finishedBlocks.countDown();
+                    }
+                }
+            };
+            final int helperNum = Math.min(segment.blockNum / MIN_BLOCKS_PER_TASK, Runtime.getRuntime().availableProcessors()) - 1;
+            ThreadPoolUtil threadPoolUtil = ThreadPoolUtil.getInstance();
+            for (int i = 0; i < helperNum; i++) {
+                // 调用者持有引用，这里一定成功，扫描线程可能在调用者返回后才开始执行
+                segment.retain();
+                threadPoolUtil.executeTask(() -> {
+                    try {
+                        scanBlocks.run();
+                    } finally {
+                        segment.release();
+                    }
+                }, ThreadPoolUtil.Bulkhead.SEARCH_WORKER);
+            }
+            // 调用者取走所有未开始的块，只需要等待其他线程正在扫描的块，线程池已满时不会死锁
+            scanBlocks.run();
+            try {
+                finishedBlocks.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            long matchedNum = segmentMatchedNum.sum();
+            if (frozen != null) {
+                for (String path : frozen.adds) {
+                    if (!active.tombstones.contains(path) && matcher.test(path)) {
+                        ++matchedNum;
+                    }
+                }
+            }
+            for (String path : active.adds) {
+                if (matcher.test(path)) {
+                    ++matchedNum;
+                }
+            }
+            return matchedNum;
+        } finally {
+            segment.release();
+        }
+    }
+
+    /**
+     * 将变化较多的分区合并为新的索引段，由后台线程定期调用
+     *
+     * @param isStopCompact 是否停止
+     */
+    public void compact(BooleanSupplier isStopCompact) {
+        undeletedFiles.removeIf(File::delete);
+        for (var entry : partitions.entrySet()) {
+            if (isStopCompact.getAsBoolean()) {
+                return;
+            }
+            Partition partition = entry.getValue();
+            State state = partition.state;
+            if (state.segment == null || state.active.size() < Math.max(MIN_COMPACT_CHANGE_NUM, state.segment.recordNum / 8)) {
+                continue;
+            }
+            compact(entry.getKey(), partition, isStopCompact);
+        }
+    }
+
+    private void compact(String key, Partition partition, BooleanSupplier isStopCompact) {
+        final long startTime = System.currentTimeMillis();
+        State state;
+        synchronized (partition) {
+            // 冻结当前的变化，之后的变化写入新的active
+            state = new State(partition.state.segment, partition.state.active, new Delta());
+            partition.state = state;
+        }
+        final Segment oldSegment = state.segment;
+        final Delta frozen = state.frozen;
+        byte[][] adds = frozen.adds.stream().map(each -> each.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        Arrays.sort(adds, Arrays::compareUnsigned);
+        if (!oldSegment.retain()) {
+            // 分区已经被删除
+            return;
+        }
+        try {
+            Segment newSegment = writeSegment(key, new MergeIterator(oldSegment.iterator(frozen.tombstones), Arrays.asList(adds).iterator()));
+            boolean isSwapped = false;
+            synchronized (partition) {
+                if (!isStopCompact.getAsBoolean() && partitions.get(key) == partition) {
+                    partition.state = new State(newSegment, null, partition.state.active);
+                    isSwapped = true;
+                }
+            }
+            if (!isSwapped) {
+                newSegment.delete();
+                return;
+            }
+            oldSegment.delete();
+            if (IsDebug.isDebug()) {
+                log.info("合并索引段 " + key + " 记录数：" + newSegment.recordNum + " 耗时：" + (System.currentTimeMillis() - startTime) + "ms");
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("error: {}", e.getMessage(), e);
+            // 合并失败时冻结的变化仍然有效，放回active
+            synchronized (partition) {
+                if (partition.state.frozen == frozen) {
+                    Delta active = partition.state.active;
+                    Delta merged = new Delta();
+                    frozen.adds.forEach(merged::add);
+                    frozen.tombstones.forEach(merged::remove);
+                    active.tombstones.forEach(merged::remove);
+                    active.adds.forEach(merged::add);
+                    partition.state = new State(oldSegment, null, merged);
+                }
+            }
+        } finally {
+            oldSegment.release();
+        }
+    }
+
+    /**
+     * 删除分区的索引段，分区不再需要缓存时调用
+     *
+     * @param key 分区
+     */
+    public void drop(String key) {
+        Partition partition = partitions.remove(key);
+        if (partition != null) {
+            synchronized (partition) {
+                if (partition.state.segment != null) {
+                    partition.state.segment.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * 删除所有索引段，数据库被替换或记录在分区之间移动时调用
+     */
+    public void clear() {
+        for (String key : partitions.keySet()) {
+            drop(key);
+        }
+    }
+
+    private Segment writeSegment(String key, Iterator<byte[]> sortedRecords) throws IOException {
+        File segmentDir = new File(Constants.INDEX_SEGMENT_DIR);
+        if (!segmentDir.exists() && !segmentDir.mkdirs()) {
+            throw new IOException("create dir failed " + segmentDir.getAbsolutePath());
+        }
+        File segmentFile = new File(segmentDir, key.replace(',', '_') + "_" + segmentSeq.incrementAndGet() + ".seg");
+        ArrayList<Long> blockOffsets = new ArrayList<>();
+        int recordNum = 0;
+        long offset = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile), 64 * 1024))) {
+            byte[] previous = new byte[0];
+            while (sortedRecords.hasNext()) {
+                byte[] record = sortedRecords.next();
+                final int mismatch = Arrays.mismatch(previous, record);
+                if (mismatch == -1 && recordNum > 0) {
+                    // 重复的记录
+                    continue;
+                }
+                int prefixLen = 0;
+                if (recordNum % BLOCK_SIZE == 0) {
+                    blockOffsets.add(offset);
+                } else {
+                    prefixLen = mismatch;
+                }
+                offset += writeVarInt(out, prefixLen);
+                offset += writeVarInt(out, record.length - prefixLen);
+                out.write(record, prefixLen, record.length - prefixLen);
+                offset += record.length - prefixLen;
+                previous = record;
+                ++recordNum;
+            }
+            final long indexOffset = offset;
+            for (long each : blockOffsets) {
+                out.writeLong(each);
+            }
+            out.writeInt(VERSION);
+            out.writeInt(recordNum);
+            out.writeInt(blockOffsets.size());
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC);
+        } catch (IOException | RuntimeException e) {
+            if (!segmentFile.delete()) {
+                segmentFile.deleteOnExit();
+            }
+            throw e;
+        }
+        return Segment.open(segmentFile);
+    }
+
+    private static int writeVarInt(DataOutputStream out, int value) throws IOException {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+            ++size;
+        }
+        out.write(value);
+        return size;
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    @FunctionalInterface
+    private interface RecordConsumer {
+        /**
+         * @param buf 记录的UTF-8字节，只在调用期间有效
+         * @param len 长度
+         */
+        void accept(byte[] buf, int len);
+    }
+
+    /**
+     * 不可变的索引段文件
+     */
+    private static class Segment {
+        private final File file;
+        private volatile MappedByteBuffer buffer;
+        // 分区持有一个引用，每个扫描和合并持有一个引用，引用为0后释放映射并删除文件
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        private final AtomicBoolean isRetired = new AtomicBoolean();
+        private final int recordNum;
+        private final int blockNum;
+        private final long[] blockOffsets;
+        private final long indexOffset;
+
+        private Segment(File file, MappedByteBuffer buffer, int recordNum, long[] blockOffsets, long indexOffset) {
+            this.file = file;
+            this.buffer = buffer;
+            this.recordNum = recordNum;
+            this.blockNum = blockOffsets.length;
+            this.blockOffsets = blockOffsets;
+            this.indexOffset = indexOffset;
+        }
+
+        private static Segment open(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                final long size = channel.size();
+                if (size < FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                    throw new IOException("segment file broken " + file.getAbsolutePath());
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int footer = (int) (size - FOOTER_SIZE);
+                final int version = buffer.getInt(footer);
+                final int recordNum = buffer.getInt(footer + 4);
+                final int blockNum = buffer.getInt(footer + 8);
+                final long indexOffset = buffer.getLong(footer + 12);
+                if (buffer.getInt(footer + 20) != MAGIC || version != VERSION || indexOffset + (long) blockNum * 8 != footer) {
+                    throw new IOException("segment file broken " + file.getAbsolutePath());
+                }
+                long[] blockOffsets = new long[blockNum];
+                for (int i = 0; i < blockNum; i++) {
+                    blockOffsets[i] = buffer.getLong((int) (indexOffset + (long) i * 8));
+                }
+                return new Segment(file, buffer, recordNum, blockOffsets, indexOffset);
+            }
+        }
+
+        /**
+         * 按顺序读取一个块中的所有记录，每个线程使用独立的缓冲区，不复制文件内容之外的数据
+         */
+        private void readBlock(int blockIndex, RecordConsumer consumer) {
+            ByteBuffer block = buffer.duplicate();
+            final long end = blockIndex + 1 < blockNum ? blockOffsets[blockIndex + 1] : indexOffset;
+            block.limit((int) end);
+            block.position((int) blockOffsets[blockIndex]);
+            byte[] buf = new byte[256];
+            while (block.hasRemaining()) {
+                final int prefixLen = readVarInt(block);
+                final int suffixLen = readVarInt(block);
+                final int len = prefixLen + suffixLen;
+                if (len > buf.length) {
+                    buf = Arrays.copyOf(buf, Math.max(len, buf.length * 2));
+                }
+                block.get(buf, prefixLen, suffixLen);
+                consumer.accept(buf, len);
+            }
+        }
+
+        /**
+         * 按顺序读取所有记录，用于合并
+         *
+         * @param tombstones 跳过的记录
+         */
+        private Iterator<byte[]> iterator(Set<String> tombstones) {
+            ByteBuffer records = buffer.duplicate();
+            records.limit((int) indexOffset);
+            records.position(0);
+            return new Iterator<>() {
+                private byte[] previous = new byte[0];
+                private byte[] next = advance();
+
+                private byte[] advance() {
+                    while (records.hasRemaining()) {
+                        final int prefixLen = readVarInt(records);
+                        final int suffixLen = readVarInt(records);
+                        byte[] record = Arrays.copyOf(previous, prefixLen + suffixLen);
+                        records.get(record, prefixLen, suffixLen);
+                        previous = record;
+                        if (tombstones.isEmpty() || !tombstones.contains(new String(record, StandardCharsets.UTF_8))) {
+                            return record;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public byte[] next() {
+                    byte[] ret = next;
+                    next = advance();
+                    return ret;
+                }
+            };
+        }
+
+        /**
+         * 开始读取前获取引用
+         *
+         * @return false如果索引段已经被删除，不能再读取
+         */
+        private boolean retain() {
+            int count;
+            do {
+                count = refCount.get();
+                if (count <= 0) {
+                    return false;
+                }
+            } while (!refCount.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        /**
+         * 读取完成后释放引用，最后一个引用释放时丢弃映射并删除文件
+         * <p>
+         * Java没有主动解除映射的接口，映射在buffer被回收后才解除，Windows上此时删除可能失败，放入undeletedFiles在合并时重试
+         */
+        private void release() {
+            if (refCount.decrementAndGet() != 0) {
+                return;
+            }
+            buffer = null;
+            if (!file.delete()) {
+                undeletedFiles.add(file);
+                file.deleteOnExit();
+            }
+        }
+
+        /**
+         * 索引段被替换或分区被删除时调用，释放分区持有的引用，正在扫描的线程完成后才会删除文件
+         */
+        private void delete() {
+            if (isRetired.compareAndSet(false, true)) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * 索引段之后的文件变化，同一条记录只会出现在adds或tombstones其中之一
+     */
+    private static class Delta {
+        private final Set<String> adds = ConcurrentHashMap.newKeySet();
+        private final Set<String> tombstones = ConcurrentHashMap.newKeySet();
+
+        private void add(String path) {
+            tombstones.remove(path);
+            adds.add(path);
+        }
+
+        private void remove(String path) {
+            adds.remove(path);
+            tombstones.add(path);
+        }
+
+        private int size() {
+            return adds.size() + tombstones.size();
+        }
+    }
+
+    /**
+     * 分区的状态，整体替换，搜索时读取一次即可得到一致的视图
+     *
+     * @param segment 索引段，正在生成时为null
+     * @param frozen  正在合并的变化，没有合并时为null
+     * @param active  最近的变化
+     */
+    private record State(Segment segment, Delta frozen, Delta active) {
+    }
+
+    private static class Partition {
+        private volatile State state = new State(null, null, new Delta());
+    }
+
+    /**
+     * 合并两个按照UTF-8字节排序的记录序列
+     */
+    private static class MergeIterator implements Iterator<byte[]> {
+        private final Iterator<byte[]> left;
+        private final Iterator<byte[]> right;
+        private byte[] leftHead;
+        private byte[] rightHead;
+
+        private MergeIterator(Iterator<byte[]> left, Iterator<byte[]> right) {
+            this.left = left;
+            this.right = right;
+            this.leftHead = left.hasNext() ? left.next() : null;
+            this.rightHead = right.hasNext() ? right.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return leftHead != null || rightHead != null;
+        }
+
+        @Override
+        public byte[] next() {
+            byte[] ret;
+            if (rightHead == null || (leftHead != null && Arrays.compareUnsigned(leftHead, rightHead) <= 0)) {
+                ret = leftHead;
+                leftHead = left.hasNext() ? left.next() : null;
+            } else {
+                ret = rightHead;
+                rightHead = right.hasNext() ? right.next() : null;
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package file.engine.services.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * 索引快照，包含所有磁盘的文件记录，后缀优先级和常用文件缓存，用于数据库损坏后恢复以及在新机器上导入已有的索引
+ * <p>
+ * 文件格式为 [MAGIC int][VERSION int][创建时间 long]，之后为多个块，每个块为 [类型 byte][盘符 char][长度 int][CRC32 int][内容]
+ * 文件记录按照PATH排序，块中的路径使用前缀压缩，每个块的第一条记录保存完整路径
+ * 最后一个块的类型为SECTION_END，内容为记录总数，没有该块的文件（写入时程序退出）视为不完整
+ * <p>
+ * 快照中不保存表名和ASCII，导入时按照当前的分区方式重新计算，分区统计信息在导入后重新统计
+ */
+public class IndexSnapshot {
+    public static final byte SECTION_PRIORITY = 1;
+    public static final byte SECTION_CACHE = 2;
+    public static final byte SECTION_LIST = 3;
+    private static final byte SECTION_END = 127;
+    private static final int MAGIC = 0x46455350; // FESP
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final int BLOCK_HEADER_SIZE = 1 + 2 + 4 + 4;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    private IndexSnapshot() {
+        throw new RuntimeException("not allowed");
+    }
+
+    /**
+     * 读取快照时的回调
+     */
+    public interface Visitor {
+        void onPriority(String suffix, int priority) throws IOException;
+
+        void onCache(String path, int count) throws IOException;
+
+        void onList(char disk, int priority, String path) throws IOException;
+    }
+
+    /**
+     * 写入快照，先写入临时文件，commit时写入结束块并替换目标文件，没有commit时close删除临时文件，中途失败不会影响已有的快照
+     */
+    public static class Writer implements Closeable {
+        private final Path target;
+        private final Path tmpFile;
+        private final FileChannel channel;
+        private final ByteArrayOutputStream blockBuffer = new ByteArrayOutputStream(MAX_BLOCK_SIZE + 64 * 1024);
+        private final DataOutputStream blockOut = new DataOutputStream(blockBuffer);
+        private byte blockType = 0;
+        private char blockDisk = 0;
+        private byte[] previousPath = new byte[0];
+        private long recordNum = 0;
+        private boolean isCommitted = false;
+
+        public Writer(Path target) throws IOException {
+            this.target = target;
+            this.tmpFile = target.resolveSibling(target.getFileName() + ".tmp");
+            Path parent = target.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            this.channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(System.currentTimeMillis());
+            header.flip();
+            writeFully(header);
+        }
+
+        public void writePriority(String suffix, int priority) throws IOException {
+            switchBlock(SECTION_PRIORITY, (char) 0);
+            writeString(blockOut, suffix.getBytes(StandardCharsets.UTF_8));
+            blockOut.writeInt(priority);
+            afterRecord();
+        }
+
+        public void writeCache(String path, int count) throws IOException {
+            switchBlock(SECTION_CACHE, (char) 0);
+            writeString(blockOut, path.getBytes(StandardCharsets.UTF_8));
+            blockOut.writeInt(count);
+            afterRecord();
+        }
+
+        /**
+         * 写入文件记录，同一个磁盘的记录按照PATH排序时压缩效果最好
+         */
+        public void writeList(char disk, int priority, String path) throws IOException {
+            writeList(disk, priority, path.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * 写入文件记录，路径为UTF-8字节，可以直接使用数据库中读取的字节
+         */
+        public void writeList(char disk, int priority, byte[] pathBytes) throws IOException {
+            switchBlock(SECTION_LIST, disk);
+            int prefixLen = Arrays.mismatch(previousPath, pathBytes);
+            if (prefixLen < 0) {
+                prefixLen = pathBytes.length;
+            }
+            blockOut.writeInt(priority);
+            writeVarInt(blockOut, prefixLen);
+            writeVarInt(blockOut, pathBytes.length - prefixLen);
+            blockOut.write(pathBytes, prefixLen, pathBytes.length - prefixLen);
+            previousPath = pathBytes;
+            afterRecord();
+        }
+
+        /**
+         * 写入结束块并替换目标文件
+         */
+        public void commit() throws IOException {
+            flushBlock();
+            blockOut.writeLong(recordNum);
+            blockType = SECTION_END;
+            flushBlock();
+            channel.force(true);
+            channel.close();
+            Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            isCommitted = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isCommitted) {
+                return;
+            }
+            channel.close();
+            Files.deleteIfExists(tmpFile);
+        }
+
+        private void switchBlock(byte type, char disk) throws IOException {
+            if (blockType != type || blockDisk != disk) {
+                flushBlock();
+                blockType = type;
+                blockDisk = disk;
+            }
+        }
+
+        private void afterRecord() throws IOException {
+            ++recordNum;
+            if (blockBuffer.size() >= MAX_BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (blockBuffer.size() == 0 && blockType != SECTION_END) {
+                return;
+            }
+            blockOut.flush();
+            byte[] content = blockBuffer.toByteArray();
+            CRC32 crc32 = new CRC32();
+            crc32.update(content);
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            blockHeader.put(blockType);
+            blockHeader.putChar(blockDisk);
+            blockHeader.putInt(content.length);
+            blockHeader.putInt((int) crc32.getValue());
+            blockHeader.flip();
+            writeFully(blockHeader);
+            writeFully(ByteBuffer.wrap(content));
+            blockBuffer.reset();
+            previousPath = new byte[0];
+        }
+
+        private void writeFully(ByteBuffer byteBuffer) throws IOException {
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+        }
+    }
+
+    /**
+     * 检查快照是否完整，所有块的校验和都正确并且存在结束块
+     *
+     * @param snapshot 快照文件
+     * @return 快照中的记录数量
+     * @throws IOException 快照不完整或已损坏
+     */
+    public static long verify(Path snapshot) throws IOException {
+        return read(snapshot, null);
+    }
+
+    /**
+     * 读取快照中的所有记录，读取前应先调用verify，否则读取到损坏的块之前的记录已经被处理
+     *
+     * @param snapshot 快照文件
+     * @param visitor  回调
+     * @return 快照中的记录数量
+     * @throws IOException 快照不完整或已损坏
+     */
+    public static long read(Path snapshot, Visitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("unsupported snapshot " + snapshot);
+            }
+            long recordNum = 0;
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            while (true) {
+                blockHeader.clear();
+                readFully(channel, blockHeader);
+                final byte type = blockHeader.get();
+                final char disk = blockHeader.getChar();
+                final int length = blockHeader.getInt();
+                final int crc = blockHeader.getInt();
+                if (length < 0 || length > MAX_BLOCK_SIZE * 2) {
+                    throw new IOException("snapshot broken " + snapshot);
+                }
+                byte[] content = new byte[length];
+                readFully(channel, ByteBuffer.wrap(content));
+                CRC32 crc32 = new CRC32();
+                crc32.update(content);
+                if ((int) crc32.getValue() != crc) {
+                    throw new IOException("snapshot checksum error " + snapshot);
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+                if (type == SECTION_END) {
+                    if (in.readLong() != recordNum) {
+                        throw new IOException("snapshot broken " + snapshot);
+                    }
+                    return recordNum;
+                }
+                recordNum += readBlock(type, disk, in, visitor);
+            }
+        }
+    }
+
+    private static long readBlock(byte type, char disk, DataInputStream in, Visitor visitor) throws IOException {
+        long recordNum = 0;
+        byte[] path = new byte[256];
+        while (in.available() > 0) {
+            switch (type) {
+                case SECTION_PRIORITY -> {
+                    String suffix = new String(readString(in), StandardCharsets.UTF_8);
+                    final int priority = in.readInt();
+                    if (visitor != null) {
+                        visitor.onPriority(suffix, priority);
+                    }
+                }
+                case SECTION_CACHE -> {
+                    String cachePath = new String(readString(in), StandardCharsets.UTF_8);
+                    final int count = in.readInt();
+                    if (visitor != null) {
+                        visitor.onCache(cachePath, count);
+                    }
+                }
+                case SECTION_LIST -> {
+                    final int priority = in.readInt();
+                    final int prefixLen = readVarInt(in);
+                    final int suffixLen = readVarInt(in);
+                    if (prefixLen + suffixLen > path.length) {
+                        path = Arrays.copyOf(path, Math.max(prefixLen + suffixLen, path.length * 2));
+                    }
+                    in.readFully(path, prefixLen, suffixLen);
+                    if (visitor != null) {
+                        visitor.onList(disk, priority, new String(path, 0, prefixLen + suffixLen, StandardCharsets.UTF_8));
+                    }
+                }
+                default -> throw new IOException("unknown snapshot section " + type);
+            }
+            ++recordNum;
+        }
+        return recordNum;
+    }
+
+    private static void writeString(DataOutputStream out, byte[] bytes) throws IOException {
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 28) {
+                throw new IOException("snapshot broken");
+            }
+            b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer byteBuffer) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            if (channel.read(byteBuffer) < 0) {
+                throw new IOException("snapshot incomplete");
+            }
+        }
+        byteBuffer.flip();
+    }
+}
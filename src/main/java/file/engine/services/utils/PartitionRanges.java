@@ -0,0 +1,133 @@
+package file.engine.services.utils;
+
+import file.engine.services.utils.connection.SQLiteUtil;
+import file.engine.utils.RegexUtil;
+import file.engine.utils.ThreadPoolUtil;
+import file.engine.utils.system.properties.IsDebug;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 将记录数很多的分区（[盘符,表名,优先级]）按照ASCII拆分为多个主键范围，每个范围由不同的搜索线程使用不同的连接同时扫描
+ * list表为WITHOUT ROWID表，主键为(PRIORITY, ASCII, PATH)，同一个优先级中ASCII的一段范围是一段连续的主键
+ * <p>
+ * 范围的边界按照ASCII的分布计算，使每个范围的记录数接近，计算需要扫描一次分区，在后台进行
+ * 分区记录数与计算时相差超过四分之一时重新计算
+ */
+@Slf4j
+public enum PartitionRanges {
+    INSTANCE;
+    // 记录数不少于该值的分区才拆分
+    private static final int MIN_SPLIT_RECORD_NUM = 200_000;
+    // 每个范围的最少记录数
+    private static final int MIN_RANGE_RECORD_NUM = 100_000;
+    private static final int MAX_RANGE_NUM = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // key为[盘符,表名,优先级]
+    private final ConcurrentHashMap<String, Ranges> rangesMap = new ConcurrentHashMap<>();
+    // 正在计算边界的分区
+    private final Set<String> computingKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param recordNum  计算边界时分区的记录数
+     * @param boundaries 范围的边界，共boundaries.length + 1个范围，第一个范围没有下界，最后一个范围没有上界
+     */
+    private record Ranges(int recordNum, int[] boundaries) {
+    }
+
+    /**
+     * 获取分区拆分后的范围边界，边界还未计算或已过期时在后台计算，本次返回null
+     *
+     * @param key       [盘符,表名,优先级]
+     * @param recordNum 分区当前的记录数
+     * @return ASCII的边界，升序排列，不需要拆分或还未计算时为null
+     */
+    public int[] getBoundaries(String key, int recordNum) {
+        if (recordNum < MIN_SPLIT_RECORD_NUM) {
+            return null;
+        }
+        Ranges ranges = rangesMap.get(key);
+        if (ranges != null && Math.abs(recordNum - ranges.recordNum) <= ranges.recordNum / 4) {
+            return ranges.boundaries.length == 0 ? null : ranges.boundaries;
+        }
+        if (computingKeys.add(key)) {
+            ThreadPoolUtil.getInstance().executeTask(() -> {
+                try {
+                    computeBoundaries(key, recordNum);
+                } finally {
+                    computingKeys.remove(key);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * 生成范围的查询条件
+     *
+     * @param boundaries 边界
+     * @param rangeIndex 范围的编号，0到boundaries.length
+     * @return 以AND开头的条件
+     */
+    public static String getRangeCondition(int[] boundaries, int rangeIndex) {
+        StringBuilder condition = new StringBuilder();
+        if (rangeIndex > 0) {
+            condition.append(" AND ASCII >= ").append(boundaries[rangeIndex - 1]);
+        }
+        if (rangeIndex < boundaries.length) {
+            condition.append(" AND ASCII < ").append(boundaries[rangeIndex]);
+        }
+        return condition.toString();
+    }
+
+    /**
+     * 数据库被替换后调用，删除该磁盘所有分区的边界
+     *
+     * @param disk 盘符
+     */
+    public void invalidate(String disk) {
+        final String prefix = disk + ",";
+        rangesMap.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public void clear() {
+        rangesMap.clear();
+    }
+
+    private void computeBoundaries(String key, int recordNum) {
+        String[] info = RegexUtil.comma.split(key);
+        final long startTime = System.currentTimeMillis();
+        final int rangeNum = Math.min(MAX_RANGE_NUM, recordNum / MIN_RANGE_RECORD_NUM);
+        ArrayList<Integer> boundaries = new ArrayList<>();
+        long totalNum = 0;
+        try (Statement stmt = SQLiteUtil.getReadOnlyStatement(info[0]);
+             ResultSet resultSet = stmt.executeQuery("SELECT ASCII, COUNT(*) FROM " + info[1] + " WHERE PRIORITY=" + Integer.parseInt(info[2]) + " GROUP BY ASCII;")) {
+            // 每个范围的记录数达到recordNum / rangeNum时，下一个ASCII作为边界
+            final long rangeRecordNum = Math.max(1, recordNum / rangeNum);
+            long currentRangeNum = 0;
+            while (resultSet.next()) {
+                final int ascii = resultSet.getInt(1);
+                final long count = resultSet.getLong(2);
+                if (currentRangeNum >= rangeRecordNum && boundaries.size() < rangeNum - 1) {
+                    boundaries.add(ascii);
+                    currentRangeNum = 0;
+                }
+                currentRangeNum += count;
+                totalNum += count;
+            }
+        } catch (SQLException e) {
+            log.error("error: {}", e.getMessage(), e);
+            return;
+        }
+        int[] boundaryArray = boundaries.stream().mapToInt(Integer::intValue).toArray();
+        rangesMap.put(key, new Ranges((int) totalNum, boundaryArray));
+        if (IsDebug.isDebug()) {
+            log.info("分区" + key + "拆分为" + (boundaryArray.length + 1) + "个范围，记录数：" + totalNum + " 耗时：" + (System.currentTimeMillis() - startTime) + "ms");
+        }
+    }
+}
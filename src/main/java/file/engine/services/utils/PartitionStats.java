@@ -0,0 +1,381 @@
+package file.engine.services.utils;
+
+import file.engine.configs.Constants;
+import file.engine.services.utils.connection.SQLiteUtil;
+import file.engine.utils.RegexUtil;
+import file.engine.utils.system.properties.IsDebug;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每个分区（[盘符,表名,优先级]）的统计信息：记录数，路径总长度，最后修改的版本号以及命中次数
+ * 保存在每个磁盘数据库的partition_stats表中，记录数和路径长度在写入文件变化的同一个事务中更新，启动时读取
+ * 不需要定期对每个分区执行COUNT(*)和SUM(LENGTH(PATH))
+ * <p>
+ * 每个数据库的统计信息只由该数据库的写入线程修改，搜索线程只读取和累计命中次数
+ * 命中次数先在内存中累计，随该数据库的下一次写入事务保存
+ */
+@Slf4j
+public enum PartitionStats {
+    INSTANCE;
+    private static final String UPSERT_SQL = "INSERT INTO partition_stats VALUES(?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT(TABLE_NAME, PRIORITY) DO UPDATE SET " +
+            "RECORD_NUM=RECORD_NUM+excluded.RECORD_NUM, " +
+            "TOTAL_BYTES=TOTAL_BYTES+excluded.TOTAL_BYTES, " +
+            "GENERATION=MAX(GENERATION, excluded.GENERATION), " +
+            "HIT_COUNT=HIT_COUNT+excluded.HIT_COUNT;";
+    // key为[盘符,表名,优先级]
+    private final ConcurrentHashMap<String, Stat> statsMap = new ConcurrentHashMap<>();
+    // key为盘符，value为该数据库最后一次写入文件变化的版本号，每个写入事务加一
+    private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    // 已经读取统计信息的数据库，其他数据库的分区记录数未知
+    private final Set<String> loadedDisks = ConcurrentHashMap.newKeySet();
+
+    private static class Stat {
+        private volatile int recordNum;
+        private volatile long totalBytes;
+        private volatile long generation;
+        private volatile long savedHitCount;
+        private final LongAdder pendingHitCount = new LongAdder();
+
+        private long getHitCount() {
+            return savedHitCount + pendingHitCount.sum();
+        }
+    }
+
+    /**
+     * 一个写入事务中所有分区的变化
+     */
+    public static class Delta {
+        private final String disk;
+        // key为[表名,优先级]，value为[记录数变化, 路径长度变化]
+        private final HashMap<String, long[]> changes = new HashMap<>();
+        // key为[盘符,表名,优先级]，保存时取出的命中次数
+        private final HashMap<String, Long> savedHits = new HashMap<>();
+        private long generation;
+
+        private Delta(String disk) {
+            this.disk = disk;
+        }
+
+        /**
+         * 记录一个文件的添加或删除
+         *
+         * @param tableName 表名
+         * @param priority  优先级
+         * @param path      文件路径
+         * @param isInsert  true为添加，false为删除
+         */
+        public void add(String tableName, int priority, String path, boolean isInsert) {
+            long[] change = changes.computeIfAbsent(tableName + "," + priority, k -> new long[2]);
+            // 与sqlite的LENGTH()一致，按照字符数计算
+            final int length = path.codePointCount(0, path.length());
+            if (isInsert) {
+                change[0]++;
+                change[1] += length;
+            } else {
+                change[0]--;
+                change[1] -= length;
+            }
+        }
+
+        public boolean isEmpty() {
+            return changes.isEmpty() && savedHits.isEmpty();
+        }
+    }
+
+    public Delta newDelta(String disk) {
+        return new Delta(disk);
+    }
+
+    /**
+     * 在写入文件变化的事务中保存统计信息的变化，必须在COMMIT之前调用，COMMIT成功后调用apply更新内存中的统计信息
+     * 事务失败时取出的命中次数会丢失，命中次数只用于排序，不影响搜索结果
+     *
+     * @param delta 变化
+     * @throws SQLException 失败
+     */
+    public void save(Delta delta) throws SQLException {
+        final String prefix = delta.disk + ",";
+        for (Map.Entry<String, Stat> entry : statsMap.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                final long hits = entry.getValue().pendingHitCount.sumThenReset();
+                if (hits != 0) {
+                    delta.savedHits.put(entry.getKey(), hits);
+                }
+            }
+        }
+        if (delta.isEmpty()) {
+            return;
+        }
+        delta.generation = getGeneration(delta.disk) + 1;
+        try (PreparedStatement pStmt = SQLiteUtil.getPreparedStatement(UPSERT_SQL, delta.disk)) {
+            for (Map.Entry<String, long[]> entry : delta.changes.entrySet()) {
+                String[] tableAndPriority = RegexUtil.comma.split(entry.getKey());
+                long[] change = entry.getValue();
+                final Long hits = delta.savedHits.get(prefix + entry.getKey());
+                addUpsertBatch(pStmt, tableAndPriority[0], Integer.parseInt(tableAndPriority[1]), change[0], change[1], delta.generation, hits == null ? 0 : hits);
+            }
+            for (Map.Entry<String, Long> entry : delta.savedHits.entrySet()) {
+                String[] info = RegexUtil.comma.split(entry.getKey());
+                if (delta.changes.containsKey(info[1] + "," + info[2])) {
+                    continue;
+                }
+                // 只有命中次数变化的分区不修改版本号
+                addUpsertBatch(pStmt, info[1], Integer.parseInt(info[2]), 0, 0, 0, entry.getValue());
+            }
+            pStmt.executeBatch();
+        }
+    }
+
+    private static void addUpsertBatch(PreparedStatement pStmt,
+                                       String tableName,
+                                       int priority,
+                                       long recordNum,
+                                       long totalBytes,
+                                       long generation,
+                                       long hitCount) throws SQLException {
+        pStmt.setString(1, tableName);
+        pStmt.setInt(2, priority);
+        pStmt.setLong(3, recordNum);
+        pStmt.setLong(4, totalBytes);
+        pStmt.setLong(5, generation);
+        pStmt.setLong(6, hitCount);
+        pStmt.addBatch();
+    }
+
+    /**
+     * 事务提交成功后更新内存中的统计信息
+     *
+     * @param delta 已保存的变化
+     */
+    public void apply(Delta delta) {
+        if (delta.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, long[]> entry : delta.changes.entrySet()) {
+            Stat stat = statsMap.computeIfAbsent(delta.disk + "," + entry.getKey(), k -> new Stat());
+            long[] change = entry.getValue();
+            stat.recordNum = (int) Math.max(0, stat.recordNum + change[0]);
+            stat.totalBytes = Math.max(0, stat.totalBytes + change[1]);
+            stat.generation = delta.generation;
+        }
+        delta.savedHits.forEach((key, hits) -> {
+            Stat stat = statsMap.get(key);
+            if (stat != null) {
+                stat.savedHitCount += hits;
+            }
+        });
+        if (!delta.changes.isEmpty()) {
+            generations.computeIfAbsent(delta.disk, k -> new AtomicLong()).accumulateAndGet(delta.generation, Math::max);
+        }
+    }
+
+    /**
+     * 读取数据库中保存的统计信息，partition_stats为空时（新建的数据库或从旧版本升级）重新统计
+     *
+     * @param disk 盘符
+     * @param stmt 写入连接的Statement，不能在事务中
+     * @throws SQLException 失败
+     */
+    public void load(String disk, Statement stmt) throws SQLException {
+        HashMap<String, Stat> loaded = new HashMap<>();
+        long maxGeneration = 0;
+        try (ResultSet resultSet = stmt.executeQuery("SELECT TABLE_NAME, PRIORITY, RECORD_NUM, TOTAL_BYTES, GENERATION, HIT_COUNT FROM partition_stats;")) {
+            while (resultSet.next()) {
+                Stat stat = new Stat();
+                stat.recordNum = resultSet.getInt("RECORD_NUM");
+                stat.totalBytes = resultSet.getLong("TOTAL_BYTES");
+                stat.generation = resultSet.getLong("GENERATION");
+                stat.savedHitCount = resultSet.getLong("HIT_COUNT");
+                maxGeneration = Math.max(maxGeneration, stat.generation);
+                loaded.put(disk + "," + resultSet.getString("TABLE_NAME") + "," + resultSet.getInt("PRIORITY"), stat);
+            }
+        }
+        if (loaded.isEmpty()) {
+            recompute(disk, stmt);
+            return;
+        }
+        replaceDiskStats(disk, loaded, maxGeneration);
+    }
+
+    /**
+     * 从list表重新统计所有分区，用于数据库重建后以及写入失败导致统计信息可能不准确时
+     * 每个表只需要一次按照PRIORITY分组的扫描，命中次数保留
+     *
+     * @param disk 盘符
+     * @param stmt 写入连接的Statement，不能在事务中
+     * @throws SQLException 失败
+     */
+    public void recompute(String disk, Statement stmt) throws SQLException {
+        final long startTime = System.currentTimeMillis();
+        final long generation = getGeneration(disk) + 1;
+        HashMap<String, Stat> recomputed = new HashMap<>();
+        for (int i = 0; i <= Constants.MAX_TABLE_NUM; i++) {
+            String tableName = "list" + i;
+            try (ResultSet resultSet = stmt.executeQuery("SELECT PRIORITY, COUNT(*) AS RECORD_NUM, SUM(LENGTH(PATH)) AS TOTAL_BYTES FROM " + tableName + " GROUP BY PRIORITY;")) {
+                while (resultSet.next()) {
+                    String key = disk + "," + tableName + "," + resultSet.getInt("PRIORITY");
+                    Stat stat = new Stat();
+                    stat.recordNum = resultSet.getInt("RECORD_NUM");
+                    stat.totalBytes = resultSet.getLong("TOTAL_BYTES");
+                    stat.generation = generation;
+                    Stat previous = statsMap.get(key);
+                    stat.savedHitCount = previous == null ? 0 : previous.getHitCount();
+                    recomputed.put(key, stat);
+                }
+            }
+        }
+        stmt.execute("BEGIN;");
+        try {
+            stmt.executeUpdate("DELETE FROM partition_stats;");
+            try (PreparedStatement pStmt = SQLiteUtil.getPreparedStatement(UPSERT_SQL, disk)) {
+                for (Map.Entry<String, Stat> entry : recomputed.entrySet()) {
+                    String[] info = RegexUtil.comma.split(entry.getKey());
+                    Stat stat = entry.getValue();
+                    addUpsertBatch(pStmt, info[1], Integer.parseInt(info[2]), stat.recordNum, stat.totalBytes, stat.generation, stat.savedHitCount);
+                }
+                pStmt.executeBatch();
+            }
+            stmt.execute("COMMIT;");
+        } catch (SQLException e) {
+            stmt.execute("ROLLBACK;");
+            throw e;
+        }
+        replaceDiskStats(disk, recomputed, generation);
+        if (IsDebug.isDebug()) {
+            log.info("重新统计数据库" + disk + "完成，分区数量：" + recomputed.size() + " 耗时：" + (System.currentTimeMillis() - startTime) + "ms");
+        }
+    }
+
+    private void replaceDiskStats(String disk, HashMap<String, Stat> newStats, long generation) {
+        final String prefix = disk + ",";
+        statsMap.keySet().removeIf(key -> key.startsWith(prefix) && !newStats.containsKey(key));
+        statsMap.putAll(newStats);
+        generations.computeIfAbsent(disk, k -> new AtomicLong()).set(generation);
+        loadedDisks.add(disk);
+    }
+
+    private long getGeneration(String disk) {
+        AtomicLong generation = generations.get(disk);
+        return generation == null ? 0 : generation.get();
+    }
+
+    /**
+     * 获取分区的记录数
+     *
+     * @param key [盘符,表名,优先级]
+     * @return 记录数，统计信息还未读取时为-1
+     */
+    public int getRecordNum(String key) {
+        Stat stat = statsMap.get(key);
+        if (stat != null) {
+            return stat.recordNum;
+        }
+        return loadedDisks.contains(key.substring(0, key.indexOf(','))) ? 0 : -1;
+    }
+
+    /**
+     * 获取分区所有路径的总长度
+     *
+     * @param key [盘符,表名,优先级]
+     * @return 总长度，统计信息还未读取时为0
+     */
+    public long getTotalBytes(String key) {
+        Stat stat = statsMap.get(key);
+        return stat == null ? 0 : stat.totalBytes;
+    }
+
+    /**
+     * 获取分区的最后修改版本号，版本号只在同一个数据库内可比较
+     *
+     * @param key [盘符,表名,优先级]
+     * @return 版本号
+     */
+    public long getPartitionGeneration(String key) {
+        Stat stat = statsMap.get(key);
+        return stat == null ? 0 : stat.generation;
+    }
+
+    /**
+     * 获取分区的命中次数
+     *
+     * @param key [盘符,表名,优先级]
+     * @return 命中次数
+     */
+    public long getHitCount(String key) {
+        Stat stat = statsMap.get(key);
+        return stat == null ? 0 : stat.getHitCount();
+    }
+
+    /**
+     * 获取每个表的记录数
+     *
+     * @param disk 盘符
+     * @return 下标为表的编号，统计信息还未读取时为null
+     */
+    public long[] getTableRecordNums(String disk) {
+        if (!loadedDisks.contains(disk)) {
+            return null;
+        }
+        long[] tableRecordNums = new long[Constants.MAX_TABLE_NUM + 1];
+        final String prefix = disk + ",list";
+        statsMap.forEach((key, stat) -> {
+            if (key.startsWith(prefix)) {
+                final int tableIndex = Integer.parseInt(key.substring(prefix.length(), key.indexOf(',', prefix.length())));
+                if (tableIndex >= 0 && tableIndex < tableRecordNums.length) {
+                    tableRecordNums[tableIndex] += stat.recordNum;
+                }
+            }
+        });
+        return tableRecordNums;
+    }
+
+    /**
+     * 获取表中存在记录的所有优先级
+     *
+     * @param disk      盘符
+     * @param tableName 表名
+     * @return 优先级，统计信息还未读取时为null
+     */
+    public ArrayList<Integer> getPriorities(String disk, String tableName) {
+        if (!loadedDisks.contains(disk)) {
+            return null;
+        }
+        ArrayList<Integer> priorities = new ArrayList<>();
+        final String prefix = disk + "," + tableName + ",";
+        statsMap.forEach((key, stat) -> {
+            if (key.startsWith(prefix) && stat.recordNum > 0) {
+                priorities.add(Integer.parseInt(key.substring(prefix.length())));
+            }
+        });
+        return priorities;
+    }
+
+    /**
+     * 记录分区在搜索中匹配的结果数量
+     *
+     * @param key     [盘符,表名,优先级]
+     * @param hitsNum 匹配的数量
+     */
+    public void recordHits(String key, long hitsNum) {
+        if (hitsNum <= 0) {
+            return;
+        }
+        Stat stat = statsMap.get(key);
+        if (stat != null) {
+            stat.pendingHitCount.add(hitsNum);
+        }
+    }
+}
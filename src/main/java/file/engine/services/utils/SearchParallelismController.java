@@ -0,0 +1,126 @@
+package file.engine.services.utils;
+
+import file.engine.utils.system.properties.IsDebug;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 根据每个分区的扫描耗时，同时进行的搜索数量以及工作线程的排队时间，动态调整每次搜索每个磁盘使用的线程数
+ * 大量数据并且未被缓存的分区使用更多的线程，多个小搜索同时进行时每个搜索使用更少的线程
+ * 线程数不会超过配置中的searchThreadNumber
+ */
+@Slf4j
+public enum SearchParallelismController {
+    INSTANCE;
+    // 指数加权移动平均的系数，越大则越偏向于最近的观测值
+    private static final double ALPHA = 0.2;
+    // 未被观测过的分区的预估扫描耗时
+    private static final double DEFAULT_PARTITION_COST_MILLS = 2.0;
+    // 未被观测过但已知记录数的分区，每条记录的预估扫描耗时
+    private static final double DEFAULT_RECORD_COST_MILLS = 0.0002;
+    // 每个线程期望负责的扫描耗时，预估耗时越长使用的线程越多
+    private static final double TARGET_COST_PER_THREAD_MILLS = 50.0;
+    // 工作线程平均排队时间超过该值时，说明线程已经不足，减少每个搜索的线程数
+    private static final double QUEUE_DELAY_THRESHOLD_MILLS = 20.0;
+    // key为[盘符,表名,优先级]，value为该分区扫描耗时的移动平均值
+    private final ConcurrentHashMap<String, Double> partitionCostMap = new ConcurrentHashMap<>();
+    private final AtomicInteger runningSearchCount = new AtomicInteger();
+    // 排队时间的移动平均值，单位毫秒，保存double的位，多个工作线程同时更新时通过CAS保证不丢失观测值
+    private final AtomicLong queueDelayMillsBits = new AtomicLong(Double.doubleToRawLongBits(0));
+
+    public void searchStarted() {
+        runningSearchCount.incrementAndGet();
+    }
+
+    public void searchFinished() {
+        runningSearchCount.decrementAndGet();
+    }
+
+    /**
+     * 记录一个分区的扫描耗时
+     *
+     * @param key       [盘符,表名,优先级]
+     * @param costNanos 耗时
+     */
+    public void recordPartitionScan(String key, long costNanos) {
+        final double costMills = costNanos / 1_000_000.0;
+        partitionCostMap.merge(key, costMills, (oldVal, newVal) -> oldVal * (1 - ALPHA) + newVal * ALPHA);
+    }
+
+    /**
+     * 记录工作线程从提交到开始执行的等待时间
+     *
+     * @param delayNanos 等待时间
+     */
+    public void recordQueueDelay(long delayNanos) {
+        final double delayMills = delayNanos / 1_000_000.0;
+        long oldBits;
+        long newBits;
+        do {
+            oldBits = queueDelayMillsBits.get();
+            newBits = Double.doubleToRawLongBits(Double.longBitsToDouble(oldBits) * (1 - ALPHA) + delayMills * ALPHA);
+        } while (!queueDelayMillsBits.compareAndSet(oldBits, newBits));
+    }
+
+    private double getQueueDelayMills() {
+        return Double.longBitsToDouble(queueDelayMillsBits.get());
+    }
+
+    /**
+     * 获取分区的预估扫描耗时，未被观测过的分区根据记录数估算
+     *
+     * @param key       [盘符,表名,优先级]
+     * @param recordNum 分区的记录数，未知时为-1
+     * @return 预估耗时，单位毫秒
+     */
+    public double getPartitionCostMills(String key, int recordNum) {
+        Double costMills = partitionCostMap.get(key);
+        if (costMills != null) {
+            return costMills;
+        }
+        return recordNum < 0 ? DEFAULT_PARTITION_COST_MILLS : recordNum * DEFAULT_RECORD_COST_MILLS;
+    }
+
+    /**
+     * 计算每个磁盘使用的搜索线程数
+     *
+     * @param diskCount          磁盘数量
+     * @param taskCountPerDisk   每个磁盘的任务数量，线程数不会超过任务数
+     * @param estimatedCostMills 本次搜索所有分区的预估扫描耗时
+     * @param maxThreadNumber    配置的最大线程数
+     * @return 线程数
+     */
+    public int getThreadNumberPerDisk(int diskCount, int taskCountPerDisk, double estimatedCostMills, int maxThreadNumber) {
+        diskCount = Math.max(1, diskCount);
+        final int availableProcessors = Runtime.getRuntime().availableProcessors();
+        final int runningSearch = Math.max(1, runningSearchCount.get());
+        // 所有正在进行的搜索平分线程
+        final int fairShare = Math.max(1, availableProcessors * 2 / runningSearch / diskCount);
+        int threadNumber = (int) Math.ceil(estimatedCostMills / TARGET_COST_PER_THREAD_MILLS / diskCount);
+        threadNumber = Math.min(threadNumber, fairShare);
+        final double queueDelayMills = getQueueDelayMills();
+        if (queueDelayMills > QUEUE_DELAY_THRESHOLD_MILLS) {
+            threadNumber /= 2;
+        }
+        threadNumber = Math.min(threadNumber, Math.max(1, taskCountPerDisk));
+        threadNumber = Math.max(1, Math.min(threadNumber, maxThreadNumber));
+        if (IsDebug.isDebug()) {
+            log.info("搜索线程数：" + threadNumber + " 预估耗时：" + estimatedCostMills + "ms 正在进行的搜索：" + runningSearch + " 排队时间：" + queueDelayMills + "ms");
+        }
+        return threadNumber;
+    }
+
+    /**
+     * 计算GPU加速收集结果的线程数
+     *
+     * @param maxThreadNumber 配置的最大线程数
+     * @return 线程数
+     */
+    public int getGpuCollectThreadNumber(int maxThreadNumber) {
+        final int runningSearch = Math.max(1, runningSearchCount.get());
+        return Math.max(2, maxThreadNumber / 4 / runningSearch);
+    }
+}
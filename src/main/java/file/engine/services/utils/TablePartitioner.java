@@ -0,0 +1,121 @@
+package file.engine.services.utils;
+
+import file.engine.configs.Constants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 根据文件名决定记录保存在哪个表（list0-list40）
+ * <p>
+ * HASH：文件名的UTF-8字节（只将A-Z转为小写）的FNV-1a哈希值对分区数量取余，中文，日文等文件名和较长的文件名都能均匀分布
+ * UTF8_SUM：旧版本的分区方式，UTF-8字节中正数的和除以100，非ASCII字符被忽略，长文件名全部集中在list40
+ * <p>
+ * 与fileSearcherUSN中的实现必须一致，分区方式和数量保存在每个磁盘数据库的partition_layout表中，
+ * 与配置不一致时由DatabaseService在后台将记录迁移到新的表中，迁移期间所有表仍然可以搜索
+ */
+public enum TablePartitioner {
+    INSTANCE;
+    public static final String SCHEME_HASH = "hash";
+    public static final String SCHEME_UTF8_SUM = "utf8Sum";
+    public static final int MAX_PARTITION_NUM = Constants.MAX_TABLE_NUM + 1;
+    /**
+     * 旧版本数据库没有partition_layout表，使用该分区方式
+     */
+    public static final String LEGACY_LAYOUT = SCHEME_UTF8_SUM + ":" + MAX_PARTITION_NUM;
+    /**
+     * 数据由fileSearcherUSN重建后无法确定所有记录使用的分区方式，需要检查所有记录
+     */
+    public static final String UNKNOWN_LAYOUT = "unknown";
+    private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+    private volatile boolean isHash = true;
+    private volatile int partitionNum = MAX_PARTITION_NUM;
+    // 正在迁移的磁盘，迁移期间记录可能在旧的表中
+    private final Set<String> migratingDisks = ConcurrentHashMap.newKeySet();
+    // key为盘符，数据库被替换后加一，正在进行的迁移需要重新检查所有表
+    private final ConcurrentHashMap<String, AtomicInteger> layoutEpochs = new ConcurrentHashMap<>();
+
+    /**
+     * 设置分区方式，只在启动时调用
+     *
+     * @param scheme       hash或utf8Sum
+     * @param partitionNum 分区数量，1-41
+     */
+    public void configure(String scheme, int partitionNum) {
+        this.isHash = !SCHEME_UTF8_SUM.equals(scheme);
+        this.partitionNum = Math.max(1, Math.min(MAX_PARTITION_NUM, partitionNum));
+    }
+
+    /**
+     * 当前配置的分区方式，格式为[分区方式:分区数量]，例如 hash:41
+     */
+    public String getLayout() {
+        return (isHash ? SCHEME_HASH : SCHEME_UTF8_SUM) + ":" + partitionNum;
+    }
+
+    public int getPartitionNum() {
+        return partitionNum;
+    }
+
+    /**
+     * 获取文件名所在的表
+     *
+     * @param fileName 文件名
+     * @return 表名
+     */
+    public String getTableName(String fileName) {
+        return "list" + getTableIndex(fileName);
+    }
+
+    public int getTableIndex(String fileName) {
+        if (fileName == null || fileName.isEmpty()) {
+            return 0;
+        }
+        if (!isHash) {
+            return Math.min(StringUtf8SumUtil.getStringSum(fileName) / 100, partitionNum - 1);
+        }
+        int hash = FNV_OFFSET_BASIS;
+        for (byte each : fileName.getBytes(StandardCharsets.UTF_8)) {
+            if (each >= 'A' && each <= 'Z') {
+                each += 'a' - 'A';
+            }
+            hash ^= each & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return Integer.remainderUnsigned(hash, partitionNum);
+    }
+
+    /**
+     * 标记该磁盘的记录可能不在当前分区方式对应的表中
+     *
+     * @param disk 盘符
+     */
+    public void markMigrating(String disk) {
+        migratingDisks.add(disk);
+    }
+
+    public void finishMigration(String disk) {
+        migratingDisks.remove(disk);
+    }
+
+    public boolean isMigrating(String disk) {
+        return migratingDisks.contains(disk);
+    }
+
+    /**
+     * 数据库被替换后调用，使正在进行的迁移重新检查所有表
+     *
+     * @param disk 盘符
+     */
+    public void increaseLayoutEpoch(String disk) {
+        layoutEpochs.computeIfAbsent(disk, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    public int getLayoutEpoch(String disk) {
+        AtomicInteger epoch = layoutEpochs.get(disk);
+        return epoch == null ? 0 : epoch.get();
+    }
+}
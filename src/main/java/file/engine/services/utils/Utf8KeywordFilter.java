@@ -0,0 +1,127 @@
+package file.engine.services.utils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 在路径的UTF-8字节上预先检查关键字，不满足的记录不需要创建String，满足的记录仍需要通过PathMatchUtil.check
+ * <p>
+ * 只排除一定不会匹配的记录：文件名包含非ASCII字符时可能通过拼音匹配，忽略大小写时非ASCII字符的大小写转换无法在字节上比较，
+ * 这些情况都视为可能匹配
+ *
+ * @see PathMatchUtil#check(String, String[], boolean, String, String[], String[], boolean[])
+ */
+public final class Utf8KeywordFilter {
+    private static final byte SEPARATOR = (byte) File.separatorChar;
+    private final byte[][] keywords;
+    private final boolean[] isKeywordPath;
+    private final boolean isIgnoreCase;
+
+    private Utf8KeywordFilter(byte[][] keywords, boolean[] isKeywordPath, boolean isIgnoreCase) {
+        this.keywords = keywords;
+        this.isKeywordPath = isKeywordPath;
+        this.isIgnoreCase = isIgnoreCase;
+    }
+
+    /**
+     * 根据搜索条件创建过滤器，参数与PathMatchUtil.check相同
+     *
+     * @return 正则匹配或没有关键字时返回null，表示无法预先过滤
+     */
+    public static Utf8KeywordFilter create(String[] searchCase,
+                                           boolean isIgnoreCase,
+                                           String[] keywords,
+                                           String[] keywordsLowerCase,
+                                           boolean[] isKeywordPath) {
+        if (keywords == null || (searchCase != null && List.of(searchCase).contains(PathMatchUtil.SearchCase.P))) {
+            return null;
+        }
+        byte[][] keywordBytes = new byte[keywords.length][];
+        boolean hasKeyword = false;
+        for (int i = 0; i < keywords.length; i++) {
+            String keyword = isIgnoreCase ? keywordsLowerCase[i] : keywords[i];
+            if (keyword == null || keyword.isEmpty()) {
+                continue;
+            }
+            keywordBytes[i] = keyword.getBytes(StandardCharsets.UTF_8);
+            hasKeyword = true;
+        }
+        if (!hasKeyword) {
+            return null;
+        }
+        return new Utf8KeywordFilter(keywordBytes, isKeywordPath, isIgnoreCase);
+    }
+
+    /**
+     * @param path 路径的UTF-8字节
+     * @param len  长度
+     * @return false表示一定不匹配
+     */
+    public boolean mayMatch(byte[] path, int len) {
+        int separatorIndex = -1;
+        for (int i = len - 1; i >= 0; i--) {
+            if (path[i] == SEPARATOR) {
+                separatorIndex = i;
+                break;
+            }
+        }
+        for (int i = 0; i < keywords.length; i++) {
+            final byte[] keyword = keywords[i];
+            if (keyword == null) {
+                continue;
+            }
+            final int from;
+            final int to;
+            if (isKeywordPath[i]) {
+                if (separatorIndex == -1) {
+                    return true;
+                }
+                from = 0;
+                to = separatorIndex;
+            } else {
+                from = separatorIndex + 1;
+                to = len;
+            }
+            if (!contains(path, from, to, keyword)) {
+                // 文件名的拼音以及忽略大小写时非ASCII字符的转换只能由PathMatchUtil判断
+                if ((!isKeywordPath[i] || isIgnoreCase) && hasNonAscii(path, from, to)) {
+                    continue;
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(byte[] path, int from, int to, byte[] keyword) {
+        final int last = to - keyword.length;
+        final byte first = keyword[0];
+        for (int i = from; i <= last; i++) {
+            if (toLower(path[i]) != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < keyword.length && toLower(path[i + j]) == keyword[j]) {
+                ++j;
+            }
+            if (j == keyword.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte toLower(byte b) {
+        return isIgnoreCase && b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static boolean hasNonAscii(byte[] path, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (path[i] < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,253 @@
+package file.engine.services.utils.connection;
+
+import com.google.gson.Gson;
+import file.engine.configs.Constants;
+import file.engine.utils.file.FileUtil;
+import file.engine.utils.gson.GsonUtil;
+import file.engine.utils.system.properties.IsDebug;
+import lombok.extern.slf4j.Slf4j;
+import org.sqlite.SQLiteErrorCode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 可能已损坏的数据库的后台完整性检查
+ * <p>
+ * 写入失败的数据库被记录在databaseIntegrityCheck.dat中，不再在打开连接时同步执行完整的integrity_check，
+ * 而是按照表拆分为多次quick_check，由数据库维护线程在空闲时逐个执行，检查期间数据库正常提供搜索
+ * 检查使用只读连接，不阻塞文件变化的写入，检查失败的表由调用者单独重建，所有表检查完成后从文件中删除该数据库
+ * 只有SQLITE_CORRUPT和SQLITE_NOTADB被认为是损坏，其他错误（如连接超时、数据库被锁定）时该表放回队列稍后重新检查
+ */
+@Slf4j
+public enum DatabaseIntegrityChecker {
+    INSTANCE;
+    // 检查因为其他错误失败后，等待该时间再继续检查
+    private static final long RETRY_DELAY_MILLS = 30_000;
+    // key为数据库名，value为还未检查的表，null表示还未读取表名
+    private final LinkedHashMap<String, ArrayDeque<String>> pendingTables = new LinkedHashMap<>();
+    private volatile long nextCheckTimeMills = 0;
+
+    /**
+     * 表的检查结果
+     *
+     * @param key       数据库名
+     * @param tableName 表名，无法读取表结构时为null，此时整个数据库都需要重建
+     * @param isOk      是否通过检查
+     * @param isLast    是否为该数据库最后一个需要检查的表
+     */
+    public record CheckResult(String key, String tableName, boolean isOk, boolean isLast) {
+    }
+
+    /**
+     * 读取上次运行时标记的数据库，启动时调用
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void load() {
+        pendingTables.clear();
+        if (FileUtil.isFileNotExist(Constants.DATABASE_INTEGRITY_CHECK_FILE)) {
+            return;
+        }
+        try (var reader = new BufferedReader(new InputStreamReader(new FileInputStream(Constants.DATABASE_INTEGRITY_CHECK_FILE), StandardCharsets.UTF_8))) {
+            Gson gson = GsonUtil.INSTANCE.getGson();
+            Map<String, Boolean> map = gson.fromJson(reader, Map.class);
+            if (map != null) {
+                map.forEach((key, isDbNormal) -> {
+                    if (!isDbNormal) {
+                        pendingTables.put(key, null);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
+        if (!pendingTables.isEmpty()) {
+            log.info("数据库" + pendingTables.keySet() + "需要检查完整性，将在后台进行");
+        }
+    }
+
+    /**
+     * 标记数据库需要检查，保存到文件中，程序退出前没有检查完成时下次启动继续检查
+     *
+     * @param key 数据库名
+     */
+    public synchronized void markSuspect(String key) {
+        // 已经在检查的数据库从头开始检查
+        pendingTables.put(key, null);
+        saveState();
+    }
+
+    /**
+     * @return true如果有需要检查的数据库，并且不在检查出错后的等待时间内
+     */
+    public synchronized boolean hasPendingCheck() {
+        return !pendingTables.isEmpty() && System.currentTimeMillis() >= nextCheckTimeMills;
+    }
+
+    /**
+     * 对下一个表执行quick_check，表名在第一次检查该数据库时读取，读取表名和检查都不持有锁，不阻塞markSuspect
+     *
+     * @return 检查结果，本次没有检查任何表时为null
+     */
+    public CheckResult checkNextTable() {
+        final String key;
+        final ArrayDeque<String> tables;
+        String tableName = null;
+        synchronized (this) {
+            var iterator = pendingTables.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            var entry = iterator.next();
+            key = entry.getKey();
+            tables = entry.getValue();
+            if (tables != null) {
+                tableName = tables.poll();
+                if (tableName == null) {
+                    // 没有表需要检查
+                    finish(key);
+                    return null;
+                }
+            }
+        }
+        if (tables == null) {
+            return readTables(key);
+        }
+        final long startTime = System.currentTimeMillis();
+        final Boolean isOk = quickCheck(key, tableName);
+        if (IsDebug.isDebug()) {
+            log.info("数据库" + key + "表" + tableName + " quick_check " + (isOk == null ? "出错" : isOk ? "ok" : "失败") + " 耗时：" + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        synchronized (this) {
+            ArrayDeque<String> remainTables = pendingTables.get(key);
+            // 检查期间数据库被重新标记时remainTables为null或已经是新的队列，从头开始检查
+            if (remainTables != tables) {
+                return null;
+            }
+            if (isOk == null) {
+                // 不是损坏，稍后重新检查该表
+                remainTables.addFirst(tableName);
+                nextCheckTimeMills = System.currentTimeMillis() + RETRY_DELAY_MILLS;
+                return null;
+            }
+            final boolean isLast = remainTables.isEmpty();
+            if (isLast) {
+                finish(key);
+            }
+            return new CheckResult(key, tableName, isOk, isLast);
+        }
+    }
+
+    /**
+     * 读取数据库中需要检查的表
+     *
+     * @return 无法读取表结构时返回整个数据库的检查结果，否则为null
+     */
+    private CheckResult readTables(String key) {
+        ArrayDeque<String> tables;
+        try {
+            tables = listTables(key);
+        } catch (SQLException e) {
+            if (!isCorrupt(e)) {
+                log.warn("读取数据库" + key + "的表结构失败，稍后重试 " + e.getMessage());
+                nextCheckTimeMills = System.currentTimeMillis() + RETRY_DELAY_MILLS;
+                return null;
+            }
+            log.error("读取数据库" + key + "的表结构失败 " + e.getMessage(), e);
+            synchronized (this) {
+                pendingTables.remove(key);
+                saveState();
+            }
+            return new CheckResult(key, null, false, true);
+        } catch (RuntimeException e) {
+            // 磁盘已经不可用
+            log.warn("数据库" + key + "不可用，跳过完整性检查 " + e.getMessage());
+            synchronized (this) {
+                pendingTables.remove(key);
+                saveState();
+            }
+            return null;
+        }
+        synchronized (this) {
+            // 读取期间数据库被重新标记时仍然为null，使用读取到的表名即可
+            if (pendingTables.containsKey(key) && pendingTables.get(key) == null) {
+                pendingTables.put(key, tables);
+            }
+        }
+        return null;
+    }
+
+    private ArrayDeque<String> listTables(String key) throws SQLException {
+        ArrayDeque<String> tables = new ArrayDeque<>();
+        try (Statement stmt = SQLiteUtil.getReadOnlyStatement(key);
+             ResultSet resultSet = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type='table' AND name NOT LIKE 'sqlite_%';")) {
+            while (resultSet.next()) {
+                tables.add(resultSet.getString(1));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @return true如果通过检查，false如果表已损坏，null如果因为其他错误无法检查
+     */
+    private static Boolean quickCheck(String key, String tableName) {
+        try (Statement stmt = SQLiteUtil.getReadOnlyStatement(key);
+             ResultSet resultSet = stmt.executeQuery("PRAGMA quick_check(\"" + tableName + "\");")) {
+            if (resultSet.next()) {
+                String result = resultSet.getString(1);
+                if ("ok".equals(result)) {
+                    return true;
+                }
+                log.warn("数据库" + key + "表" + tableName + "检查失败：" + result);
+            }
+            return false;
+        } catch (SQLException e) {
+            if (isCorrupt(e)) {
+                log.error("error: {}", e.getMessage(), e);
+                return false;
+            }
+            log.warn("数据库" + key + "表" + tableName + "检查出错，稍后重试 " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return true如果错误码为SQLITE_CORRUPT或SQLITE_NOTADB，包括扩展错误码
+     */
+    private static boolean isCorrupt(SQLException e) {
+        final int resultCode = e.getErrorCode() & 0xff;
+        return resultCode == SQLiteErrorCode.SQLITE_CORRUPT.code || resultCode == SQLiteErrorCode.SQLITE_NOTADB.code;
+    }
+
+    private void finish(String key) {
+        pendingTables.remove(key);
+        saveState();
+        log.info("数据库" + key + "完整性检查完成");
+    }
+
+    private void saveState() {
+        try {
+            if (pendingTables.isEmpty()) {
+                Files.deleteIfExists(Path.of(Constants.DATABASE_INTEGRITY_CHECK_FILE));
+                return;
+            }
+            HashMap<String, Boolean> dbIntegrityMap = new HashMap<>();
+            pendingTables.keySet().forEach(key -> dbIntegrityMap.put(key, false));
+            try (var writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(Constants.DATABASE_INTEGRITY_CHECK_FILE), StandardCharsets.UTF_8))) {
+                writer.write(GsonUtil.INSTANCE.getGson().toJson(dbIntegrityMap));
+            }
+        } catch (IOException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package file.engine.services.utils.connection;
+
+import file.engine.configs.Constants;
+import file.engine.utils.system.properties.IsDebug;
+import lombok.extern.slf4j.Slf4j;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConnection;
+import org.sqlite.SQLiteOpenMode;
+
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个数据库的只读连接池，数据库为WAL模式，多个只读连接可以和写入连接同时工作
+ * 空闲时只关闭多余的连接，保留一个已预热的连接，避免长时间未使用后的第一次查询重新读取所有页面
+ * 新打开的连接在使用前先读取表结构和每个表的第一页进行预热
+ */
+@Slf4j
+class ReadConnectionPool {
+    static final int MAX_READER_NUM = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors() / 2));
+    private static final long BORROW_TIMEOUT_MILLS = 30_000;
+    private final String url;
+    private final String key;
+    private final SQLiteConfig readOnlyConfig;
+    // 后归还的连接先被使用，保持少数连接的页面缓存有效
+    private final ConcurrentLinkedDeque<SQLiteConnection> idleConnections = new ConcurrentLinkedDeque<>();
+    private final Semaphore readerPermits = new Semaphore(MAX_READER_NUM);
+    // 内存预算的版本，连接设置的版本不同时在借出前重新设置cache_size和mmap_size
+    private volatile int memoryBudgetVersion = 0;
+    private final ConcurrentHashMap<SQLiteConnection, Integer> appliedMemoryBudgetVersions = new ConcurrentHashMap<>();
+    private volatile long usingTimeMills = System.currentTimeMillis();
+    private volatile boolean isClosed = false;
+
+    ReadConnectionPool(String url, String key) {
+        this.url = url;
+        this.key = key;
+        this.readOnlyConfig = new SQLiteConfig();
+        readOnlyConfig.setReadOnly(true);
+        readOnlyConfig.setOpenMode(SQLiteOpenMode.NOMUTEX);
+        readOnlyConfig.setTempStore(SQLiteConfig.TempStore.FILE);
+    }
+
+    /**
+     * 获取一个只读连接，连接数已达到上限时等待其他查询归还
+     *
+     * @return 只读连接，使用完成后必须调用release
+     * @throws SQLException 打开连接失败或等待超时
+     */
+    SQLiteConnection borrow() throws SQLException {
+        try {
+            if (!readerPermits.tryAcquire(BORROW_TIMEOUT_MILLS, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("get read connection timeout " + url);
+            }
+        } catch (InterruptedException e) {
+            throw new SQLException(e);
+        }
+        usingTimeMills = System.currentTimeMillis();
+        try {
+            SQLiteConnection connection;
+            while ((connection = idleConnections.pollFirst()) != null) {
+                if (!connection.isClosed()) {
+                    applyMemoryBudgetIfChanged(connection);
+                    return connection;
+                }
+                appliedMemoryBudgetVersions.remove(connection);
+            }
+            return openAndWarmUp();
+        } catch (SQLException | RuntimeException e) {
+            readerPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 归还只读连接
+     *
+     * @param connection 连接
+     */
+    void release(SQLiteConnection connection) {
+        usingTimeMills = System.currentTimeMillis();
+        try {
+            if (isClosed) {
+                closeConnection(connection);
+            } else {
+                idleConnections.offerFirst(connection);
+            }
+        } finally {
+            readerPermits.release();
+        }
+    }
+
+    /**
+     * 长时间未使用时关闭多余的连接，只保留一个预热过的连接
+     */
+    void shrinkIfIdle() {
+        if (System.currentTimeMillis() - usingTimeMills <= Constants.CLOSE_DATABASE_TIMEOUT_MILLS) {
+            return;
+        }
+        SQLiteConnection connection;
+        int closedNum = 0;
+        while (idleConnections.size() > 1 && (connection = idleConnections.pollLast()) != null) {
+            closeConnection(connection);
+            ++closedNum;
+        }
+        if (closedNum > 0 && IsDebug.isDebug()) {
+            log.info("长时间未使用 " + url + "  已关闭" + closedNum + "个只读连接");
+        }
+    }
+
+    /**
+     * 确保至少有一个预热过的连接
+     */
+    void warmUp() {
+        if (isClosed || !idleConnections.isEmpty()) {
+            return;
+        }
+        try {
+            idleConnections.offerFirst(openAndWarmUp());
+        } catch (SQLException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 内存预算重新分配后调用，空闲连接在下次借出时重新设置
+     */
+    void onMemoryBudgetChanged() {
+        ++memoryBudgetVersion;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    int getBorrowedNum() {
+        return MAX_READER_NUM - readerPermits.availablePermits();
+    }
+
+    /**
+     * 关闭所有空闲连接，正在使用的连接在归还时关闭
+     */
+    void close() {
+        isClosed = true;
+        SQLiteConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            closeConnection(connection);
+        }
+    }
+
+    private void applyMemoryBudgetIfChanged(SQLiteConnection connection) throws SQLException {
+        final int version = memoryBudgetVersion;
+        Integer appliedVersion = appliedMemoryBudgetVersions.get(connection);
+        if (appliedVersion == null || appliedVersion != version) {
+            try {
+                SQLiteMemoryBudget.INSTANCE.apply(connection, key);
+            } catch (SQLException e) {
+                closeConnection(connection);
+                throw e;
+            }
+            appliedMemoryBudgetVersions.put(connection, version);
+        }
+    }
+
+    private SQLiteConnection openAndWarmUp() throws SQLException {
+        var connection = (SQLiteConnection) DriverManager.getConnection(url, readOnlyConfig.toProperties());
+        applyMemoryBudgetIfChanged(connection);
+        try (Statement stmt = connection.createStatement()) {
+            ArrayList<String> tableNames = new ArrayList<>();
+            // 读取表结构
+            try (ResultSet resultSet = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type='table';")) {
+                while (resultSet.next()) {
+                    tableNames.add(resultSet.getString(1));
+                }
+            }
+            // 读取每个表的根页面
+            for (String tableName : tableNames) {
+                try (ResultSet ignored = stmt.executeQuery("SELECT * FROM \"" + tableName + "\" LIMIT 1;")) {
+                    // 只需要将页面读入缓存
+                }
+            }
+        } catch (SQLException e) {
+            closeConnection(connection);
+            throw e;
+        }
+        return connection;
+    }
+
+    private void closeConnection(SQLiteConnection connection) {
+        appliedMemoryBudgetVersions.remove(connection);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
+    }
+}
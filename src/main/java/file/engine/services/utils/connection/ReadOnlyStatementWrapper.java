@@ -0,0 +1,34 @@
+package file.engine.services.utils.connection;
+
+import org.sqlite.SQLiteConnection;
+import org.sqlite.jdbc4.JDBC4Statement;
+
+import java.sql.SQLException;
+
+/**
+ * 通过复写AutoCloseable接口的close方法将只读连接归还到连接池
+ * 必须使用 try-with-source语法
+ */
+class ReadOnlyStatementWrapper extends JDBC4Statement {
+    private final ReadConnectionPool readConnectionPool;
+    private final SQLiteConnection connection;
+    private boolean isReleased = false;
+
+    public ReadOnlyStatementWrapper(SQLiteConnection conn, ReadConnectionPool readConnectionPool) {
+        super(conn);
+        this.connection = conn;
+        this.readConnectionPool = readConnectionPool;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            super.close();
+        } finally {
+            if (!isReleased) {
+                isReleased = true;
+                readConnectionPool.release(connection);
+            }
+        }
+    }
+}
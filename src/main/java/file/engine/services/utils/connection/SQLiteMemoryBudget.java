@@ -0,0 +1,173 @@
+package file.engine.services.utils.connection;
+
+import file.engine.utils.system.properties.IsDebug;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SQLite的全局内存预算，按照数据库文件大小和查询次数分配给每个数据库
+ * <p>
+ * 页面缓存（cache_size）由每个连接独立持有，使用预算的四分之一，Java的写入连接和只读连接分一半，PathMatcher的连接池分一半
+ * 预算中除去所有连接的页面缓存后剩下的部分作为mmap_size，所有连接共享操作系统的页面缓存，mmap和页面缓存加起来不超过预算
+ * 由SQLiteUtil定期重新分配，连接创建时以及重新分配后设置PRAGMA
+ */
+@Slf4j
+public enum SQLiteMemoryBudget {
+    INSTANCE;
+    private static final long MIN_SHARE_BYTES = 2L * 1024 * 1024;
+    private static final long MIN_CACHE_SIZE_KIB = 64;
+    // Java中每个数据库的连接数量上限，一个写入连接和所有只读连接
+    private static final int JAVA_CONNECTION_NUM = ReadConnectionPool.MAX_READER_NUM + 1;
+    // 分配时文件大小所占的比例，其余按照查询次数分配
+    private static final double SIZE_WEIGHT = 0.5;
+    // 每次重新分配时之前的查询次数减半，使最近的查询影响更大
+    private static final double QUERY_DECAY = 0.5;
+    private static final int CACHE_SHARE_DIVISOR = 4;
+    // key为数据库名，value为还未参与分配的查询次数
+    private final ConcurrentHashMap<String, LongAdder> pendingQueryCounts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Double> queryFrequencies = new ConcurrentHashMap<>();
+    // key为数据库名，value为分配的预算，单位字节
+    private final ConcurrentHashMap<String, Long> shares = new ConcurrentHashMap<>();
+    private volatile long budgetBytes = 0;
+
+    /**
+     * 记录一次查询，用于按照查询次数分配预算
+     *
+     * @param key 数据库名
+     */
+    public void recordQuery(String key) {
+        pendingQueryCounts.computeIfAbsent(key, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * 重新分配预算，每个数据库的预算不超过文件大小的1.25倍，超出的部分分给其他数据库
+     *
+     * @param dbSizes     key为数据库名，value为数据库文件大小
+     * @param totalBudget 总预算，单位字节
+     * @return 预算发生变化的数据库
+     */
+    synchronized Map<String, Long> rebalance(Map<String, Long> dbSizes, long totalBudget) {
+        budgetBytes = totalBudget;
+        HashMap<String, Double> weights = new HashMap<>();
+        double totalSize = 0;
+        double totalFrequency = 0;
+        for (String key : dbSizes.keySet()) {
+            LongAdder pending = pendingQueryCounts.get(key);
+            final double frequency = queryFrequencies.getOrDefault(key, 0.0) * QUERY_DECAY + (pending == null ? 0 : pending.sumThenReset());
+            queryFrequencies.put(key, frequency);
+            totalSize += dbSizes.get(key);
+            totalFrequency += frequency;
+        }
+        for (var entry : dbSizes.entrySet()) {
+            final double sizeWeight = totalSize == 0 ? 1.0 / dbSizes.size() : entry.getValue() / totalSize;
+            final double frequencyWeight = totalFrequency == 0 ? sizeWeight : queryFrequencies.get(entry.getKey()) / totalFrequency;
+            weights.put(entry.getKey(), sizeWeight * SIZE_WEIGHT + frequencyWeight * (1 - SIZE_WEIGHT));
+        }
+        HashMap<String, Long> newShares = new HashMap<>();
+        long remainBudget = totalBudget;
+        // 达到上限的数据库不再参与分配，剩余的预算按照权重分给其他数据库
+        while (!weights.isEmpty() && remainBudget > 0) {
+            final double totalWeight = weights.values().stream().mapToDouble(Double::doubleValue).sum();
+            boolean isAnyCapped = false;
+            for (var iterator = weights.entrySet().iterator(); iterator.hasNext(); ) {
+                var entry = iterator.next();
+                final long cap = getShareCap(dbSizes.get(entry.getKey()));
+                final double share = totalWeight == 0 ? remainBudget / (double) weights.size() : remainBudget * entry.getValue() / totalWeight;
+                if (share >= cap) {
+                    newShares.put(entry.getKey(), cap);
+                    remainBudget -= cap;
+                    iterator.remove();
+                    isAnyCapped = true;
+                }
+            }
+            if (!isAnyCapped) {
+                for (var entry : weights.entrySet()) {
+                    final double share = totalWeight == 0 ? remainBudget / (double) weights.size() : remainBudget * entry.getValue() / totalWeight;
+                    newShares.put(entry.getKey(), (long) share);
+                }
+                break;
+            }
+        }
+        HashMap<String, Long> changedShares = new HashMap<>();
+        for (String key : dbSizes.keySet()) {
+            final long share = Math.max(MIN_SHARE_BYTES, newShares.getOrDefault(key, 0L));
+            Long oldShare = shares.put(key, share);
+            // 变化较小时不需要重新设置连接
+            if (oldShare == null || Math.abs(share - oldShare) > Math.max(MIN_SHARE_BYTES, oldShare / 10)) {
+                changedShares.put(key, share);
+            } else {
+                shares.put(key, oldShare);
+            }
+        }
+        if (IsDebug.isDebug() && !changedShares.isEmpty()) {
+            log.info("SQLite内存预算重新分配：" + changedShares);
+        }
+        return changedShares;
+    }
+
+    private static long getShareCap(long dbSize) {
+        return Math.max(MIN_SHARE_BYTES, dbSize + dbSize / 4);
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * @param key 数据库名
+     * @return 分配的预算，还未分配时为最小值
+     */
+    public long getShare(String key) {
+        return shares.getOrDefault(key, MIN_SHARE_BYTES);
+    }
+
+    /**
+     * @param key 数据库名
+     * @return 预算中除去Java连接和PathMatcher连接的页面缓存后剩下的部分
+     */
+    public long getMmapSize(String key) {
+        final long cacheBytes = (getCacheSizeKiB(key) * JAVA_CONNECTION_NUM + getPathMatcherCacheSizeKiB(key)) * 1024;
+        return Math.max(0, getShare(key) - cacheBytes);
+    }
+
+    /**
+     * @param key 数据库名
+     * @return Java中每个连接的cache_size，单位KiB，按照连接数量上限平分
+     */
+    public long getCacheSizeKiB(String key) {
+        return Math.max(MIN_CACHE_SIZE_KIB, getShare(key) / CACHE_SHARE_DIVISOR / 2 / JAVA_CONNECTION_NUM / 1024);
+    }
+
+    /**
+     * @param key 数据库名
+     * @return PathMatcher连接池所有连接的cache_size之和，单位KiB，由C++按照实际的连接数量平分
+     */
+    public long getPathMatcherCacheSizeKiB(String key) {
+        return Math.max(MIN_CACHE_SIZE_KIB, getShare(key) / CACHE_SHARE_DIVISOR / 2 / 1024);
+    }
+
+    public double getQueryFrequency(String key) {
+        return queryFrequencies.getOrDefault(key, 0.0);
+    }
+
+    /**
+     * 为连接设置cache_size和mmap_size
+     *
+     * @param connection 连接
+     * @param key        数据库名
+     */
+    void apply(Connection connection, String key) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            // 负数表示单位为KiB
+            stmt.execute("PRAGMA cache_size=-" + getCacheSizeKiB(key) + ";");
+            stmt.execute("PRAGMA mmap_size=" + getMmapSize(key) + ";");
+        }
+    }
+}
@@ -1,12 +1,12 @@
 package file.engine.services.utils.connection;
 
-import com.google.gson.Gson;
 import file.engine.configs.AllConfigs;
 import file.engine.configs.Constants;
 import file.engine.dllInterface.IsLocalDisk;
 import file.engine.dllInterface.PathMatcher;
 import file.engine.event.handler.EventManagement;
 import file.engine.event.handler.impl.stop.CloseEvent;
+import file.engine.services.utils.TablePartitioner;
 import file.engine.utils.RegexUtil;
 import file.engine.utils.ThreadPoolUtil;
 import file.engine.utils.file.FileUtil;
@@ -21,6 +21,7 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -31,6 +32,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 /**
  * @author XUANXU
@@ -38,8 +40,30 @@ import java.util.function.Consumer;
 @Slf4j
 public class SQLiteUtil {
     private static final SQLiteConfig sqLiteConfig = new SQLiteConfig();
+    // 每个数据库一个写入连接
     private static final ConcurrentHashMap<String, ConnectionWrapper> connectionPool = new ConcurrentHashMap<>();
+    // 每个数据库的只读连接池，用于查询
+    private static final ConcurrentHashMap<String, ReadConnectionPool> readConnectionPools = new ConcurrentHashMap<>();
     private static String currentDatabaseDir = "data";
+    // 每个磁盘数据库当前使用的版本，重建索引时写入新版本的文件，完成后切换，版本0为[盘符].db，其他版本为[盘符]-[版本].db
+    private static final ConcurrentHashMap<String, Integer> databaseGenerations = new ConcurrentHashMap<>();
+    // 固定了某个版本的搜索数量，key为该版本数据库文件的绝对路径，没有搜索固定时删除
+    private static final ConcurrentHashMap<String, Integer> generationReaders = new ConcurrentHashMap<>();
+    /*
+     * 磁盘数据库list0-list40的表结构版本，保存在PRAGMA user_version中
+     * 1：rowid表，主键(ASCII, PATH, PRIORITY)和PRIORITY索引各保存一份PATH
+     * 2：WITHOUT ROWID表，按照主键(PRIORITY, ASCII, PATH)聚集存储，PATH只保存一份，按照优先级扫描时不需要额外的索引
+     */
+    private static final int LIST_SCHEMA_VERSION = 2;
+    private static final String LIST_TABLE_SCHEMA = "(ASCII INT, PATH TEXT, PRIORITY INT, PRIMARY KEY(\"PRIORITY\",\"ASCII\",\"PATH\")) WITHOUT ROWID;";
+    // 每个分区的统计信息，由PartitionStats在写入文件变化的事务中更新
+    private static final String PARTITION_STATS_TABLE_SCHEMA = "(TABLE_NAME TEXT, PRIORITY INT, RECORD_NUM INT, TOTAL_BYTES INT, GENERATION INT, HIT_COUNT INT, PRIMARY KEY(\"TABLE_NAME\",\"PRIORITY\")) WITHOUT ROWID;";
+    /**
+     * PRAGMA auto_vacuum的返回值，INCREMENTAL模式下删除记录后的空闲页面可以通过incremental_vacuum逐步释放
+     */
+    public static final int AUTO_VACUUM_INCREMENTAL = 2;
+    // 有问题的数据库文件，下次启动时删除
+    private static final String MALFORMED_DB_FILE = "user/malformedDB";
 
     static {
         Consumer<ConnectionWrapper> checkConnectionAndClose = (conn) -> {
@@ -63,13 +87,21 @@ public class SQLiteUtil {
         // 超时关闭数据库连接检测线程
         threadPoolUtil.executeTask(() -> {
             long checkTimeMills = 0;
+            long rebalanceTimeMills = 0;
             final long threshold = 10_000; // 10s
+            final long rebalanceThreshold = 60_000; // 60s
             while (!threadPoolUtil.isShutdown()) {
                 if (System.currentTimeMillis() - checkTimeMills > threshold) {
                     checkTimeMills = System.currentTimeMillis();
                     for (ConnectionWrapper conn : connectionPool.values()) {
                         checkConnectionAndClose.accept(conn);
                     }
+                    // 只读连接不全部关闭，保留一个预热过的连接
+                    readConnectionPools.values().forEach(ReadConnectionPool::shrinkIfIdle);
+                }
+                if (System.currentTimeMillis() - rebalanceTimeMills > rebalanceThreshold && !connectionPool.isEmpty()) {
+                    rebalanceTimeMills = System.currentTimeMillis();
+                    rebalanceMemoryBudget();
                 }
                 try {
                     TimeUnit.MILLISECONDS.sleep(50);
@@ -98,7 +130,7 @@ public class SQLiteUtil {
                 try {
                     conn.lock.lock();
                     if (conn.connection.isClosed()) {
-                        conn.connection = DriverManager.getConnection(conn.url, sqLiteConfig.toProperties());
+                        conn.connection = conn.openConnection();
                     }
                     conn.usingTimeMills = System.currentTimeMillis();
                 } catch (SQLException e) {
@@ -107,7 +139,8 @@ public class SQLiteUtil {
                     conn.lock.unlock();
                 }
             }
-        });
+            readConnectionPools.values().forEach(ReadConnectionPool::warmUp);
+        }, ThreadPoolUtil.Bulkhead.MAINTENANCE);
     }
 
     private static ConnectionWrapper getFromConnectionPool(String key) throws SQLException {
@@ -118,7 +151,7 @@ public class SQLiteUtil {
         try {
             connectionWrapper.lock.lock();
             if (connectionWrapper.connection.isClosed()) {
-                connectionWrapper.connection = DriverManager.getConnection(connectionWrapper.url, sqLiteConfig.toProperties());
+                connectionWrapper.connection = connectionWrapper.openConnection();
                 log.info("已恢复连接 " + connectionWrapper.url);
             }
             connectionWrapper.usingTimeMills = System.currentTimeMillis();
@@ -141,7 +174,7 @@ public class SQLiteUtil {
             if (FileUtil.isFileNotExist(root) || !IsLocalDisk.INSTANCE.isDiskNTFS(root)) {
                 throw new RuntimeException(root + " disk is invalid.");
             } else {
-                File data = new File(currentDatabaseDir, key + ".db");
+                File data = getDatabaseFile(currentDatabaseDir, key);
                 initConnection("jdbc:sqlite:" + data.getAbsolutePath(), key);
             }
         }
@@ -161,7 +194,7 @@ public class SQLiteUtil {
             if (FileUtil.isFileNotExist(root) || !IsLocalDisk.INSTANCE.isDiskNTFS(root)) {
                 throw new RuntimeException(root + " disk is invalid.");
             } else {
-                File data = new File(currentDatabaseDir, key + ".db");
+                File data = getDatabaseFile(currentDatabaseDir, key);
                 initConnection("jdbc:sqlite:" + data.getAbsolutePath(), key);
             }
         }
@@ -169,8 +202,284 @@ public class SQLiteUtil {
         return new StatementWrapper((SQLiteConnection) wrapper.connection, wrapper.connectionUsingCounter);
     }
 
+    /**
+     * 获取只读连接的Statement，用于查询，不会和写入连接互相等待
+     * 必须使用 try-with-source语法，关闭时连接归还到连接池
+     *
+     * @param key 数据库名
+     * @return Statement
+     * @throws SQLException 失败
+     */
+    public static Statement getReadOnlyStatement(String key) throws SQLException {
+        if (isConnectionNotInitialized(key)) {
+            // 由写入连接创建数据库文件和表
+            getStatement(key).close();
+        }
+        ConnectionWrapper wrapper = connectionPool.get(key);
+        if (wrapper == null) {
+            throw new IllegalArgumentException("no connection named " + key);
+        }
+        ReadConnectionPool readConnectionPool = readConnectionPools.computeIfAbsent(key, k -> new ReadConnectionPool(wrapper.url, key));
+        if (!readConnectionPool.getUrl().equals(connectionPool.get(key).url)) {
+            // 获取连接池时数据库已切换到新版本
+            if (readConnectionPools.remove(key, readConnectionPool)) {
+                readConnectionPool.close();
+            }
+            return getReadOnlyStatement(key);
+        }
+        SQLiteMemoryBudget.INSTANCE.recordQuery(key);
+        return new ReadOnlyStatementWrapper(readConnectionPool.borrow(), readConnectionPool);
+    }
+
     public static String getDbAbsolutePath(String key) {
-        return new File(currentDatabaseDir, key + ".db").getAbsolutePath();
+        return getDatabaseFile(currentDatabaseDir, key).getAbsolutePath();
+    }
+
+    private static File getDatabaseFile(String dir, String key) {
+        final int generation = databaseGenerations.getOrDefault(key, 0);
+        return generation == 0 ? new File(dir, key + ".db") : new File(dir, key + "-" + generation + ".db");
+    }
+
+    /**
+     * 固定数据库当前的版本，搜索开始时调用，之后切换版本不影响该搜索
+     * 旧版本在所有固定该版本的搜索释放后才会被删除
+     *
+     * @param key 数据库名
+     * @return 当前版本数据库文件的绝对路径，使用完成后调用releaseDatabaseGeneration
+     */
+    public static String pinDatabaseGeneration(String key) {
+        while (true) {
+            final String dbPath = getDbAbsolutePath(key);
+            generationReaders.merge(dbPath, 1, Integer::sum);
+            // 固定前已经切换到新版本时重新固定，切换之后旧版本的读取数量不会再增加
+            if (dbPath.equals(getDbAbsolutePath(key))) {
+                return dbPath;
+            }
+            releaseDatabaseGeneration(dbPath);
+        }
+    }
+
+    /**
+     * 释放pinDatabaseGeneration固定的版本
+     *
+     * @param dbPath 数据库文件的绝对路径
+     */
+    public static void releaseDatabaseGeneration(String dbPath) {
+        generationReaders.computeIfPresent(dbPath, (k, readerNum) -> readerNum <= 1 ? null : readerNum - 1);
+    }
+
+    /**
+     * @param dbPath 数据库文件的绝对路径
+     * @return 是否有搜索固定了该版本
+     */
+    public static boolean isDatabaseGenerationPinned(String dbPath) {
+        return generationReaders.containsKey(dbPath);
+    }
+
+    /**
+     * 将重建完成的数据库切换为当前版本
+     * 新的数据库文件被移动到数据库文件夹中作为新版本，打开连接后替换旧版本的连接，之后的查询都使用新版本
+     * 旧版本的连接等待正在执行的查询完成后关闭，旧版本的文件由调用者在固定该版本的搜索全部释放后通过deleteDatabaseFiles删除
+     *
+     * @param key         数据库名
+     * @param newDatabase 重建完成的数据库文件
+     * @return 旧版本数据库文件的绝对路径
+     */
+    public static String swapDatabaseGeneration(String key, File newDatabase) throws IOException, SQLException {
+        final int newGeneration = databaseGenerations.getOrDefault(key, 0) + 1;
+        File target = new File(currentDatabaseDir, key + "-" + newGeneration + ".db");
+        Files.move(newDatabase.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        initSqliteConfig();
+        ConnectionWrapper newConnectionWrapper = new ConnectionWrapper("jdbc:sqlite:" + target.getAbsolutePath(), key);
+        try (Statement stmt = newConnectionWrapper.connection.createStatement()) {
+            initTables(stmt, key);
+        }
+        final String oldDbPath = getDbAbsolutePath(key);
+        databaseGenerations.put(key, newGeneration);
+        ConnectionWrapper oldConnectionWrapper = connectionPool.put(key, newConnectionWrapper);
+        ReadConnectionPool oldReadConnectionPool = readConnectionPools.remove(key);
+        saveDatabaseGenerations();
+        if (IsDebug.isDebug()) {
+            log.info("数据库 " + key + " 已切换到版本 " + newGeneration);
+        }
+        if (oldReadConnectionPool != null) {
+            closeReadConnectionPool(oldReadConnectionPool);
+        }
+        if (oldConnectionWrapper != null) {
+            closeConnectionWrapper(oldConnectionWrapper);
+        }
+        return oldDbPath;
+    }
+
+    /**
+     * 创建一个空的影子数据库，写入完成并关闭连接后通过swapDatabaseGeneration切换为当前版本
+     * 写入期间没有其他连接，失败时整个文件被丢弃，不需要日志
+     *
+     * @param dbFile 数据库文件，已存在时删除
+     * @param layout 写入的记录使用的分区方式
+     * @return 连接，由调用者关闭
+     */
+    public static Connection createShadowDatabase(File dbFile, String layout) throws SQLException {
+        deleteDatabaseFiles(dbFile.getAbsolutePath());
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL + ";");
+            stmt.execute("PRAGMA journal_mode=OFF;");
+            stmt.execute("PRAGMA synchronous=OFF;");
+            stmt.executeUpdate("CREATE TABLE partition_layout(LAYOUT TEXT);");
+            stmt.executeUpdate("INSERT INTO partition_layout VALUES('" + layout + "');");
+            initTables(stmt, dbFile.getName());
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * 检查影子数据库中的记录是否都按照layout保存，是则将layout写入partition_layout，切换后不需要检查所有记录
+     * fileSearcherUSN按照layout写入记录，影子数据库由fileSearcherUSN新建（没有partition_layout），
+     * 或者复制的数据库的分区方式与layout相同时，所有记录都按照layout保存
+     * 必须在openShadowDatabase之前调用，initTables会为没有分区方式的数据库写入LEGACY_LAYOUT
+     *
+     * @param dbFile 影子数据库文件
+     * @param layout 当前的分区方式
+     * @return true如果所有记录都按照layout保存
+     */
+    @SuppressWarnings("SqlNoDataSourceInspection")
+    public static boolean resolveShadowLayout(File dbFile, String layout) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+             Statement stmt = connection.createStatement()) {
+            boolean hasLayoutTable;
+            try (ResultSet resultSet = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type='table' AND name='partition_layout';")) {
+                hasLayoutTable = resultSet.next();
+            }
+            if (hasLayoutTable) {
+                String copiedLayout = null;
+                try (ResultSet resultSet = stmt.executeQuery("SELECT LAYOUT FROM partition_layout;")) {
+                    if (resultSet.next()) {
+                        copiedLayout = resultSet.getString(1);
+                    }
+                }
+                if (!layout.equals(copiedLayout)) {
+                    return false;
+                }
+            }
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS partition_layout(LAYOUT TEXT);");
+            stmt.executeUpdate("DELETE FROM partition_layout;");
+            stmt.executeUpdate("INSERT INTO partition_layout VALUES('" + layout + "');");
+            return true;
+        }
+    }
+
+    /**
+     * 打开已经写入完成、还未切换为当前版本的影子数据库，用于补充写入重建期间的文件变化
+     * 影子数据库可能由fileSearcherUSN创建，打开时按照当前的表结构初始化
+     *
+     * @param dbFile 数据库文件
+     * @param key    数据库名
+     * @return 连接，由调用者关闭
+     */
+    public static Connection openShadowDatabase(File dbFile, String key) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=OFF;");
+            stmt.execute("PRAGMA synchronous=OFF;");
+            initTables(stmt, key);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * 删除数据库文件以及WAL文件
+     *
+     * @param dbPath 数据库文件路径
+     */
+    public static void deleteDatabaseFiles(String dbPath) {
+        for (String suffix : new String[]{"", "-wal", "-shm", "-journal"}) {
+            try {
+                Files.deleteIfExists(Path.of(dbPath + suffix));
+            } catch (IOException e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 读取每个磁盘数据库当前的版本，并删除不是当前版本的数据库文件（切换版本时程序退出留下的文件）
+     *
+     * @param dir   数据库文件夹
+     * @param disks 所有磁盘
+     */
+    @SuppressWarnings("unchecked")
+    private static void loadDatabaseGenerations(String dir, String[] disks) {
+        databaseGenerations.clear();
+        if (FileUtil.isFileExist(Constants.DATABASE_GENERATION_FILE)) {
+            try (var reader = new BufferedReader(new InputStreamReader(new FileInputStream(Constants.DATABASE_GENERATION_FILE), StandardCharsets.UTF_8))) {
+                Map<String, Number> map = GsonUtil.INSTANCE.getGson().fromJson(reader, Map.class);
+                if (map != null) {
+                    map.forEach((key, generation) -> databaseGenerations.put(key, generation.intValue()));
+                }
+            } catch (Exception e) {
+                log.error("error: {}", e.getMessage(), e);
+            }
+        }
+        File[] files = new File(dir).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (String eachDisk : disks) {
+            String key = String.valueOf(eachDisk.charAt(0));
+            String currentDbName = getDatabaseFile(dir, key).getName();
+            Pattern generationPattern = Pattern.compile(Pattern.quote(key) + "(-\\d+)?\\.db");
+            for (File file : files) {
+                String fileName = file.getName();
+                if (generationPattern.matcher(fileName).matches() && !fileName.equals(currentDbName)) {
+                    log.info("删除旧版本数据库 " + file.getAbsolutePath());
+                    deleteDatabaseFiles(file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private static void saveDatabaseGenerations() {
+        try (var writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(Constants.DATABASE_GENERATION_FILE), StandardCharsets.UTF_8))) {
+            writer.write(GsonUtil.INSTANCE.getGson().toJson(databaseGenerations));
+        } catch (IOException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
+    }
+
+    private static void closeConnectionWrapper(ConnectionWrapper connectionWrapper) {
+        final int timeout = 30_000; // 30s
+        try {
+            connectionWrapper.lock.lock();
+            final long checkTime = System.currentTimeMillis();
+            while (connectionWrapper.isConnectionUsing() && System.currentTimeMillis() - checkTime < timeout) {
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+            connectionWrapper.connection.close();
+        } catch (SQLException | InterruptedException e) {
+            log.error("error: {}", e.getMessage(), e);
+        } finally {
+            connectionWrapper.lock.unlock();
+        }
+    }
+
+    private static void closeReadConnectionPool(ReadConnectionPool readConnectionPool) {
+        final int timeout = 30_000; // 30s
+        readConnectionPool.close();
+        final long checkTime = System.currentTimeMillis();
+        try {
+            while (readConnectionPool.getBorrowedNum() > 0 && System.currentTimeMillis() - checkTime < timeout) {
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
     }
 
     private static boolean isConnectionNotInitialized(String key) {
@@ -182,19 +491,8 @@ public class SQLiteUtil {
 
     private static void initConnection(String url, String key) throws SQLException {
         initSqliteConfig();
-        ConnectionWrapper connectionWrapper = new ConnectionWrapper(url);
-        if (FileUtil.isFileExist(Constants.DATABASE_INTEGRITY_CHECK_FILE)) {
-            try (var reader = new BufferedReader(new InputStreamReader(new FileInputStream(Constants.DATABASE_INTEGRITY_CHECK_FILE), StandardCharsets.UTF_8))) {
-                Gson gson = GsonUtil.INSTANCE.getGson();
-                Map<String, Boolean> map = gson.fromJson(reader, Map.class);
-                boolean isDbNormal = map.getOrDefault(key, true);
-                if (!isDbNormal) {
-                    connectionWrapper.integrityCheck();
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        // 可能损坏的数据库由DatabaseIntegrityChecker在后台检查，不在打开连接时检查
+        ConnectionWrapper connectionWrapper = new ConnectionWrapper(url, key);
         connectionPool.put(key, connectionWrapper);
     }
 
@@ -222,9 +520,25 @@ public class SQLiteUtil {
             }
         }
         connectionPool.clear();
+        readConnectionPools.values().forEach(SQLiteUtil::closeReadConnectionPool);
+        readConnectionPools.clear();
         PathMatcher.INSTANCE.closeConnections();
     }
 
+    /**
+     * 标记数据库已损坏并且无法修复，下次启动时删除数据库文件后重新创建
+     *
+     * @param key 数据库名
+     */
+    public static void markDatabaseMalformed(String key) {
+        try (var writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(MALFORMED_DB_FILE, true), StandardCharsets.UTF_8))) {
+            writer.write(getDbAbsolutePath(key));
+            writer.newLine();
+        } catch (IOException e) {
+            log.error("error: {}", e.getMessage(), e);
+        }
+    }
+
     /**
      * 删除有问题的数据库文件，有问题的数据库被记录在user/malformedDB文件中
      */
@@ -266,25 +580,6 @@ public class SQLiteUtil {
         return disks;
     }
 
-    /**
-     * 复制数据库文件到另一个文件夹
-     *
-     * @param fromDir 源路径
-     * @param toDir   目标路径
-     */
-    public static void copyDatabases(String fromDir, String toDir) {
-        File cache = new File(fromDir, "cache.db");
-        FileUtil.copyFile(cache, new File(toDir, "cache.db"));
-        File weight = new File(fromDir, "weight.db");
-        FileUtil.copyFile(weight, new File(toDir, "weight.db"));
-        String[] split = RegexUtil.comma.split(initializeAndGetDiskPath());
-        for (String eachDisk : split) {
-            String dbName = eachDisk.charAt(0) + ".db";
-            File data = new File(fromDir, dbName);
-            FileUtil.copyFile(data, new File(toDir, dbName));
-        }
-    }
-
     /**
      * 检查数据库中表是否为空
      *
@@ -336,12 +631,12 @@ public class SQLiteUtil {
 
     public static void initAllConnections(String dir) {
         currentDatabaseDir = dir;
-        String malformedDbFileSavePath = "user/malformedDB";
-        deleteMalFormedFile(malformedDbFileSavePath);
+        deleteMalFormedFile(MALFORMED_DB_FILE);
         String[] split = RegexUtil.comma.split(initializeAndGetDiskPath());
+        loadDatabaseGenerations(dir, split);
         ArrayList<File> malformedFiles = new ArrayList<>();
         for (String eachDisk : split) {
-            File data = new File(dir, eachDisk.charAt(0) + ".db");
+            File data = getDatabaseFile(dir, String.valueOf(eachDisk.charAt(0)));
             try {
                 initConnection("jdbc:sqlite:" + data.getAbsolutePath(), String.valueOf(eachDisk.charAt(0)));
                 initTables(String.valueOf(eachDisk.charAt(0)));
@@ -370,7 +665,7 @@ public class SQLiteUtil {
         }
         if (!malformedFiles.isEmpty()) {
             try {
-                var fileOutputStream = new FileOutputStream(malformedDbFileSavePath);
+                var fileOutputStream = new FileOutputStream(MALFORMED_DB_FILE);
                 var outputStreamWriter = new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8);
                 var writer = new BufferedWriter(outputStreamWriter);
                 try (writer) {
@@ -385,13 +680,7 @@ public class SQLiteUtil {
             log.error("Malformed database exist, please restart");
             EventManagement.getInstance().putEvent(new CloseEvent());
         }
-        if (FileUtil.isFileExist(Constants.DATABASE_INTEGRITY_CHECK_FILE)) {
-            try {
-                Files.delete(Path.of(Constants.DATABASE_INTEGRITY_CHECK_FILE));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        DatabaseIntegrityChecker.INSTANCE.load();
     }
 
     /**
@@ -429,14 +718,109 @@ public class SQLiteUtil {
      */
     private static void initTables(String disk) {
         try (Statement stmt = getStatement(disk)) {
-            for (int i = 0; i < 41; i++) {
-                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS list" + i + "(ASCII INT, PATH TEXT, PRIORITY INT, PRIMARY KEY(\"ASCII\",\"PATH\",\"PRIORITY\"));");
-            }
+            initTables(stmt, disk);
         } catch (SQLException e) {
             log.error("error: {}", e.getMessage(), e);
         }
     }
 
+    private static void initTables(Statement stmt, String disk) throws SQLException {
+        final int schemaVersion = getSchemaVersion(stmt);
+        // 旧版本的表由DatabaseService在后台逐个迁移，不阻塞启动，全部迁移完成后才更新user_version
+        final boolean isListSchemaOutdated = schemaVersion < LIST_SCHEMA_VERSION && isListTableExist(stmt);
+        for (int i = 0; i <= Constants.MAX_TABLE_NUM; i++) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS list" + i + LIST_TABLE_SCHEMA);
+        }
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS partition_stats" + PARTITION_STATS_TABLE_SCHEMA);
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS partition_layout(LAYOUT TEXT);");
+        try (ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM partition_layout;")) {
+            if (resultSet.next() && resultSet.getInt(1) == 0) {
+                // 旧版本的数据库使用UTF-8字节和分区，新建的空数据库迁移时没有需要移动的记录
+                stmt.executeUpdate("INSERT INTO partition_layout VALUES('" + TablePartitioner.LEGACY_LAYOUT + "');");
+            }
+        }
+        if (!isListSchemaOutdated && schemaVersion != LIST_SCHEMA_VERSION) {
+            stmt.executeUpdate("PRAGMA user_version=" + LIST_SCHEMA_VERSION + ";");
+        }
+    }
+
+    private static boolean isListTableExist(Statement stmt) throws SQLException {
+        try (ResultSet resultSet = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type='table' AND name LIKE 'list%';")) {
+            return resultSet.next();
+        }
+    }
+
+    private static int getSchemaVersion(Statement stmt) throws SQLException {
+        try (ResultSet resultSet = stmt.executeQuery("PRAGMA user_version;")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * 获取还未迁移到当前表结构的表，没有需要迁移的表时更新user_version
+     *
+     * @param disk 数据库名
+     * @return 表名
+     */
+    public static ArrayList<String> getOutdatedListTables(String disk) throws SQLException {
+        ArrayList<String> tables = new ArrayList<>();
+        try (Statement stmt = getStatement(disk)) {
+            if (getSchemaVersion(stmt) >= LIST_SCHEMA_VERSION) {
+                return tables;
+            }
+            for (int i = 0; i <= Constants.MAX_TABLE_NUM; i++) {
+                String tableName = "list" + i;
+                if (!isWithoutRowidTable(stmt, tableName)) {
+                    tables.add(tableName);
+                }
+            }
+            if (tables.isEmpty()) {
+                stmt.executeUpdate("PRAGMA user_version=" + LIST_SCHEMA_VERSION + ";");
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * 将一个旧版本的表迁移到新的表结构，在一个事务中完成，中途退出时下次启动重新迁移该表
+     * 删除旧表的同时会删除旧表的PRIORITY索引，释放的页面由VACUUM回收
+     * 迁移期间该数据库不能写入，由调用者持有写入锁
+     *
+     * @param disk      数据库名
+     * @param tableName 表名
+     */
+    public static void migrateListTable(String disk, String tableName) throws SQLException {
+        try (Statement stmt = getStatement(disk)) {
+            if (isWithoutRowidTable(stmt, tableName)) {
+                return;
+            }
+            String newTableName = tableName + "_new";
+            stmt.execute("BEGIN;");
+            try {
+                stmt.executeUpdate("DROP TABLE IF EXISTS " + newTableName + ";");
+                stmt.executeUpdate("CREATE TABLE " + newTableName + LIST_TABLE_SCHEMA);
+                stmt.executeUpdate("INSERT OR IGNORE INTO " + newTableName + " SELECT ASCII, PATH, PRIORITY FROM " + tableName + ";");
+                stmt.executeUpdate("DROP TABLE " + tableName + ";");
+                stmt.executeUpdate("ALTER TABLE " + newTableName + " RENAME TO " + tableName + ";");
+                stmt.execute("COMMIT;");
+            } catch (SQLException e) {
+                stmt.execute("ROLLBACK;");
+                throw e;
+            }
+        }
+    }
+
+    private static boolean isWithoutRowidTable(Statement stmt, String tableName) throws SQLException {
+        try (ResultSet resultSet = stmt.executeQuery("SELECT sql FROM sqlite_master WHERE type='table' AND name='" + tableName + "';")) {
+            if (resultSet.next()) {
+                String sql = resultSet.getString(1);
+                return sql != null && sql.toUpperCase().contains("WITHOUT ROWID");
+            }
+            // 表不存在，由initTables创建
+            return true;
+        }
+    }
+
     private static void createPriorityTable() throws SQLException {
         if (isTableExist("priority", "cache")) {
             return;
@@ -510,8 +894,120 @@ public class SQLiteUtil {
         return String.format("INSERT OR IGNORE INTO priority VALUES(\"%s\", %d);", suffix, priority);
     }
 
+    /**
+     * 新建的空数据库设置为auto_vacuum=INCREMENTAL，删除记录后的空闲页面由后台维护线程分批释放，不需要执行完整的VACUUM
+     * 连接打开时已经切换为WAL模式，此时auto_vacuum只能通过VACUUM修改，空数据库执行VACUUM几乎没有开销
+     * 已有数据的数据库在OptimizeDatabaseEvent中转换
+     *
+     * @param connection 写入连接
+     * @throws SQLException 失败
+     */
+    private static void enableIncrementalVacuumIfEmpty(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            try (ResultSet resultSet = stmt.executeQuery("PRAGMA auto_vacuum;")) {
+                if (resultSet.next() && resultSet.getInt(1) == AUTO_VACUUM_INCREMENTAL) {
+                    return;
+                }
+            }
+            try (ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM sqlite_master;")) {
+                if (resultSet.next() && resultSet.getInt(1) != 0) {
+                    return;
+                }
+            }
+            stmt.executeUpdate("PRAGMA auto_vacuum=INCREMENTAL;");
+            stmt.executeUpdate("VACUUM;");
+        }
+    }
+
+    /**
+     * 按照每个数据库的文件大小和最近的查询次数重新分配内存预算
+     * 只读连接和PathMatcher的连接在下次取出时设置新的cache_size和mmap_size
+     */
+    private static void rebalanceMemoryBudget() {
+        var configEntity = AllConfigs.getInstance().getConfigEntity();
+        if (configEntity == null || configEntity.getAdvancedConfigEntity() == null) {
+            // 配置还未读取
+            return;
+        }
+        final long budgetBytes = configEntity.getAdvancedConfigEntity().getSqliteMemoryBudgetInMB() * 1024 * 1024;
+        HashMap<String, Long> dbSizes = new HashMap<>();
+        connectionPool.forEach((key, conn) -> dbSizes.put(key, getDbFileSize(conn.url)));
+        final SQLiteMemoryBudget memoryBudget = SQLiteMemoryBudget.INSTANCE;
+        Map<String, Long> changedShares = memoryBudget.rebalance(dbSizes, budgetBytes);
+        connectionPool.forEach((key, conn) -> {
+            // 切换版本后数据库路径改变，每次都设置，预算没有变化时PathMatcher不会重新设置连接
+            PathMatcher.INSTANCE.setMemoryLimit(getDbFileByUrl(conn.url),
+                    memoryBudget.getPathMatcherCacheSizeKiB(key),
+                    memoryBudget.getMmapSize(key));
+        });
+        // 写入连接为NOMUTEX模式，可能正在被其他线程使用，在重新打开时使用新的预算
+        for (String key : changedShares.keySet()) {
+            ReadConnectionPool readConnectionPool = readConnectionPools.get(key);
+            if (readConnectionPool != null) {
+                readConnectionPool.onMemoryBudgetChanged();
+            }
+        }
+    }
+
+    /**
+     * 获取所有数据库的内存预算以及页面缓存命中率
+     * sqlite-jdbc没有提供sqlite3_db_status，命中率由PathMatcher的连接统计，搜索的扫描都在这些连接上执行
+     *
+     * @return 每个数据库的内存状态
+     */
+    public static ArrayList<SQLiteMemoryStatus> getMemoryStatus() {
+        ArrayList<SQLiteMemoryStatus> statuses = new ArrayList<>();
+        final SQLiteMemoryBudget memoryBudget = SQLiteMemoryBudget.INSTANCE;
+        connectionPool.forEach((key, conn) -> {
+            final String dbPath = getDbFileByUrl(conn.url);
+            long[] cacheStatus = PathMatcher.INSTANCE.getCacheStatus(dbPath);
+            final long cacheHit = cacheStatus == null ? 0 : cacheStatus[0];
+            final long cacheMiss = cacheStatus == null ? 0 : cacheStatus[1];
+            final long cacheUsed = cacheStatus == null ? 0 : cacheStatus[2];
+            statuses.add(new SQLiteMemoryStatus(key,
+                    getDbFileSize(conn.url),
+                    memoryBudget.getQueryFrequency(key),
+                    memoryBudget.getShare(key),
+                    memoryBudget.getMmapSize(key),
+                    memoryBudget.getCacheSizeKiB(key),
+                    cacheUsed,
+                    cacheHit,
+                    cacheMiss,
+                    cacheHit + cacheMiss == 0 ? 0 : (double) cacheHit / (cacheHit + cacheMiss)));
+        });
+        return statuses;
+    }
+
+    /**
+     * 数据库的内存预算和页面缓存状态
+     *
+     * @param key            数据库名
+     * @param fileSize       数据库文件大小
+     * @param queryFrequency 最近的查询次数，每次重新分配时减半
+     * @param budgetBytes    分配的预算
+     * @param mmapSize       mmap_size
+     * @param cacheSizeKiB   Java中每个连接的cache_size，单位KiB
+     * @param cacheUsed      PathMatcher的连接使用的页面缓存
+     * @param cacheHit       PathMatcher的连接页面缓存命中次数
+     * @param cacheMiss      PathMatcher的连接页面缓存未命中次数
+     * @param hitRatio       命中率
+     */
+    public record SQLiteMemoryStatus(String key, long fileSize, double queryFrequency, long budgetBytes, long mmapSize,
+                                     long cacheSizeKiB, long cacheUsed, long cacheHit, long cacheMiss, double hitRatio) {
+    }
+
+    private static String getDbFileByUrl(String url) {
+        return url.substring("jdbc:sqlite:".length());
+    }
+
+    private static long getDbFileSize(String url) {
+        File dbFile = new File(getDbFileByUrl(url));
+        return dbFile.length();
+    }
+
     private static class ConnectionWrapper {
         private final String url;
+        private final String key;
         private Connection connection;
         private volatile long usingTimeMills;
         private final AtomicInteger connectionUsingCounter = new AtomicInteger();
@@ -519,34 +1015,31 @@ public class SQLiteUtil {
         private final int randomTimeMills;
         private static final Random random = new Random();
 
-        private ConnectionWrapper(String url) throws SQLException {
+        private ConnectionWrapper(String url, String key) throws SQLException {
             this.url = url;
-            this.connection = DriverManager.getConnection(url, sqLiteConfig.toProperties());
+            this.key = key;
+            this.connection = openConnection();
+            enableIncrementalVacuumIfEmpty(this.connection);
             this.usingTimeMills = System.currentTimeMillis();
             this.randomTimeMills = random.nextInt(300000) + 30000; //随机添加超时时间，从30秒到5秒，防止所有连接同时关闭
         }
 
+        private Connection openConnection() throws SQLException {
+            Connection newConnection = DriverManager.getConnection(url, sqLiteConfig.toProperties());
+            try {
+                SQLiteMemoryBudget.INSTANCE.apply(newConnection, key);
+            } catch (SQLException e) {
+                newConnection.close();
+                throw e;
+            }
+            return newConnection;
+        }
+
         private boolean isIdleTimeout() {
             return System.currentTimeMillis() - this.usingTimeMills > Constants.CLOSE_DATABASE_TIMEOUT_MILLS + this.randomTimeMills &&
                     connectionUsingCounter.get() == 0;
         }
 
-        private void integrityCheck() throws SQLException {
-            try (Statement statement = this.connection.createStatement()) {
-                if (statement.execute("PRAGMA integrity_check")) {
-                    try (ResultSet resultSet = statement.getResultSet()) {
-                        if (resultSet.next()) {
-                            String integrity = resultSet.getString(1);
-                            if ("ok".equals(integrity)) {
-                                return;
-                            }
-                        }
-                    }
-                }
-            }
-            throw new SQLException();
-        }
-
         private boolean isConnectionUsing() {
             return connectionUsingCounter.get() != 0;
         }
@@ -0,0 +1,177 @@
+package file.engine.utils;
+
+import file.engine.utils.system.properties.IsDebug;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 有界线程池，每个子系统使用独立的实例（舱壁隔离），防止某一个子系统耗尽所有线程导致搜索等任务无法执行
+ * 并发数和排队数量都有上限，超过上限后根据RejectPolicy处理，同时记录排队数量，等待时间以及被拒绝的任务数量
+ */
+@Slf4j
+public class BulkheadExecutor implements Executor {
+    @Getter
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final RejectPolicy rejectPolicy;
+    private final int maxConcurrency;
+    private final int queueCapacity;
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param name            线程池名称，同时作为线程名前缀
+     * @param isVirtualThread 是否使用虚拟线程，调用会长时间阻塞的native方法时应使用平台线程
+     * @param maxConcurrency  最大并发数
+     * @param queueCapacity   最大排队数量，为0时不排队，没有空闲线程则直接拒绝
+     * @param rejectPolicy    超过上限后的处理方式
+     */
+    public BulkheadExecutor(String name, boolean isVirtualThread, int maxConcurrency, int queueCapacity, RejectPolicy rejectPolicy) {
+        if (maxConcurrency < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("invalid bulkhead size, maxConcurrency: " + maxConcurrency + " queueCapacity: " + queueCapacity);
+        }
+        this.name = name;
+        this.rejectPolicy = rejectPolicy;
+        this.maxConcurrency = maxConcurrency;
+        this.queueCapacity = queueCapacity;
+        ThreadFactory threadFactory = isVirtualThread ?
+                Thread.ofVirtual().name(name + "-", 0).factory() :
+                Thread.ofPlatform().name(name + "-", 0).daemon(true).factory();
+        BlockingQueue<Runnable> workQueue = queueCapacity == 0 ? new SynchronousQueue<>() : new LinkedBlockingQueue<>(queueCapacity);
+        this.executor = new ThreadPoolExecutor(
+                maxConcurrency,
+                maxConcurrency,
+                60,
+                TimeUnit.SECONDS,
+                workQueue,
+                threadFactory,
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executeOrDiscard(task);
+    }
+
+    /**
+     * 执行任务
+     *
+     * @param task 任务
+     * @return false如果任务被丢弃
+     */
+    private boolean executeOrDiscard(Runnable task) {
+        final long enqueueTime = System.nanoTime();
+        submittedCount.increment();
+        Runnable wrapper = () -> {
+            recordWaitTime(System.nanoTime() - enqueueTime);
+            try {
+                task.run();
+            } finally {
+                completedCount.increment();
+            }
+        };
+        try {
+            executor.execute(wrapper);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCount.increment();
+            switch (rejectPolicy) {
+                case CALLER_RUNS -> {
+                    if (executor.isShutdown()) {
+                        return false;
+                    }
+                    wrapper.run();
+                    return true;
+                }
+                case DISCARD -> {
+                    if (IsDebug.isDebug()) {
+                        log.warn("线程池" + name + "已满，丢弃任务");
+                    }
+                    return false;
+                }
+                default -> throw new RejectedExecutionException("线程池" + name + "已满，拒绝任务", e);
+            }
+        }
+    }
+
+    /**
+     * 提交任务
+     *
+     * @param task 任务
+     * @return Future，若任务被丢弃则Future已被取消
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> futureTask = new FutureTask<>(task);
+        if (!executeOrDiscard(futureTask)) {
+            futureTask.cancel(false);
+        }
+        return futureTask;
+    }
+
+    private void recordWaitTime(long waitNanos) {
+        totalWaitNanos.add(waitNanos);
+        long max = maxWaitNanos.get();
+        while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    public Stats getStats() {
+        final long submitted = submittedCount.sum();
+        final long rejected = rejectedCount.sum();
+        final long executed = submitted - rejected;
+        final double avgWaitMills = executed <= 0 ? 0 : totalWaitNanos.sum() / (double) executed / 1_000_000;
+        return new Stats(name,
+                executor.getActiveCount(),
+                executor.getQueue().size(),
+                maxConcurrency,
+                queueCapacity,
+                submitted,
+                completedCount.sum(),
+                rejected,
+                avgWaitMills,
+                maxWaitNanos.get() / 1_000_000.0);
+    }
+
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * 超过并发数和排队上限后的处理方式
+     * ABORT：抛出RejectedExecutionException
+     * CALLER_RUNS：在提交任务的线程中执行，用于需要向提交者施加背压的场景，不要用于HTTP线程会提交任务的线程池
+     * DISCARD：直接丢弃，用于会被周期性重新提交的任务
+     */
+    public enum RejectPolicy {
+        ABORT, CALLER_RUNS, DISCARD
+    }
+
+    /**
+     * 线程池运行状态
+     */
+    public record Stats(String name,
+                        int activeCount,
+                        int queueSize,
+                        int maxConcurrency,
+                        int queueCapacity,
+                        long submittedCount,
+                        long completedCount,
+                        long rejectedCount,
+                        double avgWaitMills,
+                        double maxWaitMills) {
+    }
+}
@@ -4,29 +4,31 @@ import file.engine.configs.Constants;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 public enum ThreadPoolUtil {
     INSTANCE;
-    @Getter
-    private final ExecutorService cachedThreadPool;
+    // 常驻线程使用，如各种检测循环，数量由代码决定而不是由负载决定
     @Getter
     private final ExecutorService virtualThreadPool;
+    // 每个子系统的有界线程池，由负载决定的任务必须提交到对应的线程池中
+    private final EnumMap<Bulkhead, BulkheadExecutor> bulkheads = new EnumMap<>(Bulkhead.class);
     private final AtomicBoolean isShutdown = new AtomicBoolean(false);
 
     ThreadPoolUtil() {
-        cachedThreadPool = new ThreadPoolExecutor(
-                0,
-                1000,
-                60,
-                TimeUnit.SECONDS,
-                new SynchronousQueue<>(),
-                Executors.defaultThreadFactory(),
-                new ThreadPoolExecutor.CallerRunsPolicy()
-        );
         virtualThreadPool = Executors.newVirtualThreadPerTaskExecutor();
+        for (Bulkhead each : Bulkhead.values()) {
+            bulkheads.put(each, new BulkheadExecutor(each.name().toLowerCase(),
+                    each.isVirtualThread,
+                    each.maxConcurrency,
+                    each.queueCapacity,
+                    each.rejectPolicy));
+        }
     }
 
     public static ThreadPoolUtil getInstance() {
@@ -37,71 +39,86 @@ public enum ThreadPoolUtil {
         return isShutdown.get();
     }
 
-    private <T> Future<T> executeTaskPlatform(Callable<T> task) {
-        return cachedThreadPool.submit(task);
-    }
-
-    private <T> Future<T> executeTaskVirtual(Callable<T> task) {
-        return virtualThreadPool.submit(task);
+    public BulkheadExecutor getExecutor(Bulkhead bulkhead) {
+        return bulkheads.get(bulkhead);
     }
 
-    private void executeTaskPlatform(Runnable task) {
-        cachedThreadPool.submit(task);
-    }
-
-    private void executeTaskVirtual(Runnable task) {
-        virtualThreadPool.submit(task);
+    /**
+     * 获取所有子系统线程池的运行状态
+     *
+     * @return 每个线程池的并发数，排队数量，等待时间以及拒绝数量
+     */
+    public List<BulkheadExecutor.Stats> getBulkheadStats() {
+        ArrayList<BulkheadExecutor.Stats> stats = new ArrayList<>();
+        bulkheads.values().forEach(each -> stats.add(each.getStats()));
+        return stats;
     }
 
     /**
-     * 提交任务
+     * 使用虚拟线程提交常驻任务
      *
-     * @param task            任务
-     * @param isVirtualThread 是否使用虚拟线程
+     * @param task 任务
      * @return Future
      */
-    public <T> Future<T> executeTask(Callable<T> task, boolean isVirtualThread) {
+    public <T> Future<T> executeTask(Callable<T> task) {
         if (isShutdown.get()) {
             return null;
         }
-        if (isVirtualThread) {
-            return executeTaskVirtual(task);
-        } else {
-            return executeTaskPlatform(task);
-        }
+        return virtualThreadPool.submit(task);
     }
 
-    public <T> Future<T> executeTask(Callable<T> task) {
-        return executeTask(task, true);
+    /**
+     * 使用虚拟线程提交常驻任务
+     *
+     * @param task 任务
+     */
+    public void executeTask(Runnable task) {
+        if (isShutdown.get()) {
+            return;
+        }
+        virtualThreadPool.submit(task);
     }
 
     /**
-     * 提交任务
+     * 使用独立的平台线程执行常驻任务，用于一直调用native方法的循环，不占用子系统线程池的并发数
      *
-     * @param task            任务
-     * @param isVirtualThread 是否使用虚拟线程
+     * @param name 线程名
+     * @param task 任务
      */
-    public void executeTask(Runnable task, boolean isVirtualThread) {
+    public void executeDaemonTask(String name, Runnable task) {
         if (isShutdown.get()) {
             return;
         }
-        if (isVirtualThread) {
-            executeTaskVirtual(task);
-        } else {
-            executeTaskPlatform(task);
+        Thread.ofPlatform().name(name).daemon(true).start(task);
+    }
+
+    /**
+     * 提交任务到子系统线程池
+     *
+     * @param task     任务
+     * @param bulkhead 子系统
+     * @return Future
+     * @throws RejectedExecutionException 线程池已满并且拒绝策略为ABORT
+     */
+    public <T> Future<T> executeTask(Callable<T> task, Bulkhead bulkhead) {
+        if (isShutdown.get()) {
+            return null;
         }
+        return bulkheads.get(bulkhead).submit(task);
     }
 
     /**
-     * 使用虚拟线程提交任务
+     * 提交任务到子系统线程池
      *
-     * @param task 任务
+     * @param task     任务
+     * @param bulkhead 子系统
+     * @throws RejectedExecutionException 线程池已满并且拒绝策略为ABORT
      */
-    public void executeTask(Runnable task) {
+    public void executeTask(Runnable task, Bulkhead bulkhead) {
         if (isShutdown.get()) {
             return;
         }
-        executeTask(task, true);
+        bulkheads.get(bulkhead).execute(task);
     }
 
     /**
@@ -109,34 +126,65 @@ public enum ThreadPoolUtil {
      */
     public void shutdown() {
         isShutdown.set(true);
-        cachedThreadPool.shutdownNow();
         virtualThreadPool.shutdownNow();
-        printInfo((ThreadPoolExecutor) cachedThreadPool);
+        bulkheads.values().forEach(BulkheadExecutor::shutdownNow);
+        bulkheads.values().forEach(this::printInfo);
     }
 
     /**
      * 等待线程池关闭并打印线程池信息
      *
-     * @param threadPoolExecutor 线程池
+     * @param bulkheadExecutor 线程池
      */
-    private void printInfo(ThreadPoolExecutor threadPoolExecutor) {
+    private void printInfo(BulkheadExecutor bulkheadExecutor) {
         try {
-            if (!threadPoolExecutor.awaitTermination(Constants.THREAD_POOL_AWAIT_TIMEOUT, TimeUnit.SECONDS)) {
-                System.err.println("线程池等待超时");
-                int queueSize = threadPoolExecutor.getQueue().size();
-                System.err.println("当前排队线程数：" + queueSize);
-
-                int activeCount = threadPoolExecutor.getActiveCount();
-                System.err.println("当前活动线程数：" + activeCount);
-
-                long completedTaskCount = threadPoolExecutor.getCompletedTaskCount();
-                System.err.println("执行完成线程数：" + completedTaskCount);
-
-                long taskCount = threadPoolExecutor.getTaskCount();
-                System.err.println("总线程数：" + taskCount);
+            if (!bulkheadExecutor.awaitTermination(Constants.THREAD_POOL_AWAIT_TIMEOUT, TimeUnit.SECONDS)) {
+                var stats = bulkheadExecutor.getStats();
+                System.err.println("线程池" + stats.name() + "等待超时");
+                System.err.println("当前排队线程数：" + stats.queueSize());
+                System.err.println("当前活动线程数：" + stats.activeCount());
+                System.err.println("执行完成线程数：" + stats.completedCount());
+                System.err.println("总线程数：" + stats.submittedCount());
+                System.err.println("被拒绝线程数：" + stats.rejectedCount());
             }
         } catch (InterruptedException e) {
             log.error("error: {}", e.getMessage(), e);
         }
     }
+
+    /**
+     * 子系统线程池
+     * SEARCH：每个搜索任务的调度线程，已满时拒绝新的搜索
+     * SEARCH_WORKER：扫描数据库和文件夹的工作线程，由SEARCH中的线程提交，已满时由调度线程自己执行
+     * INGESTION：处理文件变化，已满时由文件监控线程自己执行，使文件变化的读取速度降低
+     * SQL_FLUSH：将sql写入数据库，会被周期性触发，已满时丢弃
+     * CACHE_BUILD：创建内存缓存以及GPU缓存
+     * MAINTENANCE：耗时较长的数据库维护任务，如复制和删除数据库，分区迁移，导入快照，已满时由调用者自己执行
+     * HTTP_CALLBACK：执行由http请求发出的事件（EventManagement.putHttpEvent），已满时拒绝，不占用http线程执行，内部事件使用虚拟线程执行
+     * MONITOR：监控磁盘文件变化，调用会一直阻塞的native方法，使用平台线程
+     * GPU：调用GPU加速native方法，使用平台线程，常驻的循环使用executeDaemonTask，不占用该线程池
+     */
+    public enum Bulkhead {
+        SEARCH(true, Math.max(8, Runtime.getRuntime().availableProcessors() * 2), 64, BulkheadExecutor.RejectPolicy.ABORT),
+        SEARCH_WORKER(true, Math.max(16, Runtime.getRuntime().availableProcessors() * 8), 4096, BulkheadExecutor.RejectPolicy.CALLER_RUNS),
+        INGESTION(true, 2, 1024, BulkheadExecutor.RejectPolicy.CALLER_RUNS),
+        SQL_FLUSH(true, 2, 16, BulkheadExecutor.RejectPolicy.DISCARD),
+        CACHE_BUILD(true, 2, 4, BulkheadExecutor.RejectPolicy.DISCARD),
+        MAINTENANCE(true, 4, 256, BulkheadExecutor.RejectPolicy.CALLER_RUNS),
+        HTTP_CALLBACK(true, 256, 4096, BulkheadExecutor.RejectPolicy.ABORT),
+        MONITOR(false, 32, 0, BulkheadExecutor.RejectPolicy.ABORT),
+        GPU(false, 4, 16, BulkheadExecutor.RejectPolicy.ABORT);
+
+        private final boolean isVirtualThread;
+        private final int maxConcurrency;
+        private final int queueCapacity;
+        private final BulkheadExecutor.RejectPolicy rejectPolicy;
+
+        Bulkhead(boolean isVirtualThread, int maxConcurrency, int queueCapacity, BulkheadExecutor.RejectPolicy rejectPolicy) {
+            this.isVirtualThread = isVirtualThread;
+            this.maxConcurrency = maxConcurrency;
+            this.queueCapacity = queueCapacity;
+            this.rejectPolicy = rejectPolicy;
+        }
+    }
 }